@@ -0,0 +1,114 @@
+package com.astro.compare_products.service;
+
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates two synthetic product catalogs to compare, reproducibly from a seed.
+ * <p>
+ * Every product carries the four key fields of the default configuration, a few top-level values, attributes
+ * nested {@code nestingDepth} levels deep, and arrays of {@code arraySize} variants and tags. The second catalog
+ * holds a copy of a {@code matchRatio} share of the products of the first and new products for the rest. A
+ * {@code driftRatio} share of the copies has one value changed, at the top level, in the nested attributes or in
+ * a variant, and a {@code duplicateKeyRatio} share of the second catalog repeats the key of an earlier product.
+ *
+ * @param seed              Seed of the random values, equal seeds generate equal catalogs
+ * @param documents         Number of products in each catalog
+ * @param nestingDepth      Number of levels of nested attribute documents, 0 for none
+ * @param arraySize         Number of variants and of tags of every product
+ * @param matchRatio        Share of products of the first catalog that are copied into the second
+ * @param driftRatio        Share of copied products that differ from their original
+ * @param duplicateKeyRatio Share of products of the second catalog that repeat the key of another product
+ */
+public record CatalogGenerator(long seed, int documents, int nestingDepth, int arraySize, double matchRatio,
+                               double driftRatio, double duplicateKeyRatio) {
+
+    /**
+     * Both catalogs, and the pairs of matched products, original first, that differ.
+     */
+    public record Catalog(List<Document> collection1, List<Document> collection2, List<Document[]> driftedPairs) {
+    }
+
+    public Catalog generate() {
+        Random random = new Random(seed);
+        List<Document> collection1 = new ArrayList<>(documents);
+        List<Document> collection2 = new ArrayList<>(documents);
+        List<Document[]> driftedPairs = new ArrayList<>();
+        for (int i = 0; i < documents; i++) {
+            Document product = product(i, random);
+            collection1.add(product);
+            Document counterpart;
+            if (random.nextDouble() >= matchRatio) {
+                counterpart = product(documents + i, random);
+            } else {
+                counterpart = Document.parse(product.toJson());
+                if (random.nextDouble() < driftRatio) {
+                    drift(counterpart, random);
+                    driftedPairs.add(new Document[]{product, counterpart});
+                }
+            }
+            if (i > 0 && random.nextDouble() < duplicateKeyRatio) {
+                Document earlier = collection2.get(random.nextInt(collection2.size()));
+                for (String keyField : List.of("upc", "product_id", "catalog_type", "country")) {
+                    counterpart.put(keyField, earlier.get(keyField));
+                }
+            }
+            collection2.add(counterpart);
+        }
+        return new Catalog(collection1, collection2, driftedPairs);
+    }
+
+    private Document product(int id, Random random) {
+        List<Document> variants = new ArrayList<>(arraySize);
+        List<String> tags = new ArrayList<>(arraySize);
+        for (int i = 0; i < arraySize; i++) {
+            variants.add(new Document("sku", "S" + id + "-" + i)
+                    .append("size", String.valueOf(36 + i))
+                    .append("stock", random.nextInt(500)));
+            tags.add("tag-" + random.nextInt(1_000));
+        }
+        return new Document("upc", String.format("%012d", id))
+                .append("product_id", "P" + id)
+                .append("catalog_type", id % 2 == 0 ? "online" : "store")
+                .append("country", "US")
+                .append("name", "Product " + id)
+                .append("price", random.nextInt(10_000) / 100.0)
+                .append("attributes", attributes(nestingDepth, random))
+                .append("variants", variants)
+                .append("tags", tags);
+    }
+
+    private static Document attributes(int depth, Random random) {
+        Document attributes = new Document("color", random.nextBoolean() ? "red" : "blue")
+                .append("weight", random.nextInt(100));
+        if (depth > 1) {
+            attributes.append("details", attributes(depth - 1, random));
+        }
+        return attributes;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void drift(Document product, Random random) {
+        switch (random.nextInt(3)) {
+            case 0 -> product.put("price", random.nextInt(10_000) / 100.0 + 100);
+            case 1 -> {
+                Document attributes = product.get("attributes", Document.class);
+                while (attributes.containsKey("details")) {
+                    attributes = attributes.get("details", Document.class);
+                }
+                attributes.put("weight", random.nextInt(100) + 100);
+            }
+            default -> {
+                List<Document> variants = (List<Document>) product.get("variants");
+                if (variants.isEmpty()) {
+                    product.put("name", "Renamed " + product.getString("name"));
+                } else {
+                    variants.get(random.nextInt(variants.size())).put("stock", random.nextInt(500) + 500);
+                }
+            }
+        }
+    }
+}
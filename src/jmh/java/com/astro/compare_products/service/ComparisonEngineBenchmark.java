@@ -0,0 +1,185 @@
+package com.astro.compare_products.service;
+
+import com.astro.compare_products.common.ComparisonRules;
+import com.astro.compare_products.common.CompositeKey;
+import com.astro.compare_products.common.DiffTable;
+import com.astro.compare_products.common.DocumentFingerprint;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of the stages of {@link DocumentComparisonService} on catalogs from a
+ * {@link CatalogGenerator}: a whole comparison, key generation, the field comparison of differing and of equal
+ * documents, the content hashes of equal documents, and reading the differences back as the report and the JSON
+ * results do.
+ * <p>
+ * The private stages are called through method handles, so they are measured without any change to the
+ * service. Key generation and field comparison report operations per document or per pair. To see the
+ * allocation rate next to the throughput, with dependencies from the local repository only, run for example
+ * {@code mvn -o -Pbenchmark -DskipTests test-compile exec:exec -Djmh.args="ComparisonEngine -prof gc -p nestingDepth=1,4"}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class ComparisonEngineBenchmark {
+
+    private static final int DOCUMENTS = 50_000;
+
+    @Param({"42"})
+    private long seed;
+
+    @Param({"2"})
+    private int nestingDepth;
+
+    @Param({"8"})
+    private int arraySize;
+
+    @Param({"0.9"})
+    private double matchRatio;
+
+    @Param({"0.1"})
+    private double driftRatio;
+
+    @Param({"0.001"})
+    private double duplicateKeyRatio;
+
+    @Param({"false", "true"})
+    private boolean offHeapIndex;
+
+    private DocumentComparisonService comparisonService;
+
+    private ComparisonRules rules;
+
+    private MethodHandle generateKey;
+
+    private MethodHandle compareDocumentFields;
+
+    private CatalogGenerator.Catalog catalog;
+
+    private DiffTable differingDocs;
+
+    // Pairs of equal documents, the original of every drifted pair and a copy of it
+    private List<Document[]> equalPairs;
+
+    @Setup(Level.Trial)
+    public void setUp() throws ReflectiveOperationException {
+        comparisonService = new DocumentComparisonService();
+        ReflectionTestUtils.setField(comparisonService, "ignoredFieldsProperty", "_id,last_updated");
+        ReflectionTestUtils.setField(comparisonService, "keyFieldsProperty", "upc,product_id,catalog_type,country");
+        ReflectionTestUtils.setField(comparisonService, "arrayKeysProperty", "variants:sku");
+        ReflectionTestUtils.setField(comparisonService, "offHeapIndexEnabled", offHeapIndex);
+        comparisonService.init();
+        rules = comparisonService.rulesFor(DocumentComparisonService.COLLECTION_1, DocumentComparisonService.COLLECTION_2);
+
+        MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(DocumentComparisonService.class, MethodHandles.lookup());
+        generateKey = lookup.findVirtual(DocumentComparisonService.class, "generateKey",
+                MethodType.methodType(CompositeKey.class, Document.class));
+        compareDocumentFields = lookup.findVirtual(DocumentComparisonService.class, "compareDocumentFields",
+                MethodType.methodType(void.class, Document.class, Document.class, ComparisonRules.class, DiffTable.class, int.class));
+
+        catalog = new CatalogGenerator(seed, DOCUMENTS, nestingDepth, arraySize, matchRatio, driftRatio, duplicateKeyRatio)
+                .generate();
+        differingDocs = (DiffTable) comparisonService.compareDocuments(catalog.collection1(), catalog.collection2())
+                .get("differingDocs");
+        equalPairs = catalog.driftedPairs().stream()
+                .map(pair -> new Document[]{pair[0], Document.parse(pair[0].toJson())})
+                .toList();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        comparisonService.shutdown();
+    }
+
+    @Benchmark
+    public void compareDocuments(Blackhole blackhole) {
+        Map<String, Object> reportData = comparisonService.compareDocuments(catalog.collection1(), catalog.collection2());
+        blackhole.consume(reportData);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DOCUMENTS)
+    public void generateKey(Blackhole blackhole) throws Throwable {
+        for (Document doc : catalog.collection1()) {
+            blackhole.consume((CompositeKey) generateKey.invokeExact(comparisonService, doc));
+        }
+    }
+
+    /**
+     * Compares the fields of every pair of differing documents, so the throughput is in pairs per second once
+     * divided by the number of pairs, which is about {@code DOCUMENTS * matchRatio * driftRatio}.
+     */
+    @Benchmark
+    public void compareDocumentFields(Blackhole blackhole) throws Throwable {
+        DiffTable differences = new DiffTable();
+        for (Document[] pair : catalog.driftedPairs()) {
+            compareDocumentFields.invokeExact(comparisonService, pair[0], pair[1], rules, differences, DiffTable.ROOT);
+            differences.endDocument();
+        }
+        blackhole.consume(differences);
+    }
+
+    /**
+     * Compares the fields of pairs of equal documents, which stops at no difference.
+     */
+    @Benchmark
+    public void compareEqualPairs(Blackhole blackhole) throws Throwable {
+        DiffTable differences = new DiffTable();
+        for (Document[] pair : equalPairs) {
+            compareDocumentFields.invokeExact(comparisonService, pair[0], pair[1], rules, differences, DiffTable.ROOT);
+            differences.endDocument();
+        }
+        blackhole.consume(differences);
+    }
+
+    /**
+     * Computes the content hashes of the same pairs as {@link #compareEqualPairs(Blackhole)}, which costs more than
+     * comparing them, so pairs already in memory are compared without hashing them first.
+     */
+    @Benchmark
+    public void hashEqualPairs(Blackhole blackhole) {
+        for (Document[] pair : equalPairs) {
+            blackhole.consume(DocumentFingerprint.contentHash(pair[0], rules) == DocumentFingerprint.contentHash(pair[1], rules));
+        }
+    }
+
+    /**
+     * Reads every difference row by row, as the HTML report renders them.
+     */
+    @Benchmark
+    public void readDifferenceRows(Blackhole blackhole) {
+        for (int doc = 0; doc < differingDocs.size(); doc++) {
+            for (DiffTable.Row row : differingDocs.rows(doc)) {
+                blackhole.consume(row.path());
+                blackhole.consume(row.collection1());
+                blackhole.consume(row.collection2());
+            }
+        }
+    }
+
+    /**
+     * Reads every difference through the map view of its document, as the JSON results serialize them.
+     */
+    @Benchmark
+    public void readDifferenceMaps(Blackhole blackhole) {
+        for (Map<String, Map<String, Object>> doc : differingDocs) {
+            for (Map.Entry<String, Map<String, Object>> field : doc.entrySet()) {
+                blackhole.consume(field.getKey());
+                blackhole.consume(field.getValue().get(DocumentComparisonService.COLLECTION_1));
+                blackhole.consume(field.getValue().get(DocumentComparisonService.COLLECTION_2));
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.astro.compare_products.service;
+
+import org.bson.Document;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how {@link DocumentComparisonService#compareDocuments(List, List)} scales with the number of
+ * worker threads when the documents are compared in hash partitions.
+ * <p>
+ * {@code partitions=1} is the sequential baseline, for which the thread count has no effect.
+ * To chart the scaling on a machine, run for example
+ * {@code -Djmh.args="ParallelComparison -p partitions=64 -p threads=1,2,4,8,16,32"}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class ParallelComparisonBenchmark {
+
+    @Param({"200000"})
+    private int documents;
+
+    @Param({"1", "64"})
+    private int partitions;
+
+    @Param({"1", "2", "4", "8"})
+    private int threads;
+
+    private DocumentComparisonService comparisonService;
+
+    private List<Document> collection1Docs;
+
+    private List<Document> collection2Docs;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        comparisonService = new DocumentComparisonService();
+        ReflectionTestUtils.setField(comparisonService, "ignoredFieldsProperty", "_id,last_updated");
+        ReflectionTestUtils.setField(comparisonService, "keyFieldsProperty", "upc,product_id,catalog_type,country");
+        ReflectionTestUtils.setField(comparisonService, "parallelPartitions", partitions);
+        ReflectionTestUtils.setField(comparisonService, "parallelThreads", threads);
+        comparisonService.init();
+
+        // Nine in ten documents match across collections and one in ten matched pairs differs
+        Random random = new Random(42);
+        collection1Docs = new ArrayList<>(documents);
+        collection2Docs = new ArrayList<>(documents);
+        for (int i = 0; i < documents; i++) {
+            Document product = product(i, random);
+            collection1Docs.add(product);
+            if (i % 10 == 9) {
+                collection2Docs.add(product(documents + i, random));
+            } else {
+                Document copy = Document.parse(product.toJson());
+                if (i % 10 == 0) {
+                    copy.append("price", random.nextInt(10_000) / 100.0);
+                }
+                collection2Docs.add(copy);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        comparisonService.shutdown();
+    }
+
+    @Benchmark
+    public void compareDocuments(Blackhole blackhole) {
+        Map<String, Object> reportData = comparisonService.compareDocuments(collection1Docs, collection2Docs);
+        blackhole.consume(reportData);
+    }
+
+    private static Document product(int id, Random random) {
+        return new Document("upc", String.format("%012d", id))
+                .append("product_id", "P" + id)
+                .append("catalog_type", id % 2 == 0 ? "online" : "store")
+                .append("country", "US")
+                .append("name", "Product " + id)
+                .append("price", random.nextInt(10_000) / 100.0)
+                .append("attributes", new Document("color", "red").append("size", "M").append("weight", random.nextInt(100)));
+    }
+}
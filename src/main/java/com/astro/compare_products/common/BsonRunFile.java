@@ -0,0 +1,140 @@
+package com.astro.compare_products.common;
+
+import org.bson.RawBsonDocument;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+/**
+ * Temporary file holding a run of encoded BSON documents, written once and then read back through memory mapping.
+ * <p>
+ * Documents are stored back to back in their encoded form: every BSON document starts with its own length,
+ * so the file needs no framing of its own and documents are never re-encoded. Reading maps the file in windows
+ * larger than the largest BSON document, so files of any size can be read without loading them on the heap.
+ */
+public final class BsonRunFile implements Closeable {
+
+    // Larger than the 16 MiB maximum BSON document size, so every document fits in one window
+    private static final int MAP_WINDOW_BYTES = 64 * 1024 * 1024;
+    private static final int WRITE_BUFFER_BYTES = 32 * 1024;
+
+    private final Path path;
+    private OutputStream output;
+    private long bytes;
+    private long documents;
+
+    /**
+     * Creates an empty run file, open for appending documents.
+     *
+     * @param path The file to create, truncated if it exists
+     * @throws IOException If the file cannot be created
+     */
+    public BsonRunFile(Path path) throws IOException {
+        this.path = path;
+        this.output = new BufferedOutputStream(Files.newOutputStream(path), WRITE_BUFFER_BYTES);
+    }
+
+    /**
+     * Appends an encoded document to the file.
+     *
+     * @param document The document to append
+     * @throws IOException If the document cannot be written
+     */
+    public void append(RawBsonDocument document) throws IOException {
+        ByteBuffer buffer = document.getByteBuffer().asNIO();
+        int length = buffer.remaining();
+        if (buffer.hasArray()) {
+            output.write(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+        } else {
+            byte[] copy = new byte[length];
+            buffer.get(copy);
+            output.write(copy);
+        }
+        bytes += length;
+        documents++;
+    }
+
+    /**
+     * Flushes and closes the file for writing. Closing it again has no effect.
+     */
+    @Override
+    public void close() throws IOException {
+        if (output != null) {
+            output.close();
+            output = null;
+        }
+    }
+
+    /**
+     * Reads every document of the closed file in the order they were appended.
+     * <p>
+     * Each document is copied out of the mapping into a heap array of its own, so the documents passed
+     * to the consumer stay valid after the file is deleted.
+     *
+     * @param consumer Receives every document
+     * @throws IOException If the file cannot be mapped or is truncated
+     */
+    public void forEach(Consumer<RawBsonDocument> consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW_BYTES, size - position));
+                window.order(ByteOrder.LITTLE_ENDIAN);
+                int offset = 0;
+                while (offset + 4 <= window.limit()) {
+                    int length = window.getInt(offset);
+                    if (length < 5 || offset + length > window.limit()) {
+                        break;
+                    }
+                    byte[] document = new byte[length];
+                    window.get(offset, document);
+                    consumer.accept(new RawBsonDocument(document));
+                    offset += length;
+                }
+                if (offset == 0) {
+                    throw new IOException("Truncated BSON document at offset " + position + " of " + path);
+                }
+                position += offset;
+            }
+        }
+    }
+
+    /**
+     * Closes the file if still open and deletes it.
+     *
+     * @throws IOException If the file cannot be deleted
+     */
+    public void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+    }
+
+    public Path path() {
+        return path;
+    }
+
+    /**
+     * Returns the number of encoded bytes appended to the file.
+     */
+    public long bytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the number of documents appended to the file.
+     */
+    public long documents() {
+        return documents;
+    }
+}
@@ -0,0 +1,54 @@
+package com.astro.compare_products.common;
+
+/**
+ * Strategies available for comparing the documents of two collections.
+ */
+public enum ComparisonMode {
+
+    /**
+     * Loads both collections into memory and matches documents through a key index.
+     */
+    HASH,
+
+    /**
+     * Loads both collections into memory in their encoded BSON form and compares the encoded values,
+     * decoding only the values that differ.
+     */
+    RAW,
+
+    /**
+     * Reads both collections through cursors sorted on the key fields and merge-joins them,
+     * keeping heap use independent of collection size.
+     */
+    STREAMING,
+
+    /**
+     * Finds the keys that are missing on one side or whose content differs with a server-side aggregation,
+     * and fetches and compares only the documents of those keys.
+     */
+    PREFILTER,
+
+    /**
+     * Hash-partitions both collections by key into temporary files and compares one partition at a time,
+     * keeping heap use within a configured budget without sorting on the server.
+     */
+    EXTERNAL,
+
+    /**
+     * Keeps hash trees over key-hash buckets of both collections in MongoDB, up to date with the documents
+     * updated since the previous run, and compares only the documents of the buckets whose hashes differ.
+     */
+    MERKLE,
+
+    /**
+     * Splits the key space into ranges recorded as work units in MongoDB, which every instance of the
+     * application claims under a lease and compares, and merges the results of all units.
+     */
+    DISTRIBUTED,
+
+    /**
+     * Re-compares only the documents updated since the previous run and keeps the differences found
+     * so far in MongoDB.
+     */
+    INCREMENTAL
+}
@@ -0,0 +1,32 @@
+package com.astro.compare_products.common;
+
+/**
+ * Phases of a comparison run and of rendering its report, timed separately to tell where the time of a run went.
+ */
+public enum ComparisonPhase {
+
+    /**
+     * Reading the documents of both collections from the database, including decoding them.
+     */
+    FETCH,
+
+    /**
+     * Generating the keys of the target documents and indexing them for lookup.
+     */
+    INDEX,
+
+    /**
+     * Matching the source documents against the index and comparing the fields of matching documents.
+     */
+    COMPARE,
+
+    /**
+     * Rendering the report template.
+     */
+    RENDER,
+
+    /**
+     * Sending the rendered report to the client and saving it to the report file.
+     */
+    WRITE
+}
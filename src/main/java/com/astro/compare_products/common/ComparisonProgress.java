@@ -0,0 +1,164 @@
+package com.astro.compare_products.common;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Progress of a single comparison run: the documents fetched and compared on each side, the number of
+ * unique and differing documents and of duplicate keys found so far, and the time spent in every phase.
+ * <p>
+ * Counters may be updated from several worker threads at once and read at any time while the run is in progress.
+ * A run can be cancelled through its progress; the comparison checks for cancellation as it compares documents.
+ */
+public final class ComparisonProgress {
+
+    private final LongAdder fetched1 = new LongAdder();
+    private final LongAdder fetched2 = new LongAdder();
+    private final LongAdder compared1 = new LongAdder();
+    private final LongAdder compared2 = new LongAdder();
+    private final LongAdder firstOnly = new LongAdder();
+    private final LongAdder secondOnly = new LongAdder();
+    private final LongAdder differing = new LongAdder();
+    private final LongAdder duplicateKeys = new LongAdder();
+    private final Map<ComparisonPhase, LongAdder> phaseNanos = new EnumMap<>(ComparisonPhase.class);
+
+    private final ComparisonProgress run;
+
+    private volatile boolean cancelled;
+
+    public ComparisonProgress() {
+        this(null);
+    }
+
+    /**
+     * Creates the progress of a part of a run, counted apart from the run but cancelled with it.
+     *
+     * @param run The progress of the run, or {@code null} for a progress of its own
+     */
+    public ComparisonProgress(ComparisonProgress run) {
+        this.run = run;
+        for (ComparisonPhase phase : ComparisonPhase.values()) {
+            phaseNanos.put(phase, new LongAdder());
+        }
+    }
+
+    /**
+     * Records documents fetched from one of the collections.
+     *
+     * @param side  1 for the first collection, 2 for the second
+     * @param count The number of documents fetched
+     */
+    public void addFetched(int side, long count) {
+        (side == 1 ? fetched1 : fetched2).add(count);
+    }
+
+    /**
+     * Records one document of one of the collections as compared.
+     *
+     * @param side 1 for the first collection, 2 for the second
+     * @throws CancellationException if the run was cancelled
+     */
+    public void documentCompared(int side) {
+        checkCancelled();
+        (side == 1 ? compared1 : compared2).increment();
+    }
+
+    public void firstOnlyFound() {
+        firstOnly.increment();
+    }
+
+    public void secondOnlyFound() {
+        secondOnly.increment();
+    }
+
+    public void differingFound() {
+        differing.increment();
+    }
+
+    /**
+     * Records a target document whose key was already used by an earlier target document.
+     */
+    public void duplicateKeyFound() {
+        duplicateKeys.increment();
+    }
+
+    /**
+     * Records time spent in a phase; phases run several times in a run, such as once per partition, add up.
+     *
+     * @param phase The phase
+     * @param nanos The time spent, in nanoseconds
+     */
+    public void addPhaseTime(ComparisonPhase phase, long nanos) {
+        phaseNanos.get(phase).add(nanos);
+    }
+
+    /**
+     * Returns the time spent in a phase so far, in nanoseconds, 0 if the run did not go through it.
+     */
+    public long phaseNanos(ComparisonPhase phase) {
+        return phaseNanos.get(phase).sum();
+    }
+
+    /**
+     * Requests the run to stop; the comparison stops at the next document it compares.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled || run != null && run.isCancelled();
+    }
+
+    /**
+     * @throws CancellationException if the run was cancelled
+     */
+    public void checkCancelled() {
+        if (isCancelled()) {
+            throw new CancellationException("Comparison cancelled");
+        }
+    }
+
+    /**
+     * Returns the current values of all counters.
+     *
+     * @return Map of counter names to their values
+     */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> snapshot = new LinkedHashMap<>();
+        counters().forEach((name, counter) -> snapshot.put(name, counter.sum()));
+        return snapshot;
+    }
+
+    /**
+     * Adds the counters of a snapshot, such as one taken of part of this run done elsewhere, to the counters
+     * of this run. Names that are not counters and values that are not numbers are ignored.
+     *
+     * @param counts Map of counter names to the values to add, as returned by {@link #snapshot()}
+     */
+    public void add(Map<String, ?> counts) {
+        Map<String, LongAdder> counters = counters();
+        counts.forEach((name, count) -> {
+            LongAdder counter = counters.get(name);
+            if (counter != null && count instanceof Number number) {
+                counter.add(number.longValue());
+            }
+        });
+    }
+
+    private Map<String, LongAdder> counters() {
+        Map<String, LongAdder> counters = new LinkedHashMap<>();
+        counters.put("fetchedFirst", fetched1);
+        counters.put("fetchedSecond", fetched2);
+        counters.put("comparedFirst", compared1);
+        counters.put("comparedSecond", compared2);
+        counters.put("docsInFirstOnly", firstOnly);
+        counters.put("docsInSecondOnly", secondOnly);
+        counters.put("differingDocs", differing);
+        counters.put("duplicateKeys", duplicateKeys);
+        return counters;
+    }
+}
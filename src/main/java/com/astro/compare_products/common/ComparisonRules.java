@@ -0,0 +1,159 @@
+package com.astro.compare_products.common;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Comparison rules of the fields of a document, compiled once into a trie of field paths.
+ * <p>
+ * Rules are dotted field paths anchored at the top of the document: {@code price} applies to the top-level
+ * field only and {@code attributes.price} to the field of the sub-document. A {@code *} segment matches any
+ * single field name or array element, as in {@code variants.*.last_updated}. A path is either ignored, in which
+ * case the whole subtree below it is skipped, or names the identity field of the elements of the array found
+ * at that path.
+ * <p>
+ * Every node of the trie is the cursor of one field path: comparisons walking a document step the cursor with
+ * {@link #child(String)} as they descend, so no path strings are built. Rules of {@code *} segments are merged
+ * into their named siblings when the trie is compiled, so stepping is a single lookup.
+ */
+public final class ComparisonRules {
+
+    /**
+     * Rules of a path below which nothing is ignored and no array identity is configured.
+     */
+    public static final ComparisonRules NONE = new ComparisonRules(false, null, Map.of(), null);
+
+    private static final String WILDCARD = "*";
+
+    private final boolean ignored;
+    private final String arrayIdentityField;
+    private final Map<String, ComparisonRules> children;
+    private final ComparisonRules wildcard;
+
+    // Child names in UTF-8, in the order of childNodes, so encoded field names can be looked up without decoding them
+    private final byte[][] childNames;
+    private final ComparisonRules[] childNodes;
+
+    private ComparisonRules(boolean ignored, String arrayIdentityField, Map<String, ComparisonRules> children,
+                            ComparisonRules wildcard) {
+        this.ignored = ignored;
+        this.arrayIdentityField = arrayIdentityField;
+        this.children = children;
+        // Only NONE itself is built without wildcard rules, before the constant is assigned
+        this.wildcard = wildcard != null ? wildcard : this;
+        this.childNames = new byte[children.size()][];
+        this.childNodes = new ComparisonRules[children.size()];
+        int i = 0;
+        for (Map.Entry<String, ComparisonRules> child : children.entrySet()) {
+            childNames[i] = child.getKey().getBytes(StandardCharsets.UTF_8);
+            childNodes[i++] = child.getValue();
+        }
+    }
+
+    /**
+     * Compiles ignored field paths and array identity fields into the rules of the top-level document.
+     *
+     * @param ignoredPaths        Dotted field paths to skip, blank paths are left out
+     * @param arrayIdentityFields Map of dotted array field paths to the identity field of their elements
+     * @return The rules of the top-level document
+     */
+    public static ComparisonRules compile(Collection<String> ignoredPaths, Map<String, String> arrayIdentityFields) {
+        List<Rule> rules = new ArrayList<>();
+        ignoredPaths.stream()
+                .map(String::trim)
+                .filter(path -> !path.isEmpty())
+                .forEach(path -> rules.add(new Rule(path.split("\\."), null)));
+        arrayIdentityFields.forEach((path, identityField) -> rules.add(new Rule(path.trim().split("\\."), identityField)));
+        return compile(rules, 0);
+    }
+
+    private static ComparisonRules compile(List<Rule> rules, int depth) {
+        if (rules.isEmpty()) {
+            return NONE;
+        }
+        boolean ignored = false;
+        String arrayIdentityField = null;
+        Map<String, List<Rule>> namedRules = new HashMap<>();
+        List<Rule> wildcardRules = new ArrayList<>();
+        for (Rule rule : rules) {
+            if (rule.segments.length == depth) {
+                if (rule.arrayIdentityField == null) {
+                    ignored = true;
+                } else {
+                    arrayIdentityField = rule.arrayIdentityField;
+                }
+            } else if (rule.segments[depth].equals(WILDCARD)) {
+                wildcardRules.add(rule);
+            } else {
+                namedRules.computeIfAbsent(rule.segments[depth], name -> new ArrayList<>()).add(rule);
+            }
+        }
+        if (ignored) {
+            // Nothing below an ignored path is compared, so its rules are dropped
+            return new ComparisonRules(true, null, Map.of(), NONE);
+        }
+        Map<String, ComparisonRules> children = new HashMap<>();
+        namedRules.forEach((name, childRules) -> {
+            // Wildcard rules apply below named fields too
+            childRules.addAll(wildcardRules);
+            children.put(name, compile(childRules, depth + 1));
+        });
+        return new ComparisonRules(false, arrayIdentityField, children, compile(wildcardRules, depth + 1));
+    }
+
+    /**
+     * Returns the rules of a field of the document these rules apply to.
+     *
+     * @param field The name of the field
+     * @return The rules of the field, {@link #NONE} if no rule applies at or below it
+     */
+    public ComparisonRules child(String field) {
+        if (childNodes.length == 0) {
+            return wildcard;
+        }
+        ComparisonRules child = children.get(field);
+        return child != null ? child : wildcard;
+    }
+
+    /**
+     * Returns the rules of a field whose name is given in UTF-8, like {@link #child(String)} without decoding the name.
+     *
+     * @param bytes   The bytes holding the name
+     * @param name    The position of the first byte of the name
+     * @param nameEnd The position after the last byte of the name
+     * @return The rules of the field, {@link #NONE} if no rule applies at or below it
+     */
+    public ComparisonRules child(byte[] bytes, int name, int nameEnd) {
+        for (int i = 0; i < childNames.length; i++) {
+            if (Arrays.equals(bytes, name, nameEnd, childNames[i], 0, childNames[i].length)) {
+                return childNodes[i];
+            }
+        }
+        return wildcard;
+    }
+
+    /**
+     * Returns the rules of the elements of the array these rules apply to.
+     */
+    public ComparisonRules elements() {
+        return wildcard;
+    }
+
+    /**
+     * Tells whether the field these rules apply to is skipped, along with everything below it.
+     */
+    public boolean isIgnored() {
+        return ignored;
+    }
+
+    /**
+     * Returns the identity field of the elements of the array these rules apply to.
+     *
+     * @return The identity field, or {@code null} if the elements are aligned by value
+     */
+    public String arrayIdentityField() {
+        return arrayIdentityField;
+    }
+
+    private record Rule(String[] segments, String arrayIdentityField) {}
+}
@@ -0,0 +1,292 @@
+package com.astro.compare_products.common;
+
+import org.bson.Document;
+import org.bson.types.Decimal128;
+import org.bson.types.ObjectId;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Key identifying a document across collections, made up of the typed values of the configured key fields.
+ * <p>
+ * The key references the field values of the document instead of copying them into a joined string, and its
+ * hash code is computed once, so keys are cheap to build and to look up. Because the values are kept apart,
+ * values containing separator characters cannot make two different keys equal.
+ * Integral numbers are normalized to {@link Long}, so the same number stored as int32, int64, an integral
+ * double or an integral decimal128 still produces equal keys.
+ * <p>
+ * Keys are ordered following the MongoDB sort order, so that the order agrees with a server-side sort on
+ * the key fields. The order is consistent with {@link #equals(Object)}: values that MongoDB sorts as equal but
+ * that are different keys, such as {@code 1.5} as a double and as a decimal128, are ordered by type.
+ */
+public final class CompositeKey implements Comparable<CompositeKey> {
+
+    private static final long FINGERPRINT_SEED = 0x9E3779B97F4A7C15L;
+
+    private static final BigDecimal LONG_MIN = BigDecimal.valueOf(Long.MIN_VALUE);
+    private static final BigDecimal LONG_MAX = BigDecimal.valueOf(Long.MAX_VALUE);
+
+    private final Object[] values;
+    private final int hash;
+
+    private CompositeKey(Object[] values) {
+        this.values = values;
+        int h = Arrays.hashCode(values);
+        // Spread the high bits so that hash-based partitioning and tables with power-of-two sizes use all of the hash
+        this.hash = h ^ (h >>> 16);
+    }
+
+    /**
+     * Builds the key of a document from the values of the given key fields. Missing fields are represented by {@code null}.
+     *
+     * @param document  The document to build the key for
+     * @param keyFields The fields making up the key, in order
+     * @return The key of the document
+     */
+    public static CompositeKey of(Document document, List<String> keyFields) {
+        Object[] values = new Object[keyFields.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = normalize(document.get(keyFields.get(i)));
+        }
+        return new CompositeKey(values);
+    }
+
+    /**
+     * Builds a key from key field values that were already read from a document, in key field order.
+     *
+     * @param values The values of the key fields, {@code null} for missing fields
+     * @return The key made up of the values
+     */
+    public static CompositeKey of(Object[] values) {
+        Object[] normalized = new Object[values.length];
+        for (int i = 0; i < values.length; i++) {
+            normalized[i] = normalize(values[i]);
+        }
+        return new CompositeKey(normalized);
+    }
+
+    /**
+     * Computes the fingerprint of the key of a document, equal to the {@link #fingerprint()} of the key built by
+     * {@link #of(Document, List)}, without building the key.
+     *
+     * @param document  The document
+     * @param keyFields The fields making up the key, in order
+     * @return The fingerprint of the key of the document
+     */
+    public static long fingerprint(Document document, List<String> keyFields) {
+        long fingerprint = FINGERPRINT_SEED;
+        for (String keyField : keyFields) {
+            Object value = document.get(keyField);
+            fingerprint = fingerprintStep(fingerprint, isIntegral(value) ? Long.hashCode(((Number) value).longValue())
+                    : value == null ? 0 : value.hashCode());
+        }
+        return fingerprintEnd(fingerprint);
+    }
+
+    /**
+     * Tells whether two documents have equal keys, like comparing the keys built by {@link #of(Document, List)},
+     * without building them.
+     *
+     * @param document1 The first document
+     * @param document2 The second document
+     * @param keyFields The fields making up the key, in order
+     * @return {@code true} if the keys of the documents are equal
+     */
+    public static boolean sameKey(Document document1, Document document2, List<String> keyFields) {
+        for (String keyField : keyFields) {
+            Object value1 = document1.get(keyField);
+            Object value2 = document2.get(keyField);
+            boolean integral1 = isIntegral(value1);
+            if (integral1 != isIntegral(value2)
+                    || (integral1 ? ((Number) value1).longValue() != ((Number) value2).longValue() : !Objects.equals(value1, value2))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the value of the key field at the given position.
+     *
+     * @param index The position of the key field
+     * @return The normalized value of the key field, or {@code null} if the field is missing
+     */
+    public Object get(int index) {
+        return values[index];
+    }
+
+    /**
+     * Returns the number of key fields making up the key.
+     */
+    public int size() {
+        return values.length;
+    }
+
+    /**
+     * Returns a 64-bit fingerprint of the key, equal for equal keys. Fingerprints of different keys collide
+     * far less often than their hash codes, but can still collide.
+     */
+    public long fingerprint() {
+        long fingerprint = FINGERPRINT_SEED;
+        for (Object value : values) {
+            fingerprint = fingerprintStep(fingerprint, value == null ? 0 : value.hashCode());
+        }
+        return fingerprintEnd(fingerprint);
+    }
+
+    private static long fingerprintStep(long fingerprint, int valueHash) {
+        fingerprint = (fingerprint ^ valueHash) * 0xFF51AFD7ED558CCDL;
+        return fingerprint ^ (fingerprint >>> 29);
+    }
+
+    private static long fingerprintEnd(long fingerprint) {
+        fingerprint *= 0xC4CEB9FE1A85EC53L;
+        return fingerprint ^ (fingerprint >>> 32);
+    }
+
+    private static Object normalize(Object value) {
+        return isIntegral(value) && !(value instanceof Long) ? (Object) ((Number) value).longValue() : value;
+    }
+
+    /**
+     * Tells whether a value is normalized to a {@link Long}: integral numbers of any width, and doubles and
+     * decimals holding an integer in the range of a long other than negative zero.
+     */
+    private static boolean isIntegral(Object value) {
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return true;
+        }
+        if (value instanceof Double || value instanceof Float) {
+            double number = ((Number) value).doubleValue();
+            return number == Math.rint(number) && Math.abs(number) < 0x1p63 && !(number == 0 && 1 / number < 0);
+        }
+        if (value instanceof Decimal128 decimal && !decimal.isNaN() && !decimal.isInfinite()
+                && !(decimal.isNegative() && decimal.doubleValue() == 0)) {
+            // Negative zero, like any negative value too small for a double, is no integer and has no BigDecimal form
+            BigDecimal number = decimal.bigDecimalValue();
+            return number.signum() == 0 || number.stripTrailingZeros().scale() <= 0
+                    && number.compareTo(LONG_MIN) >= 0 && number.compareTo(LONG_MAX) <= 0;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        return other instanceof CompositeKey key && hash == key.hash && Arrays.equals(values, key.values);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public int compareTo(CompositeKey other) {
+        for (int i = 0; i < values.length; i++) {
+            int order = compareValues(values[i], other.values[i]);
+            if (order != 0) {
+                return order;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(values);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static int compareValues(Object value1, Object value2) {
+        int typeOrder = Integer.compare(sortTypeRank(value1), sortTypeRank(value2));
+        if (typeOrder != 0) {
+            return typeOrder;
+        }
+        if (value1 == null) {
+            return 0;
+        }
+        if (value1 instanceof Number number1 && value2 instanceof Number number2) {
+            return compareNumbers(number1, number2);
+        }
+        if (value1 instanceof String string1 && value2 instanceof String string2) {
+            return compareCodePoints(string1, string2);
+        }
+        if (value1 instanceof Comparable comparable && value1.getClass() == value2.getClass()) {
+            int order = comparable.compareTo(value2);
+            if (order != 0) {
+                return order;
+            }
+        }
+        return compareDistinct(value1, value2);
+    }
+
+    /**
+     * Orders values of the same sort type that do not otherwise compare apart: by class first, so values of
+     * different types are never equal, then by their string form. Only equal values compare as equal.
+     */
+    private static int compareDistinct(Object value1, Object value2) {
+        if (value1.equals(value2)) {
+            return 0;
+        }
+        int classOrder = value1.getClass().getName().compareTo(value2.getClass().getName());
+        return classOrder != 0 ? classOrder : compareCodePoints(value1.toString(), value2.toString());
+    }
+
+    /**
+     * Ranks a value by its BSON type in the order MongoDB uses when sorting values of different types.
+     */
+    private static int sortTypeRank(Object value) {
+        if (value == null) {
+            return 0;
+        } else if (value instanceof Number) {
+            return 1;
+        } else if (value instanceof String) {
+            return 2;
+        } else if (value instanceof Map) {
+            return 3;
+        } else if (value instanceof List) {
+            return 4;
+        } else if (value instanceof ObjectId) {
+            return 6;
+        } else if (value instanceof Boolean) {
+            return 7;
+        } else if (value instanceof Date) {
+            return 8;
+        }
+        return 5;
+    }
+
+    private static int compareNumbers(Number number1, Number number2) {
+        if (number1 instanceof Long long1 && number2 instanceof Long long2) {
+            return Long.compare(long1, long2);
+        }
+        int order = Double.compare(number1.doubleValue(), number2.doubleValue());
+        return order != 0 ? order : compareDistinct(number1, number2);
+    }
+
+    /**
+     * Compares strings by code point, which matches the UTF-8 byte order MongoDB sorts strings in.
+     */
+    private static int compareCodePoints(String string1, String string2) {
+        int index1 = 0;
+        int index2 = 0;
+        while (index1 < string1.length() && index2 < string2.length()) {
+            int codePoint1 = string1.codePointAt(index1);
+            int codePoint2 = string2.codePointAt(index2);
+            if (codePoint1 != codePoint2) {
+                return Integer.compare(codePoint1, codePoint2);
+            }
+            index1 += Character.charCount(codePoint1);
+            index2 += Character.charCount(codePoint2);
+        }
+        return Integer.compare(string1.length() - index1, string2.length() - index2);
+    }
+}
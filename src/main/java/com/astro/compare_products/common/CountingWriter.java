@@ -0,0 +1,52 @@
+package com.astro.compare_products.common;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writer that passes everything on to another writer, counting the bytes the written characters take in UTF-8.
+ * A surrogate pair counts as the four bytes of the character it encodes.
+ */
+public class CountingWriter extends FilterWriter {
+
+    private long bytes;
+
+    public CountingWriter(Writer out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        bytes += utf8Length((char) c);
+        out.write(c);
+    }
+
+    @Override
+    public void write(char[] buffer, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            bytes += utf8Length(buffer[i]);
+        }
+        out.write(buffer, offset, length);
+    }
+
+    @Override
+    public void write(String string, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            bytes += utf8Length(string.charAt(i));
+        }
+        out.write(string, offset, length);
+    }
+
+    /**
+     * Returns the number of UTF-8 bytes written so far.
+     */
+    public long bytes() {
+        return bytes;
+    }
+
+    private static int utf8Length(char c) {
+        // Each half of a surrogate pair counts for two of the four bytes of the pair
+        return c < 0x80 ? 1 : c < 0x800 || Character.isSurrogate(c) ? 2 : 3;
+    }
+}
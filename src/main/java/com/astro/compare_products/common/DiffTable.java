@@ -0,0 +1,300 @@
+package com.astro.compare_products.common;
+
+import java.util.*;
+
+/**
+ * Field differences of the differing documents of a comparison, stored in columns.
+ * <p>
+ * Every difference is a row of parallel arrays: the index of the differing document, the id of the field path
+ * and the values of both collections. Field paths are interned once per table, stepping from a parent path id
+ * and a field name, so neither path strings nor per-difference maps are built while comparing. Rows of the same
+ * document are contiguous and documents are kept in the order they were added.
+ * <p>
+ * For consumers of the former report shape, the table is also a read-only list with one map per differing
+ * document, of dotted field path to a map holding the {@code collection1} and {@code collection2} values.
+ * These views are built on access; rendering should iterate the rows instead.
+ * <p>
+ * A table shared between readers, such as cached report data, is sealed, after which adding to it fails.
+ */
+public final class DiffTable extends AbstractList<Map<String, Map<String, Object>>> {
+
+    /**
+     * Id of the path of the top-level document, the parent of top-level fields.
+     */
+    public static final int ROOT = -1;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    // Interned field paths: the dotted path of every id, and the ids of the children of every path
+    private final List<String> paths = new ArrayList<>();
+    private final Map<String, Integer> rootChildren = new HashMap<>();
+    private final List<Map<String, Integer>> children = new ArrayList<>();
+
+    private int[] rowDocuments = new int[INITIAL_CAPACITY];
+    private int[] rowPaths = new int[INITIAL_CAPACITY];
+    private Object[] values1 = new Object[INITIAL_CAPACITY];
+    private Object[] values2 = new Object[INITIAL_CAPACITY];
+    private int rows;
+
+    // First row of every document, followed by the row count
+    private int[] documentStarts = new int[INITIAL_CAPACITY + 1];
+    private int documents;
+
+    private volatile boolean sealed;
+
+    /**
+     * Makes the table read-only; adding differences or interning new paths afterwards fails.
+     *
+     * @return This table
+     */
+    public DiffTable seal() {
+        sealed = true;
+        return this;
+    }
+
+    /**
+     * Returns the id of a field below a path, interning the path on first use.
+     *
+     * @param parent The id of the parent path, {@link #ROOT} for top-level fields
+     * @param field  The field name, or an array element label such as {@code tags[1]}
+     * @return The id of the field path
+     */
+    public int pathId(int parent, String field) {
+        Map<String, Integer> siblings = parent == ROOT ? rootChildren : children.get(parent);
+        Integer id = siblings.get(field);
+        if (id == null) {
+            checkNotSealed();
+            id = paths.size();
+            paths.add(parent == ROOT ? field : paths.get(parent) + "." + field);
+            children.add(new HashMap<>(4));
+            siblings.put(field, id);
+        }
+        return id;
+    }
+
+    /**
+     * Returns the dotted field path of a path id.
+     */
+    public String path(int pathId) {
+        return paths.get(pathId);
+    }
+
+    /**
+     * Adds a difference to the document being added, the one after the last document ended.
+     *
+     * @param pathId The id of the field path
+     * @param value1 The value in the first collection
+     * @param value2 The value in the second collection
+     */
+    public void add(int pathId, Object value1, Object value2) {
+        checkNotSealed();
+        if (rows == rowPaths.length) {
+            int capacity = rows * 2;
+            rowDocuments = Arrays.copyOf(rowDocuments, capacity);
+            rowPaths = Arrays.copyOf(rowPaths, capacity);
+            values1 = Arrays.copyOf(values1, capacity);
+            values2 = Arrays.copyOf(values2, capacity);
+        }
+        rowDocuments[rows] = documents;
+        rowPaths[rows] = pathId;
+        values1[rows] = value1;
+        values2[rows] = value2;
+        rows++;
+    }
+
+    /**
+     * Tells whether the document being added has a difference at the given path.
+     */
+    public boolean hasPendingPath(int pathId) {
+        for (int row = documentStarts[documents]; row < rows; row++) {
+            if (rowPaths[row] == pathId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tells whether differences were added since the last document ended.
+     */
+    public boolean hasPendingRows() {
+        return rows > documentStarts[documents];
+    }
+
+    /**
+     * Ends the document being added if it has differences.
+     *
+     * @return {@code true} if the document was kept, {@code false} if it had no differences
+     */
+    public boolean endDocument() {
+        checkNotSealed();
+        if (!hasPendingRows()) {
+            return false;
+        }
+        documents++;
+        if (documents + 1 == documentStarts.length) {
+            documentStarts = Arrays.copyOf(documentStarts, documentStarts.length * 2);
+        }
+        documentStarts[documents] = rows;
+        return true;
+    }
+
+    /**
+     * Appends the documents of another table, interning their paths into this table.
+     *
+     * @param other The table to append, left unchanged
+     */
+    public void addAll(DiffTable other) {
+        int[] pathIds = new int[other.paths.size()];
+        for (int pathId = 0; pathId < pathIds.length; pathId++) {
+            // Paths of the other table are interned as a whole, as array element labels may contain dots
+            pathIds[pathId] = pathId(ROOT, other.paths.get(pathId));
+        }
+        for (int document = 0; document < other.documents; document++) {
+            for (int row = other.firstRow(document); row < other.endRow(document); row++) {
+                add(pathIds[other.rowPaths[row]], other.values1[row], other.values2[row]);
+            }
+            endDocument();
+        }
+    }
+
+    private void checkNotSealed() {
+        if (sealed) {
+            throw new UnsupportedOperationException("Sealed diff table");
+        }
+    }
+
+    /**
+     * Returns the number of differing documents.
+     */
+    @Override
+    public int size() {
+        return documents;
+    }
+
+    /**
+     * Returns the number of differences of all documents.
+     */
+    public int rowCount() {
+        return documentStarts[documents];
+    }
+
+    public int firstRow(int document) {
+        return documentStarts[document];
+    }
+
+    public int endRow(int document) {
+        return documentStarts[document + 1];
+    }
+
+    public int rowDocument(int row) {
+        return rowDocuments[row];
+    }
+
+    public String rowPath(int row) {
+        return paths.get(rowPaths[row]);
+    }
+
+    public Object value1(int row) {
+        return values1[row];
+    }
+
+    public Object value2(int row) {
+        return values2[row];
+    }
+
+    /**
+     * Returns the value in the first collection of a field of a differing document, such as a key field.
+     *
+     * @param document The index of the document
+     * @param path     The dotted field path
+     * @return The value, or {@code null} if the document has no difference at the path
+     */
+    public Object value1(int document, String path) {
+        for (int row = firstRow(document); row < endRow(document); row++) {
+            if (rowPath(row).equals(path)) {
+                return values1[row];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the differences of a document as rows, for rendering.
+     *
+     * @param document The index of the document
+     * @return The rows of the document, built as they are iterated
+     */
+    public Iterable<Row> rows(int document) {
+        return () -> new Iterator<>() {
+            private int row = firstRow(document);
+
+            @Override
+            public boolean hasNext() {
+                return row < endRow(document);
+            }
+
+            @Override
+            public Row next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Row next = new Row(rowPath(row), values1[row], values2[row]);
+                row++;
+                return next;
+            }
+        };
+    }
+
+    /**
+     * Returns a read-only view of the differences of a document, of dotted field path to the values of both collections.
+     */
+    @Override
+    public Map<String, Map<String, Object>> get(int document) {
+        Objects.checkIndex(document, documents);
+        return new AbstractMap<>() {
+            @Override
+            public Set<Entry<String, Map<String, Object>>> entrySet() {
+                return new AbstractSet<>() {
+                    @Override
+                    public Iterator<Entry<String, Map<String, Object>>> iterator() {
+                        Iterator<Row> rowIterator = rows(document).iterator();
+                        return new Iterator<>() {
+                            @Override
+                            public boolean hasNext() {
+                                return rowIterator.hasNext();
+                            }
+
+                            @Override
+                            public Entry<String, Map<String, Object>> next() {
+                                Row row = rowIterator.next();
+                                return new SimpleImmutableEntry<>(row.path(), row.values());
+                            }
+                        };
+                    }
+
+                    @Override
+                    public int size() {
+                        return endRow(document) - firstRow(document);
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * One difference of a document: the dotted field path and the values of both collections.
+     */
+    public record Row(String path, Object collection1, Object collection2) {
+
+        /**
+         * Returns the values as a map with {@code collection1} and {@code collection2} entries.
+         */
+        public Map<String, Object> values() {
+            Map<String, Object> values = new HashMap<>(4);
+            values.put("collection1", collection1);
+            values.put("collection2", collection2);
+            return values;
+        }
+    }
+}
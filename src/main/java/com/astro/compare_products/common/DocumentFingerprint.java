@@ -0,0 +1,192 @@
+package com.astro.compare_products.common;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.Decimal128;
+import org.bson.types.ObjectId;
+
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Computes stable 64-bit content hashes of documents.
+ * <p>
+ * Two documents with the same hash are, barring hash collisions, equal to the field-by-field comparison, so
+ * documents with equal hashes need no comparison, as in the buckets of a {@link MerkleTree}. The converse does
+ * not hold: the comparison only walks the fields of the first document, so a field present only in the second
+ * changes its hash without being reported, and merely makes a tree fetch and compare a bucket for nothing.
+ * Pairs of documents already in memory are compared directly rather than hashed first: the comparison of an
+ * equal pair stops at no difference and costs less than hashing both documents.
+ * <p>
+ * The hash is independent of field order within sub-documents, distinguishes value types the same way
+ * {@link Object#equals(Object)} does, and is computed from the values alone, so it is the same across JVMs
+ * and can be persisted.
+ * <p>
+ * Arrays are hashed the way the array comparison matches their elements: not at all when their elements are
+ * ignored, as a set of the first element of every identity when their elements have an identity field, and
+ * element by element otherwise, with the rules of the elements applied to sub-document elements.
+ */
+public final class DocumentFingerprint {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static final long NULL_TAG = 1;
+    private static final long STRING_TAG = 2;
+    private static final long INTEGER_TAG = 3;
+    private static final long LONG_TAG = 4;
+    private static final long DOUBLE_TAG = 5;
+    private static final long BOOLEAN_TAG = 6;
+    private static final long DATE_TAG = 7;
+    private static final long OBJECT_ID_TAG = 8;
+    private static final long DOCUMENT_TAG = 9;
+    private static final long LIST_TAG = 10;
+    private static final long BINARY_TAG = 11;
+    private static final long DECIMAL_TAG = 12;
+    private static final long OTHER_TAG = 13;
+    private static final long MAP_TAG = 14;
+    private static final long IGNORED_LIST_TAG = 15;
+    private static final long IDENTIFIED_LIST_TAG = 16;
+
+    private DocumentFingerprint() {}
+
+    /**
+     * Computes the content hash of a document, leaving out the ignored paths of the document and of its
+     * sub-documents, the same paths the field-by-field comparison skips.
+     *
+     * @param document The document to hash
+     * @param rules    The comparison rules of the document
+     * @return The content hash of the document
+     */
+    public static long contentHash(Document document, ComparisonRules rules) {
+        long hash = DOCUMENT_TAG;
+        for (Map.Entry<String, Object> entry : document.entrySet()) {
+            ComparisonRules fieldRules = rules.child(entry.getKey());
+            if (fieldRules.isIgnored()) {
+                continue;
+            }
+            Object value = entry.getValue();
+            long valueHash = value instanceof Document nested ? contentHash(nested, fieldRules)
+                    : value instanceof List<?> list && fieldRules != ComparisonRules.NONE ? listHash(list, fieldRules)
+                    : valueHash(value);
+            // Summing entry hashes makes the hash independent of field order
+            hash += mix(stringHash(entry.getKey()) ^ Long.rotateLeft(valueHash, 29));
+        }
+        return mix(hash);
+    }
+
+    /**
+     * Hashes an array under its comparison rules, as {@code ArrayDiffer} compares it.
+     */
+    private static long listHash(List<?> list, ComparisonRules rules) {
+        ComparisonRules elementRules = rules.elements();
+        if (elementRules.isIgnored()) {
+            return mix(IGNORED_LIST_TAG);
+        }
+        String identityField = rules.arrayIdentityField();
+        if (identityField != null && list.stream().allMatch(element -> element instanceof Document document
+                && document.containsKey(identityField))) {
+            // Elements are matched on their identity in any order, and only the first element of an identity is compared
+            long hash = IDENTIFIED_LIST_TAG;
+            Set<CompositeKey> identities = new HashSet<>();
+            for (Object element : list) {
+                Object identity = ((Document) element).get(identityField);
+                if (identities.add(CompositeKey.of(new Object[]{identity}))) {
+                    hash += mix(valueHash(identity) ^ Long.rotateLeft(contentHash((Document) element, elementRules), 29));
+                }
+            }
+            return mix(hash);
+        }
+        long hash = LIST_TAG;
+        for (Object element : list) {
+            hash = mix(hash * FNV_PRIME ^ elementHash(element, elementRules));
+        }
+        return mix(hash ^ list.size());
+    }
+
+    /**
+     * Hashes an element of an array aligned by value, leaving out the ignored paths of sub-document elements.
+     * Elements with equal hashes are matched to each other by {@code ArrayDiffer}.
+     *
+     * @param element      The element to hash
+     * @param elementRules The comparison rules of the elements of the array
+     * @return The hash of the element
+     */
+    public static long elementHash(Object element, ComparisonRules elementRules) {
+        return element instanceof Document document ? contentHash(document, elementRules) : valueHash(element);
+    }
+
+    /**
+     * Hashes a value below a list or of a type other than {@link Document}, covering all of its content.
+     */
+    private static long valueHash(Object value) {
+        if (value == null) {
+            return mix(NULL_TAG);
+        } else if (value instanceof String string) {
+            return mix(STRING_TAG ^ stringHash(string));
+        } else if (value instanceof Integer number) {
+            return mix(INTEGER_TAG * FNV_PRIME ^ number);
+        } else if (value instanceof Long number) {
+            return mix(LONG_TAG * FNV_PRIME ^ number);
+        } else if (value instanceof Double number) {
+            return mix(DOUBLE_TAG * FNV_PRIME ^ Double.doubleToLongBits(number));
+        } else if (value instanceof Boolean bool) {
+            return mix(BOOLEAN_TAG * FNV_PRIME ^ (bool ? 1 : 0));
+        } else if (value instanceof Date date) {
+            return mix(DATE_TAG * FNV_PRIME ^ date.getTime());
+        } else if (value instanceof ObjectId objectId) {
+            return mix(OBJECT_ID_TAG ^ bytesHash(objectId.toByteArray()));
+        } else if (value instanceof Map<?, ?> map) {
+            long hash = map instanceof Document ? DOCUMENT_TAG : MAP_TAG;
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                hash += mix(valueHash(entry.getKey()) ^ Long.rotateLeft(valueHash(entry.getValue()), 29));
+            }
+            return mix(hash);
+        } else if (value instanceof List<?> list) {
+            long hash = LIST_TAG;
+            for (Object element : list) {
+                hash = mix(hash * FNV_PRIME ^ valueHash(element));
+            }
+            return mix(hash ^ list.size());
+        } else if (value instanceof Binary binary) {
+            return mix(BINARY_TAG * FNV_PRIME ^ binary.getType() ^ Long.rotateLeft(bytesHash(binary.getData()), 8));
+        } else if (value instanceof Decimal128 decimal) {
+            return mix(DECIMAL_TAG * FNV_PRIME ^ decimal.getHigh() ^ Long.rotateLeft(mix(decimal.getLow()), 17));
+        }
+        return mix(OTHER_TAG ^ stringHash(value.getClass().getName()) ^ Long.rotateLeft(stringHash(value.toString()), 17));
+    }
+
+    /**
+     * FNV-1a hash of the characters of a string.
+     */
+    private static long stringHash(String string) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < string.length(); i++) {
+            hash = (hash ^ string.charAt(i)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static long bytesHash(byte[] bytes) {
+        long hash = FNV_OFFSET_BASIS;
+        for (byte b : bytes) {
+            hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Finalization step of MurmurHash3, spreading every input bit over the whole hash.
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
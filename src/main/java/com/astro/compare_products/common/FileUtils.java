@@ -1,21 +1,21 @@
 package com.astro.compare_products.common;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 public class FileUtils {
 
     /**
-     * Utility method to write HTML content to a file.
+     * Utility method to open a buffered UTF-8 writer to a file, creating or truncating the file.
      *
-     * @param fileName    The name of the file to be created.
-     * @param htmlContent The HTML content to be written.
-     * @throws IOException If there is an error writing the file.
+     * @param fileName The name of the file to be written.
+     * @return The writer, to be closed by the caller.
+     * @throws IOException If the file cannot be opened.
      */
-    public static void writeToFile(String fileName, String htmlContent) throws IOException {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(fileName))) {
-            writer.write(htmlContent);
-        }
+    public static Writer openFileWriter(String fileName) throws IOException {
+        return Files.newBufferedWriter(Path.of(fileName), StandardCharsets.UTF_8);
     }
-}
\ No newline at end of file
+}
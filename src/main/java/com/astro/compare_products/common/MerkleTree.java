@@ -0,0 +1,163 @@
+package com.astro.compare_products.common;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hash tree over the documents of a collection, grouped into a fixed number of buckets by a hash of their key.
+ * <p>
+ * The hash of a bucket is the sum of the hashes of its documents, each mixing the key and the content hash of
+ * the document, so documents can be added, replaced and removed without looking at the rest of the bucket.
+ * Every node above the buckets hashes its {@value #FAN_OUT} children in order, up to a single root. Two trees
+ * with the same number of buckets are compared from the root down, descending only into children whose hashes
+ * differ, so finding the differing buckets takes time in proportion to their number.
+ */
+public final class MerkleTree {
+
+    /**
+     * Number of children of every node above the buckets.
+     */
+    public static final int FAN_OUT = 16;
+
+    // Levels from the root, a single node, down to the buckets
+    private final long[][] levels;
+
+    private MerkleTree(long[][] levels) {
+        this.levels = levels;
+    }
+
+    /**
+     * Creates a tree with empty buckets.
+     *
+     * @param bucketCount The number of buckets, at least 1
+     * @return The tree, with the hashes of the empty buckets computed up to the root
+     */
+    public static MerkleTree empty(int bucketCount) {
+        List<long[]> levels = new ArrayList<>();
+        for (int size = bucketCount; ; size = (size + FAN_OUT - 1) / FAN_OUT) {
+            levels.addFirst(new long[size]);
+            if (size == 1) {
+                break;
+            }
+        }
+        MerkleTree tree = new MerkleTree(levels.toArray(long[][]::new));
+        for (int level = tree.levels.length - 2; level >= 0; level--) {
+            for (int node = 0; node < tree.levels[level].length; node++) {
+                tree.levels[level][node] = tree.nodeHash(level, node);
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * Restores a tree from its levels, as returned by {@link #levels()}.
+     */
+    public static MerkleTree of(long[][] levels) {
+        return new MerkleTree(levels);
+    }
+
+    /**
+     * Returns the bucket of a key in a tree with the given number of buckets.
+     */
+    public static int bucketOf(CompositeKey key, int bucketCount) {
+        return Math.floorMod(mix(key.fingerprint()), bucketCount);
+    }
+
+    /**
+     * Returns the hash a document adds to its bucket, which changes with its key and with its content.
+     *
+     * @param key         The key of the document
+     * @param contentHash The content hash of the document, without the ignored fields
+     * @return The hash of the document
+     */
+    public static long documentHash(CompositeKey key, long contentHash) {
+        return mix(key.fingerprint() * 0x9E3779B97F4A7C15L + contentHash);
+    }
+
+    /**
+     * Adds a document to a bucket.
+     */
+    public void add(int bucket, long documentHash) {
+        updateBucket(bucket, documentHash);
+    }
+
+    /**
+     * Removes a document that was added to a bucket.
+     */
+    public void remove(int bucket, long documentHash) {
+        updateBucket(bucket, -documentHash);
+    }
+
+    public int bucketCount() {
+        return levels[levels.length - 1].length;
+    }
+
+    public long root() {
+        return levels[0][0];
+    }
+
+    /**
+     * Returns the levels of the tree from the root down to the buckets, to be persisted.
+     */
+    public long[][] levels() {
+        return levels;
+    }
+
+    /**
+     * Finds the buckets whose hashes differ from those of another tree.
+     *
+     * @param other A tree with the same number of buckets
+     * @return The differing buckets, in ascending order
+     * @throws IllegalArgumentException if the trees have different numbers of buckets
+     */
+    public List<Integer> differingBuckets(MerkleTree other) {
+        if (other.bucketCount() != bucketCount()) {
+            throw new IllegalArgumentException("Cannot compare trees of " + bucketCount() + " and " + other.bucketCount() + " buckets");
+        }
+        List<Integer> buckets = new ArrayList<>();
+        collectDifferingBuckets(other, 0, 0, buckets);
+        return buckets;
+    }
+
+    private void collectDifferingBuckets(MerkleTree other, int level, int node, List<Integer> buckets) {
+        if (levels[level][node] == other.levels[level][node]) {
+            return;
+        }
+        if (level == levels.length - 1) {
+            buckets.add(node);
+            return;
+        }
+        int end = Math.min((node + 1) * FAN_OUT, levels[level + 1].length);
+        for (int child = node * FAN_OUT; child < end; child++) {
+            collectDifferingBuckets(other, level + 1, child, buckets);
+        }
+    }
+
+    private void updateBucket(int bucket, long delta) {
+        int leafLevel = levels.length - 1;
+        levels[leafLevel][bucket] += delta;
+        int node = bucket;
+        for (int level = leafLevel - 1; level >= 0; level--) {
+            node /= FAN_OUT;
+            levels[level][node] = nodeHash(level, node);
+        }
+    }
+
+    private long nodeHash(int level, int node) {
+        long[] children = levels[level + 1];
+        long hash = level;
+        int end = Math.min((node + 1) * FAN_OUT, children.length);
+        for (int child = node * FAN_OUT; child < end; child++) {
+            hash = mix(hash * 31 + children[child]);
+        }
+        return hash;
+    }
+
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xFF51AFD7ED558CCDL;
+        value ^= value >>> 33;
+        value *= 0xC4CEB9FE1A85EC53L;
+        return value ^ (value >>> 33);
+    }
+}
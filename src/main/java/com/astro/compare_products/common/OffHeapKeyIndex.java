@@ -0,0 +1,183 @@
+package com.astro.compare_products.common;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntPredicate;
+
+/**
+ * Index of documents by key fingerprint, kept in direct buffers outside the heap.
+ * <p>
+ * The index stores, for every key, its 64-bit fingerprint and the number of the first document with that key,
+ * in an open-addressing table with linear probing. Documents themselves stay where they are, in the list they
+ * were read from, and their keys are not kept: the caller confirms a fingerprint hit against the candidate
+ * document itself. The index therefore holds no object per document, unlike a map holding a key object, an entry
+ * and a boxed document position per document for as long as the comparison runs. Whether indexing allocates at
+ * all is up to the caller: fingerprints and key equality read straight from decoded documents allocate nothing,
+ * while encoded documents decode their key fields to do so.
+ * <p>
+ * The index also records which keys were matched, for every document number, including documents whose key
+ * was already indexed by an earlier document.
+ * <p>
+ * Direct buffers are only freed once the garbage collector finds them unreachable, which a heap with little
+ * allocation may not do for a long time. Closing the index therefore returns its buffers to a pool shared by
+ * all indexes, sized in powers of two, from which later indexes take theirs; the index must not be used
+ * after it is closed.
+ */
+public final class OffHeapKeyIndex implements AutoCloseable {
+
+    // Slot layout: fingerprint (8 bytes), document number + 1 (4 bytes, 0 for an empty slot), unused (4 bytes)
+    private static final int SLOT_BYTES = 16;
+
+    // The slots of a direct buffer are addressed with ints, so twice this many slots still fit in one buffer
+    private static final int MAX_DOCUMENTS = Integer.MAX_VALUE / SLOT_BYTES / 4;
+
+    // Upper bound on the bytes of the buffers kept in the pool; buffers returned beyond it are left to the collector
+    private static final long MAX_POOLED_BYTES = 64L << 20;
+
+    // Free buffers by capacity, and the bytes they hold together
+    private static final ConcurrentHashMap<Integer, Queue<ByteBuffer>> POOL = new ConcurrentHashMap<>();
+    private static final AtomicLong POOLED_BYTES = new AtomicLong();
+
+    private ByteBuffer slots;
+    private final int mask;
+
+    // First document of the key of every document, and one matched bit per document
+    private ByteBuffer firstDocuments;
+    private ByteBuffer matched;
+
+    /**
+     * Creates an empty index for up to the given number of documents, numbered from 0.
+     *
+     * @param documents The number of documents to index
+     * @throws IllegalArgumentException if the slots for that many documents do not fit in one buffer
+     */
+    public OffHeapKeyIndex(int documents) {
+        if (documents > MAX_DOCUMENTS) {
+            throw new IllegalArgumentException("Cannot index more than " + MAX_DOCUMENTS + " documents: " + documents);
+        }
+        // At most half of the slots are used, which keeps probe sequences short
+        int slotCount = Integer.highestOneBit(Math.max(documents, 1) * 2 - 1) << 1;
+        this.slots = acquire(slotCount * SLOT_BYTES, true);
+        this.mask = slotCount - 1;
+        // Every document is written before it is read, so its first document needs no clearing
+        this.firstDocuments = acquire(Math.max(documents, 1) * Integer.BYTES, false);
+        this.matched = acquire((documents + 7) / 8 + 1, true);
+    }
+
+    /**
+     * Indexes a document under the fingerprint of its key, unless a document with the same key was indexed before.
+     *
+     * @param fingerprint The fingerprint of the key of the document
+     * @param document    The number of the document
+     * @param sameKey     Tells whether an indexed document, given by number, has the same key as the document
+     * @return The document number, or the number of the earlier document with the same key
+     */
+    public int add(long fingerprint, int document, IntPredicate sameKey) {
+        int slot = slotOf(fingerprint);
+        while (true) {
+            int stored = slots.getInt(slot * SLOT_BYTES + 8);
+            if (stored == 0) {
+                slots.putLong(slot * SLOT_BYTES, fingerprint);
+                slots.putInt(slot * SLOT_BYTES + 8, document + 1);
+                firstDocuments.putInt(document * Integer.BYTES, document);
+                return document;
+            }
+            if (slots.getLong(slot * SLOT_BYTES) == fingerprint && sameKey.test(stored - 1)) {
+                firstDocuments.putInt(document * Integer.BYTES, stored - 1);
+                return stored - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Finds the first indexed document with a key.
+     *
+     * @param fingerprint The fingerprint of the key
+     * @param sameKey     Tells whether an indexed document, given by number, has the key
+     * @return The number of the document, or -1 if no document has the key
+     */
+    public int find(long fingerprint, IntPredicate sameKey) {
+        int slot = slotOf(fingerprint);
+        while (true) {
+            int stored = slots.getInt(slot * SLOT_BYTES + 8);
+            if (stored == 0) {
+                return -1;
+            }
+            if (slots.getLong(slot * SLOT_BYTES) == fingerprint && sameKey.test(stored - 1)) {
+                return stored - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Marks the key of an indexed document as matched.
+     */
+    public void markMatched(int document) {
+        int first = firstDocuments.getInt(document * Integer.BYTES);
+        matched.put(first >>> 3, (byte) (matched.get(first >>> 3) | (1 << (first & 7))));
+    }
+
+    /**
+     * Tells whether the key of an indexed document was matched, through it or any other document with the same key.
+     */
+    public boolean isMatched(int document) {
+        int first = firstDocuments.getInt(document * Integer.BYTES);
+        return (matched.get(first >>> 3) & (1 << (first & 7))) != 0;
+    }
+
+    /**
+     * Returns the buffers of the index to the pool.
+     */
+    @Override
+    public void close() {
+        if (slots != null) {
+            release(slots);
+            release(firstDocuments);
+            release(matched);
+            slots = firstDocuments = matched = null;
+        }
+    }
+
+    /**
+     * Returns the bytes held by free buffers in the pool.
+     */
+    static long pooledBytes() {
+        return POOLED_BYTES.get();
+    }
+
+    private static ByteBuffer acquire(int bytes, boolean cleared) {
+        int capacity = bytes <= 8 ? 8 : Integer.highestOneBit(bytes - 1) << 1;
+        Queue<ByteBuffer> free = POOL.get(capacity);
+        ByteBuffer buffer = free == null ? null : free.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+        }
+        POOLED_BYTES.addAndGet(-capacity);
+        if (cleared) {
+            for (int position = 0; position < capacity; position += Long.BYTES) {
+                buffer.putLong(position, 0);
+            }
+        }
+        return buffer;
+    }
+
+    private static void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (POOLED_BYTES.addAndGet(capacity) <= MAX_POOLED_BYTES) {
+            POOL.computeIfAbsent(capacity, size -> new ConcurrentLinkedQueue<>()).offer(buffer);
+        } else {
+            POOLED_BYTES.addAndGet(-capacity);
+        }
+    }
+
+    private int slotOf(long fingerprint) {
+        // Fingerprints are already mixed, so their high bits spread over the table
+        return (int) (fingerprint >>> 32 ^ fingerprint) & mask;
+    }
+}
@@ -0,0 +1,48 @@
+package com.astro.compare_products.common;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writer that writes everything to two writers, so output can be produced once and sent to two destinations.
+ */
+public class TeeWriter extends Writer {
+
+    private final Writer first;
+    private final Writer second;
+
+    public TeeWriter(Writer first, Writer second) {
+        this.first = first;
+        this.second = second;
+    }
+
+    @Override
+    public void write(char[] buffer, int offset, int length) throws IOException {
+        first.write(buffer, offset, length);
+        second.write(buffer, offset, length);
+    }
+
+    @Override
+    public void write(String string, int offset, int length) throws IOException {
+        first.write(string, offset, length);
+        second.write(string, offset, length);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        first.flush();
+        second.flush();
+    }
+
+    /**
+     * Closes both writers, closing the second even if closing the first fails.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            first.close();
+        } finally {
+            second.close();
+        }
+    }
+}
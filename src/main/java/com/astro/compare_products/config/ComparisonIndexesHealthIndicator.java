@@ -0,0 +1,55 @@
+package com.astro.compare_products.config;
+
+import com.astro.compare_products.service.IndexVerificationService;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * Health of the indexes of the compared collections, part of the readiness group so an instance missing a
+ * required index receives no traffic.
+ * <p>
+ * The health is {@code UP} when every required index is present, and {@code OUT_OF_SERVICE} otherwise, with the
+ * suggested indexes and the representative queries that scan a collection as details. Until the indexes pass,
+ * every health check verifies them again, so an index created by hand makes the instance ready without a restart.
+ */
+@Component
+public class ComparisonIndexesHealthIndicator implements HealthIndicator {
+
+    private final IndexVerificationService indexVerificationService;
+
+    public ComparisonIndexesHealthIndicator(final IndexVerificationService indexVerificationService) {
+        this.indexVerificationService = indexVerificationService;
+    }
+
+    @Override
+    public Health health() {
+        IndexVerificationService.IndexReport report = indexVerificationService.lastReport();
+        if (report == null || !report.ready()) {
+            try {
+                report = indexVerificationService.verify();
+            } catch (RuntimeException e) {
+                return Health.down(e).build();
+            }
+        }
+        List<String> missingIndexes = report.indexes().stream()
+                .filter(check -> !check.present())
+                .map(check -> check.collection() + " " + check.index().specification())
+                .toList();
+        List<String> createdIndexes = report.indexes().stream()
+                .filter(IndexVerificationService.IndexCheck::created)
+                .map(check -> check.collection() + " " + check.index().specification())
+                .toList();
+        List<String> collectionScans = report.queryPlans().stream()
+                .filter(IndexVerificationService.QueryPlanCheck::collectionScan)
+                .map(check -> check.collection() + " by " + check.query())
+                .toList();
+        return (report.ready() ? Health.up() : Health.outOfService())
+                .withDetail("missingIndexes", missingIndexes)
+                .withDetail("createdIndexes", createdIndexes)
+                .withDetail("collectionScans", collectionScans)
+                .build();
+    }
+}
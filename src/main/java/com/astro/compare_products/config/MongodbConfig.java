@@ -11,6 +11,7 @@ import org.springframework.data.mongodb.MongoTransactionManager;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.SimpleMongoClientDatabaseFactory;
 import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
 
 import java.text.MessageFormat;
 
@@ -28,10 +29,14 @@ public class MongodbConfig {
 
     @Bean
     public MongoClient mongoClient() {
+        // A direct connection without a user name, such as to a local mongod, does not authenticate
+        var credentials = mongodbProperties.isSrv() || StringUtils.hasText(mongodbProperties.getUserName())
+                ? mongodbProperties.getUserName() + ":" + mongodbProperties.getPassword() + "@"
+                : "";
         var connectionString = MessageFormat.format(
-                "mongodb+srv://{0}:{1}@{2}/{3}?authSource=admin",
-                mongodbProperties.getUserName(),
-                mongodbProperties.getPassword(),
+                "{0}://{1}{2}/{3}?authSource=admin",
+                mongodbProperties.isSrv() ? "mongodb+srv" : "mongodb",
+                credentials,
                 mongodbProperties.getUri(),
                 mongodbProperties.getDatabase()
         );
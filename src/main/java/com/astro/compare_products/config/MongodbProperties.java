@@ -12,4 +12,5 @@ public class MongodbProperties {
     private String password;
     private String uri;
     private String database;
+    private boolean srv = true;
 }
@@ -0,0 +1,118 @@
+package com.astro.compare_products.controller;
+
+import com.astro.compare_products.service.BulkComparisonService;
+import jakarta.servlet.http.HttpServletResponse;
+import org.bson.Document;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static com.astro.compare_products.common.Constants.INPUT_PARAM_CATEGORY;
+
+/**
+ * Endpoint comparing the products of a list of UPCs in one request, given as a JSON body or as an uploaded file.
+ * <p>
+ * The result is streamed as newline-delimited JSON while the batches complete: one line per document unique to
+ * either collection and per differing document, each naming its section and batch, and a last {@code summary}
+ * line with the totals. A response without the summary line was cut short by a failure.
+ */
+@RestController
+public class BulkComparisonController {
+
+    // Relaxed Extended JSON keeps BSON types such as dates and object ids readable
+    private static final JsonWriterSettings JSON_SETTINGS = JsonWriterSettings.builder().outputMode(JsonMode.RELAXED).build();
+
+    private final BulkComparisonService bulkComparisonService;
+
+    // Largest number of UPCs a single request may list
+    @Value("${comparison.bulk.maxUpcs:100000}")
+    private int maxUpcs;
+
+    BulkComparisonController(final BulkComparisonService bulkComparisonService) {
+        this.bulkComparisonService = bulkComparisonService;
+    }
+
+    /**
+     * Compares the products of the UPCs listed in the request body.
+     */
+    @PostMapping(value = "/bulkComparisons", consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public void compare(@RequestBody BulkComparisonRequest request, HttpServletResponse response) throws IOException {
+        compareUpcs(request.upcs() != null ? request.upcs() : List.of(), request.category(), response);
+    }
+
+    /**
+     * Compares the products of the UPCs listed in an uploaded text file, separated by line breaks, spaces or commas.
+     */
+    @PostMapping(value = "/bulkComparisons", consumes = MediaType.MULTIPART_FORM_DATA_VALUE, produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public void compareFile(@RequestParam MultipartFile file, @RequestParam(required = false) String category,
+                            HttpServletResponse response) throws IOException {
+        String upcs = new String(file.getBytes(), StandardCharsets.UTF_8);
+        compareUpcs(Arrays.stream(upcs.split("[\\s,]+")).toList(), category, response);
+    }
+
+    private void compareUpcs(List<String> upcs, String category, HttpServletResponse response) throws IOException {
+        List<String> validUpcs = upcs.stream().filter(Objects::nonNull).map(String::trim).filter(upc -> !upc.isEmpty()).toList();
+        if (validUpcs.isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "At least one UPC is required");
+        }
+        if (validUpcs.size() > maxUpcs) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "At most " + maxUpcs + " UPCs can be compared per request");
+        }
+        Map<String, String> criteria = new HashMap<>();
+        if (category != null && !category.trim().isEmpty()) {
+            criteria.put(INPUT_PARAM_CATEGORY, category);
+        }
+
+        response.setContentType(MediaType.APPLICATION_NDJSON_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        Writer writer = response.getWriter();
+        Map<String, Long> summary = bulkComparisonService.compareInBatches("products", "products_salsify", validUpcs, criteria,
+                batchResult -> writeBatch(batchResult, writer));
+        writeLine(writer, new Document("section", "summary").append("totals", summary));
+        writer.flush();
+    }
+
+    /**
+     * Writes the entries of a batch and flushes them, so the client receives every batch as soon as it is compared.
+     */
+    private static void writeBatch(BulkComparisonService.BatchResult batchResult, Writer writer) {
+        try {
+            for (String section : List.of("docsInFirstOnly", "docsInSecondOnly")) {
+                for (Object document : (List<?>) batchResult.reportData().get(section)) {
+                    writeLine(writer, new Document("section", section).append("batch", batchResult.batch()).append("document", document));
+                }
+            }
+            for (Object differences : (List<?>) batchResult.reportData().get("differingDocs")) {
+                writeLine(writer, new Document("section", "differingDocs").append("batch", batchResult.batch()).append("differences", differences));
+            }
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeLine(Writer writer, Document line) throws IOException {
+        writer.write(line.toJson(JSON_SETTINGS));
+        writer.write('\n');
+    }
+
+    /**
+     * Body of a bulk comparison: the UPCs to compare and an optional category to filter documents.
+     */
+    public record BulkComparisonRequest(List<String> upcs, String category) {
+    }
+}
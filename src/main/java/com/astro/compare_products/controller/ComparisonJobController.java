@@ -0,0 +1,174 @@
+package com.astro.compare_products.controller;
+
+import com.astro.compare_products.service.ComparisonJob;
+import com.astro.compare_products.service.ComparisonJobService;
+import com.astro.compare_products.service.ResultPageService;
+import jakarta.annotation.PostConstruct;
+import org.bson.Document;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Endpoints for running comparisons as background jobs: submitting a comparison, polling its state and
+ * progress, cancelling it, and reading the results of a completed job page by page.
+ * <p>
+ * Submitted collections and criteria fields are checked against configured allow-lists before they reach a
+ * query, so a job can neither read other collections, such as the state collections of the comparison modes,
+ * nor pass query operators as criteria.
+ */
+@RestController
+@RequestMapping("/comparisonJobs")
+public class ComparisonJobController {
+
+    // Relaxed Extended JSON keeps BSON types such as dates and object ids readable
+    private static final JsonWriterSettings JSON_SETTINGS = JsonWriterSettings.builder().outputMode(JsonMode.RELAXED).build();
+
+    private final ComparisonJobService comparisonJobService;
+    private final ResultPageService resultPageService;
+
+    // Collections a job may compare
+    @Value("${comparison.jobs.collections:products,products_salsify}")
+    private String collectionsProperty;
+
+    // Fields a job may filter documents by
+    @Value("${comparison.jobs.criteriaFields:upc,category}")
+    private String criteriaFieldsProperty;
+
+    private Set<String> collections;
+
+    private Set<String> criteriaFields;
+
+    ComparisonJobController(final ComparisonJobService comparisonJobService,
+                            final ResultPageService resultPageService) {
+        this.comparisonJobService = comparisonJobService;
+        this.resultPageService = resultPageService;
+    }
+
+    /**
+     * Initializes the controller by splitting the configured allow-lists.
+     */
+    @PostConstruct
+    public void init() {
+        collections = splitToSet(collectionsProperty);
+        criteriaFields = splitToSet(criteriaFieldsProperty);
+    }
+
+    /**
+     * Submits a comparison and answers with the id of its job. Answers 400 when a collection or criteria field is
+     * not allowed, and 429 when too many jobs are already waiting.
+     */
+    @PostMapping
+    public ResponseEntity<Map<String, Object>> submit(@RequestBody ComparisonJobRequest request) {
+        if (request.collection1() == null || request.collection2() == null) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "collection1 and collection2 are required");
+        }
+        for (String collection : List.of(request.collection1(), request.collection2())) {
+            if (!collections.contains(collection)) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Collection " + collection + " cannot be compared");
+            }
+        }
+        Map<String, String> criteria = request.criteria() != null ? request.criteria() : Map.of();
+        for (Map.Entry<String, String> criterion : criteria.entrySet()) {
+            if (criterion.getKey().startsWith("$") || !criteriaFields.contains(criterion.getKey())) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Documents cannot be filtered by " + criterion.getKey());
+            }
+            if (criterion.getValue() == null) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Criteria field " + criterion.getKey() + " has no value");
+            }
+        }
+        try {
+            ComparisonJob job = comparisonJobService.submit(request.collection1(), request.collection2(), criteria);
+            return ResponseEntity.accepted().location(URI.create("/comparisonJobs/" + job.getId())).body(status(job));
+        } catch (RejectedExecutionException e) {
+            throw new ResponseStatusException(HttpStatus.TOO_MANY_REQUESTS, "Too many comparison jobs waiting, retry later");
+        }
+    }
+
+    @GetMapping("/{id}")
+    public Map<String, Object> getJob(@PathVariable String id) {
+        return comparisonJobService.findJob(id).map(this::status).orElseThrow(() -> jobNotFound(id));
+    }
+
+    @DeleteMapping("/{id}")
+    public Map<String, Object> cancel(@PathVariable String id) {
+        return comparisonJobService.cancel(id).map(this::status).orElseThrow(() -> jobNotFound(id));
+    }
+
+    /**
+     * Returns a page of one section of the results of a completed job: {@code docsInFirstOnly},
+     * {@code docsInSecondOnly} or {@code differingDocs}. Pass the {@code nextCursor} of a page to get the next one.
+     *
+     * @param cursor Cursor of the page to return; the first page when absent
+     * @param limit  Maximum number of entries in the page
+     * @param field  Dotted field path the entries must involve
+     */
+    @GetMapping(value = "/{id}/results/{section}", produces = MediaType.APPLICATION_JSON_VALUE)
+    public String getResults(@PathVariable String id, @PathVariable String section,
+                             @RequestParam(required = false) String cursor,
+                             @RequestParam(required = false) Integer limit,
+                             @RequestParam(required = false) String field) {
+        ComparisonJob job = comparisonJobService.findJob(id).orElseThrow(() -> jobNotFound(id));
+        if (job.getResult() == null) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Comparison job " + id + " is " + job.getState() + ", not completed");
+        }
+        try {
+            ResultPageService.ResultPage page = resultPageService.page(id, job.getResult(), section, cursor, limit, field);
+            return new Document("section", page.section())
+                    .append("total", page.total())
+                    .append("items", page.items())
+                    .append("nextCursor", page.nextCursor())
+                    .toJson(JSON_SETTINGS);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+    }
+
+    private Map<String, Object> status(ComparisonJob job) {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("id", job.getId());
+        status.put("state", job.getState());
+        status.put("collection1", job.getCollection1());
+        status.put("collection2", job.getCollection2());
+        status.put("criteria", job.getCriteria());
+        status.put("submittedAt", job.getSubmittedAt());
+        status.put("startedAt", job.getStartedAt());
+        status.put("finishedAt", job.getFinishedAt());
+        status.put("progress", job.getProgress().snapshot());
+        if (job.getResult() != null) {
+            // Results served from the report cache record no progress, so the totals come from the result itself
+            Map<String, Object> totals = new LinkedHashMap<>();
+            job.getResult().forEach((section, documents) -> totals.put(section, ((List<?>) documents).size()));
+            status.put("totals", totals);
+        }
+        if (job.getError() != null) {
+            status.put("error", job.getError());
+        }
+        return status;
+    }
+
+    private static Set<String> splitToSet(String property) {
+        Set<String> values = new HashSet<>();
+        Arrays.stream(property.split(",")).map(String::trim).filter(value -> !value.isEmpty()).forEach(values::add);
+        return values;
+    }
+
+    private static ResponseStatusException jobNotFound(String id) {
+        return new ResponseStatusException(HttpStatus.NOT_FOUND, "No comparison job " + id);
+    }
+
+    /**
+     * Body of a job submission: the collection pair and the criteria to filter documents.
+     */
+    public record ComparisonJobRequest(String collection1, String collection2, Map<String, String> criteria) {
+    }
+}
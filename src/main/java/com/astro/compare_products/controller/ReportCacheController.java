@@ -0,0 +1,40 @@
+package com.astro.compare_products.controller;
+
+import com.astro.compare_products.service.ComparisonRunService;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.Map;
+
+/**
+ * Endpoints for inspecting and invalidating the cached report data of {@code /generateReport}.
+ */
+@RestController
+@RequestMapping("/reportCache")
+public class ReportCacheController {
+
+    private final ComparisonRunService comparisonRunService;
+
+    ReportCacheController(final ComparisonRunService comparisonRunService) {
+        this.comparisonRunService = comparisonRunService;
+    }
+
+    @GetMapping("/stats")
+    public Map<String, Object> cacheStatistics() {
+        return comparisonRunService.cacheStatistics();
+    }
+
+    /**
+     * Invalidates the cached report data of one collection pair when both collections are given, or all of it otherwise.
+     */
+    @DeleteMapping
+    public ResponseEntity<Void> invalidate(@RequestParam(required = false) String collection1,
+                                           @RequestParam(required = false) String collection2) {
+        if (collection1 != null && collection2 != null) {
+            comparisonRunService.invalidate(collection1, collection2);
+        } else {
+            comparisonRunService.invalidateAll();
+        }
+        return ResponseEntity.noContent().build();
+    }
+}
@@ -1,34 +1,50 @@
 package com.astro.compare_products.controller;
 
-import com.astro.compare_products.service.DocumentComparisonService;
-import com.astro.compare_products.service.DocumentFetcherService;
+import com.astro.compare_products.common.CountingWriter;
+import com.astro.compare_products.common.TeeWriter;
+import com.astro.compare_products.service.ComparisonMetrics;
+import com.astro.compare_products.service.ComparisonRunService;
 import jakarta.annotation.PostConstruct;
-import org.bson.Document;
+import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
 import org.springframework.stereotype.Controller;
-import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestParam;
+import org.thymeleaf.IThrottledTemplateProcessor;
 import org.thymeleaf.context.Context;
 import org.thymeleaf.spring6.SpringTemplateEngine;
 
 import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 
 import static com.astro.compare_products.common.Constants.*;
-import static com.astro.compare_products.common.FileUtils.writeToFile;
+import static com.astro.compare_products.common.FileUtils.openFileWriter;
 
 @Controller
 public class ReportController {
 
-    private final DocumentFetcherService documentFetcherService;
-    private final DocumentComparisonService comparisonService;
+    private final ComparisonRunService comparisonRunService;
     private final SpringTemplateEngine templateEngine;
+    private final ComparisonMetrics comparisonMetrics;
 
     // Inject key fields from the application properties
     @Value("${comparison.keyFields}")
     private String keyFieldsProperty;
 
+    // File the rendered report is saved to
+    @Value("${comparison.report.file:comparison_report.html}")
+    private String reportFile;
+
+    // Maximum number of characters rendered per chunk of the report
+    @Value("${comparison.report.chunkSize:65536}")
+    private int reportChunkSize;
+
     private List<String> keyFields;
 
     @PostConstruct
@@ -37,18 +53,25 @@ public class ReportController {
         keyFields = Arrays.asList(keyFieldsProperty.split(","));
     }
 
-    ReportController(final DocumentFetcherService documentFetcherService,
-                     final DocumentComparisonService comparisonService,
-                     final SpringTemplateEngine templateEngine
+    ReportController(final ComparisonRunService comparisonRunService,
+                     final SpringTemplateEngine templateEngine,
+                     final ComparisonMetrics comparisonMetrics
                      ) {
-        this.documentFetcherService = documentFetcherService;
-        this.comparisonService = comparisonService;
+        this.comparisonRunService = comparisonRunService;
         this.templateEngine = templateEngine;
+        this.comparisonMetrics = comparisonMetrics;
     }
 
 
+    /**
+     * Compares the collections and renders the report once, streaming it in chunks to both the HTTP
+     * response and the report file, so the rendered HTML is never held in memory as a whole.
+     * The file is written under a name of its own and moved over the report file once complete, so concurrent
+     * requests never write into the same file and readers always find a whole report.
+     * The time spent rendering and writing the chunks, and the size of the report, are recorded in {@link ComparisonMetrics}.
+     */
     @GetMapping("/generateReport")
-    public String generateReport(@RequestParam String upc, @RequestParam String category, Model model) throws IOException{
+    public void generateReport(@RequestParam String upc, @RequestParam String category, HttpServletResponse response) throws IOException{
 
         String collection1 = "products"; // Set actual collection names
         String collection2 = "products_salsify";
@@ -56,19 +79,9 @@ public class ReportController {
         // Build criteria map using the new helper method
         Map<String, String> criteria = buildCriteria(upc, category);
 
-        // Fetch documents from MongoDB collections
-        List<Document> collection1Docs = documentFetcherService.fetchDocuments(collection1, criteria);
-        List<Document> collection2Docs = documentFetcherService.fetchDocuments(collection2, criteria);
-
-        // compare documents and get comparison report data
-        Map<String, Object> reportData = comparisonService.compareDocuments(collection1Docs, collection2Docs);
-
-        model.addAttribute("docsInFirstOnly", reportData.get("docsInFirstOnly"));
-        model.addAttribute("docsInSecondOnly", reportData.get("docsInSecondOnly"));
-        model.addAttribute("differingDocs", reportData.get("differingDocs"));
-        model.addAttribute("collection1", collection1);
-        model.addAttribute("collection2", collection2);
-        model.addAttribute("keyFields", keyFields);
+        // Fetch and compare documents from MongoDB collections to get comparison report data,
+        // or reuse the cached report data of an earlier request with the same criteria
+        Map<String, Object> reportData = comparisonRunService.compare(collection1, collection2, criteria);
 
         // Set up the Thymeleaf context for the report
         Context context = new Context();
@@ -78,12 +91,37 @@ public class ReportController {
         context.setVariable("collection1", collection1);
         context.setVariable("collection2", collection2);
         context.setVariable("keyFields", keyFields);
-        String htmlContent = templateEngine.process("report", context);
 
-        // Save the HTML content to a file
-        writeToFile("comparison_report.html", htmlContent);
-
-        return "report"; // Thymeleaf template name
+        response.setContentType(MediaType.TEXT_HTML_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+
+        // Render the template chunk by chunk, writing every chunk to the response and to the report file and counting its bytes
+        long allocatedAtStart = ComparisonMetrics.allocatedBytes();
+        long renderNanos = 0;
+        long writeStart = System.nanoTime();
+        IThrottledTemplateProcessor processor = templateEngine.processThrottled("report", context);
+        Path reportPath = Path.of(reportFile).toAbsolutePath();
+        Path partialReportPath = Files.createTempFile(reportPath.getParent(), reportPath.getFileName().toString(), ".part");
+        long reportBytes;
+        try {
+            try (Writer fileWriter = openFileWriter(partialReportPath.toString());
+                 CountingWriter reportWriter = new CountingWriter(new TeeWriter(response.getWriter(), fileWriter))) {
+                while (!processor.isFinished()) {
+                    long renderStart = System.nanoTime();
+                    processor.process(reportChunkSize, reportWriter);
+                    renderNanos += System.nanoTime() - renderStart;
+                    // Send each chunk right away so the browser can start rendering before the report is complete
+                    reportWriter.flush();
+                }
+                reportBytes = reportWriter.bytes();
+            }
+            Files.move(partialReportPath, reportPath, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(partialReportPath);
+        }
+        long writeNanos = System.nanoTime() - writeStart - renderNanos;
+        long allocated = allocatedAtStart < 0 ? -1 : ComparisonMetrics.allocatedBytes() - allocatedAtStart;
+        comparisonMetrics.reportRendered(collection1, collection2, renderNanos, writeNanos, reportBytes, allocated);
     }
 
     /**
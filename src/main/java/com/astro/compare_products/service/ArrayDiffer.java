@@ -0,0 +1,201 @@
+package com.astro.compare_products.service;
+
+import com.astro.compare_products.common.ComparisonRules;
+import com.astro.compare_products.common.CompositeKey;
+import com.astro.compare_products.common.DiffTable;
+import com.astro.compare_products.common.DocumentFingerprint;
+import org.bson.Document;
+
+import java.util.*;
+
+/**
+ * Compares two arrays element by element, reporting only the elements that were added, removed or changed.
+ * <p>
+ * Elements of arrays of sub-documents with an identity field in their {@link ComparisonRules} are matched on the value of that field
+ * and reported as {@code field[identity=value]}; only the first element with each identity is compared.
+ * Other arrays are aligned by trimming the common prefix and suffix and then matching equal elements of the
+ * remainder by value, so moved elements are not reported. When the elements have comparison rules of their own,
+ * sub-document elements are aligned on their {@link DocumentFingerprint#elementHash content hash} instead, so
+ * elements that only differ in ignored fields are equal, as they are to the content hash of the array.
+ * Unmatched elements of the remainder are paired in order and reported as changed, under the index of the
+ * element in the first array, {@code field[i]}; elements left over on one side are reported as removed, or
+ * as added under the index in the second array, {@code field[+j]}. Changed sub-documents are compared
+ * field by field.
+ */
+final class ArrayDiffer {
+
+    /**
+     * Field-by-field comparison of two sub-documents under the given comparison rules, adding the differences
+     * below the given path to the table.
+     */
+    @FunctionalInterface
+    interface DocumentComparator {
+        void compare(Document doc1, Document doc2, ComparisonRules rules, DiffTable differences, int path);
+    }
+
+    private final DocumentComparator documentComparator;
+
+    ArrayDiffer(DocumentComparator documentComparator) {
+        this.documentComparator = documentComparator;
+    }
+
+    /**
+     * Parses array identity field rules of the form {@code path:identityField}, separated by commas.
+     *
+     * @param property The configured rules, possibly empty
+     * @return Map of array field paths to the identity field of their elements
+     */
+    static Map<String, String> parseIdentityFields(String property) {
+        Map<String, String> identityFields = new HashMap<>();
+        for (String rule : property.split(",")) {
+            int separator = rule.indexOf(':');
+            if (separator > 0) {
+                identityFields.put(rule.substring(0, separator).trim(), rule.substring(separator + 1).trim());
+            }
+        }
+        return identityFields;
+    }
+
+    /**
+     * Records the element differences of two arrays that are not equal.
+     *
+     * @param parent      The id of the path of the document holding the array
+     * @param field       The name of the array field, used to label the element differences
+     * @param rules       The comparison rules of the array field
+     * @param list1       The array of the first document
+     * @param list2       The array of the second document
+     * @param differences Table the element differences are added to
+     */
+    void diff(int parent, String field, ComparisonRules rules, List<?> list1, List<?> list2, DiffTable differences) {
+        ComparisonRules elementRules = rules.elements();
+        if (elementRules.isIgnored()) {
+            return;
+        }
+        String identityField = rules.arrayIdentityField();
+        if (identityField != null && allDocuments(list1, identityField) && allDocuments(list2, identityField)) {
+            diffByIdentity(parent, field, elementRules, identityField, list1, list2, differences);
+        } else {
+            diffByAlignment(parent, field, elementRules, list1, list2, differences);
+        }
+    }
+
+    private void diffByIdentity(int parent, String field, ComparisonRules elementRules, String identityField,
+                                List<?> list1, List<?> list2, DiffTable differences) {
+        Map<CompositeKey, Document> elements2 = new LinkedHashMap<>();
+        for (Object element : list2) {
+            elements2.putIfAbsent(identityOf((Document) element, identityField), (Document) element);
+        }
+        Set<CompositeKey> seen = new HashSet<>();
+        for (Object element : list1) {
+            Document element1 = (Document) element;
+            CompositeKey identity = identityOf(element1, identityField);
+            if (!seen.add(identity)) {
+                continue;
+            }
+            int path = differences.pathId(parent, field + "[" + identityField + "=" + element1.get(identityField) + "]");
+            Document element2 = elements2.remove(identity);
+            if (element2 == null) {
+                differences.add(path, element1, null);
+            } else if (!element1.equals(element2)) {
+                documentComparator.compare(element1, element2, elementRules, differences, path);
+            }
+        }
+        elements2.values().forEach(element2 -> differences.add(
+                differences.pathId(parent, field + "[" + identityField + "=" + element2.get(identityField) + "]"), null, element2));
+    }
+
+    private void diffByAlignment(int parent, String field, ComparisonRules elementRules, List<?> list1, List<?> list2,
+                                 DiffTable differences) {
+        List<?> values1 = alignmentValues(list1, elementRules);
+        List<?> values2 = alignmentValues(list2, elementRules);
+
+        // Trim the common prefix and suffix, which is all there is to skip when elements were only changed in place
+        int start = 0;
+        while (start < values1.size() && start < values2.size() && Objects.equals(values1.get(start), values2.get(start))) {
+            start++;
+        }
+        int end1 = values1.size();
+        int end2 = values2.size();
+        while (end1 > start && end2 > start && Objects.equals(values1.get(end1 - 1), values2.get(end2 - 1))) {
+            end1--;
+            end2--;
+        }
+
+        // Match equal elements of the remainders by value, in order of appearance
+        Map<Object, Deque<Integer>> positions2 = new HashMap<>();
+        for (int j = start; j < end2; j++) {
+            positions2.computeIfAbsent(values2.get(j), value -> new ArrayDeque<>()).add(j);
+        }
+        boolean[] matched2 = new boolean[end2 - start];
+        List<Integer> unmatched1 = new ArrayList<>();
+        for (int i = start; i < end1; i++) {
+            Deque<Integer> positions = positions2.get(values1.get(i));
+            if (positions != null && !positions.isEmpty()) {
+                matched2[positions.poll() - start] = true;
+            } else {
+                unmatched1.add(i);
+            }
+        }
+        List<Integer> unmatched2 = new ArrayList<>();
+        for (int j = start; j < end2; j++) {
+            if (!matched2[j - start]) {
+                unmatched2.add(j);
+            }
+        }
+
+        // Pair the remaining elements in order as changed; the excess on either side was removed or added
+        int pairs = Math.min(unmatched1.size(), unmatched2.size());
+        for (int k = 0; k < pairs; k++) {
+            int i = unmatched1.get(k);
+            Object element1 = list1.get(i);
+            Object element2 = list2.get(unmatched2.get(k));
+            int path = differences.pathId(parent, field + "[" + i + "]");
+            if (element1 instanceof Document document1 && element2 instanceof Document document2) {
+                documentComparator.compare(document1, document2, elementRules, differences, path);
+            } else {
+                differences.add(path, element1, element2);
+            }
+        }
+        for (int k = pairs; k < unmatched1.size(); k++) {
+            int i = unmatched1.get(k);
+            differences.add(differences.pathId(parent, field + "[" + i + "]"), list1.get(i), null);
+        }
+        for (int k = pairs; k < unmatched2.size(); k++) {
+            int j = unmatched2.get(k);
+            differences.add(differences.pathId(parent, field + "[+" + j + "]"), null, list2.get(j));
+        }
+    }
+
+    /**
+     * Returns the values the elements of an array are aligned on: the elements themselves, or the content hashes
+     * of sub-document elements when the elements have comparison rules.
+     */
+    private static List<?> alignmentValues(List<?> list, ComparisonRules elementRules) {
+        if (elementRules == ComparisonRules.NONE) {
+            return list;
+        }
+        List<Object> values = new ArrayList<>(list.size());
+        for (Object element : list) {
+            values.add(element instanceof Document ? new ElementHash(DocumentFingerprint.elementHash(element, elementRules)) : element);
+        }
+        return values;
+    }
+
+    private static boolean allDocuments(List<?> list, String identityField) {
+        for (Object element : list) {
+            if (!(element instanceof Document document) || !document.containsKey(identityField)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static CompositeKey identityOf(Document element, String identityField) {
+        return CompositeKey.of(new Object[]{element.get(identityField)});
+    }
+
+    /**
+     * Content hash a sub-document element is aligned on, distinct from any element value.
+     */
+    private record ElementHash(long hash) {}
+}
@@ -0,0 +1,133 @@
+package com.astro.compare_products.service;
+
+import com.astro.compare_products.common.ComparisonProgress;
+import com.astro.compare_products.common.ComparisonRules;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataRetrievalFailureException;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import static com.astro.compare_products.common.Constants.FIELD_UPC;
+
+/**
+ * Service comparing the documents of a list of UPCs in batches, for audits of many products at once.
+ * <p>
+ * The distinct UPCs are split into batches, and the documents of each batch are fetched from both collections
+ * with one {@code $in} query per collection and compared in memory. The UPC is a key field, so documents
+ * that match each other always fall into the same batch and every batch can be compared on its own. Up to
+ * the configured number of batches are fetched and compared at the same time, each on a virtual thread,
+ * while the results of finished batches are handed to the caller in batch order.
+ */
+@Service
+public class BulkComparisonService {
+
+    Logger logger = LoggerFactory.getLogger(BulkComparisonService.class);
+
+    private final DocumentFetcherService documentFetcherService;
+    private final DocumentComparisonService comparisonService;
+
+    // Number of UPCs looked up per $in query
+    @Value("${comparison.bulk.batchSize:1000}")
+    private int batchSize;
+
+    // Number of batches fetched and compared at the same time
+    @Value("${comparison.bulk.concurrency:4}")
+    private int concurrency;
+
+    public BulkComparisonService(final DocumentFetcherService documentFetcherService,
+                                 final DocumentComparisonService comparisonService) {
+        this.documentFetcherService = documentFetcherService;
+        this.comparisonService = comparisonService;
+    }
+
+    /**
+     * Results of one batch.
+     *
+     * @param batch      The number of the batch, from 0
+     * @param upcs       The UPCs of the batch
+     * @param reportData The documents unique to each collection and the differing documents of the batch
+     */
+    public record BatchResult(int batch, List<String> upcs, Map<String, Object> reportData) {
+    }
+
+    /**
+     * Compares the documents of the given UPCs that match the criteria, in batches.
+     *
+     * @param collection1   the name of the first collection.
+     * @param collection2   the name of the second collection.
+     * @param upcs          the UPCs to compare; repeated UPCs are compared once.
+     * @param criteria      a map containing further equality criteria to filter documents.
+     * @param batchConsumer receives the results of every batch, in batch order, on the calling thread.
+     * @return the number of UPCs and batches compared, and the totals of the comparison
+     * @throws org.springframework.dao.DataAccessException if fetching a batch fails; batches in flight are cancelled
+     */
+    public Map<String, Long> compareInBatches(String collection1, String collection2, Collection<String> upcs,
+                                              Map<String, String> criteria, Consumer<BatchResult> batchConsumer) {
+        List<String> distinctUpcs = List.copyOf(new LinkedHashSet<>(upcs));
+        List<List<String>> batches = new ArrayList<>();
+        for (int start = 0; start < distinctUpcs.size(); start += batchSize) {
+            batches.add(distinctUpcs.subList(start, Math.min(start + batchSize, distinctUpcs.size())));
+        }
+        ComparisonRules rules = comparisonService.rulesFor(collection1, collection2);
+        ComparisonProgress progress = new ComparisonProgress();
+        long start = System.nanoTime();
+
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        Deque<Future<BatchResult>> inFlight = new ArrayDeque<>();
+        try {
+            int nextBatch = 0;
+            while (nextBatch < batches.size() || !inFlight.isEmpty()) {
+                // Keep the window of batches in flight full, then hand over the oldest one once it is done
+                while (nextBatch < batches.size() && inFlight.size() < concurrency) {
+                    int batch = nextBatch++;
+                    inFlight.add(executor.submit(() -> compareBatch(collection1, collection2, batch, batches.get(batch),
+                            criteria, rules, progress)));
+                }
+                batchConsumer.accept(await(inFlight.removeFirst()));
+            }
+        } finally {
+            // Cancel the batches still in flight when the caller or a batch failed
+            executor.shutdownNow();
+        }
+
+        Map<String, Long> summary = new LinkedHashMap<>();
+        summary.put("upcs", (long) distinctUpcs.size());
+        summary.put("batches", (long) batches.size());
+        summary.putAll(progress.snapshot());
+        logger.info("Bulk comparison collection1={} collection2={} upcs={} batches={} durationMs={} totals={}",
+                collection1, collection2, distinctUpcs.size(), batches.size(), (System.nanoTime() - start) / 1_000_000, progress.snapshot());
+        return summary;
+    }
+
+    private BatchResult compareBatch(String collection1, String collection2, int batch, List<String> upcs,
+                                     Map<String, String> criteria, ComparisonRules rules, ComparisonProgress progress) {
+        List<List<Document>> fetchedDocs = documentFetcherService.fetchDocumentsConcurrently(
+                List.of(collection1, collection2), criteria, FIELD_UPC, upcs);
+        progress.addFetched(1, fetchedDocs.get(0).size());
+        progress.addFetched(2, fetchedDocs.get(1).size());
+        return new BatchResult(batch, upcs, comparisonService.compareDocuments(fetchedDocs.get(0), fetchedDocs.get(1), rules, progress));
+    }
+
+    private static BatchResult await(Future<BatchResult> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new DataRetrievalFailureException("Failed to compare a batch of UPCs", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DataRetrievalFailureException("Interrupted while comparing a batch of UPCs", e);
+        }
+    }
+}
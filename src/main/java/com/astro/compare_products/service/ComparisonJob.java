@@ -0,0 +1,109 @@
+package com.astro.compare_products.service;
+
+import com.astro.compare_products.common.ComparisonProgress;
+import lombok.AccessLevel;
+import lombok.Getter;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * A comparison of two collections submitted to run in the background, with its state, progress and result.
+ */
+@Getter
+public class ComparisonJob {
+
+    /**
+     * Lifecycle states of a job. A job ends in exactly one of the final states.
+     */
+    public enum State {
+        QUEUED, RUNNING, COMPLETED, FAILED, CANCELLED;
+
+        public boolean isFinal() {
+            return this == COMPLETED || this == FAILED || this == CANCELLED;
+        }
+    }
+
+    private final String id;
+    private final String collection1;
+    private final String collection2;
+    private final Map<String, String> criteria;
+    private final ComparisonProgress progress = new ComparisonProgress();
+    private final Instant submittedAt = Instant.now();
+
+    private volatile State state = State.QUEUED;
+    private volatile Instant startedAt;
+    private volatile Instant finishedAt;
+    private volatile Map<String, Object> result;
+    private volatile String error;
+
+    @Getter(AccessLevel.NONE)
+    private volatile Future<?> future;
+
+    ComparisonJob(String id, String collection1, String collection2, Map<String, String> criteria) {
+        this.id = id;
+        this.collection1 = collection1;
+        this.collection2 = collection2;
+        this.criteria = Map.copyOf(criteria);
+    }
+
+    void setFuture(Future<?> future) {
+        this.future = future;
+    }
+
+    /**
+     * Moves a queued job to {@link State#RUNNING}.
+     *
+     * @return false if the job was cancelled before it started
+     */
+    synchronized boolean start() {
+        if (state != State.QUEUED) {
+            return false;
+        }
+        state = State.RUNNING;
+        startedAt = Instant.now();
+        return true;
+    }
+
+    synchronized void complete(Map<String, Object> result) {
+        if (progress.isCancelled()) {
+            finish(State.CANCELLED);
+        } else if (!state.isFinal()) {
+            this.result = result;
+            finish(State.COMPLETED);
+        }
+    }
+
+    synchronized void fail(String error) {
+        this.error = error;
+        finish(progress.isCancelled() ? State.CANCELLED : State.FAILED);
+    }
+
+    /**
+     * Cancels the job: a queued job never starts, a running job stops at the next document it compares
+     * and its thread is interrupted to abort a fetch in progress.
+     *
+     * @return false if the job had already finished
+     */
+    synchronized boolean cancel() {
+        if (state.isFinal()) {
+            return false;
+        }
+        progress.cancel();
+        if (state == State.QUEUED) {
+            finish(State.CANCELLED);
+        }
+        if (future != null) {
+            future.cancel(true);
+        }
+        return true;
+    }
+
+    private void finish(State finalState) {
+        if (!state.isFinal()) {
+            state = finalState;
+            finishedAt = Instant.now();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.astro.compare_products.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Service running comparisons as background jobs that can be polled for progress and cancelled.
+ * <p>
+ * Jobs run on a fixed number of worker threads and wait in a bounded queue. Submissions beyond the queue
+ * capacity are rejected rather than queued, so a burst of large requests cannot hold more comparisons in
+ * memory than the workers and the queue allow. Finished jobs, and with them their results, are kept for a
+ * retention period and then dropped.
+ */
+@Service
+public class ComparisonJobService {
+
+    Logger logger = LoggerFactory.getLogger(ComparisonJobService.class);
+
+    private final ComparisonRunService comparisonRunService;
+
+    // Number of comparison jobs running at the same time
+    @Value("${comparison.jobs.threads:2}")
+    private int jobThreads;
+
+    // Number of submitted jobs waiting for a worker before further submissions are rejected
+    @Value("${comparison.jobs.queueCapacity:8}")
+    private int queueCapacity;
+
+    // Time a finished job and its result are kept
+    @Value("${comparison.jobs.retention:PT1H}")
+    private Duration retention;
+
+    private final Map<String, ComparisonJob> jobs = new ConcurrentHashMap<>();
+
+    private ThreadPoolExecutor jobExecutor;
+
+    public ComparisonJobService(final ComparisonRunService comparisonRunService) {
+        this.comparisonRunService = comparisonRunService;
+    }
+
+    /**
+     * Starts the worker threads of the job executor.
+     */
+    @PostConstruct
+    public void init() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        jobExecutor = new ThreadPoolExecutor(jobThreads, jobThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> new Thread(runnable, "comparison-job-" + threadNumber.incrementAndGet()),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Cancels all jobs and stops the worker threads.
+     */
+    @PreDestroy
+    public void shutdown() {
+        jobs.values().forEach(ComparisonJob::cancel);
+        jobExecutor.shutdownNow();
+    }
+
+    /**
+     * Submits a comparison of two collections to run in the background.
+     *
+     * @param collection1 the name of the first collection.
+     * @param collection2 the name of the second collection.
+     * @param criteria    a map containing the criteria to filter documents.
+     * @return The queued job
+     * @throws RejectedExecutionException if the queue of waiting jobs is full
+     */
+    public ComparisonJob submit(String collection1, String collection2, Map<String, String> criteria) {
+        purgeExpiredJobs();
+        ComparisonJob job = new ComparisonJob(UUID.randomUUID().toString(), collection1, collection2, criteria);
+        jobs.put(job.getId(), job);
+        try {
+            job.setFuture(jobExecutor.submit(() -> run(job)));
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.getId());
+            throw e;
+        }
+        logger.info("Comparison job {} of {} and {} queued", job.getId(), collection1, collection2);
+        return job;
+    }
+
+    /**
+     * Returns a job by its id.
+     *
+     * @param id The id of the job
+     * @return The job, or empty if no such job exists or it expired
+     */
+    public Optional<ComparisonJob> findJob(String id) {
+        purgeExpiredJobs();
+        return Optional.ofNullable(jobs.get(id));
+    }
+
+    /**
+     * Cancels a queued or running job.
+     *
+     * @param id The id of the job
+     * @return The job, or empty if no such job exists or it expired
+     */
+    public Optional<ComparisonJob> cancel(String id) {
+        Optional<ComparisonJob> job = findJob(id);
+        job.ifPresent(ComparisonJob::cancel);
+        // Free the queue slot of a job cancelled before it started
+        jobExecutor.purge();
+        return job;
+    }
+
+    private void run(ComparisonJob job) {
+        if (!job.start()) {
+            return;
+        }
+        try {
+            Map<String, Object> result = comparisonRunService.compare(job.getCollection1(), job.getCollection2(),
+                    job.getCriteria(), job.getProgress());
+            job.complete(result);
+            logger.info("Comparison job {} {}", job.getId(), job.getState());
+        } catch (RuntimeException e) {
+            job.fail(e.getMessage());
+            if (job.getState() == ComparisonJob.State.FAILED) {
+                logger.error("Comparison job {} failed", job.getId(), e);
+            } else {
+                logger.info("Comparison job {} cancelled", job.getId());
+            }
+        }
+    }
+
+    private void purgeExpiredJobs() {
+        Instant expiry = Instant.now().minus(retention);
+        jobs.values().removeIf(job -> job.getState().isFinal() && job.getFinishedAt().isBefore(expiry));
+    }
+}
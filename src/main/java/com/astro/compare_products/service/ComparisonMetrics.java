@@ -0,0 +1,148 @@
+package com.astro.compare_products.service;
+
+import com.astro.compare_products.common.ComparisonMode;
+import com.astro.compare_products.common.ComparisonPhase;
+import com.astro.compare_products.common.ComparisonProgress;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the metrics of comparison runs and of rendered reports, and logs a one-line summary of each.
+ * <p>
+ * A run reports its outcome and duration, the time of every phase it went through, the documents fetched on
+ * each side, the matched, unique and differing documents and duplicate keys found, and the documents compared per
+ * second. Everything is read from the {@link ComparisonProgress} of the run once it is
+ * over, so the comparison itself only updates its progress. Meters are tagged with the comparison mode, and
+ * exposed through the Actuator metrics and Prometheus endpoints.
+ * <p>
+ * A rendered report also reports the heap allocated while rendering, which happens entirely on the request
+ * thread. Runs report no allocation: they fetch and compare on worker threads shared with other runs, so the
+ * allocation of the calling thread would leave most of a run out.
+ */
+@Component
+public class ComparisonMetrics {
+
+    Logger logger = LoggerFactory.getLogger(ComparisonMetrics.class);
+
+    private final MeterRegistry meterRegistry;
+
+    // Strategy used to compare the two collections, tagged on every meter
+    @Value("${comparison.mode:HASH}")
+    private ComparisonMode comparisonMode;
+
+    public ComparisonMetrics(final MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Returns the bytes allocated on the heap by the current thread so far, or -1 if the JVM cannot measure it.
+     * The difference of two calls on the same thread is the heap allocated in between.
+     */
+    public static long allocatedBytes() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threadMXBean
+                && threadMXBean.isThreadAllocatedMemoryEnabled()) {
+            return threadMXBean.getCurrentThreadAllocatedBytes();
+        }
+        return -1;
+    }
+
+    /**
+     * Records a finished comparison run and logs its summary.
+     *
+     * @param collection1    The name of the first collection
+     * @param collection2    The name of the second collection
+     * @param progress       The progress of the run
+     * @param outcome        {@code success}, {@code cancelled} or {@code failed}
+     * @param durationNanos  The duration of the run, in nanoseconds
+     */
+    public void runCompleted(String collection1, String collection2, ComparisonProgress progress, String outcome,
+                             long durationNanos) {
+        String mode = comparisonMode.name();
+        Map<String, Long> counts = progress.snapshot();
+        long compared = counts.get("comparedFirst") + counts.get("comparedSecond");
+        long matched = counts.get("comparedFirst") - counts.get("docsInFirstOnly");
+        long documentsPerSecond = durationNanos > 0 ? compared * 1_000_000_000L / durationNanos : 0;
+
+        Timer.builder("comparison.runs").description("Duration of comparison runs")
+                .tags("mode", mode, "outcome", outcome)
+                .register(meterRegistry).record(durationNanos, TimeUnit.NANOSECONDS);
+        for (ComparisonPhase phase : ComparisonPhase.values()) {
+            long nanos = progress.phaseNanos(phase);
+            if (nanos > 0) {
+                recordPhase(phase, nanos);
+            }
+        }
+        countDocuments("comparison.documents.fetched", "Documents fetched", "side", "first", counts.get("fetchedFirst"));
+        countDocuments("comparison.documents.fetched", "Documents fetched", "side", "second", counts.get("fetchedSecond"));
+        countDocuments("comparison.documents", "Documents compared, by result", "result", "matched", matched);
+        countDocuments("comparison.documents", "Documents compared, by result", "result", "firstOnly", counts.get("docsInFirstOnly"));
+        countDocuments("comparison.documents", "Documents compared, by result", "result", "secondOnly", counts.get("docsInSecondOnly"));
+        countDocuments("comparison.documents", "Documents compared, by result", "result", "differing", counts.get("differingDocs"));
+        countDocuments("comparison.documents", "Documents compared, by result", "result", "duplicateKey", counts.get("duplicateKeys"));
+        DistributionSummary.builder("comparison.throughput").description("Documents compared per second of a run")
+                .tags("mode", mode)
+                .register(meterRegistry).record(documentsPerSecond);
+
+        logger.info("Comparison run collection1={} collection2={} mode={} outcome={} durationMs={} fetchMs={} indexMs={} compareMs={} "
+                        + "fetchedFirst={} fetchedSecond={} matched={} docsInFirstOnly={} docsInSecondOnly={} differingDocs={} "
+                        + "duplicateKeys={} documentsPerSecond={}",
+                collection1, collection2, mode, outcome, TimeUnit.NANOSECONDS.toMillis(durationNanos),
+                millis(progress, ComparisonPhase.FETCH), millis(progress, ComparisonPhase.INDEX), millis(progress, ComparisonPhase.COMPARE),
+                counts.get("fetchedFirst"), counts.get("fetchedSecond"), matched, counts.get("docsInFirstOnly"),
+                counts.get("docsInSecondOnly"), counts.get("differingDocs"), counts.get("duplicateKeys"), documentsPerSecond);
+    }
+
+    /**
+     * Records a rendered report and logs its summary.
+     *
+     * @param collection1    The name of the first collection
+     * @param collection2    The name of the second collection
+     * @param renderNanos    The time spent rendering the template, in nanoseconds
+     * @param writeNanos     The time spent sending and saving the rendered report, in nanoseconds
+     * @param bytes          The size of the rendered report, in bytes
+     * @param allocatedBytes The heap allocated while rendering, or a negative value if unknown
+     */
+    public void reportRendered(String collection1, String collection2, long renderNanos, long writeNanos, long bytes,
+                               long allocatedBytes) {
+        recordPhase(ComparisonPhase.RENDER, renderNanos);
+        recordPhase(ComparisonPhase.WRITE, writeNanos);
+        DistributionSummary.builder("comparison.report.size").description("Size of rendered reports")
+                .baseUnit("bytes").tags("mode", comparisonMode.name())
+                .register(meterRegistry).record(bytes);
+        if (allocatedBytes >= 0) {
+            DistributionSummary.builder("comparison.report.allocated").description("Heap allocated while rendering reports")
+                    .baseUnit("bytes").tags("mode", comparisonMode.name())
+                    .register(meterRegistry).record(allocatedBytes);
+        }
+
+        logger.info("Comparison report collection1={} collection2={} mode={} renderMs={} writeMs={} bytes={} allocatedBytes={}",
+                collection1, collection2, comparisonMode.name(), TimeUnit.NANOSECONDS.toMillis(renderNanos),
+                TimeUnit.NANOSECONDS.toMillis(writeNanos), bytes, allocatedBytes);
+    }
+
+    private void recordPhase(ComparisonPhase phase, long nanos) {
+        Timer.builder("comparison.phase").description("Time spent in each phase of comparison runs and reports")
+                .tags("mode", comparisonMode.name(), "phase", phase.name())
+                .register(meterRegistry).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void countDocuments(String name, String description, String tag, String tagValue, long count) {
+        Counter.builder(name).description(description).baseUnit("documents")
+                .tags("mode", comparisonMode.name(), tag, tagValue)
+                .register(meterRegistry).increment(count);
+    }
+
+    private static long millis(ComparisonProgress progress, ComparisonPhase phase) {
+        return TimeUnit.NANOSECONDS.toMillis(progress.phaseNanos(phase));
+    }
+}
@@ -0,0 +1,328 @@
+package com.astro.compare_products.service;
+
+import com.astro.compare_products.common.ComparisonMode;
+import com.astro.compare_products.common.ComparisonPhase;
+import com.astro.compare_products.common.ComparisonProgress;
+import com.astro.compare_products.common.DiffTable;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import jakarta.annotation.PostConstruct;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Service running a comparison of two collections with the configured comparison mode.
+ * <p>
+ * Report data is cached per collection pair and criteria, so repeated requests with the same parameters are
+ * answered without querying the database. Entries expire after a configurable time to live, and the cache is
+ * bounded by the estimated size of the cached report data; when the bound is reached, entries are evicted by
+ * a combination of recency and frequency of use.
+ * <p>
+ * Comparisons run outside the cache and their report data is put once complete, so a long comparison never holds
+ * a lock of the cache; requests for the same parameters arriving meanwhile run their own comparison. Cached report
+ * data is shared between requests and therefore read-only. The incremental, Merkle and distributed modes keep their
+ * own state in MongoDB, and their report data is never cached.
+ * <p>
+ * Every comparison that runs, as opposed to being served from the cache, is recorded in {@link ComparisonMetrics}.
+ */
+@Service
+public class ComparisonRunService {
+
+    // Modes keeping their own state in MongoDB, whose report data is not cached
+    private static final Set<ComparisonMode> STATEFUL_MODES =
+            EnumSet.of(ComparisonMode.INCREMENTAL, ComparisonMode.MERKLE, ComparisonMode.DISTRIBUTED);
+
+    private final DocumentFetcherService documentFetcherService;
+    private final DocumentComparisonService comparisonService;
+    private final IncrementalComparisonService incrementalComparisonService;
+    private final ExternalComparisonService externalComparisonService;
+    private final MerkleComparisonService merkleComparisonService;
+    private final DistributedComparisonService distributedComparisonService;
+    private final ComparisonMetrics comparisonMetrics;
+
+    // Inject key fields from the application properties
+    @Value("${comparison.keyFields}")
+    private String keyFieldsProperty;
+
+    // Strategy used to compare the two collections
+    @Value("${comparison.mode:HASH}")
+    private ComparisonMode comparisonMode;
+
+    // Whether report data is cached between requests
+    @Value("${comparison.cache.enabled:true}")
+    private boolean cacheEnabled;
+
+    // Time after which cached report data expires
+    @Value("${comparison.cache.ttl:PT10M}")
+    private Duration cacheTtl;
+
+    // Upper bound on the estimated size of all cached report data, in bytes
+    @Value("${comparison.cache.maxWeightBytes:268435456}")
+    private long cacheMaxWeightBytes;
+
+    private List<String> keyFields;
+
+    private Cache<ReportKey, Map<String, Object>> reportCache;
+
+    // Incremented by every invalidation, so runs overlapping one do not cache their report data
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public ComparisonRunService(final DocumentFetcherService documentFetcherService,
+                                final DocumentComparisonService comparisonService,
+                                final IncrementalComparisonService incrementalComparisonService,
+                                final ExternalComparisonService externalComparisonService,
+                                final MerkleComparisonService merkleComparisonService,
+                                final DistributedComparisonService distributedComparisonService,
+                                final ComparisonMetrics comparisonMetrics) {
+        this.documentFetcherService = documentFetcherService;
+        this.comparisonService = comparisonService;
+        this.incrementalComparisonService = incrementalComparisonService;
+        this.externalComparisonService = externalComparisonService;
+        this.merkleComparisonService = merkleComparisonService;
+        this.distributedComparisonService = distributedComparisonService;
+        this.comparisonMetrics = comparisonMetrics;
+    }
+
+    /**
+     * Initializes the service by splitting the configured key fields property and building the report cache.
+     */
+    @PostConstruct
+    public void init() {
+        keyFields = Arrays.asList(keyFieldsProperty.split(","));
+        reportCache = Caffeine.newBuilder()
+                .expireAfterWrite(cacheTtl)
+                .maximumWeight(cacheMaxWeightBytes)
+                .weigher((ReportKey key, Map<String, Object> reportData) -> (int) Math.min(Integer.MAX_VALUE, estimateBytes(reportData)))
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Compares the documents of two collections that match the criteria, reusing cached report data
+     * of an earlier comparison with the same parameters when available.
+     *
+     * @param collection1 the name of the first collection.
+     * @param collection2 the name of the second collection.
+     * @param criteria    a map containing the criteria to filter documents.
+     * @return Map containing lists of documents unique to each collection and any differing documents
+     */
+    public Map<String, Object> compare(String collection1, String collection2, Map<String, String> criteria) {
+        return compare(collection1, collection2, criteria, new ComparisonProgress());
+    }
+
+    /**
+     * Compares the documents of two collections like {@link #compare(String, String, Map)}, recording the
+     * documents fetched and compared in the given progress. Report data served from the cache records no progress.
+     *
+     * @param collection1 the name of the first collection.
+     * @param collection2 the name of the second collection.
+     * @param criteria    a map containing the criteria to filter documents.
+     * @param progress    progress of the run, also checked for cancellation.
+     * @return Map containing lists of documents unique to each collection and any differing documents
+     * @throws java.util.concurrent.CancellationException if the run is cancelled before it completes
+     */
+    public Map<String, Object> compare(String collection1, String collection2, Map<String, String> criteria,
+                                       ComparisonProgress progress) {
+        if (!cacheEnabled || STATEFUL_MODES.contains(comparisonMode)) {
+            return runComparison(collection1, collection2, criteria, progress);
+        }
+        ReportKey key = new ReportKey(collection1, collection2, new TreeMap<>(criteria));
+        Map<String, Object> cached = reportCache.getIfPresent(key);
+        if (cached != null) {
+            return cached;
+        }
+        long invalidationsAtStart = invalidations.get();
+        Map<String, Object> reportData = readOnly(runComparison(collection1, collection2, criteria, progress));
+        // Report data of a run overlapping an invalidation may predate the change that caused it
+        if (invalidations.get() == invalidationsAtStart) {
+            reportCache.put(key, reportData);
+        }
+        return reportData;
+    }
+
+    /**
+     * Removes the cached report data of every criteria compared for a collection pair.
+     *
+     * @param collection1 the name of the first collection.
+     * @param collection2 the name of the second collection.
+     */
+    public void invalidate(String collection1, String collection2) {
+        invalidations.incrementAndGet();
+        reportCache.asMap().keySet().removeIf(key -> key.collection1().equals(collection1) && key.collection2().equals(collection2));
+    }
+
+    /**
+     * Removes all cached report data.
+     */
+    public void invalidateAll() {
+        invalidations.incrementAndGet();
+        reportCache.invalidateAll();
+    }
+
+    /**
+     * Returns the hit, miss and eviction statistics of the report cache together with its current size.
+     *
+     * @return Map of statistic names to their values
+     */
+    public Map<String, Object> cacheStatistics() {
+        CacheStats stats = reportCache.stats();
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("entries", reportCache.estimatedSize());
+        statistics.put("weightBytes", reportCache.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0)).orElse(0L));
+        statistics.put("hitCount", stats.hitCount());
+        statistics.put("missCount", stats.missCount());
+        statistics.put("hitRate", stats.hitRate());
+        statistics.put("evictionCount", stats.evictionCount());
+        return statistics;
+    }
+
+    /**
+     * Wraps report data and its lists so that it can be shared between requests.
+     */
+    static Map<String, Object> readOnly(Map<String, Object> reportData) {
+        Map<String, Object> readOnly = new HashMap<>();
+        reportData.forEach((section, value) -> readOnly.put(section,
+                value instanceof DiffTable table ? table.seal()
+                        : value instanceof List<?> list ? Collections.unmodifiableList(list)
+                        : value));
+        return Collections.unmodifiableMap(readOnly);
+    }
+
+    /**
+     * Runs a comparison with the configured mode and records its metrics, whether it completes or not.
+     */
+    private Map<String, Object> runComparison(String collection1, String collection2, Map<String, String> criteria,
+                                              ComparisonProgress progress) {
+        long start = System.nanoTime();
+        String outcome = "failed";
+        try {
+            Map<String, Object> reportData = compareWithMode(collection1, collection2, criteria, progress);
+            outcome = "success";
+            return reportData;
+        } catch (CancellationException e) {
+            outcome = "cancelled";
+            throw e;
+        } finally {
+            comparisonMetrics.runCompleted(collection1, collection2, progress, outcome, System.nanoTime() - start);
+        }
+    }
+
+    private Map<String, Object> compareWithMode(String collection1, String collection2, Map<String, String> criteria,
+                                                ComparisonProgress progress) {
+        return switch (comparisonMode) {
+            case HASH -> compareInMemory(collection1, collection2, criteria, progress);
+            case RAW -> compareRaw(collection1, collection2, criteria, progress);
+            case STREAMING -> compareStreaming(collection1, collection2, criteria, progress);
+            case PREFILTER -> comparePrefiltered(collection1, collection2, criteria, progress);
+            case EXTERNAL -> externalComparisonService.compareExternally(collection1, collection2, criteria, progress);
+            case MERKLE -> merkleComparisonService.compareMerkle(collection1, collection2, criteria, progress);
+            case DISTRIBUTED -> distributedComparisonService.compareDistributed(collection1, collection2, criteria, progress);
+            case INCREMENTAL -> incrementalComparisonService.compareIncrementally(collection1, collection2, criteria, progress);
+        };
+    }
+
+    /**
+     * Fetches all matching documents of both collections into memory, concurrently, and compares them.
+     */
+    private Map<String, Object> compareInMemory(String collection1, String collection2, Map<String, String> criteria,
+                                                ComparisonProgress progress) {
+        long fetchStart = System.nanoTime();
+        List<List<Document>> fetchedDocs = documentFetcherService.fetchDocumentsConcurrently(List.of(collection1, collection2), criteria);
+        progress.addPhaseTime(ComparisonPhase.FETCH, System.nanoTime() - fetchStart);
+        progress.addFetched(1, fetchedDocs.get(0).size());
+        progress.addFetched(2, fetchedDocs.get(1).size());
+        return comparisonService.compareDocuments(fetchedDocs.get(0), fetchedDocs.get(1),
+                comparisonService.rulesFor(collection1, collection2), progress);
+    }
+
+    /**
+     * Fetches all matching documents of both collections into memory without decoding them, and compares
+     * their encoded values.
+     */
+    private Map<String, Object> compareRaw(String collection1, String collection2, Map<String, String> criteria,
+                                           ComparisonProgress progress) {
+        long fetchStart = System.nanoTime();
+        List<List<RawBsonDocument>> fetchedDocs = documentFetcherService.fetchRawDocumentsConcurrently(List.of(collection1, collection2), criteria);
+        progress.addPhaseTime(ComparisonPhase.FETCH, System.nanoTime() - fetchStart);
+        progress.addFetched(1, fetchedDocs.get(0).size());
+        progress.addFetched(2, fetchedDocs.get(1).size());
+        return comparisonService.compareRawDocuments(fetchedDocs.get(0), fetchedDocs.get(1),
+                comparisonService.rulesFor(collection1, collection2), progress);
+    }
+
+    /**
+     * Streams the matching documents of both collections sorted on the key fields and merge-joins them,
+     * so the documents never need to fit in memory at once.
+     */
+    private Map<String, Object> compareStreaming(String collection1, String collection2, Map<String, String> criteria,
+                                                 ComparisonProgress progress) {
+        try (Stream<Document> collection1Docs = documentFetcherService.streamDocuments(collection1, criteria, keyFields);
+             Stream<Document> collection2Docs = documentFetcherService.streamDocuments(collection2, criteria, keyFields)) {
+            return comparisonService.compareSortedDocuments(
+                    collection1Docs.peek(doc -> progress.addFetched(1, 1)),
+                    collection2Docs.peek(doc -> progress.addFetched(2, 1)),
+                    comparisonService.rulesFor(collection1, collection2), progress);
+        }
+    }
+
+    /**
+     * Lets the database find the keys whose documents are missing on one side or differ, and fetches
+     * and compares only the documents of those keys.
+     */
+    private Map<String, Object> comparePrefiltered(String collection1, String collection2, Map<String, String> criteria,
+                                                   ComparisonProgress progress) {
+        long fetchStart = System.nanoTime();
+        List<List<Document>> mismatchedDocs = documentFetcherService.fetchMismatchedDocuments(collection1, collection2, criteria);
+        progress.addPhaseTime(ComparisonPhase.FETCH, System.nanoTime() - fetchStart);
+        progress.addFetched(1, mismatchedDocs.get(0).size());
+        progress.addFetched(2, mismatchedDocs.get(1).size());
+        return comparisonService.compareDocuments(mismatchedDocs.get(0), mismatchedDocs.get(1),
+                comparisonService.rulesFor(collection1, collection2), progress);
+    }
+
+    /**
+     * Roughly estimates the heap size of report data, counting object headers, references and character data.
+     */
+    static long estimateBytes(Object value) {
+        if (value == null) {
+            return 0;
+        } else if (value instanceof String string) {
+            return 40L + string.length();
+        } else if (value instanceof DiffTable table) {
+            // A row is two ints and two references in the columns, plus its values; interned paths are shared
+            long bytes = 64L + 4L * table.size();
+            for (int row = 0; row < table.rowCount(); row++) {
+                bytes += 24 + estimateBytes(table.value1(row)) + estimateBytes(table.value2(row));
+            }
+            return bytes;
+        } else if (value instanceof Map<?, ?> map) {
+            long bytes = 64L + 16L * map.size();
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                bytes += 32 + estimateBytes(entry.getKey()) + estimateBytes(entry.getValue());
+            }
+            return bytes;
+        } else if (value instanceof Collection<?> collection) {
+            long bytes = 40L + 8L * collection.size();
+            for (Object element : collection) {
+                bytes += estimateBytes(element);
+            }
+            return bytes;
+        }
+        return 24;
+    }
+
+    /**
+     * Cache key of report data: the collection pair and the criteria, sorted so equal criteria compare equal.
+     */
+    private record ReportKey(String collection1, String collection2, SortedMap<String, String> criteria) {
+    }
+}
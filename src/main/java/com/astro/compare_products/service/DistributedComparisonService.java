@@ -0,0 +1,454 @@
+package com.astro.compare_products.service;
+
+import com.astro.compare_products.common.ComparisonMode;
+import com.astro.compare_products.common.ComparisonPhase;
+import com.astro.compare_products.common.ComparisonProgress;
+import com.mongodb.client.result.UpdateResult;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Service for comparing two collections across several instances of the application sharing one database.
+ * <p>
+ * The instance that runs a comparison splits the key space into ranges of the first key field, of about the same
+ * number of documents each, and records one work unit per range in a coordination collection. Every instance in
+ * {@code DISTRIBUTED} mode polls that collection and claims pending units with an atomic {@code findAndModify},
+ * which gives it a lease it extends with heartbeats while it fetches and compares the documents of the range.
+ * The differences of a unit are written to a result collection, tagged with the attempt that produced them, before
+ * the unit is marked done. The instance that started the run processes units of its own run too, and once every
+ * unit is done it merges the stored results into the report and removes the state of the run.
+ * <p>
+ * A unit whose lease expires, because its instance stopped or lost the database, becomes claimable again and is
+ * processed by another instance. Completing a unit requires still holding its lease, and the merge reads only the
+ * results of the attempt that completed it, so results written by an instance that lost its lease are ignored.
+ * A unit failing on every attempt fails the run.
+ * <p>
+ * Since every document with a given key falls in the same range, each range compares like a whole comparison, and
+ * the merged report holds the same documents and differences as a {@code HASH} comparison, ordered by unit rather
+ * than by document. This relies on every document falling in exactly one range. Range queries only compare values
+ * of one BSON type, so a key space whose boundaries straddle types, e.g. numbers and strings, is compared as a
+ * single unit, and first key fields holding arrays are not supported.
+ */
+@Service
+public class DistributedComparisonService {
+
+    static final String FIELD_RUN = "run";
+    static final String FIELD_UNIT = "unit";
+    static final String FIELD_COLLECTION_1 = "collection1";
+    static final String FIELD_COLLECTION_2 = "collection2";
+    static final String FIELD_CRITERIA = "criteria";
+    static final String FIELD_LOWER = "lower";
+    static final String FIELD_UPPER = "upper";
+    static final String FIELD_STATUS = "status";
+    static final String FIELD_OWNER = "owner";
+    static final String FIELD_LEASE_UNTIL = "leaseUntil";
+    static final String FIELD_ATTEMPT = "attempt";
+    static final String FIELD_COUNTS = "counts";
+    static final String FIELD_ERROR = "error";
+    static final String STATUS_PENDING = "PENDING";
+    static final String STATUS_CLAIMED = "CLAIMED";
+    static final String STATUS_DONE = "DONE";
+    static final String STATUS_FAILED = "FAILED";
+
+    Logger logger = LoggerFactory.getLogger(DistributedComparisonService.class);
+
+    private final MongoTemplate mongoTemplate;
+    private final DocumentFetcherService documentFetcherService;
+    private final DocumentComparisonService comparisonService;
+
+    // Inject key fields from the application properties
+    @Value("${comparison.keyFields}")
+    private String keyFieldsProperty;
+
+    // Strategy used to compare the two collections; work units are only processed in DISTRIBUTED mode
+    @Value("${comparison.mode:HASH}")
+    private ComparisonMode comparisonMode;
+
+    // Number of key ranges a run is split into
+    @Value("${comparison.distributed.units:64}")
+    private int unitsPerRun;
+
+    // Collection holding the work units of every run
+    @Value("${comparison.distributed.unitCollection:comparison_work_units}")
+    private String unitCollection;
+
+    // Collection holding the differences found by every work unit
+    @Value("${comparison.distributed.resultCollection:comparison_unit_results}")
+    private String resultCollection;
+
+    // Time a claimed unit stays with its instance without a heartbeat
+    @Value("${comparison.distributed.leaseDuration:PT2M}")
+    private Duration leaseDuration;
+
+    // Time between two extensions of the lease of a unit being processed
+    @Value("${comparison.distributed.heartbeatInterval:PT30S}")
+    private Duration heartbeatInterval;
+
+    // Time between two looks for claimable units, and between two checks of the units of a run
+    @Value("${comparison.distributed.pollInterval:PT1S}")
+    private Duration pollInterval;
+
+    // Number of times a unit is claimed before its run fails
+    @Value("${comparison.distributed.maxAttempts:3}")
+    private int maxAttempts;
+
+    // Whether this instance processes units of runs started by any instance
+    @Value("${comparison.distributed.worker:true}")
+    private boolean workerEnabled;
+
+    // Name this instance holds leases under; generated from the process and host when empty
+    @Value("${comparison.distributed.instanceId:}")
+    private String instanceId;
+
+    private List<String> keyFields;
+
+    private String owner;
+
+    private ScheduledExecutorService heartbeats;
+
+    private Thread worker;
+
+    private volatile boolean stopped;
+
+    private volatile boolean indexesEnsured;
+
+    public DistributedComparisonService(final MongoTemplate mongoTemplate,
+                                        final DocumentFetcherService documentFetcherService,
+                                        final DocumentComparisonService comparisonService) {
+        this.mongoTemplate = mongoTemplate;
+        this.documentFetcherService = documentFetcherService;
+        this.comparisonService = comparisonService;
+    }
+
+    /**
+     * Initializes the service by splitting the configured key fields property, naming the instance and, in
+     * {@code DISTRIBUTED} mode, starting the worker that processes the units of every run.
+     */
+    @PostConstruct
+    public void init() {
+        keyFields = Arrays.asList(keyFieldsProperty.split(","));
+        owner = instanceId.isBlank()
+                ? ManagementFactory.getRuntimeMXBean().getName() + "-" + UUID.randomUUID().toString().substring(0, 8)
+                : instanceId;
+        heartbeats = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "comparison-unit-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (workerEnabled && comparisonMode == ComparisonMode.DISTRIBUTED) {
+            worker = Thread.ofVirtual().name("comparison-unit-worker").start(this::work);
+        }
+    }
+
+    /**
+     * Stops the worker; a unit it was processing is released for another instance to claim.
+     */
+    @PreDestroy
+    public void shutdown() {
+        stopped = true;
+        if (worker != null) {
+            worker.interrupt();
+        }
+        heartbeats.shutdownNow();
+    }
+
+    /**
+     * Splits a comparison into work units, processes units until every unit is done, by this instance or others,
+     * and merges their results.
+     *
+     * @param collection1 the name of the first collection.
+     * @param collection2 the name of the second collection.
+     * @param criteria    a map containing the criteria to filter documents.
+     * @param progress    progress of the run, also checked for cancellation.
+     * @return Map containing lists of documents unique to each collection and any differing documents,
+     *         in the same shape as {@link DocumentComparisonService#compareDocuments(List, List)}
+     * @throws IllegalStateException if a unit failed on every attempt
+     * @throws CancellationException if the run is cancelled or interrupted before it completes
+     */
+    public Map<String, Object> compareDistributed(String collection1, String collection2, Map<String, String> criteria,
+                                                  ComparisonProgress progress) {
+        ensureIndexes();
+        String run = UUID.randomUUID().toString();
+        try {
+            long planStart = System.nanoTime();
+            List<Object> boundaries = documentFetcherService.findRangeBoundaries(collection1, criteria, keyFields.getFirst(), unitsPerRun);
+            progress.addPhaseTime(ComparisonPhase.INDEX, System.nanoTime() - planStart);
+            mongoTemplate.insert(workUnits(run, collection1, collection2, criteria, boundaries), unitCollection);
+            logger.info("Distributed comparison {} of {} and {} split into {} work units", run, collection1, collection2,
+                    boundaries.size() + 1);
+
+            awaitUnits(run, progress);
+            return mergeResults(run, progress);
+        } finally {
+            mongoTemplate.remove(Query.query(Criteria.where(FIELD_RUN).is(run)), unitCollection);
+            mongoTemplate.remove(Query.query(Criteria.where(FIELD_RUN).is(run)), resultCollection);
+        }
+    }
+
+    /**
+     * Builds one pending unit per range between consecutive boundaries; the first and last ranges are open.
+     */
+    private List<Document> workUnits(String run, String collection1, String collection2, Map<String, String> criteria,
+                                     List<Object> boundaries) {
+        Document criteriaDocument = new Document();
+        criteria.forEach(criteriaDocument::append);
+        List<Document> units = new ArrayList<>();
+        for (int unit = 0; unit <= boundaries.size(); unit++) {
+            units.add(new Document("_id", run + "|" + unit)
+                    .append(FIELD_RUN, run)
+                    .append(FIELD_UNIT, unit)
+                    .append(FIELD_COLLECTION_1, collection1)
+                    .append(FIELD_COLLECTION_2, collection2)
+                    .append(FIELD_CRITERIA, criteriaDocument)
+                    .append(FIELD_LOWER, unit == 0 ? null : boundaries.get(unit - 1))
+                    .append(FIELD_UPPER, unit == boundaries.size() ? null : boundaries.get(unit))
+                    .append(FIELD_STATUS, STATUS_PENDING)
+                    .append(FIELD_ATTEMPT, 0));
+        }
+        return units;
+    }
+
+    /**
+     * Processes claimable units of a run until none is left, then waits for the units other instances hold.
+     */
+    private void awaitUnits(String run, ComparisonProgress progress) {
+        while (true) {
+            progress.checkCancelled();
+            Document unit = claim(run);
+            if (unit != null) {
+                ComparisonProgress unitProgress = new ComparisonProgress(progress);
+                processUnit(unit, unitProgress);
+                progress.checkCancelled();
+                for (ComparisonPhase phase : ComparisonPhase.values()) {
+                    progress.addPhaseTime(phase, unitProgress.phaseNanos(phase));
+                }
+                continue;
+            }
+
+            Date now = new Date();
+            List<Document> units = mongoTemplate.find(Query.query(Criteria.where(FIELD_RUN).is(run)), Document.class, unitCollection);
+            for (Document candidate : units) {
+                if (hasFailed(candidate, now)) {
+                    throw new IllegalStateException("Work unit " + candidate.get("_id") + " failed after "
+                            + candidate.getInteger(FIELD_ATTEMPT) + " attempts: " + candidate.getString(FIELD_ERROR));
+                }
+            }
+            if (units.stream().allMatch(candidate -> STATUS_DONE.equals(candidate.getString(FIELD_STATUS)))) {
+                return;
+            }
+            if (!pause()) {
+                throw new CancellationException("Comparison interrupted");
+            }
+        }
+    }
+
+    /**
+     * Tells whether a unit will not complete: it failed, or its last allowed attempt expired.
+     */
+    private boolean hasFailed(Document unit, Date now) {
+        return STATUS_FAILED.equals(unit.getString(FIELD_STATUS))
+                || STATUS_CLAIMED.equals(unit.getString(FIELD_STATUS))
+                && unit.getInteger(FIELD_ATTEMPT) >= maxAttempts
+                && unit.getDate(FIELD_LEASE_UNTIL).before(now);
+    }
+
+    /**
+     * Rebuilds the report data of a run from the results of the attempt that completed each unit, and adds
+     * the counters of every unit to the progress of the run.
+     */
+    private Map<String, Object> mergeResults(String run, ComparisonProgress progress) {
+        Map<Integer, Integer> completedAttempts = new HashMap<>();
+        mongoTemplate.find(Query.query(Criteria.where(FIELD_RUN).is(run)), Document.class, unitCollection).forEach(unit -> {
+            completedAttempts.put(unit.getInteger(FIELD_UNIT), unit.getInteger(FIELD_ATTEMPT));
+            progress.add(unit.get(FIELD_COUNTS, new Document()));
+        });
+        Query resultQuery = Query.query(Criteria.where(FIELD_RUN).is(run)).with(Sort.by(FIELD_UNIT, "_id"));
+        List<Document> entries = mongoTemplate.find(resultQuery, Document.class, resultCollection).stream()
+                .filter(entry -> Objects.equals(completedAttempts.get(entry.getInteger(FIELD_UNIT)), entry.getInteger(FIELD_ATTEMPT)))
+                .toList();
+        logger.info("Distributed comparison {} merged {} entries of {} work units", run, entries.size(), completedAttempts.size());
+        return IncrementalComparisonService.reportOf(entries);
+    }
+
+    /**
+     * Claims the first unit that is pending, or whose lease expired, and has attempts left.
+     *
+     * @param run The run to claim a unit of, or {@code null} for any run
+     * @return The claimed unit, or {@code null} if no unit is claimable
+     */
+    Document claim(String run) {
+        Date now = new Date();
+        Query query = Query.query(new Criteria().orOperator(
+                        Criteria.where(FIELD_STATUS).is(STATUS_PENDING),
+                        Criteria.where(FIELD_STATUS).is(STATUS_CLAIMED).and(FIELD_LEASE_UNTIL).lt(now)))
+                .addCriteria(Criteria.where(FIELD_ATTEMPT).lt(maxAttempts));
+        if (run != null) {
+            query.addCriteria(Criteria.where(FIELD_RUN).is(run));
+        }
+        query.with(Sort.by(FIELD_UNIT));
+        Update update = Update.update(FIELD_STATUS, STATUS_CLAIMED)
+                .set(FIELD_OWNER, owner)
+                .set(FIELD_LEASE_UNTIL, new Date(now.getTime() + leaseDuration.toMillis()))
+                .inc(FIELD_ATTEMPT, 1);
+        return mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true), Document.class, unitCollection);
+    }
+
+    /**
+     * Fetches and compares the documents of the range of a claimed unit, stores the differences found and marks
+     * the unit done, extending its lease meanwhile. A failing unit is released for another attempt.
+     *
+     * @throws CancellationException if the run of the unit is cancelled
+     */
+    private void processUnit(Document unit, ComparisonProgress progress) {
+        Object id = unit.get("_id");
+        int attempt = unit.getInteger(FIELD_ATTEMPT);
+        ScheduledFuture<?> heartbeat = heartbeats.scheduleAtFixedRate(() -> extendLease(id, attempt),
+                heartbeatInterval.toMillis(), heartbeatInterval.toMillis(), TimeUnit.MILLISECONDS);
+        try {
+            String collection1 = unit.getString(FIELD_COLLECTION_1);
+            String collection2 = unit.getString(FIELD_COLLECTION_2);
+            Map<String, String> criteria = new HashMap<>();
+            unit.get(FIELD_CRITERIA, Document.class).forEach((field, value) -> criteria.put(field, (String) value));
+
+            long fetchStart = System.nanoTime();
+            List<List<Document>> fetchedDocs = documentFetcherService.fetchDocumentRangeConcurrently(List.of(collection1, collection2),
+                    criteria, keyFields.getFirst(), unit.get(FIELD_LOWER), unit.get(FIELD_UPPER));
+            progress.addPhaseTime(ComparisonPhase.FETCH, System.nanoTime() - fetchStart);
+            progress.addFetched(1, fetchedDocs.get(0).size());
+            progress.addFetched(2, fetchedDocs.get(1).size());
+            Map<String, Object> reportData = comparisonService.compareDocuments(fetchedDocs.get(0), fetchedDocs.get(1),
+                    comparisonService.rulesFor(collection1, collection2), progress);
+
+            long writeStart = System.nanoTime();
+            Document scope = new Document(FIELD_RUN, unit.getString(FIELD_RUN))
+                    .append(FIELD_UNIT, unit.getInteger(FIELD_UNIT))
+                    .append(FIELD_ATTEMPT, attempt);
+            List<Document> entries = IncrementalComparisonService.diffEntries(scope, reportData, keyFields);
+            if (!entries.isEmpty()) {
+                mongoTemplate.insert(entries, resultCollection);
+            }
+            Document counts = new Document();
+            progress.snapshot().forEach(counts::append);
+            UpdateResult completed = mongoTemplate.updateFirst(heldUnit(id, attempt),
+                    Update.update(FIELD_STATUS, STATUS_DONE).set(FIELD_COUNTS, counts).unset(FIELD_LEASE_UNTIL), unitCollection);
+            progress.addPhaseTime(ComparisonPhase.WRITE, System.nanoTime() - writeStart);
+            if (completed.getModifiedCount() == 0) {
+                // The lease expired and another instance claimed the unit, or the run ended; the attempt's results go
+                mongoTemplate.remove(Query.query(Criteria.where(FIELD_RUN).is(scope.get(FIELD_RUN))
+                        .and(FIELD_UNIT).is(scope.get(FIELD_UNIT))
+                        .and(FIELD_ATTEMPT).is(attempt)), resultCollection);
+                logger.warn("Work unit {} was no longer held when attempt {} completed; its results are discarded", id, attempt);
+            } else {
+                logger.debug("Work unit {} completed on attempt {} with {} entries", id, attempt, entries.size());
+            }
+        } catch (CancellationException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            logger.error("Work unit {} failed on attempt {}", id, attempt, e);
+            release(id, attempt, e);
+        } finally {
+            heartbeat.cancel(false);
+        }
+    }
+
+    /**
+     * Returns a unit held by this instance for another attempt, or fails it if its attempts are used up. A unit
+     * released because the worker stops does not fail.
+     */
+    private void release(Object id, int attempt, RuntimeException error) {
+        boolean failed = !stopped && attempt >= maxAttempts;
+        Update update = Update.update(FIELD_STATUS, failed ? STATUS_FAILED : STATUS_PENDING)
+                .set(FIELD_ERROR, String.valueOf(error.getMessage()))
+                .unset(FIELD_OWNER)
+                .unset(FIELD_LEASE_UNTIL);
+        mongoTemplate.updateFirst(heldUnit(id, attempt), update, unitCollection);
+    }
+
+    private void extendLease(Object id, int attempt) {
+        try {
+            UpdateResult extended = mongoTemplate.updateFirst(heldUnit(id, attempt),
+                    Update.update(FIELD_LEASE_UNTIL, new Date(System.currentTimeMillis() + leaseDuration.toMillis())), unitCollection);
+            if (extended.getMatchedCount() == 0) {
+                logger.warn("Lease of work unit {} on attempt {} was lost", id, attempt);
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Could not extend the lease of work unit {}", id, e);
+        }
+    }
+
+    /**
+     * Selects a unit only while this instance holds it for the given attempt.
+     */
+    private Query heldUnit(Object id, int attempt) {
+        return Query.query(Criteria.where("_id").is(id)
+                .and(FIELD_OWNER).is(owner)
+                .and(FIELD_ATTEMPT).is(attempt)
+                .and(FIELD_STATUS).is(STATUS_CLAIMED));
+    }
+
+    /**
+     * Claims and processes units of any run until the service stops, waiting between looks when none is claimable.
+     */
+    private void work() {
+        logger.info("Instance {} processes work units of distributed comparisons", owner);
+        while (!stopped) {
+            try {
+                Document unit = claim(null);
+                if (unit != null) {
+                    processUnit(unit, new ComparisonProgress());
+                    continue;
+                }
+            } catch (RuntimeException e) {
+                logger.warn("Could not process work units", e);
+            }
+            if (!pause()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Waits for the poll interval.
+     *
+     * @return {@code false} if the thread was interrupted
+     */
+    private boolean pause() {
+        try {
+            Thread.sleep(pollInterval);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void ensureIndexes() {
+        if (!indexesEnsured) {
+            mongoTemplate.indexOps(unitCollection).ensureIndex(new Index().on(FIELD_RUN, Sort.Direction.ASC).on(FIELD_UNIT, Sort.Direction.ASC));
+            mongoTemplate.indexOps(unitCollection).ensureIndex(new Index().on(FIELD_STATUS, Sort.Direction.ASC).on(FIELD_UNIT, Sort.Direction.ASC));
+            mongoTemplate.indexOps(resultCollection).ensureIndex(new Index().on(FIELD_RUN, Sort.Direction.ASC).on(FIELD_UNIT, Sort.Direction.ASC));
+            indexesEnsured = true;
+        }
+    }
+}
@@ -1,30 +1,44 @@
 package com.astro.compare_products.service;
 
+import com.astro.compare_products.common.ComparisonPhase;
+import com.astro.compare_products.common.ComparisonProgress;
+import com.astro.compare_products.common.ComparisonRules;
+import com.astro.compare_products.common.CompositeKey;
+import com.astro.compare_products.common.DiffTable;
+import com.astro.compare_products.common.OffHeapKeyIndex;
+import com.astro.compare_products.common.DocumentFingerprint;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.util.*;
-import java.util.function.Function;
-import java.util.stream.Collectors;
-
-import static com.astro.compare_products.common.Constants.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 /**
  * Service for comparing documents from two collections, identifying documents unique to each collection,
  * and determining field-level differences between matching documents.
  * <p>
  * This service reads configuration properties for fields to ignore during comparison and key fields
- * for identifying matching documents across collections.
+ * for identifying matching documents across collections. Ignored field paths, including those configured
+ * for a single collection pair, and array identity fields are compiled once into {@link ComparisonRules}.
  */
 @Service
 public class DocumentComparisonService {
 
     public static final String COLLECTION_1 = "collection1";
     public static final String COLLECTION_2 = "collection2";
+
+    // Chunks of source documents per partition in the parallel comparison, so that uneven chunks still balance the workers
+    private static final int CHUNKS_PER_PARTITION = 4;
+
     Logger logger = LoggerFactory.getLogger(DocumentComparisonService.class);
 
     // Inject ignored fields from the application properties
@@ -35,16 +49,94 @@ public class DocumentComparisonService {
     @Value("${comparison.keyFields}")
     private String keyFieldsProperty;
 
+    // Field paths ignored for single collection pairs only, as semicolon-separated collection1|collection2=paths rules
+    @Value("${comparison.pairIgnoredFields:}")
+    private String pairIgnoredFieldsProperty = "";
+
+    // Identity field of the elements of arrays of sub-documents, as comma-separated path:field rules
+    @Value("${comparison.arrayKeys:}")
+    private String arrayKeysProperty = "";
+
+    // Number of key-hash partitions compared in parallel; 1 or less compares on the calling thread
+    @Value("${comparison.parallel.partitions:1}")
+    private int parallelPartitions;
+
+    // Worker threads used for the parallel comparison; 0 uses one per available processor
+    @Value("${comparison.parallel.threads:0}")
+    private int parallelThreads;
+
+    // Index target documents by key fingerprint off the heap instead of in a map of keys
+    @Value("${comparison.offHeapIndex.enabled:true}")
+    private boolean offHeapIndexEnabled;
+
     private List<String> keyFields;
 
+    private ComparisonRules rules;
+
+    // Rules of the collection pairs with their own ignored fields, keyed by collection1|collection2
+    private Map<String, ComparisonRules> pairRules;
+
+    private ForkJoinPool comparisonPool;
+
+    private ArrayDiffer arrayDiffer;
+
+    private RawDocumentComparator rawComparator;
+
+    private DocumentKeys<Document> documentKeys;
+
+    private DocumentKeys<RawBsonDocument> rawDocumentKeys;
+
     /**
      * Initializes the service by splitting the configured key fields property
-     * into a list for use in document key generation.
+     * into a list for use in document key generation, compiling the comparison rules,
+     * and starts the worker pool when parallel comparison is enabled.
      */
     @PostConstruct
     public void init() {
         // Initialize keyFields by splitting the YAML property
         keyFields = Arrays.asList(keyFieldsProperty.split(","));
+        List<String> ignoredFields = Arrays.asList(ignoredFieldsProperty.split(","));
+        Map<String, String> arrayIdentityFields = ArrayDiffer.parseIdentityFields(arrayKeysProperty);
+        rules = ComparisonRules.compile(ignoredFields, arrayIdentityFields);
+        pairRules = new HashMap<>();
+        for (String pairRule : pairIgnoredFieldsProperty.split(";")) {
+            int separator = pairRule.indexOf('=');
+            if (separator > 0) {
+                List<String> pairIgnoredFields = new ArrayList<>(ignoredFields);
+                pairIgnoredFields.addAll(Arrays.asList(pairRule.substring(separator + 1).split(",")));
+                pairRules.put(pairRule.substring(0, separator).trim(), ComparisonRules.compile(pairIgnoredFields, arrayIdentityFields));
+            }
+        }
+        arrayDiffer = new ArrayDiffer(this::compareDocumentFields);
+        rawComparator = new RawDocumentComparator(keyFields, arrayDiffer);
+        documentKeys = new DecodedDocumentKeys();
+        rawDocumentKeys = rawComparator::key;
+
+        if (parallelPartitions > 1) {
+            comparisonPool = new ForkJoinPool(parallelThreads > 0 ? parallelThreads : Runtime.getRuntime().availableProcessors());
+        }
+    }
+
+    /**
+     * Shuts down the worker pool of the parallel comparison, if one was started.
+     */
+    @PreDestroy
+    public void shutdown() {
+        if (comparisonPool != null) {
+            comparisonPool.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns the comparison rules of a collection pair: the configured ignored fields and array identity
+     * fields, plus the ignored fields configured for the pair.
+     *
+     * @param collection1 The name of the first collection
+     * @param collection2 The name of the second collection
+     * @return The compiled comparison rules of the pair
+     */
+    public ComparisonRules rulesFor(String collection1, String collection2) {
+        return pairRules.getOrDefault(collection1 + "|" + collection2, rules);
     }
 
     /**
@@ -56,160 +148,732 @@ public class DocumentComparisonService {
      * @return Map containing lists of documents unique to each collection and any differing documents
      */
     public Map<String, Object> compareDocuments(List<Document> collection1Docs, List<Document> collection2Docs) {
-        // Maps to store comparison results
+        return compareDocuments(collection1Docs, collection2Docs, new ComparisonProgress());
+    }
+
+    /**
+     * Compares two lists of documents like {@link #compareDocuments(List, List)}, recording the documents
+     * compared and the results found so far in the given progress.
+     *
+     * @param collection1Docs List of documents in the first collection
+     * @param collection2Docs List of documents in the second collection
+     * @param progress        Progress of the run, also checked for cancellation
+     * @return Map containing lists of documents unique to each collection and any differing documents
+     * @throws java.util.concurrent.CancellationException if the run is cancelled before it completes
+     */
+    public Map<String, Object> compareDocuments(List<Document> collection1Docs, List<Document> collection2Docs,
+                                                ComparisonProgress progress) {
+        return compareDocuments(collection1Docs, collection2Docs, rules, progress);
+    }
+
+    /**
+     * Compares two lists of documents like {@link #compareDocuments(List, List, ComparisonProgress)}, under the
+     * given comparison rules.
+     *
+     * @param collection1Docs List of documents in the first collection
+     * @param collection2Docs List of documents in the second collection
+     * @param rules           Comparison rules, as returned by {@link #rulesFor(String, String)}
+     * @param progress        Progress of the run, also checked for cancellation
+     * @return Map containing lists of documents unique to each collection and any differing documents
+     * @throws java.util.concurrent.CancellationException if the run is cancelled before it completes
+     */
+    public Map<String, Object> compareDocuments(List<Document> collection1Docs, List<Document> collection2Docs,
+                                                ComparisonRules rules, ComparisonProgress progress) {
+        // Lists and table to store comparison results
         List<Document> docsInFirstOnly = new ArrayList<>();
         List<Document> docsInSecondOnly = new ArrayList<>();
-        List<Map<String, Object>> differingDocs = new ArrayList<>();
+        DiffTable differingDocs = new DiffTable();
 
         Map<String, Object> reportData = new HashMap<>();
 
-        // Split the ignored fields into a Set for easy lookup
-        Set<String> ignoredFields = new HashSet<>(Arrays.asList(ignoredFieldsProperty.split(",")));
-
-        // Compare documents in both collections
-        compareDocumentLists(collection1Docs, collection2Docs, docsInFirstOnly, differingDocs, ignoredFields);
-        compareDocumentLists(collection2Docs, collection1Docs, docsInSecondOnly, null, ignoredFields);
+        // Compare documents in both collections in a single pass, split into partitions if configured
+        if (comparisonPool != null) {
+            compareDocumentListsInParallel(collection1Docs, collection2Docs, docsInFirstOnly, docsInSecondOnly, differingDocs, rules, progress);
+        } else {
+            compareDocumentLists(collection1Docs, collection2Docs, docsInFirstOnly, docsInSecondOnly, differingDocs, rules, progress);
+        }
 
-        List<Map<String, Map<String, Object>>> flattenDifferingDocs = flattenDifferingDocs(differingDocs);
         reportData.put("docsInFirstOnly", docsInFirstOnly);
         reportData.put("docsInSecondOnly", docsInSecondOnly);
-        reportData.put("differingDocs", flattenDifferingDocs);
+        reportData.put("differingDocs", differingDocs);
 
         return reportData;
     }
 
-    private List<Map<String, Map<String, Object>>> flattenDifferingDocs(List<Map<String, Object>> differingDocs) {
-        List<Map<String, Map<String, Object>>> flattenedDocs = new ArrayList<>();
-        differingDocs.forEach(doc -> {
-            Map<String, Map<String, Object>> flattenedDoc = new LinkedHashMap<>();
-            flattenMap(doc, "", flattenedDoc);
-            flattenedDocs.add(flattenedDoc);
-        });
+    /**
+     * Compares two lists of documents in their encoded BSON form, with the same results as
+     * {@link #compareDocuments(List, List, ComparisonProgress)} on the decoded documents.
+     * <p>
+     * Matching documents are compared byte by byte and only values that differ are decoded, so documents
+     * that are equal are never decoded. Documents unique to either collection are decoded for the report.
+     *
+     * @param collection1Docs List of encoded documents in the first collection
+     * @param collection2Docs List of encoded documents in the second collection
+     * @param rules           Comparison rules, as returned by {@link #rulesFor(String, String)}
+     * @param progress        Progress of the run, also checked for cancellation
+     * @return Map containing lists of documents unique to each collection and any differing documents
+     * @throws java.util.concurrent.CancellationException if the run is cancelled before it completes
+     */
+    public Map<String, Object> compareRawDocuments(List<RawBsonDocument> collection1Docs, List<RawBsonDocument> collection2Docs,
+                                                   ComparisonRules rules, ComparisonProgress progress) {
+        List<Document> docsInFirstOnly = new ArrayList<>();
+        List<Document> docsInSecondOnly = new ArrayList<>();
+        DiffTable differingDocs = new DiffTable();
+
+        // Index the target documents by key; documents are read from the list on a hit
+        long indexStart = System.nanoTime();
+        List<RawBsonDocument> targets = collection2Docs instanceof RandomAccess ? collection2Docs : new ArrayList<>(collection2Docs);
+        try (TargetIndex<RawBsonDocument> targetIndex = newTargetIndex(targets.size(), targets::get, rawDocumentKeys)) {
+            for (int targetPosition = 0; targetPosition < targets.size(); targetPosition++) {
+                progress.documentCompared(2);
+                int firstPosition = targetIndex.add(targets.get(targetPosition), targetPosition);
+                if (firstPosition != targetPosition) {
+                    progress.duplicateKeyFound();
+                    logger.warn("Duplicate key found: {}. Existing document: {}. New Document: {}", rawComparator.key(targets.get(targetPosition)),
+                            targets.get(firstPosition), targets.get(targetPosition));
+                }
+            }
+
+            long compareStart = System.nanoTime();
+            progress.addPhaseTime(ComparisonPhase.INDEX, compareStart - indexStart);
+            for (RawBsonDocument sourceDoc : collection1Docs) {
+                progress.documentCompared(1);
+                int targetPosition = targetIndex.find(sourceDoc);
+                if (targetPosition < 0) {
+                    docsInFirstOnly.add(RawDocumentComparator.decode(sourceDoc));
+                    progress.firstOnlyFound();
+                    continue;
+                }
+                targetIndex.markMatched(targetPosition);
+                RawBsonDocument targetDoc = targets.get(targetPosition);
+                rawComparator.compareFields(sourceDoc, targetDoc, rules, differingDocs);
+                if (differingDocs.hasPendingRows()) {
+                    // Add the KEY_FIELDS to the differences to be displayed later
+                    for (int i = 0; i < keyFields.size(); i++) {
+                        int keyPath = differingDocs.pathId(DiffTable.ROOT, keyFields.get(i));
+                        if (!differingDocs.hasPendingPath(keyPath)) {
+                            differingDocs.add(keyPath, rawComparator.keyFieldValue(sourceDoc, i), rawComparator.keyFieldValue(targetDoc, i));
+                        }
+                    }
+                    differingDocs.endDocument();
+                    progress.differingFound();
+                }
+            }
 
-        return flattenedDocs;
+            // Target documents whose key was never matched are unique to the target collection
+            for (int targetPosition = 0; targetPosition < targets.size(); targetPosition++) {
+                if (!targetIndex.isMatched(targetPosition)) {
+                    docsInSecondOnly.add(RawDocumentComparator.decode(targets.get(targetPosition)));
+                    progress.secondOnlyFound();
+                }
+            }
+            progress.addPhaseTime(ComparisonPhase.COMPARE, System.nanoTime() - compareStart);
+        }
+
+        Map<String, Object> reportData = new HashMap<>();
+        reportData.put("docsInFirstOnly", docsInFirstOnly);
+        reportData.put("docsInSecondOnly", docsInSecondOnly);
+        reportData.put("differingDocs", differingDocs);
+        return reportData;
     }
 
-    private void flattenMap(Map<String, Object> sourceMap, String parentKey, Map<String, Map<String, Object>> flattenedMap) {
-        for (Map.Entry<String, Object> entry : sourceMap.entrySet()) {
-            String key = parentKey.isEmpty() ? entry.getKey() : parentKey + "." + entry.getKey();
-            Object value = entry.getValue();
+    /**
+     * Builds the key of an encoded document from its key fields, equal to the key of the decoded document.
+     *
+     * @param doc The encoded document
+     * @return The key of the document
+     */
+    public CompositeKey key(RawBsonDocument doc) {
+        return rawComparator.key(doc);
+    }
 
-            if (value instanceof Map) {
-                Map<String, Object> nestedMap = (Map<String, Object>) value;
+    /**
+     * Computes the stable content hash of a document, leaving out the configured ignored fields.
+     * Documents with the same hash compare equal, barring hash collisions; documents with different
+     * hashes may still compare equal, when the second of them has fields the first lacks.
+     *
+     * @param doc The document to hash
+     * @return The 64-bit content hash of the document
+     */
+    public long contentHash(Document doc) {
+        return DocumentFingerprint.contentHash(doc, rules);
+    }
 
-                // Check if it's a leaf node with collection1 and collection2
-                if (nestedMap.containsKey(COLLECTION_1) || nestedMap.containsKey(COLLECTION_2)) {
-                    Map<String, Object> result = new HashMap<>();
-                    result.put(COLLECTION_1, nestedMap.getOrDefault(COLLECTION_1, null));
-                    result.put(COLLECTION_2, nestedMap.getOrDefault(COLLECTION_2, null));
-                    flattenedMap.put(key, result);
+    /**
+     * Compares two streams of documents that are both sorted in ascending order on the key fields,
+     * identifying documents unique to each collection and any field-level differences in matching documents.
+     * <p>
+     * The streams are merge-joined, so apart from the comparison results only the current document of each
+     * stream and the last matched document are held in memory. The results match those of
+     * {@link #compareDocuments(List, List)}, except that unique documents are reported in key order.
+     *
+     * @param collection1Docs Documents of the first collection, sorted on the key fields
+     * @param collection2Docs Documents of the second collection, sorted on the key fields
+     * @return Map containing lists of documents unique to each collection and any differing documents
+     */
+    public Map<String, Object> compareSortedDocuments(Stream<Document> collection1Docs, Stream<Document> collection2Docs) {
+        return compareSortedDocuments(collection1Docs, collection2Docs, new ComparisonProgress());
+    }
+
+    /**
+     * Merge-joins two sorted streams of documents like {@link #compareSortedDocuments(Stream, Stream)}, recording
+     * the documents compared and the results found so far in the given progress.
+     *
+     * @param collection1Docs Documents of the first collection, sorted on the key fields
+     * @param collection2Docs Documents of the second collection, sorted on the key fields
+     * @param progress        Progress of the run, also checked for cancellation
+     * @return Map containing lists of documents unique to each collection and any differing documents
+     * @throws java.util.concurrent.CancellationException if the run is cancelled before it completes
+     */
+    public Map<String, Object> compareSortedDocuments(Stream<Document> collection1Docs, Stream<Document> collection2Docs,
+                                                      ComparisonProgress progress) {
+        return compareSortedDocuments(collection1Docs, collection2Docs, rules, progress);
+    }
+
+    /**
+     * Merge-joins two sorted streams of documents like {@link #compareSortedDocuments(Stream, Stream, ComparisonProgress)},
+     * under the given comparison rules.
+     *
+     * @param collection1Docs Documents of the first collection, sorted on the key fields
+     * @param collection2Docs Documents of the second collection, sorted on the key fields
+     * @param rules           Comparison rules, as returned by {@link #rulesFor(String, String)}
+     * @param progress        Progress of the run, also checked for cancellation
+     * @return Map containing lists of documents unique to each collection and any differing documents
+     * @throws java.util.concurrent.CancellationException if the run is cancelled before it completes
+     */
+    public Map<String, Object> compareSortedDocuments(Stream<Document> collection1Docs, Stream<Document> collection2Docs,
+                                                      ComparisonRules rules, ComparisonProgress progress) {
+        List<Document> docsInFirstOnly = new ArrayList<>();
+        List<Document> docsInSecondOnly = new ArrayList<>();
+        DiffTable differingDocs = new DiffTable();
+
+        Map<String, Object> reportData = new HashMap<>();
+
+        Iterator<Document> sourceIterator = collection1Docs.iterator();
+        Iterator<Document> targetIterator = collection2Docs.iterator();
+        Document sourceDoc = nextOrNull(sourceIterator);
+        Document targetDoc = nextOrNull(targetIterator);
+        CompositeKey sourceKey = sourceDoc != null ? generateKey(sourceDoc) : null;
+        CompositeKey targetKey = targetDoc != null ? generateKey(targetDoc) : null;
+        // The most recently matched target document, kept so duplicate keys on either side behave as in the hash path
+        Document lastMatchedTargetDoc = null;
+        CompositeKey lastMatchedKey = null;
+
+        while (sourceDoc != null || targetDoc != null) {
+            int order = sourceDoc == null ? 1 : targetDoc == null ? -1 : sourceKey.compareTo(targetKey);
+
+            if (order < 0) {
+                // The source key sorts before the current target, so it can only match the last matched target
+                progress.documentCompared(1);
+                if (sourceKey.equals(lastMatchedKey)) {
+                    collectFieldDifferences(sourceDoc, lastMatchedTargetDoc, differingDocs, rules, progress);
                 } else {
-                    // Recurse if there are more nested fields
-                    flattenMap(nestedMap, key, flattenedMap);
+                    docsInFirstOnly.add(sourceDoc);
+                    progress.firstOnlyFound();
                 }
+                sourceDoc = nextOrNull(sourceIterator);
+                sourceKey = sourceDoc != null ? generateKey(sourceDoc) : null;
+            } else if (order > 0) {
+                progress.documentCompared(2);
+                if (targetDoc == lastMatchedTargetDoc) {
+                    // The target was matched while current and is only being passed now
+                } else if (targetKey.equals(lastMatchedKey)) {
+                    progress.duplicateKeyFound();
+                    logger.warn("Duplicate key found: {}. Existing document: {}. New Document: {}", targetKey, lastMatchedTargetDoc, targetDoc);
+                } else {
+                    docsInSecondOnly.add(targetDoc);
+                    progress.secondOnlyFound();
+                }
+                targetDoc = nextOrNull(targetIterator);
+                targetKey = targetDoc != null ? generateKey(targetDoc) : null;
+            } else {
+                // Keep the target document current so that duplicate source keys are compared against it too
+                progress.documentCompared(1);
+                collectFieldDifferences(sourceDoc, targetDoc, differingDocs, rules, progress);
+                lastMatchedTargetDoc = targetDoc;
+                lastMatchedKey = targetKey;
+                sourceDoc = nextOrNull(sourceIterator);
+                sourceKey = sourceDoc != null ? generateKey(sourceDoc) : null;
             }
         }
+
+        reportData.put("docsInFirstOnly", docsInFirstOnly);
+        reportData.put("docsInSecondOnly", docsInSecondOnly);
+        reportData.put("differingDocs", differingDocs);
+
+        return reportData;
+    }
+
+    private static Document nextOrNull(Iterator<Document> iterator) {
+        return iterator.hasNext() ? iterator.next() : null;
     }
 
     /**
-     * Compares fields between two documents, ignoring specified fields and performing deep comparison
+     * Compares fields between two documents, skipping ignored paths and performing deep comparison
      * on nested documents.
      *
-     * @param doc1          The first document
-     * @param doc2          The second document
-     * @param ignoredFields Set of fields to ignore during comparison
-     * @return Map of fields with differing values between the two documents
-     */
-    private Map<String, Object> compareDocumentFields(Document doc1, Document doc2, Set<String> ignoredFields) {
-        Map<String, Object> differences = new HashMap<>();
-
-        // Use streams to iterate over the keys of doc1
-        doc1.keySet().stream()
-                .filter(key -> !ignoredFields.contains(key)) // Skip ignored fields
-                .forEach(key -> {
-                    Object value1 = doc1.get(key);
-                    Object value2 = doc2.get(key);
-
-                    if (value1 instanceof Document && value2 instanceof Document) {
-                        // If both values are Documents, perform a deep comparison
-                        Map<String, Object> nestedDifferences = compareDocumentFields((Document) value1, (Document) value2, ignoredFields);
-                        if (!nestedDifferences.isEmpty()) {
-                            differences.put(key, nestedDifferences);
-                        }
-                    } else if (!Objects.equals(value1, value2)) {
-                        // For non-document values, check for equality
-                        Map<String, Object> diff = new HashMap<>();
-                        diff.put(COLLECTION_1, value1);
-                        diff.put(COLLECTION_2, value2);
-                        differences.put(key, diff);
-                    }
-                });
+     * @param doc1        The first document
+     * @param doc2        The second document
+     * @param rules       The comparison rules of the documents, stepped to each field as the comparison descends
+     * @param differences Table the differing fields are added to, as differences of its pending document
+     * @param path        The id of the path of the documents in the table, {@link DiffTable#ROOT} for top-level documents
+     */
+    private void compareDocumentFields(Document doc1, Document doc2, ComparisonRules rules, DiffTable differences, int path) {
+        for (Map.Entry<String, Object> entry : doc1.entrySet()) {
+            String key = entry.getKey();
+            ComparisonRules fieldRules = rules.child(key);
+            if (fieldRules.isIgnored()) {
+                // Skip ignored fields along with everything below them
+                continue;
+            }
+            Object value1 = entry.getValue();
+            Object value2 = doc2.get(key);
 
-        return differences;
+            if (value1 instanceof Document && value2 instanceof Document) {
+                // If both values are Documents, perform a deep comparison
+                compareDocumentFields((Document) value1, (Document) value2, fieldRules, differences, differences.pathId(path, key));
+            } else if (value1 instanceof List<?> list1 && value2 instanceof List<?> list2) {
+                // If both values are arrays, report only the elements that differ
+                if (!list1.equals(list2)) {
+                    arrayDiffer.diff(path, key, fieldRules, list1, list2, differences);
+                }
+            } else if (!Objects.equals(value1, value2)) {
+                // For non-document values, check for equality
+                differences.add(differences.pathId(path, key), value1, value2);
+            }
+        }
     }
 
     /**
-     * Helper method to compare documents from one collection against documents in another collection,
-     * identifying unique documents and collecting field differences for matching documents.
+     * Helper method to compare documents from one collection against documents in another collection
+     * in a single pass, identifying documents unique to either collection and collecting field differences
+     * for matching documents.
+     * <p>
+     * The target documents are indexed by key once, in a map or, when enabled, in an {@link OffHeapKeyIndex}
+     * holding key fingerprints and document positions. Keys are marked as they are matched while
+     * walking the source documents, and the target documents whose keys remain unmatched are reported
+     * as unique to the target collection.
      *
      * @param sourceDocs       List of documents from the source collection
      * @param targetDocs       List of documents from the target collection
      * @param docsInSourceOnly List to store documents unique to the source collection
-     * @param differingDocs    List to store field-level differences for matching documents
-     * @param ignoredFields    Set of fields to ignore during comparison
+     * @param docsInTargetOnly List to store documents unique to the target collection
+     * @param differingDocs    Table to store field-level differences for matching documents
+     * @param rules            Comparison rules of the documents
+     * @param progress         Progress of the run, also checked for cancellation
      */
     private void compareDocumentLists(List<Document> sourceDocs, List<Document> targetDocs,
-                                      List<Document> docsInSourceOnly, List<Map<String, Object>> differingDocs,
-                                      Set<String> ignoredFields) {
-        // Create a map for fast lookup of target documents by their key
-        Map<String, Document> targetDocMap = targetDocs.stream()
-                .collect(Collectors.toMap(
-                        this::generateKey,
-                        Function.identity(),
-                        (existing, replacement) -> {
-                            logger.warn("Duplicate key found: {}. Existing document: {}. New Document: {}", generateKey(existing), existing, replacement);
-                            return existing;
-                        })
-                );
-
-        // Process each document from the source collection
-        sourceDocs
-                .forEach(sourceDoc -> {
-                    String sourceKey = generateKey(sourceDoc);
-                    Document matchingTargetDoc = targetDocMap.get(sourceKey);
-
-                    if (matchingTargetDoc != null) {
-                        // If a match is found, compare the fields and collect differences
-                        // Add the KEY_FIELDS to the differences map to be displayed later
-                        if (differingDocs != null) {
-                            Map<String, Object> fieldDifferences = compareDocumentFields(sourceDoc, matchingTargetDoc, ignoredFields);
-                            if (!fieldDifferences.isEmpty()) {
-                                keyFields.forEach(keyField -> {
-                                    Map<String, Object> diff = new HashMap<>();
-                                    diff.put(COLLECTION_1, sourceDoc.get(keyField));
-                                    diff.put(COLLECTION_2, matchingTargetDoc.get(keyField));
-                                    fieldDifferences.put(keyField, diff);
-                                });
-                                differingDocs.add(fieldDifferences);
+                                      List<Document> docsInSourceOnly, List<Document> docsInTargetOnly,
+                                      DiffTable differingDocs, ComparisonRules rules,
+                                      ComparisonProgress progress) {
+        // Index the target documents by key for fast lookup; documents are read from the list on a hit
+        long indexStart = System.nanoTime();
+        List<Document> targets = targetDocs instanceof RandomAccess ? targetDocs : new ArrayList<>(targetDocs);
+        try (TargetIndex<Document> targetIndex = newTargetIndex(targets.size(), targets::get, documentKeys)) {
+            for (int targetPosition = 0; targetPosition < targets.size(); targetPosition++) {
+                progress.documentCompared(2);
+                int firstPosition = targetIndex.add(targets.get(targetPosition), targetPosition);
+                if (firstPosition != targetPosition) {
+                    progress.duplicateKeyFound();
+                    logger.warn("Duplicate key found: {}. Existing document: {}. New Document: {}", generateKey(targets.get(targetPosition)),
+                            targets.get(firstPosition), targets.get(targetPosition));
+                }
+            }
+
+            long compareStart = System.nanoTime();
+            progress.addPhaseTime(ComparisonPhase.INDEX, compareStart - indexStart);
+
+            // Process each document from the source collection
+            sourceDocs
+                    .forEach(sourceDoc -> {
+                        progress.documentCompared(1);
+                        int targetPosition = targetIndex.find(sourceDoc);
+
+                        if (targetPosition >= 0) {
+                            // If a match is found, compare the fields and collect differences
+                            targetIndex.markMatched(targetPosition);
+                            collectFieldDifferences(sourceDoc, targets.get(targetPosition), differingDocs, rules, progress);
+                        } else {
+                            // If no match is found, add to docsInSourceOnly
+                            docsInSourceOnly.add(sourceDoc);
+                            progress.firstOnlyFound();
+                        }
+                    });
+
+            // Target documents whose key was never matched are unique to the target collection
+            for (int targetPosition = 0; targetPosition < targets.size(); targetPosition++) {
+                if (!targetIndex.isMatched(targetPosition)) {
+                    docsInTargetOnly.add(targets.get(targetPosition));
+                    progress.secondOnlyFound();
+                }
+            }
+            progress.addPhaseTime(ComparisonPhase.COMPARE, System.nanoTime() - compareStart);
+        }
+    }
+
+    /**
+     * Parallel variant of {@link #compareDocumentLists(List, List, List, List, DiffTable, ComparisonRules, ComparisonProgress)}.
+     * <p>
+     * The target documents are split into partitions by a hash of the document key and every partition is
+     * indexed independently on the worker pool, in a map or an {@link OffHeapKeyIndex} as in the sequential
+     * comparison. The source documents are then diffed in parallel, each one
+     * against the index of the partition its key hashes to; they are walked in contiguous chunks rather than
+     * by partition to keep memory access sequential. Every chunk diffs its pairs into one table, and the tables
+     * are appended in chunk order; the other outcomes are recorded in slots indexed by document position, which
+     * are read in document order, so the results are ordered exactly as in the sequential comparison.
+     *
+     * @param sourceDocs       List of documents from the source collection
+     * @param targetDocs       List of documents from the target collection
+     * @param docsInSourceOnly List to store documents unique to the source collection
+     * @param docsInTargetOnly List to store documents unique to the target collection
+     * @param differingDocs    Table to store field-level differences for matching documents
+     * @param rules            Comparison rules of the documents
+     * @param progress         Progress of the run, also checked for cancellation
+     */
+    private void compareDocumentListsInParallel(List<Document> sourceDocs, List<Document> targetDocs,
+                                                List<Document> docsInSourceOnly, List<Document> docsInTargetOnly,
+                                                DiffTable differingDocs, ComparisonRules rules,
+                                                ComparisonProgress progress) {
+        List<Document> sources = sourceDocs instanceof RandomAccess ? sourceDocs : new ArrayList<>(sourceDocs);
+        List<Document> targets = targetDocs instanceof RandomAccess ? targetDocs : new ArrayList<>(targetDocs);
+
+        // Outcome slots, each written only by the partition owning the document at that position
+        boolean[] sourceMatched = new boolean[sources.size()];
+        int[] targetFirstPositions = new int[targets.size()];
+        boolean[] targetMatched = new boolean[targets.size()];
+        // Field differences of every chunk of source documents, each written only by the worker diffing the chunk
+        int chunks = Math.min(parallelPartitions * CHUNKS_PER_PARTITION, Math.max(sources.size(), 1));
+        DiffTable[] chunkDifferences = new DiffTable[chunks];
+        // Index of every partition, numbering its documents in the order of their positions
+        List<TargetIndex<Document>> targetIndexes = new ArrayList<>(Collections.nCopies(parallelPartitions, null));
+
+        long indexStart = System.nanoTime();
+        long[] compareStart = new long[1];
+        try {
+            comparisonPool.submit(() -> {
+                int[][] targetPartitions = partitionPositions(targets);
+
+                // Index the target documents of every partition by key, pointing duplicates at the first position
+                IntStream.range(0, parallelPartitions).parallel().forEach(partition -> {
+                    int[] targetPositions = targetPartitions[partition];
+                    TargetIndex<Document> targetIndex = newTargetIndex(targetPositions.length,
+                            indexed -> targets.get(targetPositions[indexed]), documentKeys);
+                    targetIndexes.set(partition, targetIndex);
+                    for (int indexed = 0; indexed < targetPositions.length; indexed++) {
+                        progress.documentCompared(2);
+                        int targetPosition = targetPositions[indexed];
+                        int firstPosition = targetPositions[targetIndex.add(targets.get(targetPosition), indexed)];
+                        targetFirstPositions[targetPosition] = firstPosition;
+                        if (firstPosition != targetPosition) {
+                            progress.duplicateKeyFound();
+                            logger.warn("Duplicate key found: {}. Existing document: {}. New Document: {}",
+                                    generateKey(targets.get(targetPosition)), targets.get(firstPosition), targets.get(targetPosition));
+                        }
+                    }
+                });
+                compareStart[0] = System.nanoTime();
+                progress.addPhaseTime(ComparisonPhase.INDEX, compareStart[0] - indexStart);
+
+                // Every chunk of source documents diffs its pairs into a table of its own, in document order
+                IntStream.range(0, chunks).parallel().forEach(chunk -> {
+                    DiffTable fieldDifferences = new DiffTable();
+                    int chunkEnd = chunkStart(chunk + 1, chunks, sources.size());
+                    for (int sourcePosition = chunkStart(chunk, chunks, sources.size()); sourcePosition < chunkEnd; sourcePosition++) {
+                        progress.documentCompared(1);
+                        Document sourceDoc = sources.get(sourcePosition);
+                        int partition = partitionOf(sourceDoc);
+                        int indexed = targetIndexes.get(partition).find(sourceDoc);
+                        if (indexed >= 0) {
+                            int targetPosition = targetPartitions[partition][indexed];
+                            sourceMatched[sourcePosition] = true;
+                            targetMatched[targetPosition] = true;
+                            if (findFieldDifferences(sourceDoc, targets.get(targetPosition), rules, fieldDifferences)) {
+                                progress.differingFound();
                             }
+                        } else {
+                            progress.firstOnlyFound();
                         }
-                    } else {
-                        // If no match is found, add to docsInSourceOnly
-                        docsInSourceOnly.add(sourceDoc);
                     }
+                    chunkDifferences[chunk] = fieldDifferences;
                 });
+            }).join();
+        } finally {
+            for (TargetIndex<Document> targetIndex : targetIndexes) {
+                if (targetIndex != null) {
+                    targetIndex.close();
+                }
+            }
+        }
+
+        // Merge the partition outcomes in document order
+        for (int sourcePosition = 0; sourcePosition < sources.size(); sourcePosition++) {
+            if (!sourceMatched[sourcePosition]) {
+                docsInSourceOnly.add(sources.get(sourcePosition));
+            }
+        }
+        for (DiffTable fieldDifferences : chunkDifferences) {
+            differingDocs.addAll(fieldDifferences);
+        }
+        for (int targetPosition = 0; targetPosition < targets.size(); targetPosition++) {
+            if (!targetMatched[targetFirstPositions[targetPosition]]) {
+                docsInTargetOnly.add(targets.get(targetPosition));
+                progress.secondOnlyFound();
+            }
+        }
+        progress.addPhaseTime(ComparisonPhase.COMPARE, System.nanoTime() - compareStart[0]);
+    }
+
+    /**
+     * Returns the first document position of a chunk, splitting the positions into contiguous chunks of nearly equal size.
+     */
+    private static int chunkStart(int chunk, int chunks, int documents) {
+        return (int) ((long) documents * chunk / chunks);
+    }
+
+    /**
+     * Groups document positions into partitions by the fingerprint of their key, keeping positions in ascending order.
+     *
+     * @param docs The documents to partition
+     * @return The document positions of every partition
+     */
+    private int[][] partitionPositions(List<Document> docs) {
+        int[] partitionOfPosition = new int[docs.size()];
+        IntStream.range(0, docs.size()).parallel()
+                .forEach(position -> partitionOfPosition[position] = partitionOf(docs.get(position)));
+        int[] partitionSizes = new int[parallelPartitions];
+        for (int partition : partitionOfPosition) {
+            partitionSizes[partition]++;
+        }
+
+        int[][] partitions = new int[parallelPartitions][];
+        for (int partition = 0; partition < parallelPartitions; partition++) {
+            partitions[partition] = new int[partitionSizes[partition]];
+            partitionSizes[partition] = 0;
+        }
+        for (int position = 0; position < partitionOfPosition.length; position++) {
+            int partition = partitionOfPosition[position];
+            partitions[partition][partitionSizes[partition]++] = position;
+        }
+        return partitions;
+    }
+
+    private int partitionOf(Document doc) {
+        return Math.floorMod(documentKeys.fingerprint(doc), parallelPartitions);
     }
 
     /**
-     * Generates a unique key for a document by concatenating values of key fields,
+     * Compares a pair of matching documents and, if they differ, records their field differences
+     * together with the key fields so the pair can be identified in the report.
+     *
+     * @param sourceDoc     The document from the source collection
+     * @param targetDoc     The matching document from the target collection
+     * @param differingDocs Table to store field-level differences for matching documents
+     * @param rules         Comparison rules of the documents
+     * @param progress      Progress of the run
+     */
+    private void collectFieldDifferences(Document sourceDoc, Document targetDoc, DiffTable differingDocs,
+                                         ComparisonRules rules, ComparisonProgress progress) {
+        if (findFieldDifferences(sourceDoc, targetDoc, rules, differingDocs)) {
+            progress.differingFound();
+        }
+    }
+
+    /**
+     * Compares a pair of matching documents and, if they differ, adds their field differences as a document
+     * of the table, together with the key fields so the pair can be identified in the report.
+     *
+     * @param sourceDoc     The document from the source collection
+     * @param targetDoc     The matching document from the target collection
+     * @param rules         Comparison rules of the documents
+     * @param differingDocs Table to store the field differences in
+     * @return {@code true} if the documents differ
+     */
+    private boolean findFieldDifferences(Document sourceDoc, Document targetDoc, ComparisonRules rules, DiffTable differingDocs) {
+        compareDocumentFields(sourceDoc, targetDoc, rules, differingDocs, DiffTable.ROOT);
+        if (differingDocs.hasPendingRows()) {
+            // Add the KEY_FIELDS to the differences to be displayed later
+            for (String keyField : keyFields) {
+                int keyPath = differingDocs.pathId(DiffTable.ROOT, keyField);
+                if (!differingDocs.hasPendingPath(keyPath)) {
+                    differingDocs.add(keyPath, sourceDoc.get(keyField), targetDoc.get(keyField));
+                }
+            }
+        }
+        return differingDocs.endDocument();
+    }
+
+    /**
+     * Generates a unique key for a document from the values of its key fields,
      * allowing documents to be matched across collections.
      *
      * @param doc The document for which to generate the key
-     * @return Concatenated string of key field values
+     * @return Composite key of the key field values
      */
-    private String generateKey(Document doc) {
-        return keyFields.stream()
-                .map(field -> doc.get(field) != null ? doc.get(field).toString() : EMPTY_STRING)
-                .collect(Collectors.joining(UNDERSCORE));
+    private CompositeKey generateKey(Document doc) {
+        return CompositeKey.of(doc, keyFields);
+    }
+
+    /**
+     * Creates the index of the target documents of a comparison, off the heap if enabled.
+     *
+     * @param documents  The number of target documents
+     * @param documentAt Returns a target document by number, to confirm a fingerprint hit against it
+     * @param keys       Keys of the target documents
+     * @return An empty index, to be closed once the comparison is done
+     */
+    private <D> TargetIndex<D> newTargetIndex(int documents, IntFunction<D> documentAt, DocumentKeys<D> keys) {
+        return offHeapIndexEnabled ? new OffHeapTargetIndex<>(documents, documentAt, keys) : new HeapTargetIndex<>(documents, keys);
+    }
+
+    /**
+     * Keys of documents in one form, decoded or encoded, as the target indexes need them.
+     */
+    private interface DocumentKeys<D> {
+
+        CompositeKey key(D doc);
+
+        /**
+         * Returns the fingerprint of the key of a document, equal to the {@link CompositeKey#fingerprint()} of its key.
+         */
+        default long fingerprint(D doc) {
+            return key(doc).fingerprint();
+        }
+
+        /**
+         * Tells whether two documents have equal keys.
+         */
+        default boolean sameKey(D doc1, D doc2) {
+            return key(doc1).equals(key(doc2));
+        }
+    }
+
+    /**
+     * Keys of decoded documents, whose fingerprints and equality are read from the key fields without building keys.
+     */
+    private final class DecodedDocumentKeys implements DocumentKeys<Document> {
+
+        @Override
+        public CompositeKey key(Document doc) {
+            return generateKey(doc);
+        }
+
+        @Override
+        public long fingerprint(Document doc) {
+            return CompositeKey.fingerprint(doc, keyFields);
+        }
+
+        @Override
+        public boolean sameKey(Document doc1, Document doc2) {
+            return CompositeKey.sameKey(doc1, doc2, keyFields);
+        }
+    }
+
+    /**
+     * Index of target documents by key, giving the first document of every key and whether the key was matched.
+     */
+    private interface TargetIndex<D> extends AutoCloseable {
+
+        /**
+         * Indexes a document under its key, unless a document with the same key was indexed before.
+         *
+         * @return The number of the document, or of the earlier document with the same key
+         */
+        int add(D doc, int document);
+
+        /**
+         * Returns the number of the first indexed document with the key of a document, or -1 if no document has the key.
+         */
+        int find(D doc);
+
+        void markMatched(int document);
+
+        boolean isMatched(int document);
+
+        @Override
+        void close();
+    }
+
+    /**
+     * Target index in a map of keys to the number of their first document.
+     */
+    private static final class HeapTargetIndex<D> implements TargetIndex<D> {
+        private final DocumentKeys<D> keys;
+        private final Map<CompositeKey, Integer> firstDocumentByKey;
+        private final int[] firstDocuments;
+        private final boolean[] matched;
+
+        private HeapTargetIndex(int documents, DocumentKeys<D> keys) {
+            this.keys = keys;
+            firstDocumentByKey = HashMap.newHashMap(documents);
+            firstDocuments = new int[documents];
+            matched = new boolean[documents];
+        }
+
+        @Override
+        public int add(D doc, int document) {
+            Integer firstDocument = firstDocumentByKey.putIfAbsent(keys.key(doc), document);
+            firstDocuments[document] = firstDocument == null ? document : firstDocument;
+            return firstDocuments[document];
+        }
+
+        @Override
+        public int find(D doc) {
+            return firstDocumentByKey.getOrDefault(keys.key(doc), -1);
+        }
+
+        @Override
+        public void markMatched(int document) {
+            matched[firstDocuments[document]] = true;
+        }
+
+        @Override
+        public boolean isMatched(int document) {
+            return matched[firstDocuments[document]];
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Target index in an {@link OffHeapKeyIndex}. No key is kept: a fingerprint hit is confirmed against the
+     * candidate document itself, read back by number.
+     */
+    private static final class OffHeapTargetIndex<D> implements TargetIndex<D> {
+        private final OffHeapKeyIndex index;
+        private final IntFunction<D> documentAt;
+        private final DocumentKeys<D> keys;
+
+        private OffHeapTargetIndex(int documents, IntFunction<D> documentAt, DocumentKeys<D> keys) {
+            index = new OffHeapKeyIndex(documents);
+            this.documentAt = documentAt;
+            this.keys = keys;
+        }
+
+        @Override
+        public int add(D doc, int document) {
+            return index.add(keys.fingerprint(doc), document, indexed -> keys.sameKey(documentAt.apply(indexed), doc));
+        }
+
+        @Override
+        public int find(D doc) {
+            return index.find(keys.fingerprint(doc), indexed -> keys.sameKey(documentAt.apply(indexed), doc));
+        }
+
+        @Override
+        public void markMatched(int document) {
+            index.markMatched(document);
+        }
+
+        @Override
+        public boolean isMatched(int document) {
+            return index.isMatched(document);
+        }
+
+        @Override
+        public void close() {
+            index.close();
+        }
     }
 }
@@ -1,13 +1,28 @@
 package com.astro.compare_products.service;
 
+import com.mongodb.client.MongoCursor;
+import jakarta.annotation.PostConstruct;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataRetrievalFailureException;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationOperation;
+import org.springframework.data.mongodb.core.aggregation.AggregationOptions;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.stereotype.Service;
 
-import java.util.List;
-import java.util.Map;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Service for fetching documents from a MongoDB collection based on specified criteria.
@@ -17,12 +32,46 @@ import java.util.Map;
  * The criteria are passed as a key-value pair map where the keys represent the field names
  * and the values represent the corresponding field values to filter by.
  * </p>
+ * <p>
+ * Document queries carry a projection, so fields the comparison skips are never sent by the server or decoded.
+ * By default the top-level ignored fields are excluded; when compared fields are configured, only those and
+ * the key fields are returned.
+ * </p>
  */
 @Service
 public class DocumentFetcherService {
 
+    Logger logger = LoggerFactory.getLogger(DocumentFetcherService.class);
+
     private final MongoTemplate mongoTemplate;
 
+    // Maximum time allowed for all concurrent fetches of a single phase to complete
+    @Value("${comparison.fetchTimeout:PT5M}")
+    private Duration fetchTimeout;
+
+    // Inject key fields from the application properties
+    @Value("${comparison.keyFields}")
+    private String keyFieldsProperty;
+
+    // Inject ignored fields from the application properties
+    @Value("${comparison.ignoredFields}")
+    private String ignoredFieldsProperty;
+
+    // Number of keys looked up per query when fetching pre-filtered documents
+    @Value("${comparison.prefilter.batchSize:500}")
+    private int prefilterBatchSize;
+
+    // Field paths to compare; when empty, all fields but the ignored ones are fetched
+    @Value("${comparison.projection.includedFields:}")
+    private String includedFieldsProperty = "";
+
+    private List<String> keyFields;
+
+    private List<String> ignoredFields;
+
+    // Projection applied to every document query, in the form of a find projection or a $project stage
+    private Document projection;
+
     /**
      * Constructs a new instance of {@link DocumentFetcherService} with the provided {@link MongoTemplate}.
      *
@@ -32,6 +81,45 @@ public class DocumentFetcherService {
         this.mongoTemplate = mongoTemplate;
     }
 
+    /**
+     * Initializes the service by splitting the configured key fields and ignored fields properties.
+     */
+    @PostConstruct
+    public void init() {
+        keyFields = Arrays.asList(keyFieldsProperty.split(","));
+        ignoredFields = Arrays.stream(ignoredFieldsProperty.split(",")).map(String::trim).toList();
+        projection = buildProjection();
+    }
+
+    /**
+     * Builds the projection of document queries: an inclusion of the key fields and the compared fields
+     * when compared fields are configured, otherwise an exclusion of the ignored field paths. Key fields are never
+     * excluded, as documents could not be matched without them, and wildcard paths are left to the comparison.
+     */
+    private Document buildProjection() {
+        Document fields = new Document();
+        List<String> includedFields = Arrays.stream(includedFieldsProperty.split(","))
+                .map(String::trim)
+                .filter(field -> !field.isEmpty() && !ignoredFields.contains(field))
+                .toList();
+        if (!includedFields.isEmpty()) {
+            keyFields.forEach(keyField -> fields.append(keyField, 1));
+            includedFields.forEach(field -> fields.append(field, 1));
+            // _id is returned unless excluded explicitly, even by an inclusion projection
+            if (!fields.containsKey("_id")) {
+                fields.append("_id", 0);
+            }
+        } else {
+            // Wildcard paths cannot be projected, and excluding both a path and a path below it is a path collision
+            ignoredFields.stream()
+                    .filter(field -> !field.isEmpty() && !field.contains("*") && !keyFields.contains(field))
+                    .filter(field -> ignoredFields.stream().noneMatch(other -> field.startsWith(other + ".")))
+                    .distinct()
+                    .forEach(field -> fields.append(field, 0));
+        }
+        return fields;
+    }
+
     /**
      * Fetches documents from the specified collection that match the provided criteria.
      *
@@ -42,9 +130,451 @@ public class DocumentFetcherService {
      *         Returns an empty list if no documents match the criteria.
      */
     public List<Document> fetchDocuments(String collectionName, Map<String, String> criteria) {
-        Query query = new Query();
-        criteria.forEach((key, value) -> query.addCriteria(Criteria.where(key).is(value)));
+        Query query = withProjection(buildQuery(criteria));
         // Fetch the documents from the specified collection based on the constructed query
         return mongoTemplate.find(query, Document.class, collectionName);
     }
+
+    /**
+     * Fetches documents matching the provided criteria from several collections concurrently,
+     * running one virtual thread per collection.
+     * <p>
+     * The fetches succeed or fail together: if any fetch fails, or they do not all complete within the
+     * configured fetch timeout, the remaining fetches are cancelled and the failure is propagated.
+     * </p>
+     *
+     * @param collectionNames the names of the MongoDB collections to fetch documents from.
+     * @param criteria a map containing the criteria to filter documents, where keys are field names
+     *                 and values are the values to match against those fields.
+     * @return the documents matching the criteria, one list per collection in the order of the collection names.
+     * @throws QueryTimeoutException if the fetches do not complete within the fetch timeout.
+     * @throws DataRetrievalFailureException if a fetch fails with a checked exception or the caller is interrupted.
+     */
+    public List<List<Document>> fetchDocumentsConcurrently(List<String> collectionNames, Map<String, String> criteria) {
+        List<Callable<List<Document>>> fetches = collectionNames.stream()
+                .<Callable<List<Document>>>map(collectionName -> () -> fetchDocuments(collectionName, criteria))
+                .toList();
+        return invokeAllOrCancel(fetches);
+    }
+
+    /**
+     * Fetches documents matching the provided criteria whose field holds one of the given values from several
+     * collections concurrently, like {@link #fetchDocumentsConcurrently(List, Map)}. The values are looked up
+     * with a single {@code $in} query per collection.
+     *
+     * @param collectionNames the names of the MongoDB collections to fetch documents from.
+     * @param criteria a map containing the criteria to filter documents, where keys are field names
+     *                 and values are the values to match against those fields.
+     * @param field the field whose value must be one of the values.
+     * @param values the values to look up.
+     * @return the documents matching the criteria and one of the values, one list per collection in the order of the collection names.
+     * @throws QueryTimeoutException if the fetches do not complete within the fetch timeout.
+     * @throws DataRetrievalFailureException if a fetch fails with a checked exception or the caller is interrupted.
+     */
+    public List<List<Document>> fetchDocumentsConcurrently(List<String> collectionNames, Map<String, String> criteria,
+                                                           String field, Collection<String> values) {
+        Query query = withProjection(buildQuery(criteria).addCriteria(Criteria.where(field).in(values)));
+        List<Callable<List<Document>>> fetches = collectionNames.stream()
+                .<Callable<List<Document>>>map(collectionName -> () -> mongoTemplate.find(query, Document.class, collectionName))
+                .toList();
+        return invokeAllOrCancel(fetches);
+    }
+
+    /**
+     * Fetches documents matching the provided criteria whose field falls in a range from several collections
+     * concurrently, like {@link #fetchDocumentsConcurrently(List, Map)}. The range includes its lower bound and
+     * excludes its upper bound; a missing bound leaves the range open on that side.
+     * <p>
+     * A range without a lower bound matches every document whose value is not at or above the upper bound,
+     * including documents without the field or with a value of another type, so the ranges split at a list of
+     * boundaries of a single BSON type together match every document exactly once. The database only compares
+     * values of the same type, so between boundaries of different types a range matches no document, and the
+     * open lower range matches every value of the higher type. Arrays match a range when any element does.
+     * </p>
+     *
+     * @param collectionNames the names of the MongoDB collections to fetch documents from.
+     * @param criteria a map containing the criteria to filter documents, where keys are field names
+     *                 and values are the values to match against those fields.
+     * @param field the field whose value must fall in the range.
+     * @param lower the lowest value of the range, or {@code null} for no lower bound.
+     * @param upper the value above the range, or {@code null} for no upper bound.
+     * @return the documents matching the criteria and the range, one list per collection in the order of the collection names.
+     * @throws QueryTimeoutException if the fetches do not complete within the fetch timeout.
+     * @throws DataRetrievalFailureException if a fetch fails with a checked exception or the caller is interrupted.
+     */
+    public List<List<Document>> fetchDocumentRangeConcurrently(List<String> collectionNames, Map<String, String> criteria,
+                                                               String field, Object lower, Object upper) {
+        Query query = buildQuery(criteria);
+        if (lower == null && upper != null) {
+            query.addCriteria(Criteria.where(field).not().gte(upper));
+        } else if (lower != null && upper == null) {
+            query.addCriteria(Criteria.where(field).gte(lower));
+        } else if (lower != null) {
+            query.addCriteria(Criteria.where(field).gte(lower).lt(upper));
+        }
+        Query rangeQuery = withProjection(query);
+        List<Callable<List<Document>>> fetches = collectionNames.stream()
+                .<Callable<List<Document>>>map(collectionName -> () -> mongoTemplate.find(rangeQuery, Document.class, collectionName))
+                .toList();
+        return invokeAllOrCancel(fetches);
+    }
+
+    /**
+     * Finds values of a field that split the documents matching the criteria into ranges of about the same
+     * number of documents, with a server-side {@code $bucketAuto} stage.
+     *
+     * @param collectionName the name of the MongoDB collection to split.
+     * @param criteria a map containing the criteria to filter documents.
+     * @param field the field whose values split the documents.
+     * @param ranges the number of ranges wanted; fewer are returned when the field has fewer distinct values.
+     * @return the boundaries between consecutive ranges in ascending order, one less than the number of ranges,
+     *         empty when no document matches or when the boundaries found are not all of one BSON type, since
+     *         {@link #fetchDocumentRangeConcurrently(List, Map, String, Object, Object)} would then miss documents.
+     */
+    public List<Object> findRangeBoundaries(String collectionName, Map<String, String> criteria, String field, int ranges) {
+        Aggregation aggregation = Aggregation.newAggregation(
+                        Aggregation.stage(new Document("$match", buildQuery(criteria).getQueryObject())),
+                        Aggregation.stage(new Document("$bucketAuto", new Document("groupBy", "$" + field).append("buckets", ranges))))
+                .withOptions(AggregationOptions.builder().allowDiskUse(true).build());
+        List<Document> buckets = mongoTemplate.aggregate(aggregation, collectionName, Document.class).getMappedResults();
+        List<Object> boundaries = buckets.stream().skip(1).map(bucket -> bucket.get("_id", Document.class).get("min")).toList();
+        if (boundaries.stream().map(DocumentFetcherService::bsonTypeOf).distinct().count() > 1) {
+            logger.warn("Values of {} in {} straddle BSON types and are not split into ranges: {}", field, collectionName, boundaries);
+            return List.of();
+        }
+        return boundaries;
+    }
+
+    /**
+     * Returns the class standing for the BSON type of a value in range comparisons; all numbers compare as one type.
+     */
+    private static Class<?> bsonTypeOf(Object value) {
+        return value instanceof Number ? Number.class : value == null ? Void.class : value.getClass();
+    }
+
+    /**
+     * Fetches documents matching the provided criteria from several collections concurrently, like
+     * {@link #fetchDocumentsConcurrently(List, Map)}, but keeps every document in its encoded BSON form
+     * instead of decoding it into a {@link Document}.
+     *
+     * @param collectionNames the names of the MongoDB collections to fetch documents from.
+     * @param criteria a map containing the criteria to filter documents, where keys are field names
+     *                 and values are the values to match against those fields.
+     * @return the encoded documents matching the criteria, one list per collection in the order of the collection names.
+     * @throws QueryTimeoutException if the fetches do not complete within the fetch timeout.
+     * @throws DataRetrievalFailureException if a fetch fails with a checked exception or the caller is interrupted.
+     */
+    public List<List<RawBsonDocument>> fetchRawDocumentsConcurrently(List<String> collectionNames, Map<String, String> criteria) {
+        Query query = withProjection(buildQuery(criteria));
+        List<Callable<List<RawBsonDocument>>> fetches = collectionNames.stream()
+                .<Callable<List<RawBsonDocument>>>map(collectionName -> () -> mongoTemplate.getCollection(collectionName)
+                        .withDocumentClass(RawBsonDocument.class)
+                        .find(query.getQueryObject())
+                        .projection(query.getFieldsObject())
+                        .into(new ArrayList<>()))
+                .toList();
+        return invokeAllOrCancel(fetches);
+    }
+
+    /**
+     * Fetches from both collections only the documents that need a client-side comparison: those whose key
+     * exists in just one of the collections, and those whose content, without the ignored fields, differs
+     * between the collections.
+     * <p>
+     * The mismatched keys are found on the server with {@link #findMismatchedKeys(String, String, Map)}, so
+     * identical documents never cross the wire. The documents for those keys are then fetched from both
+     * collections concurrently.
+     * </p>
+     *
+     * @param collection1 the name of the first collection.
+     * @param collection2 the name of the second collection.
+     * @param criteria a map containing the criteria to filter documents, where keys are field names
+     *                 and values are the values to match against those fields.
+     * @return the documents of the mismatched keys, one list per collection.
+     */
+    public List<List<Document>> fetchMismatchedDocuments(String collection1, String collection2, Map<String, String> criteria) {
+        List<Document> mismatchedKeys = findMismatchedKeys(collection1, collection2, criteria);
+        return fetchDocumentsByKeysConcurrently(List.of(collection1, collection2), criteria, mismatchedKeys);
+    }
+
+    /**
+     * Finds, on the server, the keys of the documents matching the criteria that are missing from one of
+     * the collections or whose content differs between them.
+     * <p>
+     * The aggregation reads the first collection, appends the second with {@code $unionWith}, strips the
+     * ignored fields, or keeps only the compared fields, and groups the documents by their key fields. A group is reported when one of the
+     * collections has no document for the key or when the group holds more than one distinct content.
+     * Only the key of each reported group is returned. Ignored fields are stripped at the top level only,
+     * so documents differing in a nested ignored field are reported too; the client-side comparison then
+     * finds no difference for them.
+     * </p>
+     *
+     * @param collection1 the name of the first collection.
+     * @param collection2 the name of the second collection.
+     * @param criteria a map containing the criteria to filter documents, where keys are field names
+     *                 and values are the values to match against those fields.
+     * @return documents holding the key field values of every mismatched key.
+     */
+    public List<Document> findMismatchedKeys(String collection1, String collection2, Map<String, String> criteria) {
+        List<AggregationOperation> stages = new ArrayList<>();
+        contentProjectionStages(criteria, 1).forEach(stage -> stages.add(Aggregation.stage(stage)));
+        stages.add(Aggregation.stage(new Document("$unionWith", new Document("coll", collection2)
+                .append("pipeline", contentProjectionStages(criteria, 2)))));
+        stages.add(Aggregation.stage(new Document("$group", new Document("_id", "$key")
+                .append("firstCount", new Document("$sum", sideIndicator(1)))
+                .append("secondCount", new Document("$sum", sideIndicator(2)))
+                .append("contents", new Document("$addToSet", "$content")))));
+        stages.add(Aggregation.stage(new Document("$match", new Document("$expr", new Document("$or", List.of(
+                new Document("$eq", List.of("$firstCount", 0)),
+                new Document("$eq", List.of("$secondCount", 0)),
+                new Document("$gt", List.of(new Document("$size", "$contents"), 1))))))));
+        stages.add(Aggregation.stage(new Document("$project", new Document("_id", 1))));
+
+        Aggregation aggregation = Aggregation.newAggregation(stages)
+                .withOptions(AggregationOptions.builder().allowDiskUse(true).build());
+        return mongoTemplate.aggregate(aggregation, collection1, Document.class).getMappedResults().stream()
+                .map(group -> group.get("_id", Document.class))
+                .toList();
+    }
+
+    /**
+     * Fetches the documents matching the criteria whose key field values equal one of the given keys.
+     * Keys are looked up in batches, each batch with a single {@code $or} query.
+     *
+     * @param collectionName the name of the MongoDB collection to fetch documents from.
+     * @param criteria a map containing the criteria to filter documents.
+     * @param keys documents holding the key field values to look up; missing fields match missing or null values.
+     * @return the documents matching the criteria and one of the keys.
+     */
+    public List<Document> fetchDocumentsByKeys(String collectionName, Map<String, String> criteria, List<Document> keys) {
+        List<Document> documents = new ArrayList<>();
+        for (int start = 0; start < keys.size(); start += prefilterBatchSize) {
+            Criteria[] keyCriteria = keys.subList(start, Math.min(start + prefilterBatchSize, keys.size())).stream()
+                    .map(this::keyCriteria)
+                    .toArray(Criteria[]::new);
+            Query query = withProjection(buildQuery(criteria).addCriteria(new Criteria().orOperator(keyCriteria)));
+            documents.addAll(mongoTemplate.find(query, Document.class, collectionName));
+        }
+        return documents;
+    }
+
+    /**
+     * Fetches the key field values and update timestamps of the documents matching the criteria that were
+     * updated at or after the given time. Only the key fields and the timestamp field are returned.
+     *
+     * @param collectionName the name of the MongoDB collection to fetch documents from.
+     * @param criteria a map containing the criteria to filter documents.
+     * @param timestampField the field holding the time each document was last updated.
+     * @param since the earliest update time to include.
+     * @return documents holding the key fields and the timestamp field of every matching document.
+     */
+    public List<Document> fetchKeysUpdatedSince(String collectionName, Map<String, String> criteria,
+                                                String timestampField, Date since) {
+        Query query = buildQuery(criteria).addCriteria(Criteria.where(timestampField).gte(since));
+        query.fields().include(keyFields.toArray(String[]::new)).include(timestampField).exclude("_id");
+        return mongoTemplate.find(query, Document.class, collectionName);
+    }
+
+    /**
+     * Fetches the documents matching the criteria whose key field values equal one of the given keys from several
+     * collections concurrently, like {@link #fetchDocumentsConcurrently(List, Map)}, looking the keys up in each
+     * collection as {@link #fetchDocumentsByKeys(String, Map, List)} does.
+     *
+     * @param collectionNames the names of the MongoDB collections to fetch documents from.
+     * @param criteria a map containing the criteria to filter documents.
+     * @param keys documents holding the key field values to look up; missing fields match missing or null values.
+     * @return the documents matching the criteria and one of the keys, one list per collection in the order of the collection names.
+     * @throws QueryTimeoutException if the fetches do not complete within the fetch timeout.
+     * @throws DataRetrievalFailureException if a fetch fails with a checked exception or the caller is interrupted.
+     */
+    public List<List<Document>> fetchDocumentsByKeysConcurrently(List<String> collectionNames, Map<String, String> criteria,
+                                                                 List<Document> keys) {
+        List<Callable<List<Document>>> fetches = collectionNames.stream()
+                .<Callable<List<Document>>>map(collectionName -> () -> fetchDocumentsByKeys(collectionName, criteria, keys))
+                .toList();
+        return invokeAllOrCancel(fetches);
+    }
+
+    /**
+     * Fetches the key field values and update timestamps of the documents updated at or after the given time from
+     * several collections concurrently, like {@link #fetchDocumentsConcurrently(List, Map)}, each as
+     * {@link #fetchKeysUpdatedSince(String, Map, String, Date)} does.
+     *
+     * @param collectionNames the names of the MongoDB collections to fetch documents from.
+     * @param criteria a map containing the criteria to filter documents.
+     * @param timestampField the field holding the time each document was last updated.
+     * @param since the earliest update time to include.
+     * @return documents holding the key fields and the timestamp field, one list per collection in the order of the collection names.
+     * @throws QueryTimeoutException if the fetches do not complete within the fetch timeout.
+     * @throws DataRetrievalFailureException if a fetch fails with a checked exception or the caller is interrupted.
+     */
+    public List<List<Document>> fetchKeysUpdatedSinceConcurrently(List<String> collectionNames, Map<String, String> criteria,
+                                                                  String timestampField, Date since) {
+        List<Callable<List<Document>>> fetches = collectionNames.stream()
+                .<Callable<List<Document>>>map(collectionName -> () -> fetchKeysUpdatedSince(collectionName, criteria, timestampField, since))
+                .toList();
+        return invokeAllOrCancel(fetches);
+    }
+
+    /**
+     * Finds the latest update timestamp among the documents matching the criteria.
+     *
+     * @param collectionName the name of the MongoDB collection to search.
+     * @param criteria a map containing the criteria to filter documents.
+     * @param timestampField the field holding the time each document was last updated.
+     * @return the latest timestamp, or {@code null} if no matching document has one.
+     */
+    public Date fetchLatestTimestamp(String collectionName, Map<String, String> criteria, String timestampField) {
+        Query query = buildQuery(criteria).with(Sort.by(Sort.Direction.DESC, timestampField)).limit(1);
+        query.fields().include(timestampField).exclude("_id");
+        Document latest = mongoTemplate.findOne(query, Document.class, collectionName);
+        return latest != null && latest.get(timestampField) instanceof Date timestamp ? timestamp : null;
+    }
+
+    /**
+     * Builds the stages that select the documents of one collection and reduce them to their key,
+     * their side and their content without the ignored fields.
+     */
+    private List<Document> contentProjectionStages(Map<String, String> criteria, int side) {
+        List<Document> stages = new ArrayList<>();
+        stages.add(new Document("$match", buildQuery(criteria).getQueryObject()));
+        if (!projection.isEmpty()) {
+            stages.add(new Document("$project", projection));
+        }
+        Document key = new Document();
+        keyFields.forEach(keyField -> key.append(keyField, "$" + keyField));
+        stages.add(new Document("$project", new Document("_id", 0)
+                .append("key", key)
+                .append("side", new Document("$literal", side))
+                .append("content", "$$ROOT")));
+        return stages;
+    }
+
+    private static Document sideIndicator(int side) {
+        return new Document("$cond", List.of(new Document("$eq", List.of("$side", side)), 1, 0));
+    }
+
+    private Criteria keyCriteria(Document key) {
+        Criteria criteria = Criteria.where(keyFields.getFirst()).is(key.get(keyFields.getFirst()));
+        for (String keyField : keyFields.subList(1, keyFields.size())) {
+            criteria = criteria.and(keyField).is(key.get(keyField));
+        }
+        return criteria;
+    }
+
+    /**
+     * Streams documents from the specified collection that match the provided criteria,
+     * sorted in ascending order on the given fields.
+     * <p>
+     * Documents are read lazily through a server-side cursor, so only the current batch is held in memory.
+     * The returned stream holds the cursor open and must be closed by the caller.
+     * </p>
+     *
+     * @param collectionName the name of the MongoDB collection to stream documents from.
+     * @param criteria a map containing the criteria to filter documents, where keys are field names
+     *                 and values are the values to match against those fields.
+     * @param sortFields the fields to sort on, in order of precedence.
+     * @return a stream of documents matching the specified criteria, ordered by the sort fields.
+     */
+    public Stream<Document> streamDocuments(String collectionName, Map<String, String> criteria, List<String> sortFields) {
+        Query query = withProjection(buildQuery(criteria))
+                .with(Sort.by(Sort.Direction.ASC, sortFields.toArray(String[]::new)))
+                // Sorting a whole collection can exceed the in-memory sort limit of the server
+                .allowDiskUse(true);
+        return mongoTemplate.stream(query, Document.class, collectionName);
+    }
+
+    /**
+     * Streams documents from the specified collection that match the provided criteria, in no particular order
+     * and in their encoded BSON form.
+     * <p>
+     * Documents are read lazily through a server-side cursor, so only the current batch is held in memory.
+     * The returned stream holds the cursor open and must be closed by the caller.
+     * </p>
+     *
+     * @param collectionName the name of the MongoDB collection to stream documents from.
+     * @param criteria a map containing the criteria to filter documents, where keys are field names
+     *                 and values are the values to match against those fields.
+     * @return a stream of the encoded documents matching the specified criteria.
+     */
+    public Stream<RawBsonDocument> streamRawDocuments(String collectionName, Map<String, String> criteria) {
+        Query query = withProjection(buildQuery(criteria));
+        MongoCursor<RawBsonDocument> cursor = mongoTemplate.getCollection(collectionName)
+                .withDocumentClass(RawBsonDocument.class)
+                .find(query.getQueryObject())
+                .projection(query.getFieldsObject())
+                .cursor();
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(cursor, Spliterator.ORDERED), false)
+                .onClose(cursor::close);
+    }
+
+    /**
+     * Runs the tasks concurrently on virtual threads and waits for all of them within the fetch timeout.
+     * Results are consumed in completion order, so the first failure cancels the tasks still running
+     * instead of waiting for the slowest one.
+     *
+     * @param tasks the tasks to run.
+     * @return the task results, in the order of the tasks.
+     */
+    private <T> List<T> invokeAllOrCancel(List<Callable<T>> tasks) {
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        CompletionService<Void> completionService = new ExecutorCompletionService<>(executor);
+        List<T> results = new ArrayList<>(Collections.nCopies(tasks.size(), null));
+        long deadline = System.nanoTime() + fetchTimeout.toNanos();
+        try {
+            for (int i = 0; i < tasks.size(); i++) {
+                int index = i;
+                Callable<T> task = tasks.get(i);
+                completionService.submit(() -> {
+                    results.set(index, task.call());
+                    return null;
+                });
+            }
+            for (int i = 0; i < tasks.size(); i++) {
+                Future<Void> completed = completionService.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (completed == null) {
+                    throw new QueryTimeoutException("Fetching documents did not complete within " + fetchTimeout);
+                }
+                completed.get();
+            }
+            return results;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new DataRetrievalFailureException("Failed to fetch documents", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DataRetrievalFailureException("Interrupted while fetching documents", e);
+        } finally {
+            // Cancel whatever is still running; abandoned fetches are not waited for
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Adds the configured projection to a document query.
+     */
+    private Query withProjection(Query query) {
+        projection.forEach((field, value) -> {
+            if (Integer.valueOf(0).equals(value)) {
+                query.fields().exclude(field);
+            } else {
+                query.fields().include(field);
+            }
+        });
+        return query;
+    }
+
+    /**
+     * Builds an equality query from the provided criteria map.
+     *
+     * @param criteria a map of field names to the values they must match.
+     * @return a query containing one equality criterion per map entry.
+     */
+    private Query buildQuery(Map<String, String> criteria) {
+        Query query = new Query();
+        criteria.forEach((key, value) -> query.addCriteria(Criteria.where(key).is(value)));
+        return query;
+    }
 }
@@ -0,0 +1,278 @@
+package com.astro.compare_products.service;
+
+import com.astro.compare_products.common.BsonRunFile;
+import com.astro.compare_products.common.ComparisonProgress;
+import com.astro.compare_products.common.ComparisonRules;
+import com.astro.compare_products.common.CompositeKey;
+import com.astro.compare_products.common.DiffTable;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Service for comparing two collections that do not fit in memory and cannot be sorted cheaply on the key fields.
+ * <p>
+ * Both collections are streamed once, in no particular order, and hash-partitioned by key into temporary run
+ * files of encoded BSON documents, so documents with equal keys always land in partitions with the same index.
+ * The partitions are then compared one at a time with {@link DocumentComparisonService#compareRawDocuments},
+ * reading the run files back through memory mapping. A partition whose documents would exceed the memory budget
+ * is split again with a different hash before it is loaded. All run files are deleted when the comparison ends.
+ * <p>
+ * The memory budget bounds the documents of the partition being compared; the report data collected from all
+ * partitions is kept in memory as in the other comparison modes.
+ */
+@Service
+public class ExternalComparisonService {
+
+    // Estimated heap of a loaded document beyond its encoded bytes: its object and array headers, key and index entry
+    private static final long DOCUMENT_OVERHEAD_BYTES = 160;
+
+    // Keys sharing a hash can never be split apart, so partitions are not split again below this depth
+    private static final int MAX_PARTITION_LEVELS = 4;
+
+    Logger logger = LoggerFactory.getLogger(ExternalComparisonService.class);
+
+    private final DocumentFetcherService documentFetcherService;
+    private final DocumentComparisonService comparisonService;
+
+    // Upper bound on the estimated heap used by the documents of the partition being compared, in bytes
+    @Value("${comparison.external.memoryBudgetBytes:268435456}")
+    private long memoryBudgetBytes;
+
+    // Number of partitions each collection is split into, and each oversized partition is split into again
+    @Value("${comparison.external.partitions:64}")
+    private int partitionCount;
+
+    // Directory the run files are written to; the system temporary directory when empty
+    @Value("${comparison.external.directory:}")
+    private String directoryProperty = "";
+
+    public ExternalComparisonService(final DocumentFetcherService documentFetcherService,
+                                     final DocumentComparisonService comparisonService) {
+        this.documentFetcherService = documentFetcherService;
+        this.comparisonService = comparisonService;
+    }
+
+    /**
+     * Compares the documents of two collections that match the criteria by spilling both to partitioned run files.
+     *
+     * @param collection1 the name of the first collection.
+     * @param collection2 the name of the second collection.
+     * @param criteria    a map containing the criteria to filter documents.
+     * @param progress    progress of the run, also checked for cancellation.
+     * @return Map containing lists of documents unique to each collection and any differing documents,
+     *         in the same shape as {@link DocumentComparisonService#compareDocuments(List, List)}
+     * @throws UncheckedIOException if the run files cannot be written or read
+     * @throws java.util.concurrent.CancellationException if the run is cancelled before it completes
+     */
+    public Map<String, Object> compareExternally(String collection1, String collection2, Map<String, String> criteria,
+                                                 ComparisonProgress progress) {
+        ComparisonRules rules = comparisonService.rulesFor(collection1, collection2);
+        Map<String, Object> reportData = new HashMap<>();
+        reportData.put("docsInFirstOnly", new ArrayList<Document>());
+        reportData.put("docsInSecondOnly", new ArrayList<Document>());
+        reportData.put("differingDocs", new DiffTable());
+
+        Path directory = null;
+        try {
+            directory = directoryProperty.isBlank()
+                    ? Files.createTempDirectory("comparison-")
+                    : Files.createTempDirectory(Files.createDirectories(Path.of(directoryProperty)), "comparison-");
+            Partition[] partitions = createPartitions(directory, "p", 0);
+            try {
+                spill(collection1, criteria, 1, partitions, progress);
+                spill(collection2, criteria, 2, partitions, progress);
+            } finally {
+                for (Partition partition : partitions) {
+                    partition.close();
+                }
+            }
+            for (Partition partition : partitions) {
+                comparePartition(partition, directory, rules, reportData, progress);
+            }
+            return reportData;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to compare " + collection1 + " and " + collection2 + " through run files", e);
+        } finally {
+            if (directory != null) {
+                deleteDirectory(directory);
+            }
+        }
+    }
+
+    /**
+     * Streams the matching documents of one collection into the run files of their partitions.
+     */
+    private void spill(String collectionName, Map<String, String> criteria, int side, Partition[] partitions,
+                       ComparisonProgress progress) throws IOException {
+        try (Stream<RawBsonDocument> documents = documentFetcherService.streamRawDocuments(collectionName, criteria)) {
+            Iterator<RawBsonDocument> iterator = documents.iterator();
+            while (iterator.hasNext()) {
+                progress.checkCancelled();
+                RawBsonDocument document = iterator.next();
+                progress.addFetched(side, 1);
+                partitions[partitionOf(comparisonService.key(document), 0)].side(side).append(document);
+            }
+        }
+    }
+
+    /**
+     * Compares the documents of a partition in memory if they fit the memory budget, or splits the partition
+     * again and compares its sub-partitions otherwise. The run files of the partition are deleted either way.
+     */
+    private void comparePartition(Partition partition, Path directory, ComparisonRules rules, Map<String, Object> reportData,
+                                  ComparisonProgress progress) throws IOException {
+        if (partition.estimatedHeapBytes() > memoryBudgetBytes) {
+            if (partition.level() + 1 < MAX_PARTITION_LEVELS) {
+                Partition[] subPartitions = createPartitions(directory, partition.name(), partition.level() + 1);
+                try {
+                    repartition(partition.side1(), 1, subPartitions);
+                    repartition(partition.side2(), 2, subPartitions);
+                } finally {
+                    for (Partition subPartition : subPartitions) {
+                        subPartition.close();
+                    }
+                }
+                partition.delete();
+                for (Partition subPartition : subPartitions) {
+                    comparePartition(subPartition, directory, rules, reportData, progress);
+                }
+                return;
+            }
+            logger.warn("Partition {} is estimated at {} bytes, above the memory budget of {} bytes, after {} splits; "
+                    + "its keys share too few hashes to split further", partition.name(), partition.estimatedHeapBytes(),
+                    memoryBudgetBytes, partition.level());
+        }
+
+        List<RawBsonDocument> collection1Docs = new ArrayList<>((int) partition.side1().documents());
+        List<RawBsonDocument> collection2Docs = new ArrayList<>((int) partition.side2().documents());
+        partition.side1().forEach(collection1Docs::add);
+        partition.side2().forEach(collection2Docs::add);
+        partition.delete();
+        merge(reportData, comparisonService.compareRawDocuments(collection1Docs, collection2Docs, rules, progress));
+    }
+
+    private void repartition(BsonRunFile runFile, int side, Partition[] subPartitions) throws IOException {
+        try {
+            runFile.forEach(document -> {
+                try {
+                    subPartitions[partitionOf(comparisonService.key(document), subPartitions[0].level())].side(side).append(document);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void merge(Map<String, Object> reportData, Map<String, Object> partitionData) {
+        ((List<Document>) reportData.get("docsInFirstOnly")).addAll((List<Document>) partitionData.get("docsInFirstOnly"));
+        ((List<Document>) reportData.get("docsInSecondOnly")).addAll((List<Document>) partitionData.get("docsInSecondOnly"));
+        ((DiffTable) reportData.get("differingDocs")).addAll((DiffTable) partitionData.get("differingDocs"));
+    }
+
+    /**
+     * Creates the run files of the partitions of a split level, open for appending. If a run file cannot be
+     * created, the run files created before it are closed before the failure is rethrown, so that none is left
+     * open when the directory is deleted.
+     */
+    private Partition[] createPartitions(Path directory, String name, int level) throws IOException {
+        Partition[] partitions = new Partition[partitionCount];
+        BsonRunFile side1 = null;
+        try {
+            for (int i = 0; i < partitionCount; i++) {
+                String partitionName = name + "." + i;
+                side1 = new BsonRunFile(directory.resolve(partitionName + "-1.bson"));
+                partitions[i] = new Partition(partitionName, level, side1, new BsonRunFile(directory.resolve(partitionName + "-2.bson")));
+                side1 = null;
+            }
+            return partitions;
+        } catch (IOException | RuntimeException e) {
+            closeAfterFailure(side1, e);
+            for (Partition partition : partitions) {
+                if (partition != null) {
+                    closeAfterFailure(partition.side1(), e);
+                    closeAfterFailure(partition.side2(), e);
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Closes a run file after a failure, recording a failure to close it as suppressed by the first failure.
+     */
+    private static void closeAfterFailure(BsonRunFile runFile, Exception failure) {
+        if (runFile != null) {
+            try {
+                runFile.close();
+            } catch (IOException e) {
+                failure.addSuppressed(e);
+            }
+        }
+    }
+
+    /**
+     * Returns the partition of a key at a split level. Every level mixes the key hash differently, so the keys
+     * of one partition spread over all partitions of the next level.
+     */
+    private int partitionOf(CompositeKey key, int level) {
+        long hash = key.hashCode() ^ (level * 0x9E3779B97F4A7C15L);
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return Math.floorMod(hash, partitionCount);
+    }
+
+    private void deleteDirectory(Path directory) {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    logger.warn("Failed to delete run file {}", path, e);
+                }
+            });
+        } catch (IOException e) {
+            logger.warn("Failed to delete run file directory {}", directory, e);
+        }
+    }
+
+    /**
+     * The run files of both collections for one partition of the keys.
+     */
+    private record Partition(String name, int level, BsonRunFile side1, BsonRunFile side2) {
+
+        BsonRunFile side(int side) {
+            return side == 1 ? side1 : side2;
+        }
+
+        long estimatedHeapBytes() {
+            return side1.bytes() + side2.bytes() + (side1.documents() + side2.documents()) * DOCUMENT_OVERHEAD_BYTES;
+        }
+
+        void close() throws IOException {
+            side1.close();
+            side2.close();
+        }
+
+        void delete() throws IOException {
+            side1.delete();
+            side2.delete();
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package com.astro.compare_products.service;
+
+import com.astro.compare_products.common.ComparisonProgress;
+import com.astro.compare_products.common.ComparisonRules;
+import com.astro.compare_products.common.CompositeKey;
+import com.astro.compare_products.common.DiffTable;
+import jakarta.annotation.PostConstruct;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.function.Function;
+
+import static com.astro.compare_products.service.DocumentComparisonService.COLLECTION_1;
+import static com.astro.compare_products.service.DocumentComparisonService.COLLECTION_2;
+
+/**
+ * Service for comparing two collections incrementally, re-comparing only the documents updated since the previous run.
+ * <p>
+ * For every collection pair and criteria, the service keeps a watermark, the latest update timestamp seen,
+ * and the differences found so far in MongoDB. The first run compares everything and stores all differences.
+ * Later runs fetch only the keys of documents updated at or after the watermark on either side, re-compare the
+ * documents of those keys and replace just their stored differences. The report is then read from the stored state.
+ * <p>
+ * Documents deleted from a collection are not detected by the watermark; a full run is needed to pick them up,
+ * which happens after the stored watermark is removed.
+ */
+@Service
+public class IncrementalComparisonService {
+
+    static final String FIELD_PAIR = "pair";
+    static final String FIELD_KEY = "key";
+    static final String FIELD_STATUS = "status";
+    static final String FIELD_DOCUMENT = "document";
+    static final String FIELD_DIFFERENCES = "differences";
+    static final String FIELD_FIELD = "field";
+    static final String FIELD_WATERMARK = "watermark";
+    static final String STATUS_FIRST_ONLY = "FIRST_ONLY";
+    static final String STATUS_SECOND_ONLY = "SECOND_ONLY";
+    static final String STATUS_DIFFERING = "DIFFERING";
+
+    Logger logger = LoggerFactory.getLogger(IncrementalComparisonService.class);
+
+    private final MongoTemplate mongoTemplate;
+    private final DocumentFetcherService documentFetcherService;
+    private final DocumentComparisonService comparisonService;
+
+    // Inject key fields from the application properties
+    @Value("${comparison.keyFields}")
+    private String keyFieldsProperty;
+
+    // Field holding the time each document was last updated
+    @Value("${comparison.incremental.timestampField:last_updated}")
+    private String timestampField;
+
+    // Collection holding one watermark per collection pair and criteria
+    @Value("${comparison.incremental.watermarkCollection:comparison_watermarks}")
+    private String watermarkCollection;
+
+    // Collection holding the stored differences per collection pair and criteria
+    @Value("${comparison.incremental.diffCollection:comparison_diffs}")
+    private String diffCollection;
+
+    private List<String> keyFields;
+
+    public IncrementalComparisonService(final MongoTemplate mongoTemplate,
+                                        final DocumentFetcherService documentFetcherService,
+                                        final DocumentComparisonService comparisonService) {
+        this.mongoTemplate = mongoTemplate;
+        this.documentFetcherService = documentFetcherService;
+        this.comparisonService = comparisonService;
+    }
+
+    /**
+     * Initializes the service by splitting the configured key fields property.
+     */
+    @PostConstruct
+    public void init() {
+        keyFields = Arrays.asList(keyFieldsProperty.split(","));
+    }
+
+    /**
+     * Brings the stored differences of a collection pair up to date and returns them as report data.
+     *
+     * @param collection1 the name of the first collection.
+     * @param collection2 the name of the second collection.
+     * @param criteria    a map containing the criteria to filter documents.
+     * @return Map containing lists of documents unique to each collection and any differing documents,
+     *         in the same shape as {@link DocumentComparisonService#compareDocuments(List, List)}
+     */
+    public Map<String, Object> compareIncrementally(String collection1, String collection2, Map<String, String> criteria) {
+        return compareIncrementally(collection1, collection2, criteria, new ComparisonProgress());
+    }
+
+    /**
+     * Brings the stored differences of a collection pair up to date like {@link #compareIncrementally(String, String, Map)},
+     * recording the documents fetched and compared in the given progress.
+     *
+     * @param collection1 the name of the first collection.
+     * @param collection2 the name of the second collection.
+     * @param criteria    a map containing the criteria to filter documents.
+     * @param progress    progress of the run, also checked for cancellation.
+     * @return Map containing lists of documents unique to each collection and any differing documents
+     */
+    public Map<String, Object> compareIncrementally(String collection1, String collection2, Map<String, String> criteria,
+                                                    ComparisonProgress progress) {
+        String pairId = pairId(collection1, collection2, criteria);
+        ComparisonRules rules = comparisonService.rulesFor(collection1, collection2);
+        Document watermarkDoc = mongoTemplate.findById(pairId, Document.class, watermarkCollection);
+        Date watermark = watermarkDoc != null ? watermarkDoc.getDate(FIELD_WATERMARK) : null;
+
+        Date newWatermark;
+        if (watermark == null) {
+            // No earlier run: compare everything and replace whatever state was stored. Fetched documents do not
+            // carry the timestamp field when it is ignored, so the watermark is read first; documents updated
+            // during the fetch then have a later timestamp and are picked up by the next run
+            newWatermark = latestOf(documentFetcherService.fetchLatestTimestamp(collection1, criteria, timestampField),
+                    documentFetcherService.fetchLatestTimestamp(collection2, criteria, timestampField));
+            List<List<Document>> fetchedDocs = documentFetcherService.fetchDocumentsConcurrently(List.of(collection1, collection2), criteria);
+            progress.addFetched(1, fetchedDocs.get(0).size());
+            progress.addFetched(2, fetchedDocs.get(1).size());
+            Map<String, Object> reportData = comparisonService.compareDocuments(fetchedDocs.get(0), fetchedDocs.get(1), rules, progress);
+            mongoTemplate.remove(Query.query(Criteria.where(FIELD_PAIR).is(pairId)), diffCollection);
+            saveDiffEntries(pairId, reportData);
+            logger.info("Full comparison of {} stored as the incremental baseline", pairId);
+        } else {
+            List<List<Document>> updated = documentFetcherService.fetchKeysUpdatedSinceConcurrently(
+                    List.of(collection1, collection2), criteria, timestampField, watermark);
+            List<Document> updated1 = updated.get(0);
+            List<Document> updated2 = updated.get(1);
+            List<Document> updatedKeys = distinctKeys(updated1, updated2);
+
+            if (!updatedKeys.isEmpty()) {
+                // Re-compare both sides of every updated key, whichever side the update happened on
+                List<List<Document>> fetchedDocs = documentFetcherService.fetchDocumentsByKeysConcurrently(
+                        List.of(collection1, collection2), criteria, updatedKeys);
+                progress.addFetched(1, fetchedDocs.get(0).size());
+                progress.addFetched(2, fetchedDocs.get(1).size());
+                Map<String, Object> reportData = comparisonService.compareDocuments(fetchedDocs.get(0), fetchedDocs.get(1), rules, progress);
+                mongoTemplate.remove(Query.query(Criteria.where(FIELD_PAIR).is(pairId).and(FIELD_KEY).in(updatedKeys)), diffCollection);
+                saveDiffEntries(pairId, reportData);
+            }
+            newWatermark = latestTimestamp(updated1, updated2);
+            logger.info("Incremental comparison of {} re-compared {} updated keys since {}", pairId, updatedKeys.size(), watermark);
+        }
+
+        if (newWatermark != null) {
+            mongoTemplate.upsert(Query.query(Criteria.where("_id").is(pairId)),
+                    Update.update(FIELD_WATERMARK, newWatermark), watermarkCollection);
+        }
+        return loadReport(pairId);
+    }
+
+    /**
+     * Identifies the stored state of a collection pair compared under the given criteria.
+     */
+    private String pairId(String collection1, String collection2, Map<String, String> criteria) {
+        return collection1 + "|" + collection2 + "|" + new TreeMap<>(criteria);
+    }
+
+    /**
+     * Reduces documents holding key fields to one key document per distinct key, in key field order.
+     */
+    private List<Document> distinctKeys(List<Document> updated1, List<Document> updated2) {
+        Map<CompositeKey, Document> keys = new LinkedHashMap<>();
+        for (List<Document> updated : List.of(updated1, updated2)) {
+            updated.forEach(doc -> keys.putIfAbsent(CompositeKey.of(doc, keyFields), keyDocument(doc::get)));
+        }
+        return new ArrayList<>(keys.values());
+    }
+
+    private Document keyDocument(Function<String, Object> keyFieldValue) {
+        return keyDocument(keyFields, keyFieldValue);
+    }
+
+    private static Document keyDocument(List<String> keyFields, Function<String, Object> keyFieldValue) {
+        Document key = new Document();
+        keyFields.forEach(keyField -> key.append(keyField, keyFieldValue.apply(keyField)));
+        return key;
+    }
+
+    private static Date latestOf(Date timestamp1, Date timestamp2) {
+        if (timestamp1 == null || timestamp2 != null && timestamp2.after(timestamp1)) {
+            return timestamp2;
+        }
+        return timestamp1;
+    }
+
+    @SafeVarargs
+    private Date latestTimestamp(List<Document>... documentLists) {
+        Date latest = null;
+        for (List<Document> documents : documentLists) {
+            for (Document doc : documents) {
+                if (doc.get(timestampField) instanceof Date timestamp && (latest == null || timestamp.after(latest))) {
+                    latest = timestamp;
+                }
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Stores one diff entry per unique or differing document of the report data.
+     */
+    private void saveDiffEntries(String pairId, Map<String, Object> reportData) {
+        List<Document> entries = diffEntries(new Document(FIELD_PAIR, pairId), reportData, keyFields);
+        if (!entries.isEmpty()) {
+            mongoTemplate.insert(entries, diffCollection);
+        }
+    }
+
+    /**
+     * Converts report data to one diff entry per unique or differing document, each holding the key of the
+     * document, its status and either the document or its differences. Every entry starts with the fields of
+     * the scope, which identify the entries of one report among others stored in the same collection.
+     *
+     * @param scope      Fields copied into every entry
+     * @param reportData The report data to convert
+     * @param keyFields  The key fields of the compared documents
+     * @return The entries, in report order
+     */
+    @SuppressWarnings("unchecked")
+    static List<Document> diffEntries(Document scope, Map<String, Object> reportData, List<String> keyFields) {
+        List<Document> entries = new ArrayList<>();
+        ((List<Document>) reportData.get("docsInFirstOnly")).forEach(doc ->
+                entries.add(diffEntry(scope, keyDocument(keyFields, doc::get), STATUS_FIRST_ONLY).append(FIELD_DOCUMENT, doc)));
+        ((List<Document>) reportData.get("docsInSecondOnly")).forEach(doc ->
+                entries.add(diffEntry(scope, keyDocument(keyFields, doc::get), STATUS_SECOND_ONLY).append(FIELD_DOCUMENT, doc)));
+        DiffTable differingDocs = (DiffTable) reportData.get("differingDocs");
+        for (int document = 0; document < differingDocs.size(); document++) {
+            // Field paths contain dots, so the differences are stored as a list rather than as a sub-document
+            List<Document> differences = new ArrayList<>();
+            for (DiffTable.Row row : differingDocs.rows(document)) {
+                differences.add(new Document(FIELD_FIELD, row.path())
+                        .append(COLLECTION_1, row.collection1())
+                        .append(COLLECTION_2, row.collection2()));
+            }
+            int differingDoc = document;
+            Document key = keyDocument(keyFields, keyField -> differingDocs.value1(differingDoc, keyField));
+            entries.add(diffEntry(scope, key, STATUS_DIFFERING).append(FIELD_DIFFERENCES, differences));
+        }
+        return entries;
+    }
+
+    private static Document diffEntry(Document scope, Document key, String status) {
+        return new Document(scope).append(FIELD_KEY, key).append(FIELD_STATUS, status);
+    }
+
+    /**
+     * Rebuilds the report data of a collection pair from its stored diff entries.
+     */
+    private Map<String, Object> loadReport(String pairId) {
+        return reportOf(mongoTemplate.find(Query.query(Criteria.where(FIELD_PAIR).is(pairId)), Document.class, diffCollection));
+    }
+
+    /**
+     * Rebuilds report data from diff entries, the reverse of {@link #diffEntries(Document, Map, List)}.
+     *
+     * @param entries The diff entries, in report order
+     * @return Map containing lists of documents unique to each collection and any differing documents
+     */
+    static Map<String, Object> reportOf(Iterable<Document> entries) {
+        List<Document> docsInFirstOnly = new ArrayList<>();
+        List<Document> docsInSecondOnly = new ArrayList<>();
+        DiffTable differingDocs = new DiffTable();
+
+        entries.forEach(entry -> {
+            switch (entry.getString(FIELD_STATUS)) {
+                case STATUS_FIRST_ONLY -> docsInFirstOnly.add(entry.get(FIELD_DOCUMENT, Document.class));
+                case STATUS_SECOND_ONLY -> docsInSecondOnly.add(entry.get(FIELD_DOCUMENT, Document.class));
+                default -> {
+                    entry.getList(FIELD_DIFFERENCES, Document.class).forEach(difference -> differingDocs.add(
+                            differingDocs.pathId(DiffTable.ROOT, difference.getString(FIELD_FIELD)),
+                            difference.get(COLLECTION_1), difference.get(COLLECTION_2)));
+                    differingDocs.endDocument();
+                }
+            }
+        });
+
+        Map<String, Object> reportData = new HashMap<>();
+        reportData.put("docsInFirstOnly", docsInFirstOnly);
+        reportData.put("docsInSecondOnly", docsInSecondOnly);
+        reportData.put("differingDocs", differingDocs);
+        return reportData;
+    }
+}
@@ -0,0 +1,249 @@
+package com.astro.compare_products.service;
+
+import com.astro.compare_products.common.ComparisonMode;
+import jakarta.annotation.PostConstruct;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexField;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.stream.Stream;
+
+import static com.astro.compare_products.common.Constants.INPUT_PARAM_CATEGORY;
+
+/**
+ * Service verifying that the compared collections have the indexes the comparison queries rely on.
+ * <p>
+ * Every collection needs an index on the key fields, which serves lookups by UPC, the {@code $in} batches of bulk
+ * comparisons and the sorted cursors of streaming comparisons, and an index on the category followed by the
+ * key fields, which serves report criteria by category. The incremental and Merkle modes also need an index
+ * on the update timestamp. An existing index serves a required one when its fields start with the required
+ * fields, in order.
+ * <p>
+ * Verification runs once the application is ready. It lists the indexes of every collection, creates the
+ * missing ones when configured to, and runs {@code explain} on representative comparison queries to report
+ * those the server would answer with a collection scan. The last report is kept for the readiness check.
+ */
+@Service
+public class IndexVerificationService {
+
+    Logger logger = LoggerFactory.getLogger(IndexVerificationService.class);
+
+    private final MongoTemplate mongoTemplate;
+
+    // Collections whose indexes are verified
+    @Value("${comparison.indexes.collections:products,products_salsify}")
+    private String collectionsProperty;
+
+    // Whether missing indexes are created during verification
+    @Value("${comparison.indexes.create:false}")
+    private boolean createMissing;
+
+    // Inject key fields from the application properties
+    @Value("${comparison.keyFields}")
+    private String keyFieldsProperty;
+
+    // Strategy used to compare the two collections
+    @Value("${comparison.mode:HASH}")
+    private ComparisonMode comparisonMode;
+
+    // Field holding the time each document was last updated
+    @Value("${comparison.incremental.timestampField:last_updated}")
+    private String timestampField;
+
+    private List<String> collections;
+
+    private List<RequiredIndex> requiredIndexes;
+
+    private volatile IndexReport lastReport;
+
+    public IndexVerificationService(final MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    /**
+     * Index the comparison queries need on every collection.
+     *
+     * @param name   The name the index is created with
+     * @param fields The fields of the index, in order, all ascending
+     */
+    public record RequiredIndex(String name, List<String> fields) {
+
+        /**
+         * Returns the index as a key specification, e.g. {@code {"category": 1, "upc": 1}}, as suggested to create it.
+         */
+        public String specification() {
+            Document keys = new Document();
+            fields.forEach(field -> keys.append(field, 1));
+            return keys.toJson();
+        }
+    }
+
+    /**
+     * Outcome of checking one required index of one collection.
+     *
+     * @param present Whether an existing index serves the required index, after any creation
+     * @param created Whether the index was created by the verification
+     */
+    public record IndexCheck(String collection, RequiredIndex index, boolean present, boolean created) {
+    }
+
+    /**
+     * Outcome of explaining one representative query on one collection.
+     *
+     * @param query          A description of the query
+     * @param collectionScan Whether the winning plan scans the whole collection
+     */
+    public record QueryPlanCheck(String collection, String query, boolean collectionScan) {
+    }
+
+    /**
+     * Result of a verification.
+     *
+     * @param indexes    The checks of every required index of every collection
+     * @param queryPlans The checks of every representative query of every collection
+     */
+    public record IndexReport(List<IndexCheck> indexes, List<QueryPlanCheck> queryPlans) {
+
+        /**
+         * Tells whether every required index is present.
+         */
+        public boolean ready() {
+            return indexes.stream().allMatch(IndexCheck::present);
+        }
+    }
+
+    /**
+     * Initializes the service by splitting the configured collections and deriving the required indexes.
+     */
+    @PostConstruct
+    public void init() {
+        collections = Arrays.stream(collectionsProperty.split(",")).map(String::trim).filter(name -> !name.isEmpty()).toList();
+        List<String> keyFields = Arrays.asList(keyFieldsProperty.split(","));
+        requiredIndexes = new ArrayList<>();
+        requiredIndexes.add(new RequiredIndex("comparison_key", keyFields));
+        requiredIndexes.add(new RequiredIndex("comparison_category_key",
+                Stream.concat(Stream.of(INPUT_PARAM_CATEGORY), keyFields.stream()).toList()));
+        if (comparisonMode == ComparisonMode.INCREMENTAL || comparisonMode == ComparisonMode.MERKLE) {
+            requiredIndexes.add(new RequiredIndex("comparison_updated", List.of(timestampField)));
+        }
+    }
+
+    /**
+     * Verifies the indexes once the application is ready, logging what is missing and which queries scan collections.
+     * A failure to reach the database is logged and left to the readiness check.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void verifyOnStartup() {
+        try {
+            verify();
+        } catch (RuntimeException e) {
+            logger.error("Could not verify the indexes of {}", collections, e);
+        }
+    }
+
+    /**
+     * Verifies the indexes of every configured collection, creating the missing ones when configured to.
+     *
+     * @return The report, also kept as the last report
+     */
+    public IndexReport verify() {
+        List<IndexCheck> indexChecks = new ArrayList<>();
+        List<QueryPlanCheck> queryPlanChecks = new ArrayList<>();
+        for (String collection : collections) {
+            List<List<String>> existingIndexes = mongoTemplate.indexOps(collection).getIndexInfo().stream()
+                    .map(IndexInfo::getIndexFields)
+                    .map(fields -> fields.stream().map(IndexField::getKey).toList())
+                    .toList();
+            for (RequiredIndex requiredIndex : requiredIndexes) {
+                boolean present = existingIndexes.stream().anyMatch(fields -> startsWith(fields, requiredIndex.fields()));
+                boolean created = false;
+                if (!present && createMissing) {
+                    Index index = new Index().named(requiredIndex.name());
+                    requiredIndex.fields().forEach(field -> index.on(field, Sort.Direction.ASC));
+                    mongoTemplate.indexOps(collection).ensureIndex(index);
+                    logger.info("Created index {} {} on {}", requiredIndex.name(), requiredIndex.specification(), collection);
+                    present = created = true;
+                }
+                if (!present) {
+                    logger.warn("Collection {} has no index serving {}; suggested index: {}", collection,
+                            requiredIndex.name(), requiredIndex.specification());
+                }
+                indexChecks.add(new IndexCheck(collection, requiredIndex, present, created));
+            }
+            for (Map.Entry<String, Document> query : representativeQueries(collection).entrySet()) {
+                boolean collectionScan = hasStage(winningPlan(explain(query.getValue())), "COLLSCAN");
+                if (collectionScan) {
+                    logger.warn("Query by {} scans collection {}", query.getKey(), collection);
+                }
+                queryPlanChecks.add(new QueryPlanCheck(collection, query.getKey(), collectionScan));
+            }
+        }
+        lastReport = new IndexReport(indexChecks, queryPlanChecks);
+        return lastReport;
+    }
+
+    /**
+     * Returns the report of the last verification, or {@code null} if no verification has completed.
+     */
+    public IndexReport lastReport() {
+        return lastReport;
+    }
+
+    /**
+     * Builds {@code find} commands shaped like the comparison queries. Values do not change the plan the server
+     * chooses, so placeholders are used.
+     */
+    private Map<String, Document> representativeQueries(String collection) {
+        List<String> keyFields = requiredIndexes.getFirst().fields();
+        Document keySort = new Document();
+        keyFields.forEach(keyField -> keySort.append(keyField, 1));
+        Map<String, Document> queries = new LinkedHashMap<>();
+        queries.put("upc", new Document("find", collection).append("filter", new Document(keyFields.getFirst(), "")));
+        queries.put("upc batch", new Document("find", collection)
+                .append("filter", new Document(keyFields.getFirst(), new Document("$in", List.of("", " ")))));
+        queries.put("category", new Document("find", collection).append("filter", new Document(INPUT_PARAM_CATEGORY, "")));
+        queries.put("key order", new Document("find", collection).append("filter", new Document()).append("sort", keySort));
+        return queries;
+    }
+
+    private Document explain(Document command) {
+        return mongoTemplate.getDb().runCommand(new Document("explain", command).append("verbosity", "queryPlanner"));
+    }
+
+    /**
+     * Returns the winning plan of an explain result; rejected plans may scan the collection without it mattering.
+     */
+    static Object winningPlan(Document explainResult) {
+        Document queryPlanner = explainResult.get("queryPlanner", Document.class);
+        return queryPlanner != null ? queryPlanner.get("winningPlan") : null;
+    }
+
+    /**
+     * Looks for a plan stage anywhere in an explain result, whatever the nesting of the plan stages.
+     */
+    static boolean hasStage(Object value, String stage) {
+        if (value instanceof Document document) {
+            if (stage.equals(document.get("stage"))) {
+                return true;
+            }
+            return document.values().stream().anyMatch(child -> hasStage(child, stage));
+        } else if (value instanceof List<?> list) {
+            return list.stream().anyMatch(element -> hasStage(element, stage));
+        }
+        return false;
+    }
+
+    private static boolean startsWith(List<String> fields, List<String> prefix) {
+        return fields.size() >= prefix.size() && fields.subList(0, prefix.size()).equals(prefix);
+    }
+}
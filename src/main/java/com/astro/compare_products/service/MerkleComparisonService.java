@@ -0,0 +1,301 @@
+package com.astro.compare_products.service;
+
+import com.astro.compare_products.common.ComparisonProgress;
+import com.astro.compare_products.common.ComparisonRules;
+import com.astro.compare_products.common.CompositeKey;
+import com.astro.compare_products.common.DiffTable;
+import com.astro.compare_products.common.DocumentFingerprint;
+import com.astro.compare_products.common.MerkleTree;
+import jakarta.annotation.PostConstruct;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Service for comparing two collections through hash trees over buckets of their documents.
+ * <p>
+ * For every collection of a pair and criteria, the service keeps a {@link MerkleTree} and one entry per document
+ * holding its key, bucket and hash in side collections. The first run reads every document to build them; later
+ * runs only apply the documents updated since the previous run. The two trees are then diffed, and only the
+ * documents in buckets whose hashes disagree are fetched from both collections and compared. With sparse drift,
+ * a run takes time in proportion to the number of updated documents and differing buckets.
+ * <p>
+ * As with {@link IncrementalComparisonService}, documents deleted from a collection are not detected by the
+ * update timestamps; removing the stored tree of a collection rebuilds it, and its entries, on the next run.
+ * The same applies after changing the ignored fields or the key fields.
+ * <p>
+ * The entries and the tree of a collection are separate writes. Before updated documents are applied, the stored
+ * tree is marked dirty, and saving the updated tree clears the mark; a tree found still marked, because a run
+ * failed or was cancelled between the two writes, no longer agrees with its entries and is rebuilt.
+ */
+@Service
+public class MerkleComparisonService {
+
+    static final String FIELD_TREE = "tree";
+    static final String FIELD_KEY = "key";
+    static final String FIELD_BUCKET = "bucket";
+    static final String FIELD_HASH = "hash";
+    static final String FIELD_LEVELS = "levels";
+    static final String FIELD_WATERMARK = "watermark";
+    static final String FIELD_DIRTY = "dirty";
+
+    // Entries written per insert while building a tree
+    private static final int INSERT_BATCH_SIZE = 1000;
+
+    Logger logger = LoggerFactory.getLogger(MerkleComparisonService.class);
+
+    private final MongoTemplate mongoTemplate;
+    private final DocumentFetcherService documentFetcherService;
+    private final DocumentComparisonService comparisonService;
+
+    // Inject key fields from the application properties
+    @Value("${comparison.keyFields}")
+    private String keyFieldsProperty;
+
+    // Field holding the time each document was last updated
+    @Value("${comparison.incremental.timestampField:last_updated}")
+    private String timestampField;
+
+    // Number of buckets the documents of a collection are grouped into
+    @Value("${comparison.merkle.buckets:4096}")
+    private int bucketCount;
+
+    // Collection holding the tree of every collection, pair and criteria
+    @Value("${comparison.merkle.treeCollection:comparison_merkle_trees}")
+    private String treeCollection;
+
+    // Collection holding the key, bucket and hash of every document of every tree
+    @Value("${comparison.merkle.entryCollection:comparison_merkle_entries}")
+    private String entryCollection;
+
+    private List<String> keyFields;
+
+    private volatile boolean entryIndexesEnsured;
+
+    public MerkleComparisonService(final MongoTemplate mongoTemplate,
+                                   final DocumentFetcherService documentFetcherService,
+                                   final DocumentComparisonService comparisonService) {
+        this.mongoTemplate = mongoTemplate;
+        this.documentFetcherService = documentFetcherService;
+        this.comparisonService = comparisonService;
+    }
+
+    /**
+     * Initializes the service by splitting the configured key fields property.
+     */
+    @PostConstruct
+    public void init() {
+        keyFields = Arrays.asList(keyFieldsProperty.split(","));
+    }
+
+    /**
+     * Brings the trees of both collections up to date and compares the documents of the buckets that differ.
+     *
+     * @param collection1 the name of the first collection.
+     * @param collection2 the name of the second collection.
+     * @param criteria    a map containing the criteria to filter documents.
+     * @param progress    progress of the run, also checked for cancellation.
+     * @return Map containing lists of documents unique to each collection and any differing documents,
+     *         in the same shape as {@link DocumentComparisonService#compareDocuments(List, List)}
+     */
+    public Map<String, Object> compareMerkle(String collection1, String collection2, Map<String, String> criteria,
+                                             ComparisonProgress progress) {
+        ensureEntryIndexes();
+        ComparisonRules rules = comparisonService.rulesFor(collection1, collection2);
+        String pairId = collection1 + "|" + collection2 + "|" + new TreeMap<>(criteria);
+        String treeId1 = pairId + "|1";
+        String treeId2 = pairId + "|2";
+        MerkleTree tree1 = refreshTree(treeId1, collection1, criteria, rules, 1, progress);
+        MerkleTree tree2 = refreshTree(treeId2, collection2, criteria, rules, 2, progress);
+
+        List<Integer> differingBuckets = tree1.differingBuckets(tree2);
+        logger.info("Merkle comparison of {} found {} of {} buckets differing", pairId, differingBuckets.size(), bucketCount);
+        if (differingBuckets.isEmpty()) {
+            Map<String, Object> reportData = new HashMap<>();
+            reportData.put("docsInFirstOnly", new ArrayList<Document>());
+            reportData.put("docsInSecondOnly", new ArrayList<Document>());
+            reportData.put("differingDocs", new DiffTable());
+            return reportData;
+        }
+
+        // Keys of either collection in the differing buckets; a key missing on one side is in the same bucket on both
+        Query keyQuery = Query.query(Criteria.where(FIELD_TREE).in(treeId1, treeId2).and(FIELD_BUCKET).in(differingBuckets));
+        keyQuery.fields().include(FIELD_KEY).exclude("_id");
+        Map<CompositeKey, Document> keys = new LinkedHashMap<>();
+        mongoTemplate.find(keyQuery, Document.class, entryCollection).forEach(entry -> {
+            Document key = entry.get(FIELD_KEY, Document.class);
+            keys.putIfAbsent(CompositeKey.of(key, keyFields), key);
+        });
+        List<Document> keyDocuments = new ArrayList<>(keys.values());
+
+        List<List<Document>> fetchedDocs = documentFetcherService.fetchDocumentsByKeysConcurrently(
+                List.of(collection1, collection2), criteria, keyDocuments);
+        progress.addFetched(1, fetchedDocs.get(0).size());
+        progress.addFetched(2, fetchedDocs.get(1).size());
+        return comparisonService.compareDocuments(fetchedDocs.get(0), fetchedDocs.get(1), rules, progress);
+    }
+
+    /**
+     * Loads the stored tree of a collection and applies the documents updated since it was stored, or builds
+     * the tree from every document if none is stored or the stored one is dirty, and stores the result.
+     */
+    private MerkleTree refreshTree(String treeId, String collectionName, Map<String, String> criteria,
+                                   ComparisonRules rules, int side, ComparisonProgress progress) {
+        Document stored = mongoTemplate.findById(treeId, Document.class, treeCollection);
+        MerkleTree tree = stored != null ? toTree(stored.getList(FIELD_LEVELS, List.class)) : null;
+        Date watermark = stored != null ? stored.getDate(FIELD_WATERMARK) : null;
+        boolean dirty = stored != null && stored.getBoolean(FIELD_DIRTY, false);
+        if (dirty) {
+            logger.warn("Merkle tree {} was left in the middle of an update and is rebuilt", treeId);
+        }
+
+        Date newWatermark;
+        if (tree == null || tree.bucketCount() != bucketCount || watermark == null || dirty) {
+            // Read the watermark before the documents, so documents updated meanwhile are applied again next time
+            newWatermark = documentFetcherService.fetchLatestTimestamp(collectionName, criteria, timestampField);
+            tree = buildTree(treeId, collectionName, criteria, rules, side, progress);
+            logger.info("Built Merkle tree {} from every document", treeId);
+        } else {
+            List<Document> updated = documentFetcherService.fetchKeysUpdatedSince(collectionName, criteria, timestampField, watermark);
+            newWatermark = watermark;
+            for (Document doc : updated) {
+                if (doc.get(timestampField) instanceof Date timestamp && timestamp.after(newWatermark)) {
+                    newWatermark = timestamp;
+                }
+            }
+            if (!updated.isEmpty()) {
+                // Until the updated tree is saved below, its stored entries no longer match the stored tree
+                mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(treeId)), Update.update(FIELD_DIRTY, true), treeCollection);
+                applyUpdates(tree, treeId, collectionName, criteria, rules, updated, side, progress);
+            }
+            logger.info("Applied {} updated documents to Merkle tree {}", updated.size(), treeId);
+        }
+
+        Document treeDocument = new Document("_id", treeId).append(FIELD_LEVELS, toLists(tree.levels()));
+        if (newWatermark != null) {
+            treeDocument.append(FIELD_WATERMARK, newWatermark);
+        }
+        mongoTemplate.save(treeDocument, treeCollection);
+        return tree;
+    }
+
+    /**
+     * Reads every document of a collection into a new tree, replacing the stored entries of the tree.
+     */
+    private MerkleTree buildTree(String treeId, String collectionName, Map<String, String> criteria,
+                                 ComparisonRules rules, int side, ComparisonProgress progress) {
+        mongoTemplate.remove(Query.query(Criteria.where(FIELD_TREE).is(treeId)), entryCollection);
+        MerkleTree tree = MerkleTree.empty(bucketCount);
+        List<Document> entries = new ArrayList<>(INSERT_BATCH_SIZE);
+        try (Stream<RawBsonDocument> documents = documentFetcherService.streamRawDocuments(collectionName, criteria)) {
+            Iterator<RawBsonDocument> iterator = documents.iterator();
+            while (iterator.hasNext()) {
+                progress.checkCancelled();
+                Document doc = RawDocumentComparator.decode(iterator.next());
+                progress.addFetched(side, 1);
+                entries.add(addToTree(tree, treeId, doc, rules));
+                if (entries.size() == INSERT_BATCH_SIZE) {
+                    mongoTemplate.insert(entries, entryCollection);
+                    entries = new ArrayList<>(INSERT_BATCH_SIZE);
+                }
+            }
+        }
+        if (!entries.isEmpty()) {
+            mongoTemplate.insert(entries, entryCollection);
+        }
+        return tree;
+    }
+
+    /**
+     * Replaces the hashes of the updated documents in the tree and their stored entries.
+     */
+    private void applyUpdates(MerkleTree tree, String treeId, String collectionName, Map<String, String> criteria,
+                              ComparisonRules rules, List<Document> updated, int side, ComparisonProgress progress) {
+        Map<CompositeKey, Document> keys = new LinkedHashMap<>();
+        updated.forEach(doc -> keys.putIfAbsent(CompositeKey.of(doc, keyFields), keyDocument(doc)));
+        List<Document> keyDocuments = new ArrayList<>(keys.values());
+
+        // Take the former hashes of the updated keys out of the tree, whether or not the documents still match
+        Query entryQuery = Query.query(Criteria.where(FIELD_TREE).is(treeId).and(FIELD_KEY).in(keyDocuments));
+        for (Document entry : mongoTemplate.find(entryQuery, Document.class, entryCollection)) {
+            tree.remove(entry.getInteger(FIELD_BUCKET), entry.getLong(FIELD_HASH));
+        }
+        mongoTemplate.remove(entryQuery, entryCollection);
+
+        List<Document> documents = documentFetcherService.fetchDocumentsByKeys(collectionName, criteria, keyDocuments);
+        progress.addFetched(side, documents.size());
+        List<Document> entries = new ArrayList<>(documents.size());
+        for (Document doc : documents) {
+            progress.checkCancelled();
+            entries.add(addToTree(tree, treeId, doc, rules));
+        }
+        if (!entries.isEmpty()) {
+            mongoTemplate.insert(entries, entryCollection);
+        }
+    }
+
+    /**
+     * Adds a document to its bucket of the tree and returns its entry.
+     */
+    private Document addToTree(MerkleTree tree, String treeId, Document doc, ComparisonRules rules) {
+        CompositeKey key = CompositeKey.of(doc, keyFields);
+        int bucket = MerkleTree.bucketOf(key, bucketCount);
+        long hash = MerkleTree.documentHash(key, DocumentFingerprint.contentHash(doc, rules));
+        tree.add(bucket, hash);
+        return new Document(FIELD_TREE, treeId).append(FIELD_KEY, keyDocument(doc))
+                .append(FIELD_BUCKET, bucket).append(FIELD_HASH, hash);
+    }
+
+    private Document keyDocument(Document doc) {
+        Document key = new Document();
+        keyFields.forEach(keyField -> key.append(keyField, doc.get(keyField)));
+        return key;
+    }
+
+    /**
+     * Creates the indexes the entry lookups by bucket and by key rely on, once per service.
+     */
+    private void ensureEntryIndexes() {
+        if (!entryIndexesEnsured) {
+            mongoTemplate.indexOps(entryCollection).ensureIndex(new Index().on(FIELD_TREE, Sort.Direction.ASC).on(FIELD_BUCKET, Sort.Direction.ASC));
+            mongoTemplate.indexOps(entryCollection).ensureIndex(new Index().on(FIELD_TREE, Sort.Direction.ASC).on(FIELD_KEY, Sort.Direction.ASC));
+            entryIndexesEnsured = true;
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static MerkleTree toTree(List<List> levels) {
+        if (levels == null) {
+            return null;
+        }
+        long[][] tree = new long[levels.size()][];
+        for (int level = 0; level < tree.length; level++) {
+            List<?> hashes = levels.get(level);
+            tree[level] = new long[hashes.size()];
+            for (int node = 0; node < hashes.size(); node++) {
+                tree[level][node] = ((Number) hashes.get(node)).longValue();
+            }
+        }
+        return MerkleTree.of(tree);
+    }
+
+    private static List<List<Long>> toLists(long[][] levels) {
+        List<List<Long>> lists = new ArrayList<>(levels.length);
+        for (long[] level : levels) {
+            lists.add(Arrays.stream(level).boxed().toList());
+        }
+        return lists;
+    }
+}
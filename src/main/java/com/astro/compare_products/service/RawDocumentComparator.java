@@ -0,0 +1,269 @@
+package com.astro.compare_products.service;
+
+import com.astro.compare_products.common.ComparisonRules;
+import com.astro.compare_products.common.CompositeKey;
+import com.astro.compare_products.common.DiffTable;
+import org.bson.BsonSerializationException;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.types.ObjectId;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Compares documents in their encoded BSON form, without decoding them into {@link Document} trees.
+ * <p>
+ * The fields of two documents are walked side by side and the encoded bytes of their values compared
+ * directly. Equal bytes mean equal values, so equal fields are neither decoded nor allocated. Embedded
+ * documents with differing bytes are descended into, and only values whose bytes differ are decoded, to
+ * confirm the difference with {@link Objects#equals(Object, Object)} and to report it; differing arrays are
+ * decoded and diffed element by element. The differences found are the same as those of the field-by-field
+ * comparison of the decoded documents.
+ */
+final class RawDocumentComparator {
+
+    private static final byte DOUBLE = 0x01;
+    private static final byte STRING = 0x02;
+    private static final byte DOCUMENT = 0x03;
+    private static final byte ARRAY = 0x04;
+    private static final byte BINARY = 0x05;
+    private static final byte UNDEFINED = 0x06;
+    private static final byte OBJECT_ID = 0x07;
+    private static final byte BOOLEAN = 0x08;
+    private static final byte DATE_TIME = 0x09;
+    private static final byte NULL = 0x0A;
+    private static final byte REGULAR_EXPRESSION = 0x0B;
+    private static final byte DB_POINTER = 0x0C;
+    private static final byte JAVASCRIPT = 0x0D;
+    private static final byte SYMBOL = 0x0E;
+    private static final byte JAVASCRIPT_WITH_SCOPE = 0x0F;
+    private static final byte INT32 = 0x10;
+    private static final byte TIMESTAMP = 0x11;
+    private static final byte INT64 = 0x12;
+    private static final byte DECIMAL128 = 0x13;
+    private static final byte MIN_KEY = (byte) 0xFF;
+    private static final byte MAX_KEY = 0x7F;
+
+    private static final DocumentCodec DOCUMENT_CODEC = new DocumentCodec();
+
+    // Key field names in UTF-8, so names can be matched without decoding them
+    private final byte[][] keyFieldNames;
+
+    private final ArrayDiffer arrayDiffer;
+
+    RawDocumentComparator(List<String> keyFields, ArrayDiffer arrayDiffer) {
+        this.arrayDiffer = arrayDiffer;
+        keyFieldNames = keyFields.stream().map(field -> field.getBytes(StandardCharsets.UTF_8)).toArray(byte[][]::new);
+    }
+
+    /**
+     * Compares the fields of the first document with the same fields of the second, skipping ignored paths,
+     * like the field-by-field comparison of decoded documents.
+     *
+     * @param doc1        The first document
+     * @param doc2        The second document
+     * @param rules       The comparison rules of the documents
+     * @param differences Table the differences are added to, as differences of its pending document
+     */
+    void compareFields(RawBsonDocument doc1, RawBsonDocument doc2, ComparisonRules rules, DiffTable differences) {
+        ByteBuffer buffer1 = doc1.getByteBuffer().asNIO();
+        ByteBuffer buffer2 = doc2.getByteBuffer().asNIO();
+        compareFields(buffer1.array(), buffer1.arrayOffset() + buffer1.position(),
+                buffer2.array(), buffer2.arrayOffset() + buffer2.position(), rules, differences, DiffTable.ROOT);
+    }
+
+    /**
+     * Builds the key of a document from its key fields, decoding only those fields.
+     *
+     * @param doc The document
+     * @return The key of the document
+     */
+    CompositeKey key(RawBsonDocument doc) {
+        Object[] values = new Object[keyFieldNames.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = keyFieldValue(doc, i);
+        }
+        return CompositeKey.of(values);
+    }
+
+    /**
+     * Decodes the value of a key field of a document, without decoding the other fields.
+     *
+     * @param doc   The document
+     * @param index The position of the key field
+     * @return The decoded value, or {@code null} if the field is missing
+     */
+    Object keyFieldValue(RawBsonDocument doc, int index) {
+        ByteBuffer buffer = doc.getByteBuffer().asNIO();
+        byte[] bytes = buffer.array();
+        int start = buffer.arrayOffset() + buffer.position();
+        byte[] name = keyFieldNames[index];
+        int element = findElement(bytes, start + 4, start + readInt(bytes, start) - 1, name, 0, name.length);
+        return element >= 0 ? decodeValue(bytes, element) : null;
+    }
+
+    /**
+     * Decodes a whole document, for reporting it.
+     */
+    static Document decode(RawBsonDocument doc) {
+        return doc.decode(DOCUMENT_CODEC);
+    }
+
+    private void compareFields(byte[] bytes1, int doc1, byte[] bytes2, int doc2, ComparisonRules rules,
+                               DiffTable differences, int path) {
+        int end1 = doc1 + readInt(bytes1, doc1) - 1;
+        int end2 = doc2 + readInt(bytes2, doc2) - 1;
+        int element1 = doc1 + 4;
+        // Documents usually list their fields in the same order, so the element at the same position is tried first
+        int expected2 = doc2 + 4;
+
+        while (element1 < end1) {
+            int name1 = element1 + 1;
+            int nameEnd1 = indexOfZero(bytes1, name1);
+            int value1 = nameEnd1 + 1;
+            int next1 = value1 + valueSize(bytes1, bytes1[element1], value1);
+
+            ComparisonRules fieldRules = rules.child(bytes1, name1, nameEnd1);
+            if (!fieldRules.isIgnored()) {
+                int element2 = expected2 < end2 && nameEquals(bytes1, name1, nameEnd1, bytes2, expected2 + 1)
+                        ? expected2
+                        : findElement(bytes2, doc2 + 4, end2, bytes1, name1, nameEnd1 - name1);
+                if (element2 >= 0) {
+                    int value2 = element2 + 1 + (nameEnd1 - name1) + 1;
+                    int next2 = value2 + valueSize(bytes2, bytes2[element2], value2);
+                    expected2 = next2;
+                    compareValues(bytes1, element1, value1, next1, bytes2, element2, value2, next2, fieldRules, differences, path);
+                } else {
+                    // A missing field compares like a null value
+                    recordIfDifferent(bytes1, element1, decodeValue(bytes1, element1), null, differences, path);
+                }
+            }
+            element1 = next1;
+        }
+    }
+
+    private void compareValues(byte[] bytes1, int element1, int value1, int next1, byte[] bytes2, int element2,
+                               int value2, int next2, ComparisonRules fieldRules, DiffTable differences, int path) {
+        byte type1 = bytes1[element1];
+        byte type2 = bytes2[element2];
+        if (type1 == type2 && Arrays.equals(bytes1, value1, next1, bytes2, value2, next2)) {
+            return;
+        }
+        if (type1 == DOCUMENT && type2 == DOCUMENT) {
+            compareFields(bytes1, value1, bytes2, value2, fieldRules, differences, differences.pathId(path, fieldName(bytes1, element1)));
+            return;
+        }
+        // Differing bytes can still decode to equal values, such as arrays of documents with reordered fields
+        Object decoded1 = decodeValue(bytes1, element1);
+        Object decoded2 = decodeValue(bytes2, element2);
+        if (decoded1 instanceof List<?> list1 && decoded2 instanceof List<?> list2) {
+            if (!list1.equals(list2)) {
+                arrayDiffer.diff(path, fieldName(bytes1, element1), fieldRules, list1, list2, differences);
+            }
+            return;
+        }
+        recordIfDifferent(bytes1, element1, decoded1, decoded2, differences, path);
+    }
+
+    private static void recordIfDifferent(byte[] bytes1, int element1, Object value1, Object value2,
+                                          DiffTable differences, int path) {
+        if (!Objects.equals(value1, value2)) {
+            differences.add(differences.pathId(path, fieldName(bytes1, element1)), value1, value2);
+        }
+    }
+
+    /**
+     * Finds the element with the given name among the elements of a document.
+     *
+     * @return The position of the element, or -1 if the document has no such field
+     */
+    private static int findElement(byte[] bytes, int element, int end, byte[] nameBytes, int name, int nameLength) {
+        while (element < end) {
+            int elementName = element + 1;
+            int nameEnd = indexOfZero(bytes, elementName);
+            if (Arrays.equals(bytes, elementName, nameEnd, nameBytes, name, name + nameLength)) {
+                return element;
+            }
+            element = nameEnd + 1 + valueSize(bytes, bytes[element], nameEnd + 1);
+        }
+        return -1;
+    }
+
+    private static boolean nameEquals(byte[] bytes1, int name1, int nameEnd1, byte[] bytes2, int name2) {
+        int length = nameEnd1 - name1;
+        return name2 + length < bytes2.length && bytes2[name2 + length] == 0
+                && Arrays.equals(bytes1, name1, nameEnd1, bytes2, name2, name2 + length);
+    }
+
+    private static String fieldName(byte[] bytes, int element) {
+        return new String(bytes, element + 1, indexOfZero(bytes, element + 1) - element - 1, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decodes the value of a single element, reading common scalar types directly and anything else
+     * through a one-field document.
+     */
+    private static Object decodeValue(byte[] bytes, int element) {
+        int value = indexOfZero(bytes, element + 1) + 1;
+        return switch (bytes[element]) {
+            case STRING -> new String(bytes, value + 4, readInt(bytes, value) - 1, StandardCharsets.UTF_8);
+            case INT32 -> readInt(bytes, value);
+            case INT64 -> readLong(bytes, value);
+            case DOUBLE -> Double.longBitsToDouble(readLong(bytes, value));
+            case BOOLEAN -> bytes[value] != 0;
+            case DATE_TIME -> new Date(readLong(bytes, value));
+            case OBJECT_ID -> new ObjectId(ByteBuffer.wrap(bytes, value, 12));
+            case NULL -> null;
+            default -> {
+                int elementLength = value + valueSize(bytes, bytes[element], value) - element;
+                byte[] single = new byte[4 + elementLength + 1];
+                ByteBuffer.wrap(single).order(ByteOrder.LITTLE_ENDIAN).putInt(single.length);
+                System.arraycopy(bytes, element, single, 4, elementLength);
+                yield new RawBsonDocument(single).decode(DOCUMENT_CODEC).values().iterator().next();
+            }
+        };
+    }
+
+    /**
+     * Returns the number of bytes the value of the given BSON type occupies, starting at the given position.
+     */
+    private static int valueSize(byte[] bytes, byte type, int value) {
+        return switch (type) {
+            case DOUBLE, DATE_TIME, TIMESTAMP, INT64 -> 8;
+            case STRING, JAVASCRIPT, SYMBOL -> 4 + readInt(bytes, value);
+            case DOCUMENT, ARRAY, JAVASCRIPT_WITH_SCOPE -> readInt(bytes, value);
+            case BINARY -> 5 + readInt(bytes, value);
+            case UNDEFINED, NULL, MIN_KEY, MAX_KEY -> 0;
+            case OBJECT_ID -> 12;
+            case BOOLEAN -> 1;
+            case REGULAR_EXPRESSION -> {
+                int options = indexOfZero(bytes, value) + 1;
+                yield indexOfZero(bytes, options) + 1 - value;
+            }
+            case DB_POINTER -> 4 + readInt(bytes, value) + 12;
+            case INT32 -> 4;
+            case DECIMAL128 -> 16;
+            default -> throw new BsonSerializationException("Unsupported BSON type " + type);
+        };
+    }
+
+    private static int indexOfZero(byte[] bytes, int position) {
+        while (bytes[position] != 0) {
+            position++;
+        }
+        return position;
+    }
+
+    private static int readInt(byte[] bytes, int position) {
+        return (bytes[position] & 0xff) | (bytes[position + 1] & 0xff) << 8
+                | (bytes[position + 2] & 0xff) << 16 | (bytes[position + 3] & 0xff) << 24;
+    }
+
+    private static long readLong(byte[] bytes, int position) {
+        return (readInt(bytes, position) & 0xffffffffL) | (long) readInt(bytes, position + 4) << 32;
+    }
+}
@@ -0,0 +1,130 @@
+package com.astro.compare_products.service;
+
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Service splitting the sections of stored report data into pages navigated with opaque cursors.
+ * <p>
+ * A cursor identifies the report data and the section it was issued for, and the position in the section
+ * where the next page starts, so following the cursors walks a section exactly once without re-running the
+ * comparison. Pages can be restricted to entries involving a field path; a filtered page keeps scanning until
+ * it is full or the section ends.
+ */
+@Service
+public class ResultPageService {
+
+    public static final Set<String> SECTIONS = Set.of("docsInFirstOnly", "docsInSecondOnly", "differingDocs");
+
+    private static final String CURSOR_SEPARATOR = "|";
+
+    // Number of entries in a page when the request does not ask for a page size
+    @Value("${comparison.pages.defaultSize:100}")
+    private int defaultPageSize;
+
+    // Largest number of entries a single page may hold
+    @Value("${comparison.pages.maxSize:1000}")
+    private int maxPageSize;
+
+    /**
+     * One page of a report section.
+     *
+     * @param section    The section the entries belong to
+     * @param items      The entries of the page, in section order
+     * @param nextCursor Cursor of the next page, or {@code null} if the section has no further entries
+     * @param total      Number of entries in the whole section, before filtering
+     */
+    public record ResultPage(String section, List<Object> items, String nextCursor, int total) {
+    }
+
+    /**
+     * Returns a page of a section of report data.
+     *
+     * @param resultId  Identifier of the report data, bound into the cursors so they cannot be replayed on other data
+     * @param result    The report data
+     * @param section   One of {@link #SECTIONS}
+     * @param cursor    Cursor returned with the previous page, or {@code null} for the first page
+     * @param pageSize  Maximum number of entries in the page, or {@code null} for the default; capped at the maximum page size
+     * @param fieldPath Dotted field path entries must involve, or {@code null} for all entries
+     * @return The page
+     * @throws IllegalArgumentException if the section is unknown or the cursor was not issued for this section of the data
+     */
+    public ResultPage page(String resultId, Map<String, Object> result, String section, String cursor,
+                           Integer pageSize, String fieldPath) {
+        if (!SECTIONS.contains(section)) {
+            throw new IllegalArgumentException("Unknown section " + section + ", expected one of " + SECTIONS);
+        }
+        int limit = Math.clamp(pageSize != null ? pageSize : defaultPageSize, 1, maxPageSize);
+        List<?> entries = (List<?>) result.get(section);
+
+        int position = cursor != null ? decodeCursor(cursor, resultId, section) : 0;
+        List<Object> items = new ArrayList<>(Math.min(limit, entries.size()));
+        while (position < entries.size() && items.size() < limit) {
+            Object entry = entries.get(position++);
+            if (fieldPath == null || involvesField(entry, fieldPath)) {
+                items.add(entry);
+            }
+        }
+        String nextCursor = position < entries.size() ? encodeCursor(resultId, section, position) : null;
+        return new ResultPage(section, items, nextCursor, entries.size());
+    }
+
+    /**
+     * Tells whether an entry involves a field path: a unique document that contains the path, or a differing
+     * document with a difference at the path, below it or at one of its array elements.
+     */
+    @SuppressWarnings("unchecked")
+    private static boolean involvesField(Object entry, String fieldPath) {
+        if (entry instanceof Document document) {
+            return containsPath(document, fieldPath);
+        }
+        String prefix = fieldPath + ".";
+        String elementPrefix = fieldPath + "[";
+        for (String differingField : ((Map<String, Object>) entry).keySet()) {
+            if (differingField.equals(fieldPath) || differingField.startsWith(prefix) || differingField.startsWith(elementPrefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean containsPath(Document document, String fieldPath) {
+        Object value = document;
+        for (String field : fieldPath.split("\\.")) {
+            if (!(value instanceof Document nested) || !nested.containsKey(field)) {
+                return false;
+            }
+            value = nested.get(field);
+        }
+        return true;
+    }
+
+    private static String encodeCursor(String resultId, String section, int position) {
+        String cursor = resultId + CURSOR_SEPARATOR + section + CURSOR_SEPARATOR + position;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static int decodeCursor(String cursor, String resultId, String section) {
+        try {
+            String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            String expectedPrefix = resultId + CURSOR_SEPARATOR + section + CURSOR_SEPARATOR;
+            if (decoded.startsWith(expectedPrefix)) {
+                int position = Integer.parseInt(decoded.substring(expectedPrefix.length()));
+                if (position >= 0) {
+                    return position;
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            // Malformed Base64 or position, reported below like any other foreign cursor
+        }
+        throw new IllegalArgumentException("Cursor was not issued for section " + section + " of this result");
+    }
+}
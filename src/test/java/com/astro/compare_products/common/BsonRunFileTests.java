@@ -0,0 +1,74 @@
+package com.astro.compare_products.common;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the {@link BsonRunFile} class.
+ * <p>
+ * This class verifies that documents are read back unchanged and in order, and that a truncated file is rejected.
+ */
+class BsonRunFileTests {
+
+    @TempDir
+    private Path directory;
+
+    /**
+     * Tests that appended documents are read back equal and in order, with their sizes counted.
+     */
+    @Test
+    void testForEach_ReadsAppendedDocumentsInOrder() throws IOException {
+        // Arrange
+        List<RawBsonDocument> documents = List.of(
+                raw(new Document("upc", "1").append("tags", List.of("a", "b"))),
+                raw(new Document("upc", "2").append("attributes", new Document("color", "red"))));
+        BsonRunFile runFile = new BsonRunFile(directory.resolve("run.bson"));
+
+        // Act
+        for (RawBsonDocument document : documents) {
+            runFile.append(document);
+        }
+        runFile.close();
+        List<RawBsonDocument> read = new ArrayList<>();
+        runFile.forEach(read::add);
+
+        // Assert
+        assertEquals(documents, read);
+        assertEquals(2, runFile.documents());
+        assertEquals(Files.size(runFile.path()), runFile.bytes());
+    }
+
+    /**
+     * Tests that a file ending in the middle of a document fails instead of dropping the document.
+     */
+    @Test
+    void testForEach_TruncatedFile_Throws() throws IOException {
+        // Arrange
+        BsonRunFile runFile = new BsonRunFile(directory.resolve("run.bson"));
+        runFile.append(raw(new Document("upc", "1")));
+        runFile.close();
+        try (FileChannel channel = FileChannel.open(runFile.path(), StandardOpenOption.WRITE)) {
+            channel.truncate(runFile.bytes() - 1);
+        }
+
+        // Act & Assert
+        assertThrows(IOException.class, () -> runFile.forEach(document -> { }));
+    }
+
+    private static RawBsonDocument raw(Document document) {
+        return new RawBsonDocument(document, new DocumentCodec());
+    }
+}
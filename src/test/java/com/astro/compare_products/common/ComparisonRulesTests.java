@@ -0,0 +1,77 @@
+package com.astro.compare_products.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the {@link ComparisonRules} class.
+ * <p>
+ * This class verifies that ignored paths and array identity fields are found at their own path only,
+ * that wildcards match any field or array element, and that encoded field names step the same way.
+ */
+class ComparisonRulesTests {
+
+    private final ComparisonRules rules = ComparisonRules.compile(
+            List.of("_id", " price ", "attributes.last_updated", "variants.*.last_updated", "", "media"),
+            Map.of("variants", "sku", "media.images", "url"));
+
+    /**
+     * Tests that an ignored path applies to the field at that path only, not to fields of the same name elsewhere.
+     */
+    @Test
+    void testChild_IgnoredPathsAreAnchored() {
+        // Assert
+        assertTrue(rules.child("price").isIgnored());
+        assertTrue(rules.child("attributes").child("last_updated").isIgnored());
+        assertFalse(rules.child("last_updated").isIgnored());
+        assertFalse(rules.child("attributes").child("price").isIgnored());
+        assertFalse(rules.child("name").isIgnored());
+        assertSame(ComparisonRules.NONE, rules.child("name"));
+    }
+
+    /**
+     * Tests that wildcard segments match array elements and that arrays get their identity field.
+     */
+    @Test
+    void testElements_WildcardAndArrayIdentity() {
+        // Arrange
+        ComparisonRules variants = rules.child("variants");
+
+        // Assert
+        assertEquals("sku", variants.arrayIdentityField());
+        assertTrue(variants.elements().child("last_updated").isIgnored());
+        assertFalse(variants.elements().child("stock").isIgnored());
+        assertNull(rules.child("attributes").arrayIdentityField());
+    }
+
+    /**
+     * Tests that rules below an ignored path are dropped along with the whole subtree.
+     */
+    @Test
+    void testCompile_IgnoredSubtreeDropsNestedRules() {
+        // Arrange
+        ComparisonRules media = rules.child("media");
+
+        // Assert
+        assertTrue(media.isIgnored());
+        assertNull(media.child("images").arrayIdentityField());
+    }
+
+    /**
+     * Tests that field names given in UTF-8 step to the same rules as decoded names.
+     */
+    @Test
+    void testChild_EncodedNamesMatchDecodedNames() {
+        // Arrange
+        byte[] bytes = "xattributesx".getBytes(StandardCharsets.UTF_8);
+
+        // Assert
+        assertSame(rules.child("attributes"), rules.child(bytes, 1, 11));
+        assertSame(rules.child("attr"), rules.child(bytes, 1, 5));
+    }
+}
@@ -0,0 +1,139 @@
+package com.astro.compare_products.common;
+
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.Decimal128;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the {@link CompositeKey} class.
+ * <p>
+ * This class verifies key equality across value types, that separator characters inside
+ * key values cannot produce false matches, and that keys are ordered like MongoDB sorts them.
+ */
+class CompositeKeyTests {
+
+    private static final List<String> KEY_FIELDS = List.of("keyField1", "keyField2");
+
+    /**
+     * Tests that values containing underscores do not make different keys equal,
+     * as they did when keys were built by joining the values with underscores.
+     */
+    @Test
+    void testEquals_ValuesContainingSeparatorsDoNotCollide() {
+        // Arrange
+        CompositeKey key1 = CompositeKey.of(new Document("keyField1", "a_b").append("keyField2", "c"), KEY_FIELDS);
+        CompositeKey key2 = CompositeKey.of(new Document("keyField1", "a").append("keyField2", "b_c"), KEY_FIELDS);
+
+        // Assert
+        assertNotEquals(key1, key2);
+    }
+
+    /**
+     * Tests that the same integral number stored with different numeric types produces equal keys.
+     */
+    @Test
+    void testEquals_IntegralNumbersOfDifferentTypesAreEqual() {
+        // Arrange
+        CompositeKey intKey = CompositeKey.of(new Document("keyField1", 42).append("keyField2", "US"), KEY_FIELDS);
+        CompositeKey longKey = CompositeKey.of(new Document("keyField1", 42L).append("keyField2", "US"), KEY_FIELDS);
+        CompositeKey doubleKey = CompositeKey.of(new Document("keyField1", 42.0).append("keyField2", "US"), KEY_FIELDS);
+
+        // Assert
+        assertEquals(intKey, longKey);
+        assertEquals(intKey, doubleKey);
+        assertEquals(intKey.hashCode(), doubleKey.hashCode());
+        assertEquals(intKey.fingerprint(), longKey.fingerprint());
+        assertEquals(0, intKey.compareTo(doubleKey));
+    }
+
+    /**
+     * Tests that a missing key field and an empty string are different keys.
+     */
+    @Test
+    void testEquals_MissingFieldDiffersFromEmptyString() {
+        // Arrange
+        CompositeKey missingKey = CompositeKey.of(new Document("keyField1", "A"), KEY_FIELDS);
+        CompositeKey emptyKey = CompositeKey.of(new Document("keyField1", "A").append("keyField2", ""), KEY_FIELDS);
+
+        // Assert
+        assertNotEquals(missingKey, emptyKey);
+        assertNull(missingKey.get(1));
+    }
+
+    /**
+     * Tests that keys are ordered like MongoDB sorts values: missing values first, then numbers
+     * by numeric value, then strings by code point.
+     */
+    @Test
+    void testCompareTo_FollowsMongoSortOrder() {
+        // Arrange
+        CompositeKey missing = CompositeKey.of(new Document(), KEY_FIELDS);
+        CompositeKey nine = CompositeKey.of(new Document("keyField1", 9), KEY_FIELDS);
+        CompositeKey tenAndAHalf = CompositeKey.of(new Document("keyField1", 10.5), KEY_FIELDS);
+        CompositeKey bmpString = CompositeKey.of(new Document("keyField1", "～"), KEY_FIELDS);
+        CompositeKey supplementaryString = CompositeKey.of(new Document("keyField1", "😀"), KEY_FIELDS);
+
+        // Assert
+        assertTrue(missing.compareTo(nine) < 0);
+        assertTrue(nine.compareTo(tenAndAHalf) < 0);
+        assertTrue(tenAndAHalf.compareTo(bmpString) < 0);
+        assertTrue(bmpString.compareTo(supplementaryString) < 0);
+    }
+
+    /**
+     * Tests that the fingerprint and key equality read from documents agree with the keys built from them.
+     */
+    @Test
+    void testFingerprintAndSameKey_AgreeWithBuiltKeys() {
+        // Arrange
+        Document[] documents = {
+                new Document("keyField1", 42).append("keyField2", "US"),
+                new Document("keyField1", 42L).append("keyField2", "US"),
+                new Document("keyField1", 42.0).append("keyField2", "US"),
+                new Document("keyField1", 42.5).append("keyField2", "US"),
+                new Document("keyField1", "42").append("keyField2", "US"),
+                new Document("keyField1", 42),
+                new Document("keyField1", -0.0).append("keyField2", "US"),
+                new Document("keyField1", 0).append("keyField2", "US")};
+
+        // Act & Assert
+        for (Document document1 : documents) {
+            CompositeKey key1 = CompositeKey.of(document1, KEY_FIELDS);
+            assertEquals(key1.fingerprint(), CompositeKey.fingerprint(document1, KEY_FIELDS));
+            for (Document document2 : documents) {
+                assertEquals(key1.equals(CompositeKey.of(document2, KEY_FIELDS)), CompositeKey.sameKey(document1, document2, KEY_FIELDS),
+                        document1 + " / " + document2);
+            }
+        }
+    }
+
+    /**
+     * Tests that keys compare as equal exactly when they are equal, including integral decimals, numbers that are
+     * equal as doubles and values of different types with the same string form.
+     */
+    @Test
+    void testCompareTo_ConsistentWithEquals() {
+        // Arrange
+        Object[] values = {1, 1L, 1.0, Decimal128.parse("1"), Decimal128.parse("1.00"), Decimal128.parse("-0"), 0L,
+                1.5, Decimal128.parse("1.5"), Decimal128.parse("1.50"), (1L << 53) + 1, (double) (1L << 53),
+                "507f1f77bcf86cd799439011", new ObjectId("507f1f77bcf86cd799439011"), new Binary(new byte[]{1}), new BsonTimestamp(1)};
+
+        // Act & Assert
+        for (Object value1 : values) {
+            CompositeKey key1 = CompositeKey.of(new Object[]{value1});
+            for (Object value2 : values) {
+                CompositeKey key2 = CompositeKey.of(new Object[]{value2});
+                assertEquals(key1.equals(key2), key1.compareTo(key2) == 0, value1 + " / " + value2);
+                assertEquals(Integer.signum(key1.compareTo(key2)), -Integer.signum(key2.compareTo(key1)), value1 + " / " + value2);
+            }
+        }
+        assertEquals(CompositeKey.of(new Object[]{1L}), CompositeKey.of(new Object[]{Decimal128.parse("1.00")}));
+    }
+}
@@ -0,0 +1,89 @@
+package com.astro.compare_products.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the {@link DiffTable} class.
+ * <p>
+ * This class verifies that field paths are interned once, that documents without differences are not kept,
+ * and that the rows and list views of a table agree, also after appending another table.
+ */
+class DiffTableTests {
+
+    private final DiffTable table = new DiffTable();
+
+    /**
+     * Tests that stepping to the same field from the same parent returns the same path id, with its dotted path.
+     */
+    @Test
+    void testPathId_InternsDottedPaths() {
+        // Act
+        int attributes = table.pathId(DiffTable.ROOT, "attributes");
+        int color = table.pathId(attributes, "color");
+
+        // Assert
+        assertEquals(color, table.pathId(table.pathId(DiffTable.ROOT, "attributes"), "color"));
+        assertNotEquals(color, table.pathId(DiffTable.ROOT, "color"));
+        assertEquals("attributes.color", table.path(color));
+    }
+
+    /**
+     * Tests that a document is kept only if differences were added to it, and that its rows keep their order.
+     */
+    @Test
+    void testEndDocument_KeepsDocumentsWithDifferences() {
+        // Arrange
+        int name = table.pathId(DiffTable.ROOT, "name");
+        int upc = table.pathId(DiffTable.ROOT, "upc");
+
+        // Act
+        boolean emptyKept = table.endDocument();
+        table.add(name, "A", "B");
+        table.add(upc, "1", "1");
+        boolean pendingUpc = table.hasPendingPath(upc);
+        boolean differingKept = table.endDocument();
+
+        // Assert
+        assertFalse(emptyKept);
+        assertTrue(pendingUpc);
+        assertTrue(differingKept);
+        assertFalse(table.hasPendingPath(upc));
+        assertEquals(1, table.size());
+        assertEquals(2, table.rowCount());
+        assertEquals("1", table.value1(0, "upc"));
+        assertNull(table.value1(0, "price"));
+        List<DiffTable.Row> rows = new ArrayList<>();
+        table.rows(0).forEach(rows::add);
+        assertEquals(List.of(new DiffTable.Row("name", "A", "B"), new DiffTable.Row("upc", "1", "1")), rows);
+    }
+
+    /**
+     * Tests that appended documents keep their dotted paths and values, and read the same through the list view.
+     */
+    @Test
+    void testAddAll_AppendsDocumentsOfAnotherTable() {
+        // Arrange
+        table.add(table.pathId(DiffTable.ROOT, "name"), "A", "B");
+        table.endDocument();
+        DiffTable other = new DiffTable();
+        other.add(other.pathId(other.pathId(DiffTable.ROOT, "attributes"), "color"), "red", null);
+        other.endDocument();
+
+        // Act
+        table.addAll(other);
+
+        // Assert
+        assertEquals(2, table.size());
+        assertEquals(1, other.size());
+        assertEquals(Map.of("name", Map.of("collection1", "A", "collection2", "B")), table.get(0));
+        assertEquals("attributes.color", table.rowPath(table.firstRow(1)));
+        assertNull(table.get(1).get("attributes.color").get("collection2"));
+        assertThrows(IndexOutOfBoundsException.class, () -> table.get(2));
+    }
+}
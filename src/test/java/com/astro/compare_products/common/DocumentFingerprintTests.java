@@ -0,0 +1,94 @@
+package com.astro.compare_products.common;
+
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+/**
+ * Unit tests for the {@link DocumentFingerprint} class.
+ * <p>
+ * This class verifies that content hashes agree with the field-by-field comparison: equal for
+ * documents that only differ in field order or ignored fields, different for changed values.
+ */
+class DocumentFingerprintTests {
+
+    private static final ComparisonRules RULES =
+            ComparisonRules.compile(List.of("_id", "last_updated", "attributes.last_updated"), Map.of());
+
+    /**
+     * Tests that the hash does not depend on the order of fields, at the top level or in sub-documents.
+     */
+    @Test
+    void testContentHash_IndependentOfFieldOrder() {
+        // Arrange
+        Document doc1 = new Document("name", "Shirt").append("price", 10.5)
+                .append("attributes", new Document("color", "red").append("size", "M"));
+        Document doc2 = new Document("attributes", new Document("size", "M").append("color", "red"))
+                .append("price", 10.5).append("name", "Shirt");
+
+        // Assert
+        assertEquals(DocumentFingerprint.contentHash(doc1, RULES), DocumentFingerprint.contentHash(doc2, RULES));
+    }
+
+    /**
+     * Tests that ignored fields, including those of sub-documents, do not contribute to the hash.
+     */
+    @Test
+    void testContentHash_LeavesOutIgnoredFields() {
+        // Arrange
+        Document doc1 = new Document("_id", 1).append("name", "Shirt")
+                .append("attributes", new Document("color", "red").append("last_updated", 100L));
+        Document doc2 = new Document("_id", 2).append("name", "Shirt")
+                .append("attributes", new Document("color", "red").append("last_updated", 200L));
+
+        // Assert
+        assertEquals(DocumentFingerprint.contentHash(doc1, RULES), DocumentFingerprint.contentHash(doc2, RULES));
+    }
+
+    /**
+     * Tests that the rules of array elements apply inside arrays: ignored fields of elements and ignored elements
+     * are left out, and elements with an identity field may be in any order.
+     */
+    @Test
+    void testContentHash_AppliesRulesInsideArrays() {
+        // Arrange
+        ComparisonRules rules = ComparisonRules.compile(List.of("variants.*.last_updated", "tags.*"), Map.of("options", "code"));
+        Document doc1 = new Document("variants", List.of(new Document("sku", "A").append("last_updated", 1)))
+                .append("tags", List.of("new"))
+                .append("options", List.of(new Document("code", 1).append("label", "S"), new Document("code", 2).append("label", "M")));
+        Document doc2 = new Document("variants", List.of(new Document("sku", "A").append("last_updated", 2)))
+                .append("tags", List.of("sale", "new"))
+                .append("options", List.of(new Document("code", 2).append("label", "M"), new Document("code", 1).append("label", "S")));
+        Document changedElement = new Document(doc1).append("variants", List.of(new Document("sku", "B").append("last_updated", 1)));
+        Document changedIdentified = new Document(doc1).append("options", List.of(new Document("code", 1).append("label", "L")));
+
+        // Assert
+        long hash = DocumentFingerprint.contentHash(doc1, rules);
+        assertEquals(hash, DocumentFingerprint.contentHash(doc2, rules));
+        assertNotEquals(hash, DocumentFingerprint.contentHash(changedElement, rules));
+        assertNotEquals(hash, DocumentFingerprint.contentHash(changedIdentified, rules));
+    }
+
+    /**
+     * Tests that changed values, values of a different type and reordered list elements change the hash.
+     */
+    @Test
+    void testContentHash_DetectsChangedValues() {
+        // Arrange
+        Document base = new Document("name", "Shirt").append("quantity", 1).append("sizes", List.of("S", "M"));
+        Document changedValue = new Document("name", "Shirts").append("quantity", 1).append("sizes", List.of("S", "M"));
+        Document changedType = new Document("name", "Shirt").append("quantity", 1L).append("sizes", List.of("S", "M"));
+        Document reorderedList = new Document("name", "Shirt").append("quantity", 1).append("sizes", List.of("M", "S"));
+        long baseHash = DocumentFingerprint.contentHash(base, RULES);
+
+        // Assert
+        assertNotEquals(baseHash, DocumentFingerprint.contentHash(changedValue, RULES));
+        assertNotEquals(baseHash, DocumentFingerprint.contentHash(changedType, RULES));
+        assertNotEquals(baseHash, DocumentFingerprint.contentHash(reorderedList, RULES));
+    }
+}
@@ -0,0 +1,79 @@
+package com.astro.compare_products.common;
+
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the {@link MerkleTree} class.
+ * <p>
+ * This class verifies that bucket hashes do not depend on the order documents are added in, that removing
+ * a document restores the former hashes, and that only the buckets that differ are reported.
+ */
+class MerkleTreeTests {
+
+    private static final int BUCKETS = 300;
+
+    /**
+     * Tests that trees of the same documents are equal whatever the order the documents were added in.
+     */
+    @Test
+    void testAdd_OrderIndependent() {
+        // Arrange
+        MerkleTree tree1 = MerkleTree.empty(BUCKETS);
+        MerkleTree tree2 = MerkleTree.empty(BUCKETS);
+
+        // Act
+        for (int i = 0; i < 100; i++) {
+            add(tree1, "upc-" + i, i);
+            add(tree2, "upc-" + (99 - i), 99 - i);
+        }
+
+        // Assert
+        assertEquals(tree1.root(), tree2.root());
+        assertTrue(tree1.differingBuckets(tree2).isEmpty());
+        assertEquals(4, tree1.levels().length);
+        assertEquals(BUCKETS, tree1.bucketCount());
+    }
+
+    /**
+     * Tests that changed and missing documents are found in their buckets, and that removing a document
+     * restores the hashes it changed.
+     */
+    @Test
+    void testDifferingBuckets_FindsChangedBucketsOnly() {
+        // Arrange
+        MerkleTree tree1 = MerkleTree.empty(BUCKETS);
+        MerkleTree tree2 = MerkleTree.empty(BUCKETS);
+        for (int i = 0; i < 100; i++) {
+            add(tree1, "upc-" + i, i);
+            if (i != 7) {
+                add(tree2, "upc-" + i, i == 42 ? -1 : i);
+            }
+        }
+
+        // Act
+        List<Integer> differingBuckets = tree1.differingBuckets(tree2);
+
+        // Assert
+        int bucket7 = MerkleTree.bucketOf(key("upc-7"), BUCKETS);
+        int bucket42 = MerkleTree.bucketOf(key("upc-42"), BUCKETS);
+        assertEquals(List.of(Math.min(bucket7, bucket42), Math.max(bucket7, bucket42)), differingBuckets);
+        tree2.remove(bucket42, MerkleTree.documentHash(key("upc-42"), -1));
+        add(tree2, "upc-42", 42);
+        add(tree2, "upc-7", 7);
+        assertEquals(tree1.root(), tree2.root());
+        assertThrows(IllegalArgumentException.class, () -> tree1.differingBuckets(MerkleTree.empty(BUCKETS + 1)));
+    }
+
+    private static void add(MerkleTree tree, String upc, long contentHash) {
+        tree.add(MerkleTree.bucketOf(key(upc), BUCKETS), MerkleTree.documentHash(key(upc), contentHash));
+    }
+
+    private static CompositeKey key(String upc) {
+        return CompositeKey.of(new Document("upc", upc), List.of("upc"));
+    }
+}
@@ -0,0 +1,89 @@
+package com.astro.compare_products.common;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the {@link OffHeapKeyIndex} class.
+ * <p>
+ * This class verifies that documents are found by key even when fingerprints collide, and that duplicate
+ * keys share the first document and its matched state.
+ */
+class OffHeapKeyIndexTests {
+
+    // Every key has the same fingerprint, so lookups can only succeed by confirming the key of the document
+    private static final long FINGERPRINT = 42;
+
+    private final String[] keys = {"A", "B", "A", "C"};
+
+    private final OffHeapKeyIndex index = new OffHeapKeyIndex(keys.length);
+
+    /**
+     * Tests that colliding fingerprints are told apart by their keys and that a duplicate key maps to its first document.
+     */
+    @Test
+    void testAddAndFind_CollidingFingerprints() {
+        // Act
+        int[] firstDocuments = new int[keys.length];
+        for (int document = 0; document < keys.length; document++) {
+            String key = keys[document];
+            firstDocuments[document] = index.add(FINGERPRINT, document, indexed -> keys[indexed].equals(key));
+        }
+
+        // Assert
+        assertArrayEquals(new int[]{0, 1, 0, 3}, firstDocuments);
+        assertEquals(1, index.find(FINGERPRINT, indexed -> keys[indexed].equals("B")));
+        assertEquals(3, index.find(FINGERPRINT, indexed -> keys[indexed].equals("C")));
+        assertEquals(-1, index.find(FINGERPRINT, indexed -> keys[indexed].equals("D")));
+        assertEquals(-1, index.find(7, indexed -> true));
+    }
+
+    /**
+     * Tests that matching a key marks every document with that key as matched.
+     */
+    @Test
+    void testMarkMatched_AppliesToDuplicateKeys() {
+        // Arrange
+        for (int document = 0; document < keys.length; document++) {
+            String key = keys[document];
+            index.add(FINGERPRINT, document, indexed -> keys[indexed].equals(key));
+        }
+
+        // Act
+        index.markMatched(index.find(FINGERPRINT, indexed -> keys[indexed].equals("A")));
+
+        // Assert
+        assertTrue(index.isMatched(0));
+        assertTrue(index.isMatched(2));
+        assertFalse(index.isMatched(1));
+        assertFalse(index.isMatched(3));
+    }
+
+    /**
+     * Tests that closing an index returns its buffers to the pool, and that an index built from pooled buffers
+     * starts out empty and unmatched.
+     */
+    @Test
+    void testClose_ReusesClearedBuffers() {
+        // Arrange
+        for (int document = 0; document < keys.length; document++) {
+            String key = keys[document];
+            index.add(FINGERPRINT, document, indexed -> keys[indexed].equals(key));
+        }
+        index.markMatched(0);
+        long pooledBytes = OffHeapKeyIndex.pooledBytes();
+
+        // Act
+        index.close();
+        assertTrue(OffHeapKeyIndex.pooledBytes() > pooledBytes);
+        try (OffHeapKeyIndex reused = new OffHeapKeyIndex(keys.length)) {
+
+            // Assert
+            assertEquals(pooledBytes, OffHeapKeyIndex.pooledBytes());
+            assertEquals(-1, reused.find(FINGERPRINT, indexed -> true));
+            assertEquals(0, reused.add(FINGERPRINT, 0, indexed -> true));
+            assertFalse(reused.isMatched(0));
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.astro.compare_products.config;
+
+import com.astro.compare_products.service.IndexVerificationService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.Status;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for the {@link ComparisonIndexesHealthIndicator} class.
+ * <p>
+ * This class verifies that readiness fails while a required index is missing, with the suggested index as
+ * detail, and that passing indexes are not verified again.
+ */
+class ComparisonIndexesHealthIndicatorTests {
+
+    private static final IndexVerificationService.RequiredIndex KEY_INDEX =
+            new IndexVerificationService.RequiredIndex("comparison_key", List.of("upc"));
+
+    @Mock
+    private IndexVerificationService indexVerificationService;
+
+    private ComparisonIndexesHealthIndicator healthIndicator;
+
+    /**
+     * Initializes mocks and the health indicator for each test case.
+     */
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+        healthIndicator = new ComparisonIndexesHealthIndicator(indexVerificationService);
+    }
+
+    /**
+     * Tests that a missing index, still missing when verified again, keeps the instance out of service.
+     */
+    @Test
+    void testHealth_IndexMissing_OutOfService() {
+        // Arrange
+        IndexVerificationService.IndexReport report = new IndexVerificationService.IndexReport(
+                List.of(new IndexVerificationService.IndexCheck("products", KEY_INDEX, false, false)),
+                List.of(new IndexVerificationService.QueryPlanCheck("products", "upc", true)));
+        when(indexVerificationService.lastReport()).thenReturn(report);
+        when(indexVerificationService.verify()).thenReturn(report);
+
+        // Act
+        Health health = healthIndicator.health();
+
+        // Assert
+        assertEquals(Status.OUT_OF_SERVICE, health.getStatus());
+        assertEquals(List.of("products {\"upc\": 1}"), health.getDetails().get("missingIndexes"));
+        assertEquals(List.of("products by upc"), health.getDetails().get("collectionScans"));
+    }
+
+    /**
+     * Tests that passing indexes make the instance ready without verifying them again.
+     */
+    @Test
+    void testHealth_IndexesPresent_UpWithoutVerifying() {
+        // Arrange
+        when(indexVerificationService.lastReport()).thenReturn(new IndexVerificationService.IndexReport(
+                List.of(new IndexVerificationService.IndexCheck("products", KEY_INDEX, true, false)), List.of()));
+
+        // Act
+        Health health = healthIndicator.health();
+
+        // Assert
+        assertEquals(Status.UP, health.getStatus());
+        verify(indexVerificationService, never()).verify();
+    }
+}
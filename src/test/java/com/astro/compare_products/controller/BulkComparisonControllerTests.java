@@ -0,0 +1,106 @@
+package com.astro.compare_products.controller;
+
+import com.astro.compare_products.service.BulkComparisonService;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for the {@link BulkComparisonController} class.
+ * <p>
+ * This class verifies that UPCs are read from the request body or an uploaded file, and that the batch results
+ * are streamed as one JSON line per entry followed by a summary line.
+ */
+class BulkComparisonControllerTests {
+
+    @Mock
+    private BulkComparisonService bulkComparisonService;
+
+    private BulkComparisonController bulkComparisonController;
+
+    /**
+     * Initializes a controller accepting up to 3 UPCs, whose service answers with one batch for each test case.
+     */
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+
+        bulkComparisonController = new BulkComparisonController(bulkComparisonService);
+        ReflectionTestUtils.setField(bulkComparisonController, "maxUpcs", 3);
+
+        when(bulkComparisonService.compareInBatches(anyString(), anyString(), anyCollection(), anyMap(), any()))
+                .thenAnswer(invocation -> {
+                    Consumer<BulkComparisonService.BatchResult> batchConsumer = invocation.getArgument(4);
+                    Map<String, Object> reportData = Map.of(
+                            "docsInFirstOnly", List.of(new Document("upc", "1")),
+                            "docsInSecondOnly", List.of(),
+                            "differingDocs", List.of(Map.of("price", Map.of("collection1", 10, "collection2", 12))));
+                    batchConsumer.accept(new BulkComparisonService.BatchResult(0, List.of("1", "2"), reportData));
+                    return Map.of("upcs", 2L);
+                });
+    }
+
+    /**
+     * Tests that the UPCs of the request body are compared and every entry is streamed on a line of its own.
+     */
+    @Test
+    void testCompare_StreamsOneLinePerEntryAndSummary() throws Exception {
+        // Arrange
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // Act
+        bulkComparisonController.compare(new BulkComparisonController.BulkComparisonRequest(List.of("1", " 2 ", ""), "shoes"), response);
+
+        // Assert
+        List<Document> lines = response.getContentAsString().lines().map(Document::parse).toList();
+        assertEquals(List.of("docsInFirstOnly", "differingDocs", "summary"), lines.stream().map(line -> line.getString("section")).toList());
+        assertEquals("1", lines.get(0).get("document", Document.class).getString("upc"));
+        assertEquals(12, lines.get(1).get("differences", Document.class).get("price", Document.class).getInteger("collection2"));
+        assertEquals(2L, ((Number) lines.get(2).get("totals", Document.class).get("upcs")).longValue());
+        verify(bulkComparisonService).compareInBatches(eq("products"), eq("products_salsify"), eq(List.of("1", "2")),
+                eq(Map.of("category", "shoes")), any());
+    }
+
+    /**
+     * Tests that the UPCs of an uploaded file may be separated by line breaks and commas.
+     */
+    @Test
+    void testCompareFile_ReadsSeparatedUpcs() throws Exception {
+        // Arrange
+        MockMultipartFile file = new MockMultipartFile("file", "upcs.txt", "text/plain", "1\n2, 3\n".getBytes(StandardCharsets.UTF_8));
+
+        // Act
+        bulkComparisonController.compareFile(file, null, new MockHttpServletResponse());
+
+        // Assert
+        verify(bulkComparisonService).compareInBatches(eq("products"), eq("products_salsify"), eq(List.of("1", "2", "3")), eq(Map.of()), any());
+    }
+
+    /**
+     * Tests that requests without UPCs or with more UPCs than allowed are rejected.
+     */
+    @Test
+    void testCompare_NoOrTooManyUpcs_Rejected() {
+        assertThrows(ResponseStatusException.class, () -> bulkComparisonController.compare(
+                new BulkComparisonController.BulkComparisonRequest(List.of(), null), new MockHttpServletResponse()));
+        assertThrows(ResponseStatusException.class, () -> bulkComparisonController.compare(
+                new BulkComparisonController.BulkComparisonRequest(List.of("1", "2", "3", "4"), null), new MockHttpServletResponse()));
+    }
+}
@@ -0,0 +1,86 @@
+package com.astro.compare_products.controller;
+
+import com.astro.compare_products.common.ComparisonProgress;
+import com.astro.compare_products.service.ComparisonJob;
+import com.astro.compare_products.service.ComparisonJobService;
+import com.astro.compare_products.service.ResultPageService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for the {@link ComparisonJobController} class.
+ * <p>
+ * This class verifies that jobs are submitted only for allowed collections and criteria fields, and that other
+ * submissions are rejected before reaching the job service.
+ */
+class ComparisonJobControllerTests {
+
+    @Mock
+    private ComparisonJobService comparisonJobService;
+
+    @Mock
+    private ResultPageService resultPageService;
+
+    private ComparisonJobController comparisonJobController;
+
+    /**
+     * Initializes mocks and a controller allowing the product collections and filtering by UPC and category.
+     */
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+
+        comparisonJobController = new ComparisonJobController(comparisonJobService, resultPageService);
+        ReflectionTestUtils.setField(comparisonJobController, "collectionsProperty", "products,products_salsify");
+        ReflectionTestUtils.setField(comparisonJobController, "criteriaFieldsProperty", "upc,category");
+        comparisonJobController.init();
+    }
+
+    /**
+     * Tests that a job for allowed collections and criteria is submitted and accepted.
+     */
+    @Test
+    void testSubmit_AllowedCollectionsAndCriteria_Accepted() {
+        // Arrange
+        ComparisonJob job = mock(ComparisonJob.class);
+        when(job.getId()).thenReturn("job-1");
+        when(job.getProgress()).thenReturn(new ComparisonProgress());
+        when(comparisonJobService.submit("products", "products_salsify", Map.of("category", "shoes"))).thenReturn(job);
+
+        // Act
+        ResponseEntity<Map<String, Object>> response = comparisonJobController.submit(
+                new ComparisonJobController.ComparisonJobRequest("products", "products_salsify", Map.of("category", "shoes")));
+
+        // Assert
+        assertEquals(HttpStatus.ACCEPTED, response.getStatusCode());
+        assertEquals("job-1", response.getBody().get("id"));
+    }
+
+    /**
+     * Tests that other collections, operators and fields outside the allow-list are rejected with 400.
+     */
+    @Test
+    void testSubmit_DisallowedCollectionOrCriteria_Rejected() {
+        for (ComparisonJobController.ComparisonJobRequest request : new ComparisonJobController.ComparisonJobRequest[]{
+                new ComparisonJobController.ComparisonJobRequest("products", "comparison_diffs", Map.of()),
+                new ComparisonJobController.ComparisonJobRequest("products", "products_salsify", Map.of("$where", "sleep(1000)")),
+                new ComparisonJobController.ComparisonJobRequest("products", "products_salsify", Map.of("price", "10"))}) {
+            ResponseStatusException exception = assertThrows(ResponseStatusException.class, () -> comparisonJobController.submit(request));
+            assertEquals(HttpStatus.BAD_REQUEST, exception.getStatusCode());
+        }
+        verify(comparisonJobService, never()).submit(anyString(), anyString(), anyMap());
+    }
+}
@@ -0,0 +1,119 @@
+package com.astro.compare_products.controller;
+
+import com.astro.compare_products.service.ComparisonMetrics;
+import com.astro.compare_products.service.ComparisonRunService;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.thymeleaf.spring6.SpringTemplateEngine;
+import org.thymeleaf.templateresolver.ClassLoaderTemplateResolver;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for the {@link ReportController} class.
+ * <p>
+ * This class verifies that the report is rendered once and streamed identically to the HTTP response
+ * and to the report file, and that the rendered report is recorded in the metrics.
+ */
+class ReportControllerTests {
+
+    @Mock
+    private ComparisonRunService comparisonRunService;
+
+    @Mock
+    private ComparisonMetrics comparisonMetrics;
+
+    @TempDir
+    private Path tempDir;
+
+    private ReportController reportController;
+
+    /**
+     * Initializes mocks and a controller rendering the report template with small chunks for each test case.
+     */
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+
+        ClassLoaderTemplateResolver templateResolver = new ClassLoaderTemplateResolver();
+        templateResolver.setPrefix("templates/");
+        templateResolver.setSuffix(".html");
+        SpringTemplateEngine templateEngine = new SpringTemplateEngine();
+        templateEngine.setTemplateResolver(templateResolver);
+
+        reportController = new ReportController(comparisonRunService, templateEngine, comparisonMetrics);
+        ReflectionTestUtils.setField(reportController, "keyFieldsProperty", "upc");
+        ReflectionTestUtils.setField(reportController, "reportFile", tempDir.resolve("report.html").toString());
+        ReflectionTestUtils.setField(reportController, "reportChunkSize", 256);
+        reportController.init();
+    }
+
+    /**
+     * Tests that the response and the report file receive the same fully rendered report.
+     */
+    @Test
+    void testGenerateReport_StreamsSameReportToResponseAndFile() throws Exception {
+        // Arrange
+        List<Document> docsInFirstOnly = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            docsInFirstOnly.add(new Document("upc", "UPC-" + i));
+        }
+        // Characters taking two, three and four bytes in UTF-8
+        docsInFirstOnly.add(new Document("upc", "UPC-\u00e9\u20ac\ud83d\ude00"));
+        Map<String, Object> reportData = Map.of(
+                "docsInFirstOnly", docsInFirstOnly,
+                "docsInSecondOnly", List.of(),
+                "differingDocs", List.of());
+        when(comparisonRunService.compare(eq("products"), eq("products_salsify"), anyMap())).thenReturn(reportData);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // Act
+        reportController.generateReport("123", "", response);
+
+        // Assert
+        String html = response.getContentAsString();
+        assertTrue(html.contains("UPC-0") && html.contains("UPC-99"));
+        assertTrue(html.trim().endsWith("</html>"));
+        assertEquals(html, Files.readString(tempDir.resolve("report.html"), StandardCharsets.UTF_8));
+        verify(comparisonMetrics).reportRendered(eq("products"), eq("products_salsify"), anyLong(), anyLong(),
+                eq(Files.size(tempDir.resolve("report.html"))), anyLong());
+    }
+
+    /**
+     * Tests that a new report replaces the report file as a whole, leaving no partially written file behind.
+     */
+    @Test
+    void testGenerateReport_ReplacesReportFileWithoutPartialFiles() throws Exception {
+        // Arrange
+        when(comparisonRunService.compare(eq("products"), eq("products_salsify"), anyMap())).thenReturn(
+                Map.of("docsInFirstOnly", List.of(new Document("upc", "UPC-OLD")), "docsInSecondOnly", List.of(), "differingDocs", List.of()),
+                Map.of("docsInFirstOnly", List.of(new Document("upc", "UPC-NEW")), "docsInSecondOnly", List.of(), "differingDocs", List.of()));
+        reportController.generateReport("123", "", new MockHttpServletResponse());
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // Act
+        reportController.generateReport("123", "", response);
+
+        // Assert
+        assertEquals(response.getContentAsString(), Files.readString(tempDir.resolve("report.html"), StandardCharsets.UTF_8));
+        try (Stream<Path> files = Files.list(tempDir)) {
+            assertEquals(List.of(tempDir.resolve("report.html")), files.toList());
+        }
+    }
+}
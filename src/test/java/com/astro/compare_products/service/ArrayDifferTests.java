@@ -0,0 +1,144 @@
+package com.astro.compare_products.service;
+
+import com.astro.compare_products.common.ComparisonRules;
+import com.astro.compare_products.common.DiffTable;
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for the {@link ArrayDiffer} class.
+ * <p>
+ * This class verifies that arrays are aligned by identity field or by element value and that only
+ * the added, removed and changed elements are reported.
+ */
+class ArrayDifferTests {
+
+    private static final ComparisonRules RULES = ComparisonRules.compile(List.of(), Map.of("variants", "sku"));
+
+    // Reports every top-level field of two sub-documents that differs, enough to see which elements were paired
+    private final ArrayDiffer arrayDiffer = new ArrayDiffer(
+            (doc1, doc2, rules, differences, path) -> doc1.keySet().stream()
+                    .filter(key -> !doc1.get(key).equals(doc2.get(key)))
+                    .forEach(key -> differences.add(differences.pathId(path, key), doc1.get(key), doc2.get(key))));
+
+    private final DiffTable differences = new DiffTable();
+
+    /**
+     * Tests that identity field rules are parsed per path, ignoring blanks and malformed rules.
+     */
+    @Test
+    void testParseIdentityFields() {
+        // Act
+        Map<String, String> identityFields = ArrayDiffer.parseIdentityFields(" variants:sku,,broken, a.b : id");
+
+        // Assert
+        assertEquals(Map.of("variants", "sku", "a.b", "id"), identityFields);
+        assertTrue(ArrayDiffer.parseIdentityFields("").isEmpty());
+    }
+
+    /**
+     * Tests that sub-documents with an identity field are matched on it whatever their position, and that
+     * changed, removed and added elements are labelled with their identity.
+     */
+    @Test
+    void testDiff_IdentityField_MatchesElementsById() {
+        // Arrange
+        List<Document> list1 = List.of(variant("A", 1), variant("B", 2), variant("C", 3));
+        List<Document> list2 = List.of(variant("D", 4), variant("C", 3), variant("A", 9));
+
+        // Act
+        arrayDiffer.diff(DiffTable.ROOT, "variants", RULES.child("variants"), list1, list2, differences);
+        differences.endDocument();
+
+        // Assert
+        assertEquals(Map.of(
+                "variants[sku=A].stock", Map.of("collection1", 1, "collection2", 9),
+                "variants[sku=B]", nullableDiff(variant("B", 2), null),
+                "variants[sku=D]", nullableDiff(null, variant("D", 4))), differences.get(0));
+    }
+
+    /**
+     * Tests that an element inserted at the front of an array is reported as added only, instead of
+     * shifting every following element into a difference.
+     */
+    @Test
+    void testDiff_Insertion_ReportsAddedElementOnly() {
+        // Act
+        arrayDiffer.diff(DiffTable.ROOT, "tags", RULES.child("tags"), List.of("a", "b", "c"), List.of("new", "a", "b", "c"), differences);
+        differences.endDocument();
+
+        // Assert
+        assertEquals(Map.of("tags[+0]", nullableDiff(null, "new")), differences.get(0));
+    }
+
+    /**
+     * Tests that reordered elements are not reported, that unmatched elements are paired as changed and
+     * that the excess of the longer array is reported as removed.
+     */
+    @Test
+    void testDiff_Alignment_ReportsChangedAndRemovedElements() {
+        // Act
+        arrayDiffer.diff(DiffTable.ROOT, "sizes", RULES.child("sizes"), List.of(1, 2, 3, 4, 5), List.of(3, 2, 7), differences);
+        differences.endDocument();
+
+        // Assert
+        assertEquals(Map.of(
+                "sizes[0]", Map.of("collection1", 1, "collection2", 7),
+                "sizes[3]", nullableDiff(4, null),
+                "sizes[4]", nullableDiff(5, null)), differences.get(0));
+    }
+
+    /**
+     * Tests that arrays at a path with an identity field fall back to alignment when an element lacks the field.
+     */
+    @Test
+    void testDiff_IdentityFieldMissing_FallsBackToAlignment() {
+        // Arrange
+        List<Document> list1 = List.of(variant("A", 1), new Document("stock", 2));
+        List<Document> list2 = List.of(variant("A", 1), new Document("stock", 3));
+
+        // Act
+        arrayDiffer.diff(DiffTable.ROOT, "variants", RULES.child("variants"), list1, list2, differences);
+        differences.endDocument();
+
+        // Assert
+        assertEquals(Map.of("variants[1].stock", Map.of("collection1", 2, "collection2", 3)), differences.get(0));
+    }
+
+    /**
+     * Tests that sub-document elements with element rules are aligned on their content without the ignored fields,
+     * so elements that moved and only differ in ignored fields are not paired with other elements.
+     */
+    @Test
+    void testDiff_ElementRules_AlignsOnContentWithoutIgnoredFields() {
+        // Arrange
+        ComparisonRules rules = ComparisonRules.compile(List.of("variants.*.last_updated"), Map.of());
+        List<Document> list1 = List.of(variant("A", 1).append("last_updated", 1), variant("B", 2).append("last_updated", 1), variant("A", 1));
+        List<Document> list2 = List.of(variant("A", 1), variant("B", 2).append("last_updated", 2), variant("A", 1).append("last_updated", 2));
+
+        // Act
+        arrayDiffer.diff(DiffTable.ROOT, "variants", rules.child("variants"), list1, list2, differences);
+        differences.endDocument();
+
+        // Assert
+        assertEquals(0, differences.size());
+    }
+
+    private static Document variant(String sku, int stock) {
+        return new Document("sku", sku).append("stock", stock);
+    }
+
+    private static Map<String, Object> nullableDiff(Object value1, Object value2) {
+        Map<String, Object> diff = new HashMap<>();
+        diff.put("collection1", value1);
+        diff.put("collection2", value2);
+        return diff;
+    }
+}
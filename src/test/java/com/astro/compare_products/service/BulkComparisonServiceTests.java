@@ -0,0 +1,106 @@
+package com.astro.compare_products.service;
+
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for the {@link BulkComparisonService} class.
+ * <p>
+ * This class verifies that the distinct UPCs are fetched in batches with one query per batch, and that the
+ * results of the batches, compared concurrently, are handed over in batch order with the totals of all batches.
+ */
+class BulkComparisonServiceTests {
+
+    @Mock
+    private DocumentFetcherService documentFetcherService;
+
+    private BulkComparisonService bulkComparisonService;
+
+    /**
+     * Initializes a service comparing batches of 2 UPCs, 2 at a time, with the first collection holding every
+     * UPC but 5, and the second every UPC but 1, with a different price for UPC 3.
+     */
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+
+        DocumentComparisonService comparisonService = new DocumentComparisonService();
+        ReflectionTestUtils.setField(comparisonService, "ignoredFieldsProperty", "_id");
+        ReflectionTestUtils.setField(comparisonService, "keyFieldsProperty", "upc");
+        comparisonService.init();
+
+        bulkComparisonService = new BulkComparisonService(documentFetcherService, comparisonService);
+        ReflectionTestUtils.setField(bulkComparisonService, "batchSize", 2);
+        ReflectionTestUtils.setField(bulkComparisonService, "concurrency", 2);
+
+        when(documentFetcherService.fetchDocumentsConcurrently(anyList(), anyMap(), eq("upc"), anyCollection()))
+                .thenAnswer(invocation -> {
+                    Collection<String> upcs = invocation.getArgument(3);
+                    List<Document> collection1Docs = new ArrayList<>();
+                    List<Document> collection2Docs = new ArrayList<>();
+                    for (String upc : upcs) {
+                        if (!upc.equals("5")) {
+                            collection1Docs.add(new Document("upc", upc).append("price", 10));
+                        }
+                        if (!upc.equals("1")) {
+                            collection2Docs.add(new Document("upc", upc).append("price", upc.equals("3") ? 12 : 10));
+                        }
+                    }
+                    return List.of(collection1Docs, collection2Docs);
+                });
+    }
+
+    /**
+     * Tests that repeated UPCs are compared once, in batches handed over in order, with the totals of all batches.
+     */
+    @Test
+    void testCompareInBatches_BatchesInOrderWithTotals() {
+        // Arrange
+        List<BulkComparisonService.BatchResult> batchResults = new ArrayList<>();
+
+        // Act
+        Map<String, Long> summary = bulkComparisonService.compareInBatches("products", "products_salsify",
+                List.of("1", "2", "3", "2", "4", "5"), Map.of("category", "shoes"), batchResults::add);
+
+        // Assert
+        assertEquals(List.of(0, 1, 2), batchResults.stream().map(BulkComparisonService.BatchResult::batch).toList());
+        assertEquals(List.of(List.of("1", "2"), List.of("3", "4"), List.of("5")),
+                batchResults.stream().map(BulkComparisonService.BatchResult::upcs).toList());
+        assertEquals(1, ((List<?>) batchResults.get(0).reportData().get("docsInFirstOnly")).size());
+        assertEquals(1, ((List<?>) batchResults.get(1).reportData().get("differingDocs")).size());
+        assertEquals(1, ((List<?>) batchResults.get(2).reportData().get("docsInSecondOnly")).size());
+        assertEquals(5L, summary.get("upcs"));
+        assertEquals(3L, summary.get("batches"));
+        assertEquals(4L, summary.get("fetchedFirst"));
+        assertEquals(1L, summary.get("differingDocs"));
+        verify(documentFetcherService).fetchDocumentsConcurrently(List.of("products", "products_salsify"),
+                Map.of("category", "shoes"), "upc", List.of("3", "4"));
+        verify(documentFetcherService, times(3)).fetchDocumentsConcurrently(anyList(), anyMap(), eq("upc"), anyCollection());
+    }
+
+    /**
+     * Tests that a failing batch fails the whole comparison with the failure of the batch.
+     */
+    @Test
+    void testCompareInBatches_BatchFails_Throws() {
+        // Arrange
+        when(documentFetcherService.fetchDocumentsConcurrently(anyList(), anyMap(), eq("upc"), eq(List.of("3"))))
+                .thenThrow(new QueryTimeoutException("Fetching documents did not complete"));
+
+        // Act & Assert
+        assertThrows(QueryTimeoutException.class, () -> bulkComparisonService.compareInBatches("products", "products_salsify",
+                List.of("1", "2", "3"), Map.of(), batchResult -> { }));
+    }
+}
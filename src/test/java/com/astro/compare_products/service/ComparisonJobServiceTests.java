@@ -0,0 +1,112 @@
+package com.astro.compare_products.service;
+
+import com.astro.compare_products.common.ComparisonProgress;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for the {@link ComparisonJobService} class.
+ * <p>
+ * This class verifies that jobs run to completion in the background, that running and queued jobs can be
+ * cancelled, and that submissions beyond the queue capacity are rejected.
+ */
+class ComparisonJobServiceTests {
+
+    @Mock
+    private ComparisonRunService comparisonRunService;
+
+    private ComparisonJobService comparisonJobService;
+
+    /**
+     * Initializes mocks and a job service with one worker and room for one waiting job for each test case.
+     */
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+
+        comparisonJobService = new ComparisonJobService(comparisonRunService);
+        ReflectionTestUtils.setField(comparisonJobService, "jobThreads", 1);
+        ReflectionTestUtils.setField(comparisonJobService, "queueCapacity", 1);
+        ReflectionTestUtils.setField(comparisonJobService, "retention", Duration.ofHours(1));
+        comparisonJobService.init();
+    }
+
+    @AfterEach
+    void tearDown() {
+        comparisonJobService.shutdown();
+    }
+
+    /**
+     * Tests that a submitted job runs in the background and completes with the comparison result.
+     */
+    @Test
+    void testSubmit_JobCompletesWithResult() throws InterruptedException {
+        // Arrange
+        Map<String, Object> result = Map.of("docsInFirstOnly", List.of(), "docsInSecondOnly", List.of(), "differingDocs", List.of());
+        when(comparisonRunService.compare(eq("products"), eq("products_salsify"), eq(Map.of("upc", "1")), any())).thenReturn(result);
+
+        // Act
+        ComparisonJob job = comparisonJobService.submit("products", "products_salsify", Map.of("upc", "1"));
+        awaitFinalState(job);
+
+        // Assert
+        assertEquals(ComparisonJob.State.COMPLETED, job.getState());
+        assertSame(result, job.getResult());
+        assertSame(job, comparisonJobService.findJob(job.getId()).orElseThrow());
+    }
+
+    /**
+     * Tests that cancelling a running job stops the comparison, that a queued job is cancelled before
+     * it starts, and that a submission is rejected while the worker and the queue are both taken.
+     */
+    @Test
+    void testCancel_StopsRunningAndQueuedJobsAndRejectsOverflow() throws InterruptedException {
+        // Arrange
+        CountDownLatch started = new CountDownLatch(1);
+        when(comparisonRunService.compare(anyString(), anyString(), anyMap(), any())).thenAnswer(invocation -> {
+            ComparisonProgress progress = invocation.getArgument(3);
+            while (true) {
+                progress.documentCompared(1);
+                started.countDown();
+                Thread.onSpinWait();
+            }
+        });
+        ComparisonJob running = comparisonJobService.submit("products", "products_salsify", Map.of());
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        ComparisonJob queued = comparisonJobService.submit("products", "products_salsify", Map.of());
+
+        // Act
+        assertThrows(RejectedExecutionException.class, () -> comparisonJobService.submit("products", "products_salsify", Map.of()));
+        comparisonJobService.cancel(queued.getId());
+        comparisonJobService.cancel(running.getId());
+        awaitFinalState(running);
+
+        // Assert
+        assertEquals(ComparisonJob.State.CANCELLED, queued.getState());
+        assertEquals(ComparisonJob.State.CANCELLED, running.getState());
+        assertTrue(running.getProgress().snapshot().get("comparedFirst") > 0);
+        verify(comparisonRunService, times(1)).compare(anyString(), anyString(), anyMap(), any());
+    }
+
+    private static void awaitFinalState(ComparisonJob job) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!job.getState().isFinal() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.astro.compare_products.service;
+
+import com.astro.compare_products.common.ComparisonMode;
+import com.astro.compare_products.common.ComparisonPhase;
+import com.astro.compare_products.common.ComparisonProgress;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Unit tests for the {@link ComparisonMetrics} class.
+ * <p>
+ * This class verifies that the counts and phase times of a run, and the size of a rendered report, are recorded
+ * as meters tagged with the comparison mode.
+ */
+class ComparisonMetricsTests {
+
+    private SimpleMeterRegistry meterRegistry;
+
+    private ComparisonMetrics comparisonMetrics;
+
+    /**
+     * Initializes metrics recording into a simple registry for the HASH mode for each test case.
+     */
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        comparisonMetrics = new ComparisonMetrics(meterRegistry);
+        ReflectionTestUtils.setField(comparisonMetrics, "comparisonMode", ComparisonMode.HASH);
+    }
+
+    /**
+     * Tests that a run records its document counts by side and result, and only the phases it went through.
+     */
+    @Test
+    void testRunCompleted_RecordsCountsAndPhases() {
+        // Arrange
+        ComparisonProgress progress = new ComparisonProgress();
+        progress.addFetched(1, 10);
+        progress.addFetched(2, 9);
+        for (int i = 0; i < 10; i++) {
+            progress.documentCompared(1);
+        }
+        progress.firstOnlyFound();
+        progress.firstOnlyFound();
+        progress.differingFound();
+        progress.duplicateKeyFound();
+        progress.addPhaseTime(ComparisonPhase.FETCH, 3_000_000);
+        progress.addPhaseTime(ComparisonPhase.COMPARE, 1_000_000);
+        progress.addPhaseTime(ComparisonPhase.COMPARE, 1_000_000);
+
+        // Act
+        comparisonMetrics.runCompleted("products", "products_salsify", progress, "success", 10_000_000);
+
+        // Assert
+        assertEquals(1, meterRegistry.get("comparison.runs").tags("mode", "HASH", "outcome", "success").timer().count());
+        assertEquals(10.0, meterRegistry.get("comparison.documents.fetched").tags("side", "first").counter().count());
+        assertEquals(9.0, meterRegistry.get("comparison.documents.fetched").tags("side", "second").counter().count());
+        assertEquals(8.0, meterRegistry.get("comparison.documents").tags("result", "matched").counter().count());
+        assertEquals(2.0, meterRegistry.get("comparison.documents").tags("result", "firstOnly").counter().count());
+        assertEquals(1.0, meterRegistry.get("comparison.documents").tags("result", "differing").counter().count());
+        assertEquals(1.0, meterRegistry.get("comparison.documents").tags("result", "duplicateKey").counter().count());
+        assertEquals(1000.0, meterRegistry.get("comparison.throughput").summary().totalAmount());
+        assertEquals(2.0, meterRegistry.get("comparison.phase").tags("phase", "COMPARE").timer().totalTime(TimeUnit.MILLISECONDS));
+        assertNull(meterRegistry.find("comparison.phase").tags("phase", "INDEX").timer());
+    }
+
+    /**
+     * Tests that a rendered report records its render and write times and its size, and no allocation when unknown.
+     */
+    @Test
+    void testReportRendered_RecordsPhasesAndSize() {
+        // Act
+        comparisonMetrics.reportRendered("products", "products_salsify", 5_000_000, 2_000_000, 4096, -1);
+
+        // Assert
+        assertEquals(5.0, meterRegistry.get("comparison.phase").tags("phase", "RENDER").timer().totalTime(TimeUnit.MILLISECONDS));
+        assertEquals(2.0, meterRegistry.get("comparison.phase").tags("phase", "WRITE").timer().totalTime(TimeUnit.MILLISECONDS));
+        assertEquals(4096.0, meterRegistry.get("comparison.report.size").tags("mode", "HASH").summary().totalAmount());
+        assertNull(meterRegistry.find("comparison.report.allocated").summary());
+    }
+
+    /**
+     * Tests that a rendered report records the heap allocated while rendering when it is known.
+     */
+    @Test
+    void testReportRendered_RecordsAllocation() {
+        // Act
+        comparisonMetrics.reportRendered("products", "products_salsify", 5_000_000, 2_000_000, 4096, 1024);
+
+        // Assert
+        assertEquals(1024.0, meterRegistry.get("comparison.report.allocated").tags("mode", "HASH").summary().totalAmount());
+    }
+}
@@ -0,0 +1,208 @@
+package com.astro.compare_products.service;
+
+import com.astro.compare_products.common.ComparisonMode;
+import com.astro.compare_products.common.ComparisonProgress;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for the {@link ComparisonRunService} class.
+ * <p>
+ * This class verifies that report data is cached per collection pair and criteria, that
+ * invalidated entries are compared again, and that every comparison run is recorded in the metrics.
+ */
+class ComparisonRunServiceTests {
+
+    @Mock
+    private DocumentFetcherService documentFetcherService;
+
+    @Mock
+    private DocumentComparisonService comparisonService;
+
+    @Mock
+    private IncrementalComparisonService incrementalComparisonService;
+
+    @Mock
+    private ExternalComparisonService externalComparisonService;
+
+    @Mock
+    private MerkleComparisonService merkleComparisonService;
+
+    @Mock
+    private DistributedComparisonService distributedComparisonService;
+
+    @Mock
+    private ComparisonMetrics comparisonMetrics;
+
+    private ComparisonRunService comparisonRunService;
+
+    /**
+     * Initializes mocks and a service comparing in memory with the cache enabled for each test case.
+     */
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+
+        comparisonRunService = new ComparisonRunService(documentFetcherService, comparisonService, incrementalComparisonService,
+                externalComparisonService, merkleComparisonService, distributedComparisonService, comparisonMetrics);
+        ReflectionTestUtils.setField(comparisonRunService, "keyFieldsProperty", "upc");
+        ReflectionTestUtils.setField(comparisonRunService, "comparisonMode", ComparisonMode.HASH);
+        ReflectionTestUtils.setField(comparisonRunService, "cacheEnabled", true);
+        ReflectionTestUtils.setField(comparisonRunService, "cacheTtl", Duration.ofMinutes(10));
+        ReflectionTestUtils.setField(comparisonRunService, "cacheMaxWeightBytes", 1_000_000L);
+        comparisonRunService.init();
+
+        when(documentFetcherService.fetchDocumentsConcurrently(anyList(), anyMap()))
+                .thenReturn(List.of(List.of(new Document("upc", "1")), List.of()));
+        when(comparisonService.compareDocuments(anyList(), anyList(), any(), any()))
+                .thenAnswer(invocation -> new HashMap<>(Map.of("docsInFirstOnly", invocation.getArgument(0))));
+    }
+
+    /**
+     * Tests that a repeated request with equal criteria is answered from the cache without fetching again,
+     * whatever the iteration order of the criteria map.
+     */
+    @Test
+    void testCompare_SameCriteria_ServedFromCache() {
+        // Arrange
+        Map<String, String> criteria = new LinkedHashMap<>();
+        criteria.put("upc", "1");
+        criteria.put("category", "shoes");
+        Map<String, String> reorderedCriteria = new LinkedHashMap<>();
+        reorderedCriteria.put("category", "shoes");
+        reorderedCriteria.put("upc", "1");
+
+        // Act
+        Map<String, Object> first = comparisonRunService.compare("products", "products_salsify", criteria);
+        Map<String, Object> second = comparisonRunService.compare("products", "products_salsify", reorderedCriteria);
+
+        // Assert
+        assertSame(first, second);
+        verify(documentFetcherService, times(1)).fetchDocumentsConcurrently(anyList(), anyMap());
+        Map<String, Object> statistics = comparisonRunService.cacheStatistics();
+        assertEquals(1L, statistics.get("hitCount"));
+        assertEquals(1L, statistics.get("missCount"));
+    }
+
+    /**
+     * Tests that invalidating a collection pair makes the next request compare again, and that
+     * different criteria are cached separately.
+     */
+    @Test
+    void testInvalidate_NextRequestComparesAgain() {
+        // Arrange
+        comparisonRunService.compare("products", "products_salsify", Map.of("upc", "1"));
+        comparisonRunService.compare("products", "products_salsify", Map.of("upc", "2"));
+
+        // Act
+        comparisonRunService.invalidate("products", "products_salsify");
+        comparisonRunService.compare("products", "products_salsify", Map.of("upc", "1"));
+
+        // Assert
+        verify(documentFetcherService, times(3)).fetchDocumentsConcurrently(anyList(), anyMap());
+        assertEquals(1L, comparisonRunService.cacheStatistics().get("entries"));
+    }
+
+    /**
+     * Tests that cached report data cannot be modified by the requests sharing it.
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    void testCompare_CachedReportDataIsReadOnly() {
+        // Act
+        Map<String, Object> reportData = comparisonRunService.compare("products", "products_salsify", Map.of());
+
+        // Assert
+        assertThrows(UnsupportedOperationException.class, () -> reportData.put("docsInSecondOnly", List.of()));
+        assertThrows(UnsupportedOperationException.class,
+                () -> ((List<Document>) reportData.get("docsInFirstOnly")).add(new Document("upc", "2")));
+    }
+
+    /**
+     * Tests that report data of a comparison overlapping an invalidation is not cached.
+     */
+    @Test
+    void testCompare_InvalidatedWhileComparing_NotCached() {
+        // Arrange
+        when(comparisonService.compareDocuments(anyList(), anyList(), any(), any())).thenAnswer(invocation -> {
+            comparisonRunService.invalidate("products", "products_salsify");
+            return new HashMap<>(Map.of("docsInFirstOnly", invocation.getArgument(0)));
+        });
+
+        // Act
+        comparisonRunService.compare("products", "products_salsify", Map.of());
+
+        // Assert
+        assertEquals(0L, comparisonRunService.cacheStatistics().get("entries"));
+    }
+
+    /**
+     * Tests that report data of a mode keeping its own state is never cached.
+     */
+    @Test
+    void testCompare_StatefulMode_AlwaysCompares() {
+        // Arrange
+        ReflectionTestUtils.setField(comparisonRunService, "comparisonMode", ComparisonMode.MERKLE);
+        when(merkleComparisonService.compareMerkle(anyString(), anyString(), anyMap(), any())).thenReturn(new HashMap<>());
+
+        // Act
+        comparisonRunService.compare("products", "products_salsify", Map.of());
+        comparisonRunService.compare("products", "products_salsify", Map.of());
+
+        // Assert
+        verify(merkleComparisonService, times(2)).compareMerkle(eq("products"), eq("products_salsify"), eq(Map.of()), any());
+        assertEquals(0L, comparisonRunService.cacheStatistics().get("entries"));
+    }
+
+    /**
+     * Tests that with the cache disabled every request is compared.
+     */
+    @Test
+    void testCompare_CacheDisabled_AlwaysCompares() {
+        // Arrange
+        ReflectionTestUtils.setField(comparisonRunService, "cacheEnabled", false);
+
+        // Act
+        comparisonRunService.compare("products", "products_salsify", Map.of());
+        comparisonRunService.compare("products", "products_salsify", Map.of());
+
+        // Assert
+        verify(documentFetcherService, times(2)).fetchDocumentsConcurrently(anyList(), anyMap());
+    }
+
+    /**
+     * Tests that a run is recorded once with its outcome, and that a request served from the cache is not recorded.
+     */
+    @Test
+    void testCompare_RunsRecordedInMetrics() {
+        // Arrange
+        ComparisonProgress progress = new ComparisonProgress();
+        ComparisonProgress cancelledProgress = new ComparisonProgress();
+        when(comparisonService.compareDocuments(anyList(), anyList(), any(), same(cancelledProgress)))
+                .thenThrow(new CancellationException("Comparison cancelled"));
+
+        // Act
+        comparisonRunService.compare("products", "products_salsify", Map.of("upc", "1"), progress);
+        comparisonRunService.compare("products", "products_salsify", Map.of("upc", "1"), progress);
+        assertThrows(CancellationException.class,
+                () -> comparisonRunService.compare("products", "products_salsify", Map.of("upc", "2"), cancelledProgress));
+
+        // Assert
+        verify(comparisonMetrics, times(1)).runCompleted(eq("products"), eq("products_salsify"), same(progress), eq("success"), anyLong());
+        verify(comparisonMetrics, times(1)).runCompleted(eq("products"), eq("products_salsify"), same(cancelledProgress), eq("cancelled"), anyLong());
+    }
+}
@@ -0,0 +1,256 @@
+package com.astro.compare_products.service;
+
+import com.astro.compare_products.common.ComparisonProgress;
+import com.astro.compare_products.common.DiffTable;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.dao.DataRetrievalFailureException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for the {@link DistributedComparisonService} class.
+ * <p>
+ * This class verifies that a run is split into key ranges whose results are merged into one report, that units
+ * are claimed when pending or when their lease expired, that results of an attempt whose unit was taken over are
+ * discarded, and that a unit failing on every attempt fails the run.
+ */
+class DistributedComparisonServiceTests {
+
+    private static final String UNITS = "comparison_work_units";
+    private static final String RESULTS = "comparison_unit_results";
+
+    @Mock
+    private MongoTemplate mongoTemplate;
+
+    @Mock
+    private DocumentFetcherService documentFetcherService;
+
+    private DistributedComparisonService distributedComparisonService;
+
+    // Work units and results stored in the coordination collections
+    private final List<Document> units = new ArrayList<>();
+    private final List<Document> results = new ArrayList<>();
+
+    private final List<Document> collection1Docs = List.of(
+            new Document("upc", "05").append("price", 5),
+            new Document("upc", "07").append("price", 7),
+            new Document("upc", "12").append("price", 12),
+            new Document("upc", "15").append("price", 15));
+    private final List<Document> collection2Docs = List.of(
+            new Document("upc", "05").append("price", 5),
+            new Document("upc", "12").append("price", 12),
+            new Document("upc", "15").append("price", 16),
+            new Document("upc", "20").append("price", 20));
+
+    /**
+     * Initializes mocks, a real comparison service, a service without a worker splitting runs at "10", and
+     * coordination collections kept in memory for each test case.
+     */
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+
+        DocumentComparisonService comparisonService = new DocumentComparisonService();
+        ReflectionTestUtils.setField(comparisonService, "ignoredFieldsProperty", "_id,last_updated");
+        ReflectionTestUtils.setField(comparisonService, "keyFieldsProperty", "upc");
+        comparisonService.init();
+
+        distributedComparisonService = new DistributedComparisonService(mongoTemplate, documentFetcherService, comparisonService);
+        ReflectionTestUtils.setField(distributedComparisonService, "keyFieldsProperty", "upc");
+        ReflectionTestUtils.setField(distributedComparisonService, "unitsPerRun", 2);
+        ReflectionTestUtils.setField(distributedComparisonService, "unitCollection", UNITS);
+        ReflectionTestUtils.setField(distributedComparisonService, "resultCollection", RESULTS);
+        ReflectionTestUtils.setField(distributedComparisonService, "leaseDuration", Duration.ofMinutes(2));
+        ReflectionTestUtils.setField(distributedComparisonService, "heartbeatInterval", Duration.ofSeconds(30));
+        ReflectionTestUtils.setField(distributedComparisonService, "pollInterval", Duration.ofMillis(1));
+        ReflectionTestUtils.setField(distributedComparisonService, "maxAttempts", 3);
+        ReflectionTestUtils.setField(distributedComparisonService, "workerEnabled", false);
+        ReflectionTestUtils.setField(distributedComparisonService, "instanceId", "instance-1");
+        distributedComparisonService.init();
+
+        when(mongoTemplate.indexOps(anyString())).thenReturn(mock(IndexOperations.class));
+        when(documentFetcherService.findRangeBoundaries("products", Map.of(), "upc", 2)).thenReturn(List.of("10"));
+        when(documentFetcherService.fetchDocumentRangeConcurrently(anyList(), anyMap(), eq("upc"), any(), any()))
+                .thenAnswer(invocation -> List.of(
+                        inRange(collection1Docs, invocation.getArgument(3), invocation.getArgument(4)),
+                        inRange(collection2Docs, invocation.getArgument(3), invocation.getArgument(4))));
+
+        when(mongoTemplate.insert(anyCollection(), eq(UNITS))).thenAnswer(invocation -> {
+            invocation.<Collection<Document>>getArgument(0).forEach(unit -> units.add(new Document(unit)));
+            return invocation.getArgument(0);
+        });
+        when(mongoTemplate.insert(anyCollection(), eq(RESULTS))).thenAnswer(invocation -> {
+            results.addAll(invocation.getArgument(0));
+            return invocation.getArgument(0);
+        });
+        // Claims the first pending or expired unit of the run, if any
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(Document.class), eq(UNITS)))
+                .thenAnswer(invocation -> {
+                    Document query = invocation.<Query>getArgument(0).getQueryObject();
+                    Date now = new Date();
+                    return units.stream()
+                            .filter(unit -> !query.containsKey("run") || unit.get("run").equals(query.get("run")))
+                            .filter(unit -> unit.getInteger("attempt") < 3)
+                            .filter(unit -> "PENDING".equals(unit.get("status"))
+                                    || "CLAIMED".equals(unit.get("status")) && unit.getDate("leaseUntil").before(now))
+                            .findFirst()
+                            .map(unit -> new Document(apply(unit, invocation.getArgument(1))))
+                            .orElse(null);
+                });
+        when(mongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(UNITS))).thenAnswer(invocation -> {
+            Document query = invocation.<Query>getArgument(0).getQueryObject();
+            Optional<Document> unit = units.stream()
+                    .filter(candidate -> query.entrySet().stream().allMatch(field -> Objects.equals(candidate.get(field.getKey()), field.getValue())))
+                    .findFirst();
+            unit.ifPresent(matched -> apply(matched, invocation.getArgument(1)));
+            return UpdateResult.acknowledged(unit.isPresent() ? 1 : 0, unit.isPresent() ? 1L : 0L, null);
+        });
+        when(mongoTemplate.find(any(Query.class), eq(Document.class), eq(UNITS))).thenAnswer(invocation -> units.stream()
+                .map(Document::new)
+                .toList());
+        when(mongoTemplate.find(any(Query.class), eq(Document.class), eq(RESULTS))).thenAnswer(invocation -> List.copyOf(results));
+    }
+
+    @AfterEach
+    void tearDown() {
+        distributedComparisonService.shutdown();
+    }
+
+    /**
+     * Tests that both key ranges are processed and merged into the report of the whole collections, with the
+     * counters of every unit added to the progress of the run, and that the state of the run is removed.
+     */
+    @Test
+    void testCompareDistributed_ProcessesEveryUnitAndMergesResults() {
+        // Arrange
+        ComparisonProgress progress = new ComparisonProgress();
+
+        // Act
+        Map<String, Object> reportData = distributedComparisonService.compareDistributed("products", "products_salsify", Map.of(), progress);
+
+        // Assert
+        assertEquals(2, units.size());
+        assertNull(units.get(0).get("lower"));
+        assertEquals("10", units.get(0).get("upper"));
+        assertEquals("10", units.get(1).get("lower"));
+        assertTrue(units.stream().allMatch(unit -> "DONE".equals(unit.get("status"))));
+        assertEquals(List.of(collection1Docs.get(1)), reportData.get("docsInFirstOnly"));
+        assertEquals(List.of(collection2Docs.get(3)), reportData.get("docsInSecondOnly"));
+        DiffTable differingDocs = (DiffTable) reportData.get("differingDocs");
+        assertEquals(1, differingDocs.size());
+        assertEquals(new DiffTable.Row("price", 15, 16), differingDocs.rows(0).iterator().next());
+        assertEquals(4L, progress.snapshot().get("fetchedFirst"));
+        assertEquals(1L, progress.snapshot().get("docsInSecondOnly"));
+        verify(mongoTemplate).remove(any(Query.class), eq(UNITS));
+        verify(mongoTemplate).remove(any(Query.class), eq(RESULTS));
+    }
+
+    /**
+     * Tests that a claim takes pending units and units whose lease expired, with attempts left, under a new lease.
+     */
+    @Test
+    void testClaim_TakesPendingOrExpiredUnitsUnderNewLease() {
+        // Arrange
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<Update> update = ArgumentCaptor.forClass(Update.class);
+
+        // Act
+        distributedComparisonService.claim("run-1");
+
+        // Assert
+        verify(mongoTemplate).findAndModify(query.capture(), update.capture(), any(FindAndModifyOptions.class), eq(Document.class), eq(UNITS));
+        Document queryObject = query.getValue().getQueryObject();
+        List<Document> claimable = queryObject.getList("$or", Document.class);
+        assertEquals("PENDING", claimable.get(0).get("status"));
+        assertEquals("CLAIMED", claimable.get(1).get("status"));
+        assertInstanceOf(Date.class, claimable.get(1).get("leaseUntil", Document.class).get("$lt"));
+        assertEquals(3, queryObject.get("attempt", Document.class).get("$lt"));
+        assertEquals("run-1", queryObject.get("run"));
+        Document updateObject = update.getValue().getUpdateObject();
+        assertEquals("instance-1", updateObject.get("$set", Document.class).get("owner"));
+        assertEquals(1, updateObject.get("$inc", Document.class).get("attempt"));
+    }
+
+    /**
+     * Tests that when another instance takes over a unit while it is compared, the results of the lost attempt
+     * are discarded and the results of the attempt that completed the unit are merged.
+     */
+    @Test
+    void testCompareDistributed_UnitTakenOverByAnotherInstance_MergesOnlyItsResults() {
+        // Arrange
+        when(documentFetcherService.fetchDocumentRangeConcurrently(anyList(), anyMap(), eq("upc"), isNull(), eq("10")))
+                .thenAnswer(invocation -> {
+                    // Another instance claimed the unit after its lease expired and completed it, finding nothing
+                    Document unit = units.getFirst();
+                    unit.append("owner", "instance-2").append("attempt", 2).append("status", "DONE");
+                    return List.of(inRange(collection1Docs, null, "10"), inRange(collection2Docs, null, "10"));
+                });
+
+        // Act
+        Map<String, Object> reportData = distributedComparisonService.compareDistributed("products", "products_salsify", Map.of(), new ComparisonProgress());
+
+        // Assert
+        assertTrue(((List<?>) reportData.get("docsInFirstOnly")).isEmpty());
+        assertEquals(List.of(collection2Docs.get(3)), reportData.get("docsInSecondOnly"));
+        ArgumentCaptor<Query> removed = ArgumentCaptor.forClass(Query.class);
+        verify(mongoTemplate, times(2)).remove(removed.capture(), eq(RESULTS));
+        assertEquals(new Document("run", units.getFirst().get("run")).append("unit", 0).append("attempt", 1),
+                removed.getAllValues().getFirst().getQueryObject());
+    }
+
+    /**
+     * Tests that a unit failing on every attempt fails the run with its error.
+     */
+    @Test
+    void testCompareDistributed_UnitFailingOnEveryAttempt_FailsRun() {
+        // Arrange
+        when(documentFetcherService.fetchDocumentRangeConcurrently(anyList(), anyMap(), eq("upc"), eq("10"), isNull()))
+                .thenThrow(new DataRetrievalFailureException("Connection reset"));
+
+        // Act
+        IllegalStateException exception = assertThrows(IllegalStateException.class, () ->
+                distributedComparisonService.compareDistributed("products", "products_salsify", Map.of(), new ComparisonProgress()));
+
+        // Assert
+        assertTrue(exception.getMessage().endsWith("failed after 3 attempts: Connection reset"));
+        assertEquals("FAILED", units.get(1).get("status"));
+        verify(mongoTemplate).remove(any(Query.class), eq(UNITS));
+    }
+
+    private static List<Document> inRange(List<Document> documents, Object lower, Object upper) {
+        return documents.stream()
+                .filter(doc -> lower == null || doc.getString("upc").compareTo((String) lower) >= 0)
+                .filter(doc -> upper == null || doc.getString("upc").compareTo((String) upper) < 0)
+                .toList();
+    }
+
+    /**
+     * Applies the $set, $unset and $inc operators of an update to a stored unit.
+     */
+    private static Document apply(Document unit, Update update) {
+        Document updateObject = update.getUpdateObject();
+        Optional.ofNullable(updateObject.get("$set", Document.class)).ifPresent(unit::putAll);
+        Optional.ofNullable(updateObject.get("$unset", Document.class)).ifPresent(fields -> fields.keySet().forEach(unit::remove));
+        Optional.ofNullable(updateObject.get("$inc", Document.class)).ifPresent(fields -> fields.forEach((field, increment) ->
+                unit.put(field, unit.getInteger(field) + ((Number) increment).intValue())));
+        return unit;
+    }
+}
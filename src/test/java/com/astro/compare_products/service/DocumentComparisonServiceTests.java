@@ -1,5 +1,9 @@
 package com.astro.compare_products.service;
 
+import com.astro.compare_products.common.ComparisonPhase;
+import com.astro.compare_products.common.ComparisonProgress;
+import com.astro.compare_products.common.ComparisonRules;
+import com.astro.compare_products.common.DiffTable;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -7,9 +11,15 @@ import org.mockito.InjectMocks;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.test.util.ReflectionTestUtils;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.types.Decimal128;
 import java.util.*;
+import java.util.concurrent.CancellationException;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /**
  * Unit tests for the {@link DocumentComparisonService} class.
@@ -100,20 +110,166 @@ class DocumentComparisonServiceTests {
     }
 
     /**
-     * Tests that the DocumentComparisonService#compareDocumentFields(Document, Document, Set)}
+     * Tests that {@link DocumentComparisonService#compareDocuments(List, List)} reports documents unique
+     * to each collection and differing documents from a single pass, keeping unmatched duplicates of the
+     * second collection in their original order.
+     */
+    @Test
+    void testCompareDocuments_SinglePassReportsBothSides() {
+        // Arrange
+        Document first = new Document("keyField1", "A").append("field", "value1");
+        Document matched = new Document("keyField1", "B").append("field", "value1");
+        Document secondDuplicate1 = new Document("keyField1", "C").append("field", "value1");
+        Document matchedTarget = new Document("keyField1", "B").append("field", "value2");
+        Document secondDuplicate2 = new Document("keyField1", "C").append("field", "value2");
+        List<Document> collection1Docs = List.of(first, matched);
+        List<Document> collection2Docs = List.of(secondDuplicate1, matchedTarget, secondDuplicate2);
+
+        // Act
+        Map<String, Object> result = documentComparisonService.compareDocuments(collection1Docs, collection2Docs);
+
+        // Assert
+        assertEquals(List.of(first), result.get("docsInFirstOnly"));
+        assertEquals(List.of(secondDuplicate1, secondDuplicate2), result.get("docsInSecondOnly"));
+        assertEquals(1, ((List<?>) result.get("differingDocs")).size());
+    }
+
+    /**
+     * Tests that {@link DocumentComparisonService#compareDocuments(List, List, ComparisonProgress)} records the
+     * documents compared on each side and the results found, and stops when the run is cancelled.
+     */
+    @Test
+    void testCompareDocuments_RecordsProgressAndStopsWhenCancelled() {
+        // Arrange
+        List<Document> collection1Docs = List.of(
+                new Document("keyField1", "A").append("field", "value1"),
+                new Document("keyField1", "B").append("field", "value1"));
+        List<Document> collection2Docs = List.of(
+                new Document("keyField1", "B").append("field", "value2"),
+                new Document("keyField1", "C").append("field", "value1"),
+                new Document("keyField1", "D").append("field", "value1"));
+        ComparisonProgress progress = new ComparisonProgress();
+        ComparisonProgress cancelledProgress = new ComparisonProgress();
+        cancelledProgress.cancel();
+
+        // Act
+        documentComparisonService.compareDocuments(collection1Docs, collection2Docs, progress);
+
+        // Assert
+        Map<String, Long> counts = progress.snapshot();
+        assertEquals(2L, counts.get("comparedFirst"));
+        assertEquals(3L, counts.get("comparedSecond"));
+        assertEquals(1L, counts.get("docsInFirstOnly"));
+        assertEquals(2L, counts.get("docsInSecondOnly"));
+        assertEquals(1L, counts.get("differingDocs"));
+        assertEquals(0L, counts.get("duplicateKeys"));
+        assertTrue(progress.phaseNanos(ComparisonPhase.INDEX) > 0 && progress.phaseNanos(ComparisonPhase.COMPARE) > 0);
+        assertThrows(CancellationException.class,
+                () -> documentComparisonService.compareDocuments(collection1Docs, collection2Docs, cancelledProgress));
+    }
+
+    /**
+     * Tests that {@link DocumentComparisonService#compareDocuments(List, List)} produces the same results,
+     * in the same order, when the documents are compared in parallel partitions.
+     */
+    @Test
+    void testCompareDocuments_ParallelPartitionsMatchSequentialComparison() {
+        // Arrange
+        List<Document> collection1Docs = new ArrayList<>();
+        List<Document> collection2Docs = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            if (i % 7 != 0) {
+                collection1Docs.add(new Document("keyField1", "K" + i).append("keyField2", i % 3).append("field", "value" + i % 5));
+            }
+            if (i % 11 != 0) {
+                collection2Docs.add(new Document("keyField1", "K" + i).append("keyField2", i % 3).append("field", "value" + i % 4));
+            }
+        }
+        // A duplicate key in the second collection
+        collection2Docs.add(new Document("keyField1", "K7").append("keyField2", 1).append("field", "duplicate"));
+        Map<String, Object> expected = documentComparisonService.compareDocuments(collection1Docs, collection2Docs);
+
+        ReflectionTestUtils.setField(documentComparisonService, "parallelPartitions", 8);
+        ReflectionTestUtils.setField(documentComparisonService, "parallelThreads", 4);
+        documentComparisonService.init();
+
+        // Act
+        Map<String, Object> result;
+        try {
+            result = documentComparisonService.compareDocuments(collection1Docs, collection2Docs);
+        } finally {
+            documentComparisonService.shutdown();
+        }
+
+        // Assert
+        assertEquals(expected, result);
+    }
+
+    /**
+     * Tests that {@link DocumentComparisonService#compareDocuments(List, List)} and
+     * {@link DocumentComparisonService#compareRawDocuments(List, List, ComparisonRules, ComparisonProgress)} produce
+     * the same results when the target documents are indexed off the heap, also in parallel partitions.
+     */
+    @Test
+    void testCompareDocuments_OffHeapIndexMatchesMapIndex() {
+        // Arrange
+        List<Document> collection1Docs = new ArrayList<>();
+        List<Document> collection2Docs = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            if (i % 7 != 0) {
+                collection1Docs.add(new Document("keyField1", "K" + i).append("keyField2", i % 3).append("field", "value" + i % 5));
+            }
+            if (i % 11 != 0) {
+                collection2Docs.add(new Document("keyField1", "K" + i).append("keyField2", i % 3).append("field", "value" + i % 4));
+            }
+        }
+        // A duplicate key in the second collection
+        collection2Docs.add(new Document("keyField1", "K7").append("keyField2", 1).append("field", "duplicate"));
+        DocumentCodec codec = new DocumentCodec();
+        List<RawBsonDocument> rawCollection1Docs = collection1Docs.stream().map(doc -> new RawBsonDocument(doc, codec)).toList();
+        List<RawBsonDocument> rawCollection2Docs = collection2Docs.stream().map(doc -> new RawBsonDocument(doc, codec)).toList();
+        ComparisonRules rules = documentComparisonService.rulesFor("collection1", "collection2");
+        Map<String, Object> expected = documentComparisonService.compareDocuments(collection1Docs, collection2Docs);
+        Map<String, Object> expectedRaw = documentComparisonService.compareRawDocuments(rawCollection1Docs, rawCollection2Docs, rules, new ComparisonProgress());
+
+        ReflectionTestUtils.setField(documentComparisonService, "offHeapIndexEnabled", true);
+
+        // Act
+        Map<String, Object> result = documentComparisonService.compareDocuments(collection1Docs, collection2Docs);
+        Map<String, Object> rawResult = documentComparisonService.compareRawDocuments(rawCollection1Docs, rawCollection2Docs, rules, new ComparisonProgress());
+        ReflectionTestUtils.setField(documentComparisonService, "parallelPartitions", 8);
+        ReflectionTestUtils.setField(documentComparisonService, "parallelThreads", 4);
+        documentComparisonService.init();
+        Map<String, Object> parallelResult;
+        try {
+            parallelResult = documentComparisonService.compareDocuments(collection1Docs, collection2Docs);
+        } finally {
+            documentComparisonService.shutdown();
+        }
+
+        // Assert
+        assertEquals(expected, result);
+        assertEquals(expectedRaw, rawResult);
+        assertEquals(expected, parallelResult);
+    }
+
+    /**
+     * Tests that the DocumentComparisonService#compareDocumentFields(Document, Document, ComparisonRules, DiffTable, int)
      * method ignores specified fields during the document comparison process.
      */
     @Test
     void testCompareDocumentFields_IgnoresSpecifiedFields() {
         // Arrange
         ReflectionTestUtils.setField(documentComparisonService, "keyFields", Collections.emptyList());
-        Set<String> ignoredFields = new HashSet<>(Collections.singletonList("ignoredField"));
+        ComparisonRules rules = ComparisonRules.compile(List.of("ignoredField"), Map.of());
         Document doc1 = new Document("keyField1", "A").append("ignoredField", "ignoredValue1");
         Document doc2 = new Document("keyField1", "B").append("ignoredField", "ignoredValue2");
 
         // Act
-        Map<String, Object> result = ReflectionTestUtils.invokeMethod(
-                documentComparisonService, "compareDocumentFields", doc1, doc2, ignoredFields);
+        DiffTable differences = new DiffTable();
+        ReflectionTestUtils.invokeMethod(documentComparisonService, "compareDocumentFields", doc1, doc2, rules, differences, DiffTable.ROOT);
+        differences.endDocument();
+        Map<String, Map<String, Object>> result = differences.get(0);
         Map<String, Object> expected = new HashMap<>();
 
         Map<String, Object> keyFieldDiff = new HashMap<>();
@@ -127,14 +283,14 @@ class DocumentComparisonServiceTests {
     }
 
     /**
-     * Tests that the DocumentComparisonService#compareDocumentFields(Document, Document, Set)
+     * Tests that the DocumentComparisonService#compareDocumentFields(Document, Document, ComparisonRules, DiffTable, int)
      * method correctly compares nested documents, identifying differences at nested levels.
      */
     @Test
     void testCompareDocumentFields_WithNestedDocuments() {
         // Arrange
         ReflectionTestUtils.setField(documentComparisonService, "keyFields", Collections.emptyList());
-        Set<String> ignoredFields = Collections.emptySet();
+        ComparisonRules rules = ComparisonRules.NONE;
         Document nestedDoc1 = new Document("nestedField", "nestedValue1");
         Document nestedDoc2 = new Document("nestedField", "nestedValue2");
 
@@ -142,18 +298,219 @@ class DocumentComparisonServiceTests {
         Document doc2 = new Document("keyField1", "A").append("nestedDoc", nestedDoc2);
 
         // Act
-        Map<String, Object> result = ReflectionTestUtils.invokeMethod(
-                documentComparisonService, "compareDocumentFields", doc1, doc2, ignoredFields);
+        DiffTable differences = new DiffTable();
+        ReflectionTestUtils.invokeMethod(documentComparisonService, "compareDocumentFields", doc1, doc2, rules, differences, DiffTable.ROOT);
+        differences.endDocument();
+        Map<String, Map<String, Object>> result = differences.get(0);
 
         // Assert
         assert result != null;
         assertEquals(1, result.size());
 
-        // Retrieve the nestedDoc differences map
-        Map<String, Object> nestedDocDiff = (Map<String, Object>) result.get("nestedDoc");
-        Map<String, Object> nestedFieldDiff = (Map<String, Object>) nestedDocDiff.get("nestedField");
+        // Retrieve the differences of the nested field, at its dotted path
+        Map<String, Object> nestedFieldDiff = result.get("nestedDoc.nestedField");
 
         assertEquals("nestedValue1", nestedFieldDiff.get("collection1"));
         assertEquals("nestedValue2", nestedFieldDiff.get("collection2"));
     }
+
+    /**
+     * Tests that the DocumentComparisonService#compareDocumentFields(Document, Document, ComparisonRules, DiffTable, int)
+     * method reports only the changed elements of arrays, matching sub-documents on their configured identity field.
+     */
+    @Test
+    void testCompareDocumentFields_WithArrays_ReportsChangedElementsOnly() {
+        // Arrange
+        ComparisonRules rules = ComparisonRules.compile(List.of("details.variants.*.fieldToIgnore"), Map.of("details.variants", "sku"));
+        Document doc1 = new Document("keyField1", "A")
+                .append("tags", List.of("a", "b", "c"))
+                .append("details", new Document("variants", List.of(
+                        new Document("sku", "S1").append("stock", 1),
+                        new Document("sku", "S2").append("stock", 2).append("fieldToIgnore", 1))));
+        Document doc2 = new Document("keyField1", "A")
+                .append("tags", List.of("a", "x", "c"))
+                .append("details", new Document("variants", List.of(
+                        new Document("sku", "S2").append("stock", 2).append("fieldToIgnore", 2),
+                        new Document("sku", "S1").append("stock", 5))));
+
+        // Act
+        DiffTable differences = new DiffTable();
+        ReflectionTestUtils.invokeMethod(documentComparisonService, "compareDocumentFields", doc1, doc2, rules, differences, DiffTable.ROOT);
+        differences.endDocument();
+        Map<String, Map<String, Object>> result = differences.get(0);
+
+        // Assert
+        assertEquals(Map.of(
+                "tags[1]", Map.of("collection1", "b", "collection2", "x"),
+                "details.variants[sku=S1].stock", Map.of("collection1", 1, "collection2", 5)), result);
+    }
+
+    /**
+     * Tests that ignored paths apply at their own level only, and that the fields ignored for a collection pair
+     * apply to that pair only, on top of the configured ignored fields.
+     */
+    @Test
+    void testRulesFor_AppliesNestedPathsAndPairRules() {
+        // Arrange
+        ReflectionTestUtils.setField(documentComparisonService, "pairIgnoredFieldsProperty", "products|products_salsify=price,attributes.size");
+        documentComparisonService.init();
+        Document doc1 = new Document("keyField1", "A").append("keyField2", 1).append("price", 1.0)
+                .append("attributes", new Document("size", "M").append("fieldToIgnore", 1));
+        Document doc2 = new Document("keyField1", "A").append("keyField2", 1).append("price", 2.0)
+                .append("attributes", new Document("size", "L").append("fieldToIgnore", 2));
+
+        // Act
+        Map<String, Object> pairResult = documentComparisonService.compareDocuments(List.of(doc1), List.of(doc2),
+                documentComparisonService.rulesFor("products", "products_salsify"), new ComparisonProgress());
+        Map<String, Object> otherResult = documentComparisonService.compareDocuments(List.of(doc1), List.of(doc2),
+                documentComparisonService.rulesFor("products", "products_archive"), new ComparisonProgress());
+
+        // Assert
+        List<Map<String, Map<String, Object>>> pairDiffs = (List<Map<String, Map<String, Object>>>) pairResult.get("differingDocs");
+        assertEquals(Set.of("keyField1", "keyField2", "attributes.fieldToIgnore"), pairDiffs.get(0).keySet());
+        List<Map<String, Map<String, Object>>> otherDiffs = (List<Map<String, Map<String, Object>>>) otherResult.get("differingDocs");
+        assertEquals(Set.of("keyField1", "keyField2", "price", "attributes.size", "attributes.fieldToIgnore"), otherDiffs.get(0).keySet());
+    }
+
+    /**
+     * Tests that {@link DocumentComparisonService#compareSortedDocuments(java.util.stream.Stream, java.util.stream.Stream)}
+     * merge-joins key-sorted streams into the same results as the hash-based comparison.
+     */
+    @Test
+    void testCompareSortedDocuments_MatchesHashBasedComparison() {
+        // Arrange
+        List<Document> collection1Docs = List.of(
+                new Document("keyField1", "A").append("keyField2", 1).append("field", "same"),
+                new Document("keyField1", "B").append("keyField2", 1).append("field", "value1"),
+                new Document("keyField1", "B").append("keyField2", 2).append("field", "onlyFirst"),
+                new Document("keyField1", "D").append("keyField2", 1).append("field", "value1"));
+        List<Document> collection2Docs = List.of(
+                new Document("keyField1", "A").append("keyField2", 1).append("field", "same"),
+                new Document("keyField1", "B").append("keyField2", 1).append("field", "value2"),
+                new Document("keyField1", "C").append("keyField2", 1).append("field", "onlySecond"),
+                new Document("keyField1", "D").append("keyField2", 1).append("field", "value2"));
+
+        // Act
+        Map<String, Object> expected = documentComparisonService.compareDocuments(collection1Docs, collection2Docs);
+        Map<String, Object> result = documentComparisonService.compareSortedDocuments(
+                collection1Docs.stream(), collection2Docs.stream());
+
+        // Assert
+        assertEquals(expected, result);
+        assertEquals(2, ((List<?>) result.get("differingDocs")).size());
+    }
+
+    /**
+     * Tests that merge-joining pairs documents exactly as the hash-based comparison does when key values are equal
+     * numbers of different types: equal integral values match, other values equal as doubles do not.
+     */
+    @Test
+    void testCompareSortedDocuments_NumericKeysOfDifferentTypesMatchHashBasedComparison() {
+        // Arrange
+        List<Document> collection1Docs = List.of(
+                new Document("keyField1", Decimal128.parse("1.5")).append("keyField2", 1).append("field", "value1"),
+                new Document("keyField1", Decimal128.parse("2")).append("keyField2", 1).append("field", "value1"));
+        List<Document> collection2Docs = List.of(
+                new Document("keyField1", 1.5).append("keyField2", 1).append("field", "value2"),
+                new Document("keyField1", 2L).append("keyField2", 1).append("field", "value2"));
+
+        // Act
+        Map<String, Object> expected = documentComparisonService.compareDocuments(collection1Docs, collection2Docs);
+        Map<String, Object> result = documentComparisonService.compareSortedDocuments(
+                collection1Docs.stream(), collection2Docs.stream());
+
+        // Assert
+        assertEquals(expected, result);
+        assertEquals(List.of(collection1Docs.getFirst()), result.get("docsInFirstOnly"));
+        assertEquals(1, ((List<?>) result.get("differingDocs")).size());
+    }
+
+    /**
+     * Tests that merge-joining streams without duplicate keys records no duplicate key when passing the matched
+     * target documents, and that a second target document with a matched key is recorded as one.
+     */
+    @Test
+    void testCompareSortedDocuments_DuplicateKeysCountedOnlyForRepeatedTargets() {
+        // Arrange
+        List<Document> collection1Docs = List.of(
+                new Document("keyField1", "A").append("field", "value1"),
+                new Document("keyField1", "B").append("field", "value1"),
+                new Document("keyField1", "C").append("field", "value1"));
+        List<Document> collection2Docs = List.of(
+                new Document("keyField1", "A").append("field", "value1"),
+                new Document("keyField1", "B").append("field", "value2"),
+                new Document("keyField1", "C").append("field", "value1"));
+        List<Document> duplicateDocs = List.of(
+                new Document("keyField1", "A").append("field", "value1"),
+                new Document("keyField1", "A").append("field", "value2"));
+        ComparisonProgress cleanProgress = new ComparisonProgress();
+        ComparisonProgress duplicateProgress = new ComparisonProgress();
+
+        // Act
+        Map<String, Object> result = documentComparisonService.compareSortedDocuments(
+                collection1Docs.stream(), collection2Docs.stream(), cleanProgress);
+        documentComparisonService.compareSortedDocuments(collection1Docs.stream(), duplicateDocs.stream(), duplicateProgress);
+
+        // Assert
+        assertEquals(0L, cleanProgress.snapshot().get("duplicateKeys"));
+        assertEquals(3L, cleanProgress.snapshot().get("comparedSecond"));
+        assertEquals(0, ((List<?>) result.get("docsInSecondOnly")).size());
+        assertEquals(1L, duplicateProgress.snapshot().get("duplicateKeys"));
+    }
+
+    /**
+     * Tests that {@link DocumentComparisonService#compareSortedDocuments(java.util.stream.Stream, java.util.stream.Stream)}
+     * compares every duplicate source document against the matching target and does not report
+     * duplicate target documents as unique to the second collection.
+     */
+    @Test
+    void testCompareSortedDocuments_HandlesDuplicateKeys() {
+        // Arrange
+        List<Document> collection1Docs = List.of(
+                new Document("keyField1", "A").append("field", "value1"),
+                new Document("keyField1", "A").append("field", "value2"));
+        List<Document> collection2Docs = List.of(
+                new Document("keyField1", "A").append("field", "value2"),
+                new Document("keyField1", "A").append("field", "value3"));
+
+        // Act
+        Map<String, Object> result = documentComparisonService.compareSortedDocuments(
+                collection1Docs.stream(), collection2Docs.stream());
+
+        // Assert
+        assertEquals(0, ((List<?>) result.get("docsInFirstOnly")).size());
+        assertEquals(0, ((List<?>) result.get("docsInSecondOnly")).size());
+        assertEquals(1, ((List<?>) result.get("differingDocs")).size());
+    }
+
+    /**
+     * Tests that {@link DocumentComparisonService#compareRawDocuments(List, List, ComparisonProgress)} produces
+     * the same report data from encoded documents as {@link DocumentComparisonService#compareDocuments(List, List)}
+     * from the decoded documents.
+     */
+    @Test
+    void testCompareRawDocuments_MatchesDecodedComparison() {
+        // Arrange
+        List<Document> collection1Docs = List.of(
+                new Document("keyField1", "A").append("keyField2", 1).append("field", "value1"),
+                new Document("keyField1", "B").append("keyField2", 1).append("nested", new Document("field", "x").append("fieldToIgnore", 1)),
+                new Document("keyField1", "C").append("keyField2", 2).append("field", "same"));
+        List<Document> collection2Docs = List.of(
+                new Document("keyField1", "C").append("keyField2", 2L).append("field", "same"),
+                new Document("keyField1", "B").append("keyField2", 1).append("nested", new Document("field", "y").append("fieldToIgnore", 2)),
+                new Document("keyField1", "D").append("keyField2", 1).append("field", "value2"));
+        DocumentCodec codec = new DocumentCodec();
+
+        // Act
+        Map<String, Object> expected = documentComparisonService.compareDocuments(collection1Docs, collection2Docs);
+        Map<String, Object> result = documentComparisonService.compareRawDocuments(
+                collection1Docs.stream().map(doc -> new RawBsonDocument(doc, codec)).toList(),
+                collection2Docs.stream().map(doc -> new RawBsonDocument(doc, codec)).toList(),
+                documentComparisonService.rulesFor("collection1", "collection2"), new ComparisonProgress());
+
+        // Assert
+        assertEquals(expected, result);
+        // B differs in a nested field, C in the BSON type of its key field
+        assertEquals(2, ((List<?>) result.get("differingDocs")).size());
+    }
 }
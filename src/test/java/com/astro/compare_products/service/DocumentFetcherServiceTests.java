@@ -6,18 +6,30 @@ import org.junit.jupiter.api.Test;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationResults;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.test.util.ReflectionTestUtils;
 
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -42,6 +54,11 @@ class DocumentFetcherServiceTests {
     @BeforeEach
     void setUp() {
         MockitoAnnotations.openMocks(this);
+        ReflectionTestUtils.setField(documentFetcherService, "fetchTimeout", Duration.ofSeconds(5));
+        ReflectionTestUtils.setField(documentFetcherService, "keyFieldsProperty", "upc,country");
+        ReflectionTestUtils.setField(documentFetcherService, "ignoredFieldsProperty", "_id,last_updated");
+        ReflectionTestUtils.setField(documentFetcherService, "prefilterBatchSize", 2);
+        documentFetcherService.init();
     }
 
     /**
@@ -124,7 +141,7 @@ class DocumentFetcherServiceTests {
         expectedQuery.addCriteria(Criteria.where("category").is("clothing"));
 
         // Verify to check if mongoTemplate.find was called with the expected query
-        verify(mongoTemplate).find(expectedQuery, Document.class, collectionName);
+        verify(mongoTemplate).find(withIgnoredFieldsExcluded(expectedQuery), Document.class, collectionName);
     }
 
     /**
@@ -155,6 +172,257 @@ class DocumentFetcherServiceTests {
         expectedQuery.addCriteria(Criteria.where("size").is("M"));
 
         // Verify to check if mongoTemplate.find was called with the expected query
-        verify(mongoTemplate).find(expectedQuery, Document.class, collectionName);
+        verify(mongoTemplate).find(withIgnoredFieldsExcluded(expectedQuery), Document.class, collectionName);
+    }
+
+    /**
+     * Verifies that {@link DocumentFetcherService#streamDocuments(String, Map, List)} streams
+     * the matching documents sorted on the given fields.
+     * <p>
+     * Expected behavior: The query passed to {@link MongoTemplate#stream(Query, Class, String)}
+     * holds the criteria and an ascending sort on the sort fields.
+     */
+    @Test
+    void testStreamDocuments_SortsOnSortFields() {
+        // Arrange
+        String collectionName = "products";
+        Map<String, String> criteria = new HashMap<>();
+        criteria.put("category", "clothing");
+        Document document = new Document("category", "clothing").append("upc", "1");
+
+        when(mongoTemplate.stream(any(Query.class), eq(Document.class), eq(collectionName)))
+                .thenReturn(Stream.of(document));
+
+        // Act
+        List<Document> actualDocuments;
+        try (Stream<Document> stream = documentFetcherService.streamDocuments(collectionName, criteria, List.of("upc", "country"))) {
+            actualDocuments = stream.toList();
+        }
+
+        // Assert
+        Query expectedQuery = new Query();
+        expectedQuery.addCriteria(Criteria.where("category").is("clothing"));
+        expectedQuery.with(Sort.by(Sort.Direction.ASC, "upc", "country")).allowDiskUse(true);
+
+        verify(mongoTemplate).stream(withIgnoredFieldsExcluded(expectedQuery), Document.class, collectionName);
+        assertEquals(List.of(document), actualDocuments);
+    }
+
+    /**
+     * Tests that {@link DocumentFetcherService#fetchDocumentsConcurrently(List, Map)} returns the documents
+     * of every collection in the order the collections were requested.
+     */
+    @Test
+    void testFetchDocumentsConcurrently_ReturnsDocumentsInCollectionOrder() {
+        // Arrange
+        Map<String, String> criteria = Map.of("category", "electronics");
+        List<Document> productDocs = List.of(new Document("upc", "1"));
+        List<Document> salsifyDocs = List.of(new Document("upc", "2"));
+
+        when(mongoTemplate.find(any(Query.class), eq(Document.class), eq("products"))).thenReturn(productDocs);
+        when(mongoTemplate.find(any(Query.class), eq(Document.class), eq("products_salsify"))).thenReturn(salsifyDocs);
+
+        // Act
+        List<List<Document>> actualDocuments = documentFetcherService.fetchDocumentsConcurrently(
+                List.of("products", "products_salsify"), criteria);
+
+        // Assert
+        assertEquals(List.of(productDocs, salsifyDocs), actualDocuments);
+    }
+
+    /**
+     * Verifies that {@link DocumentFetcherService#fetchDocumentsConcurrently(List, Map, String, java.util.Collection)}
+     * looks the values up in every collection with one query combining the criteria and an {@code $in} of the values.
+     */
+    @Test
+    void testFetchDocumentsConcurrently_WithValues_QueriesValuesWithIn() {
+        // Arrange
+        List<Document> productDocs = List.of(new Document("upc", "1"));
+        when(mongoTemplate.find(any(Query.class), eq(Document.class), eq("products"))).thenReturn(productDocs);
+        when(mongoTemplate.find(any(Query.class), eq(Document.class), eq("products_salsify"))).thenReturn(List.of());
+
+        // Act
+        List<List<Document>> actualDocuments = documentFetcherService.fetchDocumentsConcurrently(
+                List.of("products", "products_salsify"), Map.of("category", "clothing"), "upc", List.of("1", "2"));
+
+        // Assert
+        Query expectedQuery = new Query();
+        expectedQuery.addCriteria(Criteria.where("category").is("clothing"));
+        expectedQuery.addCriteria(Criteria.where("upc").in(List.of("1", "2")));
+        verify(mongoTemplate).find(withIgnoredFieldsExcluded(expectedQuery), Document.class, "products");
+        verify(mongoTemplate).find(withIgnoredFieldsExcluded(expectedQuery), Document.class, "products_salsify");
+        assertEquals(List.of(productDocs, List.of()), actualDocuments);
+    }
+
+    /**
+     * Tests that {@link DocumentFetcherService#fetchDocumentsConcurrently(List, Map)} gives up with a
+     * {@link QueryTimeoutException} when a fetch does not complete within the fetch timeout.
+     */
+    @Test
+    void testFetchDocumentsConcurrently_WhenFetchTimesOut_Throws() {
+        // Arrange
+        ReflectionTestUtils.setField(documentFetcherService, "fetchTimeout", Duration.ofMillis(50));
+        when(mongoTemplate.find(any(Query.class), eq(Document.class), eq("products"))).thenReturn(List.of());
+        when(mongoTemplate.find(any(Query.class), eq(Document.class), eq("products_salsify"))).thenAnswer(invocation -> {
+            Thread.sleep(Duration.ofSeconds(5));
+            return List.of();
+        });
+
+        // Act & Assert
+        assertThrows(QueryTimeoutException.class, () -> documentFetcherService.fetchDocumentsConcurrently(
+                List.of("products", "products_salsify"), Map.of()));
+    }
+
+    /**
+     * Tests that {@link DocumentFetcherService#findMismatchedKeys(String, String, Map)} runs a single
+     * aggregation on the first collection, unioned with the second, and returns the grouped keys.
+     */
+    @Test
+    void testFindMismatchedKeys_ReturnsGroupKeys() {
+        // Arrange
+        Document key = new Document("upc", "1").append("country", "US");
+        when(mongoTemplate.aggregate(any(Aggregation.class), eq("products"), eq(Document.class)))
+                .thenReturn(new AggregationResults<>(List.of(new Document("_id", key)), new Document()));
+
+        // Act
+        List<Document> mismatchedKeys = documentFetcherService.findMismatchedKeys("products", "products_salsify", Map.of());
+
+        // Assert
+        assertEquals(List.of(key), mismatchedKeys);
+        verify(mongoTemplate).aggregate(any(Aggregation.class), eq("products"), eq(Document.class));
+    }
+
+    /**
+     * Tests that {@link DocumentFetcherService#findRangeBoundaries(String, Map, String, int)} returns the lower bounds
+     * of every bucket but the first when they are all of one BSON type, counting every number as one type, and no
+     * boundaries when they straddle types, as the ranges between them would miss documents.
+     */
+    @Test
+    void testFindRangeBoundaries_BoundariesStraddlingTypes_ReturnsNoBoundaries() {
+        // Arrange
+        when(mongoTemplate.aggregate(any(Aggregation.class), eq("products"), eq(Document.class)))
+                .thenReturn(buckets(null, 5, 10L, 20.5))
+                .thenReturn(buckets(1, 5, "10", "abc"));
+
+        // Act
+        List<Object> numericBoundaries = documentFetcherService.findRangeBoundaries("products", Map.of(), "upc", 4);
+        List<Object> mixedBoundaries = documentFetcherService.findRangeBoundaries("products", Map.of(), "upc", 4);
+
+        // Assert
+        assertEquals(List.of(5, 10L, 20.5), numericBoundaries);
+        assertEquals(List.of(), mixedBoundaries);
+    }
+
+    /**
+     * Verifies that {@link DocumentFetcherService#fetchDocumentsByKeys(String, Map, List)} looks the keys up
+     * in batches, combining the criteria with one {@code $or} of the key field values per batch.
+     */
+    @Test
+    void testFetchDocumentsByKeys_QueriesKeysInBatches() {
+        // Arrange
+        List<Document> keys = List.of(
+                new Document("upc", "1").append("country", "US"),
+                new Document("upc", "2").append("country", "US"),
+                new Document("upc", "3"));
+        when(mongoTemplate.find(any(Query.class), eq(Document.class), eq("products")))
+                .thenReturn(List.of(new Document("upc", "1")));
+
+        // Act
+        List<Document> documents = documentFetcherService.fetchDocumentsByKeys("products", Map.of("category", "clothing"), keys);
+
+        // Assert
+        Query firstBatch = new Query();
+        firstBatch.addCriteria(Criteria.where("category").is("clothing"));
+        firstBatch.addCriteria(new Criteria().orOperator(
+                Criteria.where("upc").is("1").and("country").is("US"),
+                Criteria.where("upc").is("2").and("country").is("US")));
+        Query secondBatch = new Query();
+        secondBatch.addCriteria(Criteria.where("category").is("clothing"));
+        secondBatch.addCriteria(new Criteria().orOperator(Criteria.where("upc").is("3").and("country").is(null)));
+
+        verify(mongoTemplate).find(withIgnoredFieldsExcluded(firstBatch), Document.class, "products");
+        verify(mongoTemplate).find(withIgnoredFieldsExcluded(secondBatch), Document.class, "products");
+        verify(mongoTemplate, times(2)).find(any(Query.class), eq(Document.class), eq("products"));
+        assertEquals(2, documents.size());
+    }
+
+    /**
+     * Tests that {@link DocumentFetcherService#fetchDocumentsByKeysConcurrently(List, Map, List)} looks the keys up
+     * in both collections at the same time, returning the documents in collection order.
+     */
+    @Test
+    void testFetchDocumentsByKeysConcurrently_FetchesCollectionsAtTheSameTime() {
+        // Arrange
+        CountDownLatch bothFetching = new CountDownLatch(2);
+        List<Document> productDocs = List.of(new Document("upc", "1"));
+        when(mongoTemplate.find(any(Query.class), eq(Document.class), anyString())).thenAnswer(invocation -> {
+            // Each fetch waits for the other, so fetches made one after the other would time out
+            bothFetching.countDown();
+            if (!bothFetching.await(5, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("Collections fetched one after the other");
+            }
+            return "products".equals(invocation.getArgument(2)) ? productDocs : List.of();
+        });
+
+        // Act
+        List<List<Document>> actualDocuments = documentFetcherService.fetchDocumentsByKeysConcurrently(
+                List.of("products", "products_salsify"), Map.of(), List.of(new Document("upc", "1")));
+
+        // Assert
+        assertEquals(List.of(productDocs, List.of()), actualDocuments);
+    }
+
+    /**
+     * Verifies that with compared fields configured, document queries include only the key fields and the
+     * compared fields, leaving out {@code _id} and any compared field that is also ignored.
+     */
+    @Test
+    void testFetchDocuments_WithIncludedFields_ProjectsComparedFieldsOnly() {
+        // Arrange
+        ReflectionTestUtils.setField(documentFetcherService, "includedFieldsProperty", "name, attributes.color,last_updated");
+        documentFetcherService.init();
+        when(mongoTemplate.find(any(Query.class), eq(Document.class), eq("products"))).thenReturn(List.of());
+
+        // Act
+        documentFetcherService.fetchDocuments("products", Map.of());
+
+        // Assert
+        Query expectedQuery = new Query();
+        expectedQuery.fields().include("upc", "country", "name", "attributes.color").exclude("_id");
+        verify(mongoTemplate).find(expectedQuery, Document.class, "products");
+    }
+
+    /**
+     * Verifies that nested ignored paths are excluded from document queries, except wildcard paths and paths
+     * below another excluded path, which would collide.
+     */
+    @Test
+    void testFetchDocuments_WithNestedIgnoredPaths_ExcludesProjectablePaths() {
+        // Arrange
+        ReflectionTestUtils.setField(documentFetcherService, "ignoredFieldsProperty", "_id, media,media.images,attributes.size,variants.*.stock");
+        documentFetcherService.init();
+        when(mongoTemplate.find(any(Query.class), eq(Document.class), eq("products"))).thenReturn(List.of());
+
+        // Act
+        documentFetcherService.fetchDocuments("products", Map.of());
+
+        // Assert
+        Query expectedQuery = new Query();
+        expectedQuery.fields().exclude("_id", "media", "attributes.size");
+        verify(mongoTemplate).find(expectedQuery, Document.class, "products");
+    }
+
+    /**
+     * Adds the projection expected by default, which excludes the ignored fields set up for the tests.
+     */
+    private static Query withIgnoredFieldsExcluded(Query query) {
+        query.fields().exclude("_id", "last_updated");
+        return query;
+    }
+
+    private static AggregationResults<Document> buckets(Object... minimums) {
+        return new AggregationResults<>(Arrays.stream(minimums)
+                .map(minimum -> new Document("_id", new Document("min", minimum)))
+                .toList(), new Document());
     }
 }
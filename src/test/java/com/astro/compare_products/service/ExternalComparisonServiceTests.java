@@ -0,0 +1,126 @@
+package com.astro.compare_products.service;
+
+import com.astro.compare_products.common.ComparisonProgress;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for the {@link ExternalComparisonService} class.
+ * <p>
+ * This class verifies that comparing through partitioned run files finds the same differences as comparing
+ * in memory, also when partitions are split again to fit the memory budget, and that no run files are left behind.
+ */
+class ExternalComparisonServiceTests {
+
+    @Mock
+    private DocumentFetcherService documentFetcherService;
+
+    @TempDir
+    private Path directory;
+
+    private DocumentComparisonService comparisonService;
+
+    private ExternalComparisonService externalComparisonService;
+
+    private final List<RawBsonDocument> collection1Docs = new ArrayList<>();
+    private final List<RawBsonDocument> collection2Docs = new ArrayList<>();
+
+    /**
+     * Initializes a comparison service keyed on upc and two collections with unique, differing and equal documents.
+     */
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+
+        comparisonService = new DocumentComparisonService();
+        ReflectionTestUtils.setField(comparisonService, "ignoredFieldsProperty", "last_updated");
+        ReflectionTestUtils.setField(comparisonService, "keyFieldsProperty", "upc");
+        comparisonService.init();
+
+        externalComparisonService = new ExternalComparisonService(documentFetcherService, comparisonService);
+        ReflectionTestUtils.setField(externalComparisonService, "partitionCount", 4);
+        ReflectionTestUtils.setField(externalComparisonService, "directoryProperty", directory.toString());
+
+        for (int i = 0; i < 60; i++) {
+            if (i % 10 != 9) {
+                collection1Docs.add(raw(new Document("upc", String.valueOf(i)).append("price", i).append("last_updated", i)));
+            }
+            if (i % 10 != 8) {
+                int price = i % 7 == 0 ? i + 1 : i;
+                collection2Docs.add(raw(new Document("price", price).append("upc", String.valueOf(i)).append("last_updated", -i)));
+            }
+        }
+        when(documentFetcherService.streamRawDocuments(eq("collection1"), anyMap())).thenAnswer(invocation -> collection1Docs.stream());
+        when(documentFetcherService.streamRawDocuments(eq("collection2"), anyMap())).thenAnswer(invocation -> collection2Docs.stream());
+    }
+
+    /**
+     * Tests that a budget too small for any partition still finds every difference, with all run files deleted.
+     */
+    @Test
+    void testCompareExternally_SplitPartitions_SameResultsAsInMemory() throws IOException {
+        // Arrange
+        ReflectionTestUtils.setField(externalComparisonService, "memoryBudgetBytes", 2_000L);
+        Map<String, Object> expected = comparisonService.compareRawDocuments(collection1Docs, collection2Docs,
+                comparisonService.rulesFor("collection1", "collection2"), new ComparisonProgress());
+        ComparisonProgress progress = new ComparisonProgress();
+
+        // Act
+        Map<String, Object> result = externalComparisonService.compareExternally("collection1", "collection2", Map.of(), progress);
+
+        // Assert
+        assertEquals(6, ((List<?>) result.get("docsInFirstOnly")).size());
+        assertEquals(new HashSet<>((List<?>) expected.get("docsInFirstOnly")), new HashSet<>((List<?>) result.get("docsInFirstOnly")));
+        assertEquals(new HashSet<>((List<?>) expected.get("docsInSecondOnly")), new HashSet<>((List<?>) result.get("docsInSecondOnly")));
+        assertEquals(new HashSet<>((List<?>) expected.get("differingDocs")), new HashSet<>((List<?>) result.get("differingDocs")));
+        assertEquals(54L, progress.snapshot().get("fetchedFirst"));
+        assertEquals(0, countFiles());
+    }
+
+    /**
+     * Tests that run files are deleted when the comparison fails while spilling.
+     */
+    @Test
+    void testCompareExternally_FetchFails_RunFilesDeleted() throws IOException {
+        // Arrange
+        ReflectionTestUtils.setField(externalComparisonService, "memoryBudgetBytes", 1_000_000L);
+        when(documentFetcherService.streamRawDocuments(eq("collection2"), anyMap()))
+                .thenAnswer(invocation -> Stream.<RawBsonDocument>generate(() -> {
+                    throw new IllegalStateException("cursor failed");
+                }));
+
+        // Act & Assert
+        assertThrows(IllegalStateException.class,
+                () -> externalComparisonService.compareExternally("collection1", "collection2", Map.of(), new ComparisonProgress()));
+        assertEquals(0, countFiles());
+    }
+
+    private long countFiles() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            return paths.filter(path -> !path.equals(directory)).count();
+        }
+    }
+
+    private static RawBsonDocument raw(Document document) {
+        return new RawBsonDocument(document, new DocumentCodec());
+    }
+}
@@ -0,0 +1,123 @@
+package com.astro.compare_products.service;
+
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for the {@link IncrementalComparisonService} class.
+ * <p>
+ * This class verifies that the first run compares everything and stores a baseline, and that
+ * later runs re-compare only the documents updated since the stored watermark.
+ */
+class IncrementalComparisonServiceTests {
+
+    private static final String PAIR_ID = "products|products_salsify|{}";
+
+    @Mock
+    private MongoTemplate mongoTemplate;
+
+    @Mock
+    private DocumentFetcherService documentFetcherService;
+
+    private IncrementalComparisonService incrementalComparisonService;
+
+    /**
+     * Initializes mocks and a real comparison service for each test case.
+     */
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+
+        DocumentComparisonService comparisonService = new DocumentComparisonService();
+        ReflectionTestUtils.setField(comparisonService, "ignoredFieldsProperty", "last_updated");
+        ReflectionTestUtils.setField(comparisonService, "keyFieldsProperty", "upc");
+        comparisonService.init();
+
+        incrementalComparisonService = new IncrementalComparisonService(mongoTemplate, documentFetcherService, comparisonService);
+        ReflectionTestUtils.setField(incrementalComparisonService, "keyFieldsProperty", "upc");
+        ReflectionTestUtils.setField(incrementalComparisonService, "timestampField", "last_updated");
+        ReflectionTestUtils.setField(incrementalComparisonService, "watermarkCollection", "comparison_watermarks");
+        ReflectionTestUtils.setField(incrementalComparisonService, "diffCollection", "comparison_diffs");
+        incrementalComparisonService.init();
+    }
+
+    /**
+     * Tests that without a stored watermark both collections are compared in full, the differences
+     * are stored and the latest update timestamp becomes the watermark.
+     */
+    @Test
+    void testCompareIncrementally_WithoutWatermark_StoresFullBaseline() {
+        // Arrange
+        Date older = new Date(1_000);
+        Date newer = new Date(2_000);
+        List<Document> collection1Docs = List.of(
+                new Document("upc", "1").append("name", "A").append("last_updated", older),
+                new Document("upc", "2").append("name", "B").append("last_updated", newer));
+        List<Document> collection2Docs = List.of(new Document("upc", "1").append("name", "A2").append("last_updated", older));
+        when(documentFetcherService.fetchDocumentsConcurrently(List.of("products", "products_salsify"), Map.of()))
+                .thenReturn(List.of(collection1Docs, collection2Docs));
+        when(documentFetcherService.fetchLatestTimestamp("products", Map.of(), "last_updated")).thenReturn(newer);
+        when(documentFetcherService.fetchLatestTimestamp("products_salsify", Map.of(), "last_updated")).thenReturn(older);
+
+        // Act
+        incrementalComparisonService.compareIncrementally("products", "products_salsify", Map.of());
+
+        // Assert
+        ArgumentCaptor<Collection<Document>> entries = ArgumentCaptor.captor();
+        verify(mongoTemplate).insert(entries.capture(), eq("comparison_diffs"));
+        assertEquals(List.of("DIFFERING", "FIRST_ONLY"), entries.getValue().stream().map(entry -> entry.getString("status")).sorted().toList());
+        verify(mongoTemplate).upsert(any(Query.class), eq(Update.update("watermark", newer)), eq("comparison_watermarks"));
+        verify(documentFetcherService, never()).fetchKeysUpdatedSinceConcurrently(any(), any(), any(), any());
+    }
+
+    /**
+     * Tests that with a stored watermark only the keys updated since then are re-compared, their stored
+     * differences replaced, and the report is rebuilt from the stored differences.
+     */
+    @Test
+    void testCompareIncrementally_WithWatermark_ReComparesUpdatedKeysOnly() {
+        // Arrange
+        Date watermark = new Date(2_000);
+        Date updated = new Date(3_000);
+        when(mongoTemplate.findById(PAIR_ID, Document.class, "comparison_watermarks"))
+                .thenReturn(new Document("_id", PAIR_ID).append("watermark", watermark));
+        when(documentFetcherService.fetchKeysUpdatedSinceConcurrently(List.of("products", "products_salsify"), Map.of(), "last_updated", watermark))
+                .thenReturn(List.of(List.of(new Document("upc", "3").append("last_updated", updated)), List.of()));
+        List<Document> updatedKeys = List.of(new Document("upc", "3"));
+        Document updatedDoc = new Document("upc", "3").append("name", "C").append("last_updated", updated);
+        when(documentFetcherService.fetchDocumentsByKeysConcurrently(List.of("products", "products_salsify"), Map.of(), updatedKeys))
+                .thenReturn(List.of(List.of(updatedDoc), List.of()));
+        Document storedDiff = new Document("pair", PAIR_ID).append("status", "DIFFERING")
+                .append("differences", List.of(
+                        new Document("field", "name").append("collection1", "A").append("collection2", "A2"),
+                        new Document("field", "upc").append("collection1", "1").append("collection2", "1")));
+        Document storedFirstOnly = new Document("pair", PAIR_ID).append("status", "FIRST_ONLY").append("document", updatedDoc);
+        when(mongoTemplate.find(any(Query.class), eq(Document.class), eq("comparison_diffs")))
+                .thenReturn(List.of(storedDiff, storedFirstOnly));
+
+        // Act
+        Map<String, Object> reportData = incrementalComparisonService.compareIncrementally("products", "products_salsify", Map.of());
+
+        // Assert
+        verify(documentFetcherService, never()).fetchDocumentsConcurrently(any(), any());
+        verify(mongoTemplate).upsert(any(Query.class), eq(Update.update("watermark", updated)), eq("comparison_watermarks"));
+        assertEquals(List.of(updatedDoc), reportData.get("docsInFirstOnly"));
+        List<?> differingDocs = (List<?>) reportData.get("differingDocs");
+        assertEquals(1, differingDocs.size());
+        assertEquals("A2", ((Map<?, ?>) ((Map<?, ?>) differingDocs.getFirst()).get("name")).get("collection2"));
+    }
+}
@@ -0,0 +1,116 @@
+package com.astro.compare_products.service;
+
+import com.astro.compare_products.common.ComparisonMode;
+import com.mongodb.client.MongoDatabase;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexField;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for the {@link IndexVerificationService} class.
+ * <p>
+ * This class verifies that existing indexes serve required indexes by prefix, that missing indexes are reported
+ * or created as configured, and that only collection scans in the winning plans of the queries are reported.
+ */
+class IndexVerificationServiceTests {
+
+    @Mock
+    private MongoTemplate mongoTemplate;
+
+    @Mock
+    private IndexOperations indexOperations;
+
+    @Mock
+    private MongoDatabase database;
+
+    private IndexVerificationService indexVerificationService;
+
+    /**
+     * Initializes a service verifying one collection that has an index on the key fields followed by another
+     * field but none on the category, and whose query plans scan the collection only in rejected plans.
+     */
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+
+        indexVerificationService = new IndexVerificationService(mongoTemplate);
+        ReflectionTestUtils.setField(indexVerificationService, "collectionsProperty", "products");
+        ReflectionTestUtils.setField(indexVerificationService, "keyFieldsProperty", "upc,country");
+        ReflectionTestUtils.setField(indexVerificationService, "comparisonMode", ComparisonMode.HASH);
+        ReflectionTestUtils.setField(indexVerificationService, "timestampField", "last_updated");
+        indexVerificationService.init();
+
+        when(mongoTemplate.indexOps("products")).thenReturn(indexOperations);
+        when(indexOperations.getIndexInfo()).thenReturn(List.of(
+                new IndexInfo(List.of(IndexField.create("_id", Sort.Direction.ASC)), "_id_", true, false, null),
+                new IndexInfo(List.of(IndexField.create("upc", Sort.Direction.ASC), IndexField.create("country", Sort.Direction.ASC),
+                        IndexField.create("name", Sort.Direction.ASC)), "upc_country_name", false, false, null)));
+        when(mongoTemplate.getDb()).thenReturn(database);
+        when(database.runCommand(any(Bson.class))).thenReturn(explainResult("IXSCAN"));
+    }
+
+    /**
+     * Tests that a missing index is reported with its specification and the instance is not ready.
+     */
+    @Test
+    void testVerify_MissingIndex_NotReady() {
+        // Act
+        IndexVerificationService.IndexReport report = indexVerificationService.verify();
+
+        // Assert
+        assertFalse(report.ready());
+        List<IndexVerificationService.IndexCheck> missing = report.indexes().stream().filter(check -> !check.present()).toList();
+        assertEquals(1, missing.size());
+        assertEquals("{\"category\": 1, \"upc\": 1, \"country\": 1}", missing.getFirst().index().specification());
+        assertTrue(report.queryPlans().stream().noneMatch(IndexVerificationService.QueryPlanCheck::collectionScan));
+        assertSame(report, indexVerificationService.lastReport());
+        verify(indexOperations, never()).ensureIndex(any());
+    }
+
+    /**
+     * Tests that a missing index is created when configured to, and that a scanning winning plan is reported.
+     */
+    @Test
+    void testVerify_CreateMissing_CreatesIndexAndReportsCollectionScans() {
+        // Arrange
+        ReflectionTestUtils.setField(indexVerificationService, "createMissing", true);
+        when(database.runCommand(any(Bson.class))).thenReturn(explainResult("COLLSCAN"));
+        ArgumentCaptor<Index> index = ArgumentCaptor.forClass(Index.class);
+
+        // Act
+        IndexVerificationService.IndexReport report = indexVerificationService.verify();
+
+        // Assert
+        assertTrue(report.ready());
+        verify(indexOperations).ensureIndex(index.capture());
+        assertEquals(new Document("category", 1).append("upc", 1).append("country", 1), index.getValue().getIndexKeys());
+        assertEquals("comparison_category_key", index.getValue().getIndexOptions().getString("name"));
+        assertEquals(4, report.queryPlans().stream().filter(IndexVerificationService.QueryPlanCheck::collectionScan).count());
+    }
+
+    /**
+     * Builds an explain result whose winning plan has the given input stage, with a rejected collection scan.
+     */
+    private static Document explainResult(String inputStage) {
+        return new Document("queryPlanner", new Document("winningPlan",
+                new Document("stage", "FETCH").append("inputStage", new Document("stage", inputStage)))
+                .append("rejectedPlans", List.of(new Document("stage", "COLLSCAN"))));
+    }
+}
@@ -0,0 +1,208 @@
+package com.astro.compare_products.service;
+
+import com.astro.compare_products.common.ComparisonProgress;
+import com.astro.compare_products.common.MerkleTree;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for the {@link MerkleComparisonService} class.
+ * <p>
+ * This class verifies that the first run builds and stores the trees of both collections and compares only
+ * the documents of differing buckets, that later runs with matching trees fetch no documents, and that a tree
+ * left mid-update is rebuilt.
+ */
+class MerkleComparisonServiceTests {
+
+    private static final String PAIR_ID = "products|products_salsify|{}";
+
+    @Mock
+    private MongoTemplate mongoTemplate;
+
+    @Mock
+    private DocumentFetcherService documentFetcherService;
+
+    private MerkleComparisonService merkleComparisonService;
+
+    // Entries inserted into the entry collection
+    private final List<Document> entries = new ArrayList<>();
+
+    /**
+     * Initializes mocks, a real comparison service and an entry collection kept in memory for each test case.
+     */
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+
+        DocumentComparisonService comparisonService = new DocumentComparisonService();
+        ReflectionTestUtils.setField(comparisonService, "ignoredFieldsProperty", "_id,last_updated");
+        ReflectionTestUtils.setField(comparisonService, "keyFieldsProperty", "upc");
+        comparisonService.init();
+
+        merkleComparisonService = new MerkleComparisonService(mongoTemplate, documentFetcherService, comparisonService);
+        ReflectionTestUtils.setField(merkleComparisonService, "keyFieldsProperty", "upc");
+        ReflectionTestUtils.setField(merkleComparisonService, "timestampField", "last_updated");
+        ReflectionTestUtils.setField(merkleComparisonService, "bucketCount", 4096);
+        ReflectionTestUtils.setField(merkleComparisonService, "treeCollection", "comparison_merkle_trees");
+        ReflectionTestUtils.setField(merkleComparisonService, "entryCollection", "comparison_merkle_entries");
+        merkleComparisonService.init();
+
+        when(mongoTemplate.indexOps("comparison_merkle_entries")).thenReturn(mock(IndexOperations.class));
+        when(mongoTemplate.insert(anyCollection(), eq("comparison_merkle_entries"))).thenAnswer(invocation -> {
+            entries.addAll(invocation.getArgument(0));
+            return invocation.getArgument(0);
+        });
+        // Answers lookups of the entries of the differing buckets; lookups of entries by key find none
+        when(mongoTemplate.find(any(Query.class), eq(Document.class), eq("comparison_merkle_entries"))).thenAnswer(invocation -> {
+            Document bucketCriteria = invocation.<Query>getArgument(0).getQueryObject().get("bucket", Document.class);
+            if (bucketCriteria == null) {
+                return List.of();
+            }
+            List<?> buckets = bucketCriteria.getList("$in", Object.class);
+            return entries.stream().filter(entry -> buckets.contains(entry.get("bucket"))).toList();
+        });
+    }
+
+    /**
+     * Tests that without stored trees both trees are built from every document and stored, and that only the
+     * documents of the buckets of a changed and a missing document are fetched and compared.
+     */
+    @Test
+    void testCompareMerkle_WithoutTrees_BuildsTreesAndComparesDifferingBuckets() {
+        // Arrange
+        List<Document> collection1Docs = new ArrayList<>();
+        List<Document> collection2Docs = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            collection1Docs.add(new Document("upc", String.valueOf(i)).append("price", i));
+            if (i != 7) {
+                collection2Docs.add(new Document("upc", String.valueOf(i)).append("price", i == 5 ? 50 : i));
+            }
+        }
+        when(documentFetcherService.streamRawDocuments("products", Map.of())).thenAnswer(invocation -> collection1Docs.stream().map(MerkleComparisonServiceTests::raw));
+        when(documentFetcherService.streamRawDocuments("products_salsify", Map.of())).thenAnswer(invocation -> collection2Docs.stream().map(MerkleComparisonServiceTests::raw));
+        when(documentFetcherService.fetchDocumentsByKeysConcurrently(eq(List.of("products", "products_salsify")), eq(Map.of()), anyList()))
+                .thenAnswer(invocation -> List.of(byKeys(collection1Docs, invocation.getArgument(2)), byKeys(collection2Docs, invocation.getArgument(2))));
+
+        // Act
+        Map<String, Object> reportData = merkleComparisonService.compareMerkle("products", "products_salsify", Map.of(), new ComparisonProgress());
+
+        // Assert
+        assertEquals(39, entries.size());
+        verify(mongoTemplate, times(2)).save(any(Document.class), eq("comparison_merkle_trees"));
+        verify(documentFetcherService).fetchDocumentsByKeysConcurrently(List.of("products", "products_salsify"), Map.of(),
+                List.of(new Document("upc", "5"), new Document("upc", "7")));
+        assertEquals(List.of(collection1Docs.get(7)), reportData.get("docsInFirstOnly"));
+        assertEquals(1, ((List<?>) reportData.get("differingDocs")).size());
+        assertTrue(((List<?>) reportData.get("docsInSecondOnly")).isEmpty());
+    }
+
+    /**
+     * Tests that with stored, matching trees and no updated documents nothing is fetched or compared.
+     */
+    @Test
+    void testCompareMerkle_MatchingTreesWithoutUpdates_FetchesNothing() {
+        // Arrange
+        Date watermark = new Date(1_000);
+        List<List<Long>> levels = Arrays.stream(MerkleTree.empty(4096).levels())
+                .map(level -> Arrays.stream(level).boxed().toList())
+                .toList();
+        for (String side : List.of("|1", "|2")) {
+            when(mongoTemplate.findById(PAIR_ID + side, Document.class, "comparison_merkle_trees"))
+                    .thenReturn(new Document("_id", PAIR_ID + side).append("levels", levels).append("watermark", watermark));
+        }
+        when(documentFetcherService.fetchKeysUpdatedSince(anyString(), eq(Map.of()), eq("last_updated"), eq(watermark)))
+                .thenReturn(List.of());
+
+        // Act
+        Map<String, Object> reportData = merkleComparisonService.compareMerkle("products", "products_salsify", Map.of(), new ComparisonProgress());
+
+        // Assert
+        verify(documentFetcherService, never()).streamRawDocuments(any(), any());
+        verify(documentFetcherService, never()).fetchDocumentsByKeysConcurrently(any(), any(), any());
+        assertTrue(((List<?>) reportData.get("docsInFirstOnly")).isEmpty());
+        assertTrue(((List<?>) reportData.get("differingDocs")).isEmpty());
+    }
+
+    /**
+     * Tests that a run failing between the entry writes and the tree write leaves the stored tree marked dirty,
+     * and that the next run rebuilds it from every document instead of applying updates to it.
+     */
+    @Test
+    void testCompareMerkle_FailureBetweenEntryAndTreeWrites_RebuildsTree() {
+        // Arrange
+        Map<String, Document> trees = new HashMap<>();
+        Date watermark = new Date(1_000);
+        List<List<Long>> levels = Arrays.stream(MerkleTree.empty(4096).levels())
+                .map(level -> Arrays.stream(level).boxed().toList())
+                .toList();
+        for (String side : List.of("|1", "|2")) {
+            trees.put(PAIR_ID + side, new Document("_id", PAIR_ID + side).append("levels", levels).append("watermark", watermark));
+        }
+        when(mongoTemplate.findById(anyString(), eq(Document.class), eq("comparison_merkle_trees")))
+                .thenAnswer(invocation -> trees.get(invocation.<String>getArgument(0)));
+        when(mongoTemplate.updateFirst(any(Query.class), any(Update.class), eq("comparison_merkle_trees"))).thenAnswer(invocation -> {
+            String treeId = invocation.<Query>getArgument(0).getQueryObject().getString("_id");
+            trees.get(treeId).putAll(invocation.<Update>getArgument(1).getUpdateObject().get("$set", Document.class));
+            return null;
+        });
+        when(mongoTemplate.save(any(Document.class), eq("comparison_merkle_trees"))).thenAnswer(invocation -> {
+            Document tree = invocation.getArgument(0);
+            trees.put(tree.getString("_id"), tree);
+            return tree;
+        });
+        List<Document> collection1Docs = List.of(new Document("upc", "1").append("price", 10).append("last_updated", new Date(2_000)));
+        when(documentFetcherService.fetchKeysUpdatedSince("products", Map.of(), "last_updated", watermark)).thenReturn(collection1Docs);
+        when(documentFetcherService.fetchKeysUpdatedSince("products_salsify", Map.of(), "last_updated", watermark)).thenReturn(List.of());
+        when(documentFetcherService.streamRawDocuments("products", Map.of())).thenAnswer(invocation -> collection1Docs.stream().map(MerkleComparisonServiceTests::raw));
+        when(documentFetcherService.fetchDocumentsByKeys(eq("products"), eq(Map.of()), anyList()))
+                .thenAnswer(invocation -> byKeys(collection1Docs, invocation.getArgument(2)));
+        when(documentFetcherService.fetchDocumentsByKeysConcurrently(eq(List.of("products", "products_salsify")), eq(Map.of()), anyList()))
+                .thenAnswer(invocation -> List.of(byKeys(collection1Docs, invocation.getArgument(2)), List.of()));
+        // The first entry write fails after the former entries were removed, before the tree is saved
+        doThrow(new IllegalStateException("Connection lost")).doAnswer(invocation -> {
+            entries.addAll(invocation.getArgument(0));
+            return invocation.getArgument(0);
+        }).when(mongoTemplate).insert(anyCollection(), eq("comparison_merkle_entries"));
+
+        // Act
+        assertThrows(IllegalStateException.class,
+                () -> merkleComparisonService.compareMerkle("products", "products_salsify", Map.of(), new ComparisonProgress()));
+        boolean dirtyAfterFailure = trees.get(PAIR_ID + "|1").getBoolean("dirty", false);
+        Map<String, Object> reportData = merkleComparisonService.compareMerkle("products", "products_salsify", Map.of(), new ComparisonProgress());
+
+        // Assert
+        assertTrue(dirtyAfterFailure);
+        verify(documentFetcherService).streamRawDocuments("products", Map.of());
+        assertFalse(trees.get(PAIR_ID + "|1").getBoolean("dirty", false));
+        assertEquals(collection1Docs, reportData.get("docsInFirstOnly"));
+    }
+
+    private static List<Document> byKeys(List<Document> documents, List<Document> keys) {
+        Set<Object> upcs = new HashSet<>();
+        keys.forEach(key -> upcs.add(key.get("upc")));
+        return documents.stream().filter(doc -> upcs.contains(doc.get("upc"))).toList();
+    }
+
+    private static RawBsonDocument raw(Document document) {
+        return new RawBsonDocument(document, new DocumentCodec());
+    }
+}
@@ -0,0 +1,99 @@
+package com.astro.compare_products.service;
+
+import com.astro.compare_products.common.ComparisonRules;
+import com.astro.compare_products.common.DiffTable;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for the {@link RawDocumentComparator} class.
+ * <p>
+ * This class verifies that comparing encoded documents finds the same differences as comparing
+ * the decoded documents field by field.
+ */
+class RawDocumentComparatorTests {
+
+    private static final ComparisonRules RULES =
+            ComparisonRules.compile(List.of("last_updated", "attributes.last_updated"), Map.of());
+
+    private final RawDocumentComparator comparator = new RawDocumentComparator(List.of("upc"),
+            new ArrayDiffer((doc1, doc2, rules, differences, path) -> {
+            }));
+
+    private final DiffTable differences = new DiffTable();
+
+    /**
+     * Tests that documents with equal values compare equal whatever the order of their fields, including
+     * arrays of sub-documents whose fields are ordered differently, and regardless of ignored fields.
+     */
+    @Test
+    void testCompareFields_EqualValuesInAnyOrder_NoDifferences() {
+        // Arrange
+        Document doc1 = new Document("upc", "1").append("price", 9.99).append("last_updated", new Date(1))
+                .append("attributes", new Document("color", "red").append("size", "M"))
+                .append("variants", List.of(new Document("sku", "A").append("stock", 1)));
+        Document doc2 = new Document("attributes", new Document("size", "M").append("color", "red").append("last_updated", new Date(2)))
+                .append("variants", List.of(new Document("stock", 1).append("sku", "A")))
+                .append("price", 9.99).append("upc", "1").append("last_updated", new Date(3));
+
+        // Act
+        comparator.compareFields(raw(doc1), raw(doc2), RULES, differences);
+
+        // Assert
+        assertFalse(differences.hasPendingRows());
+    }
+
+    /**
+     * Tests that differing values are reported with their decoded values, at the dotted path of sub-document fields, that
+     * numbers of different BSON types differ, and that a missing field compares like null.
+     */
+    @Test
+    void testCompareFields_DifferingValues_ReportedLikeDecodedComparison() {
+        // Arrange
+        ObjectId id = new ObjectId();
+        Document doc1 = new Document("upc", "1").append("count", 1).append("ref", id).append("note", null)
+                .append("attributes", new Document("color", "red").append("size", "M"))
+                .append("tags", List.of("a", "c", "b"));
+        Document doc2 = new Document("upc", "1").append("count", 1L).append("ref", id)
+                .append("attributes", new Document("color", "blue").append("size", "M"))
+                .append("tags", List.of("b", "d", "a"));
+
+        // Act
+        comparator.compareFields(raw(doc1), raw(doc2), RULES, differences);
+
+        // Assert
+        assertTrue(differences.endDocument());
+        assertEquals(Map.of(
+                "count", Map.of("collection1", 1, "collection2", 1L),
+                "attributes.color", Map.of("collection1", "red", "collection2", "blue"),
+                "tags[1]", Map.of("collection1", "c", "collection2", "d")), differences.get(0));
+    }
+
+    /**
+     * Tests that key fields are decoded to the same values as in the decoded document.
+     */
+    @Test
+    void testKey_DecodesKeyFieldsOnly() {
+        // Arrange
+        RawBsonDocument doc = raw(new Document("name", "A").append("upc", "123"));
+
+        // Act & Assert
+        assertEquals("123", comparator.keyFieldValue(doc, 0));
+        assertEquals("[123]", comparator.key(doc).toString());
+    }
+
+    private static RawBsonDocument raw(Document document) {
+        return new RawBsonDocument(document, new DocumentCodec());
+    }
+}
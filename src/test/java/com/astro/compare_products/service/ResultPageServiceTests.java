@@ -0,0 +1,98 @@
+package com.astro.compare_products.service;
+
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the {@link ResultPageService} class.
+ * <p>
+ * This class verifies that following the cursors walks a section exactly once, that pages can be filtered
+ * by field path, and that cursors issued for other data are rejected.
+ */
+class ResultPageServiceTests {
+
+    private ResultPageService resultPageService;
+
+    private Map<String, Object> result;
+
+    /**
+     * Initializes the service with a small maximum page size and report data with five unique documents
+     * and two differing documents for each test case.
+     */
+    @BeforeEach
+    void setUp() {
+        resultPageService = new ResultPageService();
+        ReflectionTestUtils.setField(resultPageService, "defaultPageSize", 2);
+        ReflectionTestUtils.setField(resultPageService, "maxPageSize", 3);
+
+        List<Document> docsInFirstOnly = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            Document doc = new Document("upc", String.valueOf(i));
+            if (i % 2 == 0) {
+                doc.append("attributes", new Document("color", "red"));
+            }
+            docsInFirstOnly.add(doc);
+        }
+        List<Map<String, Map<String, Object>>> differingDocs = List.of(
+                Map.of("price", Map.of("collection1", 1, "collection2", 2)),
+                Map.of("attributes.color", Map.of("collection1", "red", "collection2", "blue")));
+        result = Map.of("docsInFirstOnly", docsInFirstOnly, "docsInSecondOnly", List.of(), "differingDocs", differingDocs);
+    }
+
+    /**
+     * Tests that following the cursors returns every entry of a section once, in order, with the
+     * page size capped at the maximum.
+     */
+    @Test
+    void testPage_CursorsWalkSectionOnce() {
+        // Act
+        ResultPageService.ResultPage first = resultPageService.page("job", result, "docsInFirstOnly", null, 10, null);
+        ResultPageService.ResultPage second = resultPageService.page("job", result, "docsInFirstOnly", first.nextCursor(), 10, null);
+
+        // Assert
+        assertEquals(3, first.items().size());
+        assertEquals(2, second.items().size());
+        assertEquals(((Document) second.items().getLast()).get("upc"), "4");
+        assertNull(second.nextCursor());
+        assertEquals(5, second.total());
+    }
+
+    /**
+     * Tests that a field path filter keeps unique documents containing the path and differing documents
+     * with a difference at or below the path.
+     */
+    @Test
+    void testPage_FiltersByFieldPath() {
+        // Act
+        ResultPageService.ResultPage unique = resultPageService.page("job", result, "docsInFirstOnly", null, 3, "attributes.color");
+        ResultPageService.ResultPage differing = resultPageService.page("job", result, "differingDocs", null, null, "attributes");
+
+        // Assert
+        assertEquals(List.of("0", "2", "4"), unique.items().stream().map(doc -> ((Document) doc).getString("upc")).toList());
+        assertEquals(1, differing.items().size());
+        assertNull(differing.nextCursor());
+    }
+
+    /**
+     * Tests that a cursor is rejected when used on another section, on other report data, or when malformed.
+     */
+    @Test
+    void testPage_RejectsForeignCursors() {
+        // Arrange
+        String cursor = resultPageService.page("job", result, "docsInFirstOnly", null, null, null).nextCursor();
+
+        // Act & Assert
+        assertThrows(IllegalArgumentException.class, () -> resultPageService.page("job", result, "differingDocs", cursor, null, null));
+        assertThrows(IllegalArgumentException.class, () -> resultPageService.page("other", result, "docsInFirstOnly", cursor, null, null));
+        assertThrows(IllegalArgumentException.class, () -> resultPageService.page("job", result, "docsInFirstOnly", "not a cursor", null, null));
+        assertThrows(IllegalArgumentException.class, () -> resultPageService.page("job", result, "unknown", null, null, null));
+    }
+}